@@ -7,6 +7,7 @@ import net.minecraft.block.state.IBlockState;
 import net.minecraft.entity.player.EntityPlayer;
 import net.minecraft.init.Items;
 import net.minecraft.item.ItemStack;
+import net.minecraft.tileentity.TileEntity;
 import net.minecraft.util.EnumFacing;
 import net.minecraft.util.EnumHand;
 import net.minecraft.util.math.AxisAlignedBB;
@@ -15,6 +16,7 @@ import net.minecraft.world.IBlockAccess;
 import net.minecraft.world.World;
 
 import com.minemaarten.signals.proxy.CommonProxy.EnumGuiId;
+import com.minemaarten.signals.rail.network.mc.MCPos;
 import com.minemaarten.signals.rail.network.mc.RailNetworkManager;
 import com.minemaarten.signals.tileentity.TileEntityStationMarker;
 
@@ -71,6 +73,24 @@ public class BlockStationMarker extends BlockBase{
     public void neighborChanged(IBlockState state, World worldIn, BlockPos pos, Block blockIn, BlockPos fromPos){
         super.neighborChanged(state, worldIn, pos, blockIn, fromPos);
         updateStationState(worldIn, pos, state);
+        onDestinationProvidersChanged(worldIn, pos);
+    }
+
+    @Override
+    public void onNeighborChange(IBlockAccess world, BlockPos pos, BlockPos neighbor){
+        super.onNeighborChange(world, pos, neighbor);
+        if(world instanceof World) onDestinationProvidersChanged((World)world, pos);
+    }
+
+    /**
+     * Destination providers may have been placed or removed next to the station, which the network station object records.
+     */
+    private void onDestinationProvidersChanged(World world, BlockPos pos){
+        if(!world.isRemote) {
+            TileEntity te = world.getTileEntity(pos);
+            if(te instanceof TileEntityStationMarker) ((TileEntityStationMarker)te).onNeighborChanged();
+            RailNetworkManager.getInstance(world.isRemote).markDirty(new MCPos(world, pos));
+        }
     }
 
     public void updateStationState(World world, BlockPos pos, IBlockState state){
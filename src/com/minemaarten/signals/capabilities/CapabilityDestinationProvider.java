@@ -1,6 +1,7 @@
 package com.minemaarten.signals.capabilities;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.regex.Pattern;
@@ -16,6 +17,8 @@ import net.minecraftforge.common.capabilities.CapabilityManager;
 import net.minecraftforge.common.capabilities.ICapabilitySerializable;
 
 import com.minemaarten.signals.api.tileentity.IDestinationProvider;
+import com.minemaarten.signals.capabilities.destinationproviders.CartFingerprints;
+import com.minemaarten.signals.capabilities.destinationproviders.DestinationProviderItems;
 
 public class CapabilityDestinationProvider{
     @CapabilityInject(CapabilityDestinationProvider.class)
@@ -98,4 +101,24 @@ public class CapabilityDestinationProvider{
         }
         return false;
     }
+
+    /**
+     * @param te
+     * @param carts
+     * @param cartFingerprints the stacks of the carts, matched by item destination providers instead of the slots of every cart.
+     * @param destinationRegex
+     * @return true when any of the carts is applicable.
+     */
+    public boolean isTrainApplicable(TileEntity te, Collection<EntityMinecart> carts, CartFingerprints cartFingerprints, Pattern destinationRegex){
+        for(IDestinationProvider provider : destinationProviders) {
+            if(provider instanceof DestinationProviderItems) {
+                if(((DestinationProviderItems)provider).isTrainApplicable(te, cartFingerprints, destinationRegex)) return true;
+            } else {
+                for(EntityMinecart cart : carts) {
+                    if(provider.isCartApplicable(te, cart, destinationRegex)) return true;
+                }
+            }
+        }
+        return false;
+    }
 }
@@ -18,7 +18,6 @@ import net.minecraft.util.EnumFacing;
 import net.minecraft.util.EnumParticleTypes;
 import net.minecraft.util.math.BlockPos;
 import net.minecraft.util.math.MathHelper;
-import net.minecraft.util.math.Vec3d;
 import net.minecraftforge.common.capabilities.Capability;
 import net.minecraftforge.common.capabilities.CapabilityInject;
 import net.minecraftforge.common.capabilities.CapabilityManager;
@@ -49,7 +48,6 @@ import com.minemaarten.signals.rail.RailManager;
 import com.minemaarten.signals.rail.network.NetworkRail;
 import com.minemaarten.signals.rail.network.NetworkSignal;
 import com.minemaarten.signals.rail.network.NetworkState;
-import com.minemaarten.signals.rail.network.RailNetwork;
 import com.minemaarten.signals.rail.network.mc.MCPos;
 import com.minemaarten.signals.rail.network.mc.RailNetworkManager;
 import com.minemaarten.signals.tileentity.IGUITextFieldSensitive;
@@ -332,7 +330,7 @@ public class CapabilityMinecartDestination implements IGUITextFieldSensitive, ID
             if(isMotorized()) {
                 boolean shouldRun = true;
                 EnumFacing cartDir = cart.getAdjustedHorizontalFacing();
-                if(new Vec3d(cart.motionX, cart.motionY, cart.motionZ).lengthVector() < 0.05) {
+                if(cart.motionX * cart.motionX + cart.motionY * cart.motionY + cart.motionZ * cart.motionZ < 0.05 * 0.05) {
                     shouldRun = false;
                     if(hopperTimer > 0) {
                         hopperTimer--;
@@ -343,17 +341,19 @@ public class CapabilityMinecartDestination implements IGUITextFieldSensitive, ID
                 } else {
                     hopperTimer = 0;
 
-                    NetworkRail<MCPos> rail = RailNetworkManager.getInstance(cart.world.isRemote).getRail(cart.world, event.getPos());
+                    //Looked up every tick for every motorized cart, so avoid allocating.
+                    RailNetworkManager manager = RailNetworkManager.getInstance(cart.world.isRemote);
+                    BlockPos pos = event.getPos();
+                    NetworkRail<MCPos> rail = manager.getRail(cart.world.provider.getDimension(), pos.getX(), pos.getY(), pos.getZ());
                     if(rail == null) { //When not traveling over a Signals managed rail network 
                         //Try to look up a rail using block states.
                         IBlockState state = cart.world.getBlockState(event.getPos());
                         IRail r = RailManager.getInstance().getRail(cart.world, event.getPos(), state);
                         shouldRun = r != null; //Power the engine when a rail is found
                     } else {
-                        RailNetwork<MCPos> network = RailNetworkManager.getInstance(cart.world.isRemote).getNetwork();
-                        NetworkSignal<MCPos> signal = network.railObjects.getNeighborSignals(rail.getPotentialNeighborObjectLocations()).filter(s -> s.getRailPos().equals(rail.getPos())).findFirst().orElse(null);
+                        NetworkSignal<MCPos> signal = manager.getNetwork().railObjects.getAttachedSignal(rail, null);
 
-                        NetworkState<MCPos> state = RailNetworkManager.getInstance(cart.world.isRemote).getState();
+                        NetworkState<MCPos> state = manager.getState();
                         shouldRun = signal == null || state.getLampStatus(signal.getPos()) == EnumLampStatus.GREEN;
                         if(!shouldRun) {
                             cart.motionX = 0;
@@ -0,0 +1,60 @@
+package com.minemaarten.signals.capabilities.destinationproviders;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import net.minecraft.entity.item.EntityMinecart;
+import net.minecraft.item.ItemStack;
+import net.minecraftforge.items.IItemHandler;
+
+/**
+ * The stacks in the carts of a train, and their fingerprints for each filter mode of {@link DestinationProviderItems}. Computed once when a
+ * train is matched against the destination providers of the stations, instead of per station, provider and cart slot.
+ * @author Maarten
+ *
+ */
+public class CartFingerprints{
+    private final List<ItemStack> stacks = new ArrayList<>();
+    private final List<Set<Object>> fingerprints = new ArrayList<>(DestinationProviderItems.FINGERPRINT_MODES); //Per filter mode, null until used
+
+    public CartFingerprints(Collection<EntityMinecart> carts){
+        for(EntityMinecart cart : carts) {
+            IItemHandler cap = cart.getCapability(DestinationProviderItems.ITEM_HANDLER, null);
+            if(cap != null) {
+                for(int cartSlot = 0; cartSlot < cap.getSlots(); cartSlot++) {
+                    ItemStack cartStack = cap.getStackInSlot(cartSlot);
+                    if(!cartStack.isEmpty()) stacks.add(cartStack);
+                }
+            }
+        }
+        for(int mode = 0; mode < DestinationProviderItems.FINGERPRINT_MODES; mode++) {
+            fingerprints.add(null);
+        }
+    }
+
+    /**
+     * @return the non-empty stacks in the carts.
+     */
+    public List<ItemStack> getStacks(){
+        return stacks;
+    }
+
+    /**
+     * @param mode see {@link DestinationProviderItems#getFingerprintMode()}
+     * @return the fingerprints of the stacks for the filter mode.
+     */
+    Set<Object> getFingerprints(int mode){
+        Set<Object> modeFingerprints = fingerprints.get(mode);
+        if(modeFingerprints == null) {
+            modeFingerprints = new HashSet<>();
+            for(ItemStack stack : stacks) {
+                DestinationProviderItems.addFingerprints(stack, mode, modeFingerprints);
+            }
+            fingerprints.set(mode, modeFingerprints);
+        }
+        return modeFingerprints;
+    }
+}
@@ -1,6 +1,10 @@
 package com.minemaarten.signals.capabilities.destinationproviders;
 
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Objects;
+import java.util.Set;
 import java.util.regex.Pattern;
 
 import net.minecraft.client.resources.I18n;
@@ -26,11 +30,59 @@ import com.minemaarten.signals.tileentity.IGUIButtonSensitive;
 @Signals
 public class DestinationProviderItems implements IDestinationProviderItems, IGUIButtonSensitive{
     @CapabilityInject(IItemHandler.class)
-    private static Capability<IItemHandler> ITEM_HANDLER;
+    static Capability<IItemHandler> ITEM_HANDLER;
+
+    /**
+     * How long the fingerprints of the inventory are reused, as inventories don't notify changes.
+     */
+    private static final int FINGERPRINT_REFRESH_INTERVAL = 20;
+
+    //The properties of stacks compared with the filter settings, see getFingerprintMode(): mod similarity, ore dictionary, or the item with
+    //or without damage and NBT.
+    private static final int MODE_MOD = 0, MODE_ORE_DICTIONARY = 1, MODE_ITEM = 2, MODE_DAMAGE_BIT = 1, MODE_NBT_BIT = 2;
+    static final int FINGERPRINT_MODES = MODE_ITEM + 4;
 
     @GuiSynced
     public boolean blacklist, checkDamage = true, checkNBT, checkModSimilarity, checkOreDictionary;
 
+    private Set<Object> inventoryFingerprints; //null when the filter settings changed
+    private long fingerprintTime;
+
+    /**
+     * The properties of a stack compared when not checking mod similarity or ore dictionary entries.
+     */
+    private static class ItemFingerprint{
+        private final Item item;
+        private final int damage;
+        private final NBTTagCompound tag;
+
+        /**
+         * @param item
+         * @param damage
+         * @param tag copied, so later changes to the stack don't change the fingerprint.
+         */
+        public ItemFingerprint(Item item, int damage, NBTTagCompound tag){
+            this.item = item;
+            this.damage = damage;
+            this.tag = tag != null ? tag.copy() : null;
+        }
+
+        @Override
+        public boolean equals(Object obj){
+            if(obj instanceof ItemFingerprint) {
+                ItemFingerprint other = (ItemFingerprint)obj;
+                return item == other.item && damage == other.damage && Objects.equals(tag, other.tag);
+            } else {
+                return false;
+            }
+        }
+
+        @Override
+        public int hashCode(){
+            return (System.identityHashCode(item) * 31 + damage) * 31 + Objects.hashCode(tag);
+        }
+    }
+
     @Override
     public boolean isTileEntityApplicable(TileEntity te){
         return te instanceof IInventory;
@@ -38,17 +90,88 @@ public class DestinationProviderItems implements IDestinationProviderItems, IGUI
 
     @Override
     public boolean isCartApplicable(TileEntity te, EntityMinecart cart, Pattern destinationRegex){
-        IItemHandler cap = cart.getCapability(ITEM_HANDLER, null);
-        if(cap != null && destinationRegex.matcher("ITEM").matches()) {
-            IInventory inv = (IInventory)te;
-            for(int cartSlot = 0; cartSlot < cap.getSlots(); cartSlot++) {
-                ItemStack cartStack = cap.getStackInSlot(cartSlot);
-                if(!cartStack.isEmpty()) {
-                    if(isStackApplicable(cartStack, inv)) return true;
-                }
+        return isTrainApplicable(te, new CartFingerprints(Collections.singletonList(cart)), destinationRegex);
+    }
+
+    /**
+     * @param te
+     * @param cartFingerprints the stacks of the carts of the train, see {@link CartFingerprints}.
+     * @param destinationRegex
+     * @return true when any of the carts is applicable, like {@link DestinationProviderItems#isCartApplicable(TileEntity, EntityMinecart, Pattern)}.
+     */
+    public boolean isTrainApplicable(TileEntity te, CartFingerprints cartFingerprints, Pattern destinationRegex){
+        if(cartFingerprints.getStacks().isEmpty() || !destinationRegex.matcher("ITEM").matches()) return false;
+        IInventory inv = (IInventory)te;
+        if(blacklist && checkOreDictionary && !checkModSimilarity) {
+            //Stacks can have multiple ore dictionary entries, which can't be blacklisted via fingerprints
+            for(ItemStack cartStack : cartFingerprints.getStacks()) {
+                if(isStackApplicable(cartStack, inv)) return true;
             }
+            return false;
         }
-        return false;
+
+        Set<Object> fingerprints = getInventoryFingerprints(te, inv);
+        if(fingerprints.isEmpty()) return false;
+        Set<Object> cartStackFingerprints = cartFingerprints.getFingerprints(getFingerprintMode());
+        if(blacklist) {
+            //Applicable when the inventory has a stack different from a cart stack, a stack has a single fingerprint here.
+            return fingerprints.size() > 1 || !fingerprints.containsAll(cartStackFingerprints);
+        } else {
+            for(Object cartFingerprint : cartStackFingerprints) {
+                if(fingerprints.contains(cartFingerprint)) return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * @return the fingerprints of the stacks in the inventory, which are compared to the fingerprints of the stacks in carts instead of
+     * comparing every stack in the cart to every stack in the inventory. Refreshed periodically, and when the filter settings change.
+     */
+    private Set<Object> getInventoryFingerprints(TileEntity te, IInventory inv){
+        long time = te.getWorld() != null ? te.getWorld().getTotalWorldTime() : 0;
+        if(inventoryFingerprints == null || time - fingerprintTime >= FINGERPRINT_REFRESH_INTERVAL || time < fingerprintTime) {
+            Set<Object> fingerprints = new HashSet<>();
+            for(int teSlot = 0; teSlot < inv.getSizeInventory(); teSlot++) {
+                ItemStack teStack = inv.getStackInSlot(teSlot);
+                if(!teStack.isEmpty()) addFingerprints(teStack, getFingerprintMode(), fingerprints);
+            }
+            inventoryFingerprints = fingerprints;
+            fingerprintTime = time;
+        }
+        return inventoryFingerprints;
+    }
+
+    /**
+     * @return the properties of stacks compared with the current filter settings.
+     */
+    private int getFingerprintMode(){
+        if(checkModSimilarity) return MODE_MOD;
+        if(checkOreDictionary) return MODE_ORE_DICTIONARY;
+        return MODE_ITEM + (checkDamage ? MODE_DAMAGE_BIT : 0) + (checkNBT ? MODE_NBT_BIT : 0);
+    }
+
+    /**
+     * Adds the properties of the stack that are compared by {@link DestinationProviderItems#areStacksEqual(ItemStack, ItemStack, boolean, boolean, boolean, boolean)}
+     * with the filter settings of the given mode: two stacks are equal when they share a fingerprint.
+     */
+    static void addFingerprints(ItemStack stack, int mode, Set<Object> fingerprints){
+        if(mode == MODE_MOD) {
+            ResourceLocation id = Item.REGISTRY.getNameForObject(stack.getItem());
+            //Stacks without a registry name are equal to no other stack, in both whitelist and blacklist mode
+            fingerprints.add(id != null ? id.getResourceDomain() : new Object());
+        } else if(mode == MODE_ORE_DICTIONARY) {
+            for(int oredictId : OreDictionary.getOreIDs(stack)) {
+                fingerprints.add(oredictId);
+            }
+        } else {
+            boolean checkDamage = (mode - MODE_ITEM & MODE_DAMAGE_BIT) != 0, checkNBT = (mode - MODE_ITEM & MODE_NBT_BIT) != 0;
+            fingerprints.add(new ItemFingerprint(stack.getItem(), checkDamage ? stack.getItemDamage() : 0, checkNBT ? stack.getTagCompound() : null));
+        }
+    }
+
+    private void invalidateFingerprints(){
+        inventoryFingerprints = null;
     }
 
     public boolean isStackApplicable(ItemStack cartStack, IInventory inv){
@@ -123,6 +246,7 @@ public class DestinationProviderItems implements IDestinationProviderItems, IGUI
             case 4:
                 blacklist = !blacklist;
         }
+        invalidateFingerprints();
     }
 
     @Override
@@ -145,11 +269,13 @@ public class DestinationProviderItems implements IDestinationProviderItems, IGUI
         checkNBT = (packetData & 4) > 0;
         checkModSimilarity = (packetData & 2) > 0;
         checkOreDictionary = (packetData & 1) > 0;
+        invalidateFingerprints();
     }
 
     @Override
     public void useBlacklist(boolean useBlacklist){
         blacklist = useBlacklist;
+        invalidateFingerprints();
     }
 
     @Override
@@ -160,6 +286,7 @@ public class DestinationProviderItems implements IDestinationProviderItems, IGUI
     @Override
     public void checkDamage(boolean checkDamage){
         this.checkDamage = checkDamage;
+        invalidateFingerprints();
     }
 
     @Override
@@ -170,6 +297,7 @@ public class DestinationProviderItems implements IDestinationProviderItems, IGUI
     @Override
     public void checkNBT(boolean checkNBT){
         this.checkNBT = checkNBT;
+        invalidateFingerprints();
     }
 
     @Override
@@ -180,6 +308,7 @@ public class DestinationProviderItems implements IDestinationProviderItems, IGUI
     @Override
     public void checkModSimilarity(boolean checkModSimilarity){
         this.checkModSimilarity = checkModSimilarity;
+        invalidateFingerprints();
     }
 
     @Override
@@ -190,6 +319,7 @@ public class DestinationProviderItems implements IDestinationProviderItems, IGUI
     @Override
     public void checkOreDictionary(boolean checkOreDictionary){
         this.checkOreDictionary = checkOreDictionary;
+        invalidateFingerprints();
     }
 
     @Override
@@ -13,10 +13,15 @@ import net.minecraft.util.math.BlockPos;
 import net.minecraft.util.math.RayTraceResult;
 import net.minecraftforge.client.event.RenderWorldLastEvent;
 import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
+import net.minecraftforge.fml.common.gameevent.TickEvent.ClientTickEvent;
+import net.minecraftforge.fml.common.gameevent.TickEvent.Phase;
+import net.minecraftforge.fml.common.network.FMLNetworkEvent.ClientDisconnectionFromServerEvent;
 
 import org.lwjgl.opengl.GL11;
 
+import com.minemaarten.signals.Signals;
 import com.minemaarten.signals.block.BlockSignalBase;
+import com.minemaarten.signals.client.gui.GuiNetworkController;
 import com.minemaarten.signals.client.render.signals.BlockSectionRenderer;
 import com.minemaarten.signals.client.render.signals.ClaimedPosRenderer;
 import com.minemaarten.signals.client.render.signals.DirectionalityRenderer;
@@ -24,6 +29,8 @@ import com.minemaarten.signals.client.render.signals.PathRenderer;
 import com.minemaarten.signals.client.render.signals.RailEdgeRenderer;
 import com.minemaarten.signals.config.SignalsConfig;
 import com.minemaarten.signals.config.SignalsConfig.NetworkVisualizationSettings;
+import com.minemaarten.signals.network.NetworkHandler;
+import com.minemaarten.signals.network.PacketUpdateNetworkSubscription;
 import com.minemaarten.signals.rail.network.NetworkStation;
 import com.minemaarten.signals.rail.network.mc.MCPos;
 import com.minemaarten.signals.rail.network.mc.RailNetworkManager;
@@ -36,6 +43,8 @@ public class ClientEventHandler{
     public final PathRenderer pathRenderer = new PathRenderer();
     public final ClaimedPosRenderer claimRenderer = new ClaimedPosRenderer();
     public final DirectionalityRenderer directionalityRenderer = new DirectionalityRenderer();
+    private EntityPlayer subscribedPlayer;
+    private boolean subscribed;
 
     private ClientEventHandler(){
 
@@ -102,6 +111,34 @@ public class ClientEventHandler{
         GL11.glPopMatrix();
     }
 
+    /**
+     * Lets the server know whether the player is looking at the rail network, as only then the trains, signals and routes are synced.
+     */
+    @SubscribeEvent
+    public void onClientTick(ClientTickEvent event){
+        if(event.phase != Phase.END) return;
+        Minecraft mc = Minecraft.getMinecraft();
+        if(mc.player == null) {
+            subscribedPlayer = null;
+            return;
+        }
+
+        boolean subscribed = shouldRender() || mc.currentScreen instanceof GuiNetworkController;
+        if(mc.player != subscribedPlayer || subscribed != this.subscribed) { //The player is recreated when joining a world or changing dimensions
+            subscribedPlayer = mc.player;
+            this.subscribed = subscribed;
+            NetworkHandler.sendToServer(new PacketUpdateNetworkSubscription(subscribed));
+        }
+    }
+
+    /**
+     * Caches the rail network of the server, so next time only the changes since need to be synced.
+     */
+    @SubscribeEvent
+    public void onDisconnect(ClientDisconnectionFromServerEvent event){
+        Signals.proxy.addScheduledTask(() -> RailNetworkManager.getClientInstance().saveNetworkCache(), false);
+    }
+
     private boolean shouldRender(){
         Minecraft mc = Minecraft.getMinecraft();
         EntityPlayer player = mc.player;
@@ -2,6 +2,7 @@ package com.minemaarten.signals.client.render.signals;
 
 import gnu.trove.map.hash.TIntObjectHashMap;
 
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -21,6 +22,7 @@ import com.minemaarten.signals.client.RectRenderer;
 import com.minemaarten.signals.lib.HeadingUtils;
 import com.minemaarten.signals.lib.Vec3iUtils;
 import com.minemaarten.signals.rail.network.NetworkRail;
+import com.minemaarten.signals.rail.network.RailGraph;
 import com.minemaarten.signals.rail.network.RailObjectHolder;
 import com.minemaarten.signals.rail.network.mc.MCNetworkRail;
 import com.minemaarten.signals.rail.network.mc.MCPos;
@@ -28,6 +30,7 @@ import com.minemaarten.signals.rail.network.mc.MCPos;
 public abstract class AbstractRailRenderer<TSection> {
 
     protected final Map<TSection, SectionRenderer> sectionsToRenderer = new ConcurrentHashMap<>();
+    private final List<NetworkRail<MCPos>> neighborBuffer = new ArrayList<>();
 
     private void addSectionRenderer(TSection section){
         SectionRenderer renderer = new SectionRenderer(section);
@@ -80,6 +83,14 @@ public abstract class AbstractRailRenderer<TSection> {
 
     protected abstract RailObjectHolder<MCPos> getNeighborProvider(TSection section);
 
+    /**
+     * When the neighbor provider holds the whole network, the network's graph can be used to look up the neighbors.
+     * @return null when the neighbors should be looked up in the neighbor provider.
+     */
+    protected RailGraph<MCPos> getRailGraph(TSection section){
+        return null;
+    }
+
     protected abstract boolean shouldTraverse(TSection section, NetworkRail<MCPos> rail);
 
     public void render(int dimensionID, BufferBuilder b){
@@ -141,13 +152,22 @@ public abstract class AbstractRailRenderer<TSection> {
             toTraverse.push(rootNode);
 
             RailObjectHolder<MCPos> neighborProvider = getNeighborProvider(section);
+            RailGraph<MCPos> graph = getRailGraph(section);
 
             while(!toTraverse.isEmpty()) {
                 NetworkRail<MCPos> node = toTraverse.pop();
                 EnumRailDirection railDir = ((MCNetworkRail)node).getCurDir();
 
-                List<NetworkRail<MCPos>> neighbors = node.getSectionNeighborRails(neighborProvider).collect(Collectors.toList());
-                for(NetworkRail<MCPos> neighbor : neighbors) {
+                int nodeIndex = graph != null ? graph.indexOf(node.getPos()) : RailGraph.NO_INDEX;
+                int neighborCount;
+                if(nodeIndex != RailGraph.NO_INDEX) {
+                    neighborCount = graph.getNeighborCount(nodeIndex);
+                } else {
+                    node.getSectionNeighborRails(neighborProvider, neighborBuffer);
+                    neighborCount = neighborBuffer.size();
+                }
+                for(int i = 0; i < neighborCount; i++) {
+                    NetworkRail<MCPos> neighbor = nodeIndex != RailGraph.NO_INDEX ? graph.getRail(graph.getNeighbor(nodeIndex, i)) : neighborBuffer.get(i);
                     if(shouldTraverse(section, neighbor) && traversed.add(neighbor)) {
                         toTraverse.push(neighbor);
                     }
@@ -1,6 +1,7 @@
 package com.minemaarten.signals.client.render.signals;
 
 import com.minemaarten.signals.rail.network.NetworkRail;
+import com.minemaarten.signals.rail.network.RailGraph;
 import com.minemaarten.signals.rail.network.RailObjectHolder;
 import com.minemaarten.signals.rail.network.RailSection;
 import com.minemaarten.signals.rail.network.mc.MCPos;
@@ -28,6 +29,11 @@ public class BlockSectionRenderer extends AbstractRailRenderer<RailSection<MCPos
         return RailNetworkManager.getClientInstance().getNetwork().railObjects;
     }
 
+    @Override
+    protected RailGraph<MCPos> getRailGraph(RailSection<MCPos> section){
+        return RailNetworkManager.getClientInstance().getNetwork().getRailGraph();
+    }
+
     @Override
     protected boolean shouldTraverse(RailSection<MCPos> section, NetworkRail<MCPos> rail){
         return section.containsRail(rail.getPos());
@@ -13,6 +13,9 @@ import net.minecraft.util.text.TextComponentString;
 import net.minecraft.util.text.TextComponentTranslation;
 import net.minecraft.world.World;
 
+import com.minemaarten.signals.rail.network.DestinationTreeCache;
+import com.minemaarten.signals.rail.network.RailRouteCache;
+import com.minemaarten.signals.rail.network.mc.MCPos;
 import com.minemaarten.signals.rail.network.mc.MCTrain;
 import com.minemaarten.signals.rail.network.mc.RailNetworkManager;
 
@@ -50,6 +53,10 @@ public class CommandSignals extends CommandBase{
         World overworld = server.getWorld(0);
         if(args.length < 2) {
             sender.sendMessage(new TextComponentString("Trains loaded: " + RailNetworkManager.getServerInstance().getState().getTrainStream().filter(x -> !((MCTrain)x).getCarts().isEmpty()).count()));
+            DestinationTreeCache<MCPos> treeCache = RailNetworkManager.getServerInstance().getState().getDestinationTreeCache();
+            sender.sendMessage(new TextComponentString("Destination trees cached: " + treeCache.size() + ", hits: " + treeCache.getHits() + ", misses: " + treeCache.getMisses()));
+            RailRouteCache<MCPos> routeCache = RailNetworkManager.getServerInstance().getState().getRouteCache();
+            sender.sendMessage(new TextComponentString(String.format("Routes cached: %d, hit rate: %.1f%%, evictions: %d, invalidations: %d", routeCache.size(), routeCache.getHitRate() * 100, routeCache.getEvictions(), routeCache.getInvalidations())));
             return true;
         } else {
             int z = Integer.parseInt(args[1]);
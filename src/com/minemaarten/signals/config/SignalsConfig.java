@@ -44,6 +44,9 @@ public class SignalsConfig{
     @Comment("When true, disallows chunk load upgrades to be crafted and used.")
     public static boolean disableChunkLoaderUpgrades;
 
+    @Name("Performance")
+    public static Performance performance = new Performance();
+
     @SubscribeEvent
     public static void onConfigChangedEvent(OnConfigChangedEvent event){
         if(event.getModID().equals(Constants.MOD_ID)) {
@@ -123,6 +126,56 @@ public class SignalsConfig{
         SECTION, PATHS, EDGES
     }
 
+    public static class Performance{
+        @Name("Parallel network building")
+        @Comment("When true, large rail networks are built using multiple threads.")
+        public boolean parallelNetworkBuilding = true;
+
+        @Name("Incremental signal updates")
+        @Comment("When true, signal statusses are only re-evaluated when trains, claims or forced statusses near them changed.")
+        public boolean incrementalSignalUpdates = true;
+
+        @Name("Destination tree caching")
+        @Comment("When true, the shortest paths to destinations are cached and shared by all trains routing to the same destinations.")
+        public boolean destinationTreeCaching = true;
+
+        @Name("Route caching")
+        @Comment("When true, routes are reused when a train pathfinds from the same position to the same destination again, as long as the signals on the route didn't change.")
+        public boolean routeCaching = true;
+
+        @Name("Contraction hierarchy routing")
+        @Comment("When true, a contraction hierarchy of the rail network is built after every network change, which makes routing over long distances on large networks faster, at the cost of more memory and build time.")
+        public boolean contractionHierarchyRouting = false;
+
+        @Name("Asynchronous routing")
+        @Comment("When true, trains are routed on worker threads instead of during the server tick, and start following their route a tick later.")
+        public boolean asyncRouting = false;
+
+        @Name("Interest management")
+        @Comment("When true, trains, signals and routes are only synced to players holding a network visualization item or having the network controller open, and only near them.")
+        public boolean interestManagement = true;
+
+        @Name("Interest chunk radius")
+        @Comment("The radius in chunks around a player in which trains, signals and routes are synced, when interest management is enabled.")
+        public int interestChunkRadius = 8;
+
+        @Name("Compact network packets")
+        @Comment("When true, rail network changes are synced to clients in a compact format grouped by chunk, which takes a fraction of the bandwidth of the regular format.")
+        public boolean compactNetworkPackets = true;
+
+        @Name("Join sync bytes per tick")
+        @Comment("The rail network is streamed to players that join, nearest chunks first, sending at most this many bytes per tick per player. Set to 0 to send the whole network at once.")
+        public int joinSyncBytesPerTick = 32768;
+
+        @Name("Client network cache")
+        @Comment("When true, clients cache the rail network of a server on disk, and when joining again only the changes since are synced. Also prevents resyncing the network when changing dimensions.")
+        public boolean clientNetworkCache = true;
+
+        @Name("Compact route packets")
+        @Comment("When true, train routes are synced as references to the edges of the rail network, which clients expand with their own copy of the network, instead of as a list of every rail.")
+        public boolean compactRoutePackets = true;
+    }
+
     public static class CartBlacklists{
         @Name("Cart Engine")
         @Comment("Engines cannot be applied to carts in this config option")
@@ -27,6 +27,7 @@ import net.minecraftforge.event.world.ChunkEvent;
 import net.minecraftforge.event.world.WorldEvent;
 import net.minecraftforge.fml.common.eventhandler.EventPriority;
 import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
+import net.minecraftforge.fml.common.gameevent.PlayerEvent.PlayerLoggedOutEvent;
 import net.minecraftforge.fml.common.gameevent.TickEvent.ClientTickEvent;
 import net.minecraftforge.fml.common.gameevent.TickEvent.Phase;
 import net.minecraftforge.fml.common.gameevent.TickEvent.ServerTickEvent;
@@ -142,6 +143,13 @@ public class EventHandler implements IWorldEventListener{
         }
     }
 
+    @SubscribeEvent
+    public void onPlayerLogout(PlayerLoggedOutEvent event){
+        if(!event.player.world.isRemote) {
+            RailNetworkManager.getServerInstance().onPlayerLeave(event.player);
+        }
+    }
+
     @SubscribeEvent
     public void onChunkUnload(ChunkEvent.Unload event){
         if(!event.getWorld().isRemote) {
@@ -149,6 +157,13 @@ public class EventHandler implements IWorldEventListener{
         }
     }
 
+    @SubscribeEvent
+    public void onWorldUnload(WorldEvent.Unload event){
+        if(!event.getWorld().isRemote) {
+            RailNetworkManager.getServerInstance().onWorldUnload(event.getWorld());
+        }
+    }
+
     @SubscribeEvent
     public void onNeighborChange(NeighborNotifyEvent event){
         if(!event.getWorld().isRemote) {
@@ -15,6 +15,10 @@ public class Log{
         logger.log(Level.ERROR, message);
     }
 
+    public static void error(String message, Throwable throwable){
+        logger.log(Level.ERROR, message, throwable);
+    }
+
     public static void warning(String message){
         logger.log(Level.WARN, message);
     }
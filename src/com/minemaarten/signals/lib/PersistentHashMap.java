@@ -0,0 +1,516 @@
+package com.minemaarten.signals.lib;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collector;
+
+/**
+ * Immutable hash map, implemented as a hash array mapped trie (HAMT). Updating the map returns a new map which shares all unchanged nodes with the
+ * old map, so a single update only allocates O(log n) nodes, and old versions stay valid for anyone still reading them.
+ * Bulk updates should go through a {@link Builder}, which updates the nodes it created itself in place.
+ * Null keys and values are not supported.
+ * @author Maarten
+ *
+ * @param <K>
+ * @param <V>
+ */
+public final class PersistentHashMap<K, V> extends AbstractMap<K, V>{
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+    private static final PersistentHashMap<?, ?> EMPTY = new PersistentHashMap<>(null, 0);
+
+    private final Node root;
+    private final int size;
+    private int hashCode; //Cached, 0 when not yet computed
+    private Set<Entry<K, V>> entrySet;
+
+    private PersistentHashMap(Node root, int size){
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <K, V> PersistentHashMap<K, V> of(){
+        return (PersistentHashMap<K, V>)EMPTY;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <K, V> PersistentHashMap<K, V> copyOf(Map<? extends K, ? extends V> map){
+        if(map instanceof PersistentHashMap) return (PersistentHashMap<K, V>)map;
+        Builder<K, V> builder = builder();
+        map.forEach(builder::put);
+        return builder.build();
+    }
+
+    public static <K, V> Builder<K, V> builder(){
+        return new Builder<>(null, 0);
+    }
+
+    public static <T, K, V> Collector<T, ?, PersistentHashMap<K, V>> toPersistentHashMap(Function<? super T, ? extends K> keyFunction, Function<? super T, ? extends V> valueFunction){
+        return Collector.of(PersistentHashMap::<K, V> builder, (builder, t) -> builder.put(keyFunction.apply(t), valueFunction.apply(t)), (b1, b2) -> {
+            b2.build().forEach(b1::put);
+            return b1;
+        }, Builder::build);
+    }
+
+    /**
+     * @return a builder starting with the contents of this map. This map itself is not affected by the builder.
+     */
+    public Builder<K, V> toBuilder(){
+        return new Builder<>(root, size);
+    }
+
+    public PersistentHashMap<K, V> plus(K key, V value){
+        return toBuilder().put(key, value).build();
+    }
+
+    public PersistentHashMap<K, V> minus(K key){
+        return toBuilder().remove(key).build();
+    }
+
+    public PersistentHashMap<K, V> minusAll(Collection<?> keys){
+        Builder<K, V> builder = toBuilder();
+        keys.forEach(builder::remove);
+        return builder.build();
+    }
+
+    /**
+     * @param other
+     * @return a map with the entries of both maps, where the entries of the other map take precedence.
+     */
+    public PersistentHashMap<K, V> plusAll(Map<? extends K, ? extends V> other){
+        if(other.size() <= size) {
+            Builder<K, V> builder = toBuilder();
+            other.forEach(builder::put);
+            return builder.build();
+        } else {
+            //Insert the smaller map into the larger one.
+            Builder<K, V> builder = PersistentHashMap.<K, V> copyOf(other).toBuilder();
+            forEach((k, v) -> {
+                if(!other.containsKey(k)) builder.put(k, v);
+            });
+            return builder.build();
+        }
+    }
+
+    @Override
+    public int size(){
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty(){
+        return size == 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public V get(Object key){
+        return key == null || root == null ? null : (V)root.find(0, hash(key), key);
+    }
+
+    /**
+     * Looks up a key that can be described by an int and a long, without having to create the key object.
+     * @param keyHash the hashCode the key would have.
+     * @param a
+     * @param b
+     * @param matcher decides whether a key in the map is the described key.
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    public V get(int keyHash, int a, long b, PrimitiveKeyMatcher<? super K> matcher){
+        if(root == null) return null;
+        int hash = spread(keyHash);
+        Node node = root;
+        for(int shift = 0;; shift += BITS) {
+            if(node instanceof CollisionNode) {
+                Object[] array = node.getArray();
+                for(int i = 0; i < array.length; i += 2) {
+                    if(matcher.matches((K)array[i], a, b)) return (V)array[i + 1];
+                }
+                return null;
+            }
+            BitmapNode bitmapNode = (BitmapNode)node;
+            int bit = 1 << ((hash >>> shift) & MASK);
+            if((bitmapNode.bitmap & bit) == 0) return null;
+            int i = 2 * bitmapNode.index(bit);
+            Object k = bitmapNode.array[i];
+            if(k != null) return matcher.matches((K)k, a, b) ? (V)bitmapNode.array[i + 1] : null;
+            node = (Node)bitmapNode.array[i + 1];
+        }
+    }
+
+    @Override
+    public V getOrDefault(Object key, V defaultValue){
+        V value = get(key);
+        return value != null ? value : defaultValue;
+    }
+
+    @Override
+    public boolean containsKey(Object key){
+        return get(key) != null;
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet(){
+        if(entrySet == null) {
+            entrySet = new AbstractSet<Entry<K, V>>(){
+                @Override
+                public Iterator<Entry<K, V>> iterator(){
+                    return new EntryIterator<>(root);
+                }
+
+                @Override
+                public int size(){
+                    return size;
+                }
+            };
+        }
+        return entrySet;
+    }
+
+    @Override
+    public boolean equals(Object o){
+        if(o instanceof PersistentHashMap) {
+            PersistentHashMap<?, ?> other = (PersistentHashMap<?, ?>)o;
+            if(other.root == root) return true;
+            if(other.size != size || other.hashCode() != hashCode()) return false;
+        }
+        return super.equals(o);
+    }
+
+    @Override
+    public int hashCode(){
+        int h = hashCode;
+        if(h == 0) {
+            h = super.hashCode();
+            hashCode = h;
+        }
+        return h;
+    }
+
+    private static int hash(Object key){
+        return spread(key.hashCode());
+    }
+
+    private static int spread(int h){
+        return h ^ (h >>> 16);
+    }
+
+    public static interface PrimitiveKeyMatcher<K> {
+        public boolean matches(K key, int a, long b);
+    }
+
+    /**
+     * Mutable view on a persistent map. Nodes copied by the builder are owned by it, and are modified in place by subsequent updates.
+     * After {@link #build()} the builder can still be used, but will copy nodes again.
+     */
+    public static class Builder<K, V> {
+        private Object owner = new Object();
+        private Node root;
+        private int size;
+
+        private Builder(Node root, int size){
+            this.root = root;
+            this.size = size;
+        }
+
+        public Builder<K, V> put(K key, V value){
+            Objects.requireNonNull(key);
+            Objects.requireNonNull(value);
+            int[] sizeChange = new int[1];
+            root = root == null ? new BitmapNode(owner, 0, new Object[0]).put(owner, 0, hash(key), key, value, sizeChange) : root.put(owner, 0, hash(key), key, value, sizeChange);
+            size += sizeChange[0];
+            return this;
+        }
+
+        public Builder<K, V> remove(Object key){
+            if(key != null && root != null) {
+                int[] sizeChange = new int[1];
+                root = root.remove(owner, 0, hash(key), key, sizeChange);
+                size += sizeChange[0];
+            }
+            return this;
+        }
+
+        @SuppressWarnings("unchecked")
+        public V get(Object key){
+            return key == null || root == null ? null : (V)root.find(0, hash(key), key);
+        }
+
+        public int size(){
+            return size;
+        }
+
+        public PersistentHashMap<K, V> build(){
+            owner = new Object(); //Nodes handed out to the map may not be modified anymore.
+            return size == 0 ? of() : new PersistentHashMap<>(root, size);
+        }
+    }
+
+    private static abstract class Node {
+        protected final Object owner;
+
+        protected Node(Object owner){
+            this.owner = owner;
+        }
+
+        public abstract Object find(int shift, int hash, Object key);
+
+        public abstract Node put(Object owner, int shift, int hash, Object key, Object value, int[] sizeChange);
+
+        /**
+         * @return the new node, or null when the node became empty.
+         */
+        public abstract Node remove(Object owner, int shift, int hash, Object key, int[] sizeChange);
+
+        /**
+         * Key-value pairs, where a null key means the value is a child node.
+         */
+        public abstract Object[] getArray();
+    }
+
+    private static class BitmapNode extends Node{
+        private int bitmap;
+        private Object[] array;
+
+        public BitmapNode(Object owner, int bitmap, Object[] array){
+            super(owner);
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+
+        private int index(int bit){
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        @Override
+        public Object find(int shift, int hash, Object key){
+            int bit = 1 << ((hash >>> shift) & MASK);
+            if((bitmap & bit) == 0) return null;
+            int i = 2 * index(bit);
+            Object k = array[i];
+            if(k == null) return ((Node)array[i + 1]).find(shift + BITS, hash, key);
+            return key.equals(k) ? array[i + 1] : null;
+        }
+
+        @Override
+        public Node put(Object owner, int shift, int hash, Object key, Object value, int[] sizeChange){
+            int bit = 1 << ((hash >>> shift) & MASK);
+            int i = 2 * index(bit);
+            if((bitmap & bit) != 0) {
+                Object k = array[i];
+                Object v = array[i + 1];
+                if(k == null) {
+                    Node child = ((Node)v).put(owner, shift + BITS, hash, key, value, sizeChange);
+                    return child == v ? this : set(owner, i + 1, child);
+                }
+                if(key.equals(k)) {
+                    return v == value ? this : set(owner, i + 1, value);
+                }
+                sizeChange[0] = 1;
+                Node child = createNode(owner, shift + BITS, k, v, hash, key, value);
+                BitmapNode node = editable(owner);
+                node.array[i] = null;
+                node.array[i + 1] = child;
+                return node;
+            } else {
+                sizeChange[0] = 1;
+                Object[] newArray = new Object[array.length + 2];
+                System.arraycopy(array, 0, newArray, 0, i);
+                newArray[i] = key;
+                newArray[i + 1] = value;
+                System.arraycopy(array, i, newArray, i + 2, array.length - i);
+                if(this.owner == owner) {
+                    bitmap |= bit;
+                    array = newArray;
+                    return this;
+                }
+                return new BitmapNode(owner, bitmap | bit, newArray);
+            }
+        }
+
+        @Override
+        public Node remove(Object owner, int shift, int hash, Object key, int[] sizeChange){
+            int bit = 1 << ((hash >>> shift) & MASK);
+            if((bitmap & bit) == 0) return this;
+            int i = 2 * index(bit);
+            Object k = array[i];
+            if(k == null) {
+                Node child = (Node)array[i + 1];
+                Node newChild = child.remove(owner, shift + BITS, hash, key, sizeChange);
+                if(newChild == child) return this;
+                if(newChild != null) return set(owner, i + 1, newChild);
+            } else if(!key.equals(k)) {
+                return this;
+            } else {
+                sizeChange[0] = -1;
+            }
+
+            if(bitmap == bit) return null;
+            Object[] newArray = new Object[array.length - 2];
+            System.arraycopy(array, 0, newArray, 0, i);
+            System.arraycopy(array, i + 2, newArray, i, array.length - i - 2);
+            if(this.owner == owner) {
+                bitmap ^= bit;
+                array = newArray;
+                return this;
+            }
+            return new BitmapNode(owner, bitmap ^ bit, newArray);
+        }
+
+        @Override
+        public Object[] getArray(){
+            return array;
+        }
+
+        private BitmapNode editable(Object owner){
+            return this.owner == owner ? this : new BitmapNode(owner, bitmap, array.clone());
+        }
+
+        private BitmapNode set(Object owner, int i, Object value){
+            BitmapNode node = editable(owner);
+            node.array[i] = value;
+            return node;
+        }
+    }
+
+    /**
+     * Contains the keys of which the full hash collides.
+     */
+    private static class CollisionNode extends Node{
+        private final int hash;
+        private Object[] array;
+
+        public CollisionNode(Object owner, int hash, Object[] array){
+            super(owner);
+            this.hash = hash;
+            this.array = array;
+        }
+
+        private int indexOf(Object key){
+            for(int i = 0; i < array.length; i += 2) {
+                if(key.equals(array[i])) return i;
+            }
+            return -1;
+        }
+
+        @Override
+        public Object find(int shift, int hash, Object key){
+            int i = indexOf(key);
+            return i >= 0 ? array[i + 1] : null;
+        }
+
+        @Override
+        public Node put(Object owner, int shift, int hash, Object key, Object value, int[] sizeChange){
+            if(hash != this.hash) {
+                //Nest this node in a bitmap node, so the new key can be placed next to it.
+                Node node = new BitmapNode(owner, 1 << ((this.hash >>> shift) & MASK), new Object[]{null, this});
+                return node.put(owner, shift, hash, key, value, sizeChange);
+            }
+            int i = indexOf(key);
+            if(i >= 0) {
+                if(array[i + 1] == value) return this;
+                CollisionNode node = this.owner == owner ? this : new CollisionNode(owner, hash, array.clone());
+                node.array[i + 1] = value;
+                return node;
+            }
+            sizeChange[0] = 1;
+            Object[] newArray = Arrays.copyOf(array, array.length + 2);
+            newArray[array.length] = key;
+            newArray[array.length + 1] = value;
+            if(this.owner == owner) {
+                array = newArray;
+                return this;
+            }
+            return new CollisionNode(owner, hash, newArray);
+        }
+
+        @Override
+        public Node remove(Object owner, int shift, int hash, Object key, int[] sizeChange){
+            int i = indexOf(key);
+            if(i < 0) return this;
+            sizeChange[0] = -1;
+            if(array.length == 2) return null;
+            Object[] newArray = new Object[array.length - 2];
+            System.arraycopy(array, 0, newArray, 0, i);
+            System.arraycopy(array, i + 2, newArray, i, array.length - i - 2);
+            if(this.owner == owner) {
+                array = newArray;
+                return this;
+            }
+            return new CollisionNode(owner, hash, newArray);
+        }
+
+        @Override
+        public Object[] getArray(){
+            return array;
+        }
+    }
+
+    private static Node createNode(Object owner, int shift, Object key1, Object value1, int hash2, Object key2, Object value2){
+        int hash1 = hash(key1);
+        if(hash1 == hash2) return new CollisionNode(owner, hash1, new Object[]{key1, value1, key2, value2});
+        int[] sizeChange = new int[1];
+        return new BitmapNode(owner, 0, new Object[0]).put(owner, shift, hash1, key1, value1, sizeChange).put(owner, shift, hash2, key2, value2, sizeChange);
+    }
+
+    private static class EntryIterator<K, V> implements Iterator<Entry<K, V>>{
+        //Depth first traversal, the trie is at most 7 levels deep.
+        private final Object[][] arrays = new Object[8][];
+        private final int[] indices = new int[8];
+        private int depth = -1;
+        private Entry<K, V> next;
+
+        public EntryIterator(Node root){
+            if(root != null) {
+                arrays[0] = root.getArray();
+                depth = 0;
+            }
+            advance();
+        }
+
+        @SuppressWarnings("unchecked")
+        private void advance(){
+            next = null;
+            while(depth >= 0) {
+                Object[] array = arrays[depth];
+                int i = indices[depth];
+                if(i >= array.length) {
+                    depth--;
+                    continue;
+                }
+                indices[depth] = i + 2;
+                if(array[i] == null) {
+                    depth++;
+                    arrays[depth] = ((Node)array[i + 1]).getArray();
+                    indices[depth] = 0;
+                } else {
+                    next = new SimpleImmutableEntry<>((K)array[i], (V)array[i + 1]);
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext(){
+            return next != null;
+        }
+
+        @Override
+        public Entry<K, V> next(){
+            if(next == null) throw new NoSuchElementException();
+            Entry<K, V> entry = next;
+            advance();
+            return entry;
+        }
+    }
+}
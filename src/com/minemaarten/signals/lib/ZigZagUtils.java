@@ -0,0 +1,14 @@
+package com.minemaarten.signals.lib;
+
+/**
+ * ZigZag encoding of signed ints, so small negative deltas take as few bytes as small positive ones when written as varint.
+ */
+public class ZigZagUtils{
+    public static int encode(int value){
+        return (value << 1) ^ (value >> 31);
+    }
+
+    public static int decode(int value){
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
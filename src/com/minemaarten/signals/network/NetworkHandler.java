@@ -24,11 +24,17 @@ public class NetworkHandler{
         INSTANCE.registerMessage(PacketAddOrUpdateTrain.class, PacketAddOrUpdateTrain.class, discriminant++, Side.CLIENT);
         INSTANCE.registerMessage(PacketRemoveTrain.class, PacketRemoveTrain.class, discriminant++, Side.CLIENT);
         INSTANCE.registerMessage(PacketUpdateSignals.class, PacketUpdateSignals.class, discriminant++, Side.CLIENT);
+        INSTANCE.registerMessage(PacketUpdateTrainPositions.class, PacketUpdateTrainPositions.class, discriminant++, Side.CLIENT);
+        INSTANCE.registerMessage(PacketSyncNetworkBatch.class, PacketSyncNetworkBatch.class, discriminant++, Side.CLIENT);
+        INSTANCE.registerMessage(PacketNetworkVersion.class, PacketNetworkVersion.class, discriminant++, Side.CLIENT);
 
         INSTANCE.registerMessage(PacketGuiButton.class, PacketGuiButton.class, discriminant++, Side.SERVER);
         INSTANCE.registerMessage(PacketUpdateTextfield.class, PacketUpdateTextfield.class, discriminant++, Side.SERVER);
         INSTANCE.registerMessage(PacketUpdateTextfieldEntity.class, PacketUpdateTextfieldEntity.class, discriminant++, Side.SERVER);
         INSTANCE.registerMessage(PacketUpdateTicket.class, PacketUpdateTicket.class, discriminant++, Side.SERVER);
+        INSTANCE.registerMessage(PacketUpdateNetworkSubscription.class, PacketUpdateNetworkSubscription.class, discriminant++, Side.SERVER);
+        INSTANCE.registerMessage(PacketNetworkCacheVersion.class, PacketNetworkCacheVersion.class, discriminant++, Side.SERVER);
+        INSTANCE.registerMessage(PacketRequestTrainPath.class, PacketRequestTrainPath.class, discriminant++, Side.SERVER);
     }
 
     public static void sendToAll(IMessage message){
@@ -0,0 +1,46 @@
+package com.minemaarten.signals.network;
+
+import io.netty.buffer.ByteBuf;
+import net.minecraft.entity.player.EntityPlayer;
+import net.minecraft.entity.player.EntityPlayerMP;
+
+import com.minemaarten.signals.rail.network.mc.RailNetworkManager;
+
+/**
+ * The reply of the client to the handshake of {@link PacketNetworkVersion}, with the version of the network the client already has, or -1
+ * when it has none. The server replies with the changes since that version, or the whole network.
+ */
+public class PacketNetworkCacheVersion extends AbstractPacket<PacketNetworkCacheVersion>{
+    private long networkId;
+    private long version;
+
+    public PacketNetworkCacheVersion(){}
+
+    public PacketNetworkCacheVersion(long networkId, long version){
+        this.networkId = networkId;
+        this.version = version;
+    }
+
+    @Override
+    public void toBytes(ByteBuf b){
+        b.writeLong(networkId);
+        b.writeLong(version);
+    }
+
+    @Override
+    public void fromBytes(ByteBuf b){
+        networkId = b.readLong();
+        version = b.readLong();
+    }
+
+    @Override
+    public void handleClientSide(EntityPlayer player){
+
+    }
+
+    @Override
+    public void handleServerSide(EntityPlayer player){
+        RailNetworkManager.getServerInstance().onClientNetworkVersion((EntityPlayerMP)player, networkId, version);
+    }
+
+}
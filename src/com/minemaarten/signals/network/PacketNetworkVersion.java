@@ -0,0 +1,53 @@
+package com.minemaarten.signals.network;
+
+import io.netty.buffer.ByteBuf;
+import net.minecraft.entity.player.EntityPlayer;
+
+import com.minemaarten.signals.rail.network.mc.RailNetworkManager;
+
+/**
+ * Sent after network updates, with the version of the network the client has after applying them. When sent as handshake to a player that
+ * joined, the client replies with the version of the network it has cached, see {@link PacketNetworkCacheVersion}.
+ */
+public class PacketNetworkVersion extends AbstractPacket<PacketNetworkVersion>{
+    private long networkId;
+    private long version;
+    private boolean handshake;
+
+    public PacketNetworkVersion(){}
+
+    public PacketNetworkVersion(long networkId, long version, boolean handshake){
+        this.networkId = networkId;
+        this.version = version;
+        this.handshake = handshake;
+    }
+
+    @Override
+    public void toBytes(ByteBuf b){
+        b.writeLong(networkId);
+        b.writeLong(version);
+        b.writeBoolean(handshake);
+    }
+
+    @Override
+    public void fromBytes(ByteBuf b){
+        networkId = b.readLong();
+        version = b.readLong();
+        handshake = b.readBoolean();
+    }
+
+    @Override
+    public void handleClientSide(EntityPlayer player){
+        if(handshake) {
+            RailNetworkManager.getClientInstance().onNetworkHandshake(networkId);
+        } else {
+            RailNetworkManager.getClientInstance().onNetworkVersion(networkId, version);
+        }
+    }
+
+    @Override
+    public void handleServerSide(EntityPlayer player){
+
+    }
+
+}
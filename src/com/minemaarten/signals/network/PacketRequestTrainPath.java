@@ -0,0 +1,46 @@
+package com.minemaarten.signals.network;
+
+import io.netty.buffer.ByteBuf;
+import net.minecraft.entity.player.EntityPlayer;
+import net.minecraft.entity.player.EntityPlayerMP;
+
+import com.minemaarten.signals.rail.network.mc.MCTrain;
+import com.minemaarten.signals.rail.network.mc.RailNetworkManager;
+
+/**
+ * Sent by a client that received a compact {@link PacketUpdateTrainPath} for another version of the network than it has. The server replies
+ * with the route as a list of every rail.
+ */
+public class PacketRequestTrainPath extends AbstractPacket<PacketRequestTrainPath>{
+    private int trainID;
+
+    public PacketRequestTrainPath(){}
+
+    public PacketRequestTrainPath(int trainID){
+        this.trainID = trainID;
+    }
+
+    @Override
+    public void toBytes(ByteBuf b){
+        b.writeInt(trainID);
+    }
+
+    @Override
+    public void fromBytes(ByteBuf b){
+        trainID = b.readInt();
+    }
+
+    @Override
+    public void handleClientSide(EntityPlayer player){
+
+    }
+
+    @Override
+    public void handleServerSide(EntityPlayer player){
+        RailNetworkManager manager = RailNetworkManager.getServerInstance();
+        if(!manager.getInterestManager().canViewRoute(player, trainID)) return; //Only routes of trains synced to the player are sent
+        MCTrain train = manager.getTrainByID(trainID);
+        if(train != null) NetworkHandler.sendTo(new PacketUpdateTrainPath(train, false), (EntityPlayerMP)player);
+    }
+
+}
@@ -0,0 +1,63 @@
+package com.minemaarten.signals.network;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.util.Collection;
+import java.util.List;
+
+import net.minecraft.entity.player.EntityPlayer;
+
+import com.minemaarten.signals.config.SignalsConfig;
+import com.minemaarten.signals.rail.network.INetworkObject;
+import com.minemaarten.signals.rail.network.mc.MCPos;
+import com.minemaarten.signals.rail.network.mc.RailNetworkManager;
+
+/**
+ * A batch of the network objects streamed to a client that joined. The client collects the batches, and builds the network once the last
+ * batch arrived. The first batch of a full sync clears the client's network, batches with the changes to a network the client already had
+ * don't. The objects are encoded when the packet is created, so the server knows how many bytes a batch takes.
+ */
+public class PacketSyncNetworkBatch extends AbstractPacket<PacketSyncNetworkBatch>{
+    private ByteBuf encodedObjects;
+    private List<INetworkObject<MCPos>> objects;
+    private boolean first, complete;
+
+    public PacketSyncNetworkBatch(){}
+
+    public PacketSyncNetworkBatch(Collection<INetworkObject<MCPos>> objects, boolean first, boolean complete){
+        this.first = first;
+        this.complete = complete;
+        encodedObjects = Unpooled.buffer();
+        PacketUpdateNetwork.writeObjects(objects, SignalsConfig.performance.compactNetworkPackets, encodedObjects);
+    }
+
+    public int getEncodedSize(){
+        return encodedObjects.readableBytes();
+    }
+
+    @Override
+    public void toBytes(ByteBuf buf){
+        buf.writeBoolean(first);
+        buf.writeBoolean(complete);
+        buf.writeBytes(encodedObjects, encodedObjects.readerIndex(), encodedObjects.readableBytes());
+    }
+
+    @Override
+    public void fromBytes(ByteBuf buf){
+        first = buf.readBoolean();
+        complete = buf.readBoolean();
+        objects = PacketUpdateNetwork.readObjects(buf);
+    }
+
+    @Override
+    public void handleClientSide(EntityPlayer player){
+        RailNetworkManager.getClientInstance().onSyncBatch(objects, first, complete);
+    }
+
+    @Override
+    public void handleServerSide(EntityPlayer player){
+
+    }
+
+}
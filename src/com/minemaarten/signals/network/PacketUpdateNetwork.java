@@ -3,31 +3,56 @@ package com.minemaarten.signals.network;
 import io.netty.buffer.ByteBuf;
 
 import java.util.Collection;
+import java.util.List;
 
 import net.minecraft.entity.player.EntityPlayer;
 
+import com.minemaarten.signals.config.SignalsConfig;
 import com.minemaarten.signals.rail.network.INetworkObject;
+import com.minemaarten.signals.rail.network.mc.CompactNetworkSerializer;
 import com.minemaarten.signals.rail.network.mc.MCPos;
 import com.minemaarten.signals.rail.network.mc.NetworkSerializer;
 import com.minemaarten.signals.rail.network.mc.RailNetworkManager;
 
 public class PacketUpdateNetwork extends AbstractPacket<PacketUpdateNetwork>{
     private Collection<INetworkObject<MCPos>> changedObjects;
+    private boolean compact;
 
     public PacketUpdateNetwork(){}
 
     public PacketUpdateNetwork(Collection<INetworkObject<MCPos>> changedObjects){
         this.changedObjects = changedObjects;
+        compact = SignalsConfig.performance.compactNetworkPackets;
     }
 
     @Override
     public void toBytes(ByteBuf buf){
-        new NetworkSerializer().writeToBuf(changedObjects, buf);
+        writeObjects(changedObjects, compact, buf);
     }
 
     @Override
     public void fromBytes(ByteBuf buf){
-        changedObjects = new NetworkSerializer().readFromByteBuf(buf);
+        changedObjects = readObjects(buf);
+    }
+
+    /**
+     * Writes the objects in the compact or regular format, prefixed by the format, so the client can read it regardless of its own config.
+     */
+    public static void writeObjects(Collection<INetworkObject<MCPos>> objects, boolean compact, ByteBuf buf){
+        buf.writeBoolean(compact);
+        if(compact) {
+            new CompactNetworkSerializer().writeToBuf(objects, buf);
+        } else {
+            new NetworkSerializer().writeToBuf(objects, buf);
+        }
+    }
+
+    public static List<INetworkObject<MCPos>> readObjects(ByteBuf buf){
+        if(buf.readBoolean()) {
+            return new CompactNetworkSerializer().readFromByteBuf(buf);
+        } else {
+            return new NetworkSerializer().readFromByteBuf(buf);
+        }
     }
 
     @Override
@@ -0,0 +1,41 @@
+package com.minemaarten.signals.network;
+
+import io.netty.buffer.ByteBuf;
+import net.minecraft.entity.player.EntityPlayer;
+
+import com.minemaarten.signals.rail.network.mc.RailNetworkManager;
+
+/**
+ * Sent by the client when the player starts or stops looking at the rail network, by holding a network visualization item or opening the network
+ * controller. Only subscribed players are sent the trains, signals and routes near them.
+ */
+public class PacketUpdateNetworkSubscription extends AbstractPacket<PacketUpdateNetworkSubscription>{
+    private boolean subscribed;
+
+    public PacketUpdateNetworkSubscription(){}
+
+    public PacketUpdateNetworkSubscription(boolean subscribed){
+        this.subscribed = subscribed;
+    }
+
+    @Override
+    public void toBytes(ByteBuf b){
+        b.writeBoolean(subscribed);
+    }
+
+    @Override
+    public void fromBytes(ByteBuf b){
+        subscribed = b.readBoolean();
+    }
+
+    @Override
+    public void handleClientSide(EntityPlayer player){
+
+    }
+
+    @Override
+    public void handleServerSide(EntityPlayer player){
+        RailNetworkManager.getServerInstance().getInterestManager().setSubscribed(player, subscribed);
+    }
+
+}
@@ -1,16 +1,30 @@
 package com.minemaarten.signals.network;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import net.minecraft.entity.player.EntityPlayer;
+import net.minecraft.network.PacketBuffer;
 
 import com.google.common.collect.ImmutableList;
+import com.minemaarten.signals.config.SignalsConfig;
 import com.minemaarten.signals.rail.network.RailRoute;
 import com.minemaarten.signals.rail.network.mc.MCPos;
 import com.minemaarten.signals.rail.network.mc.MCTrain;
 import com.minemaarten.signals.rail.network.mc.RailNetworkManager;
+import com.minemaarten.signals.rail.network.mc.RouteSerializer;
 
+/**
+ * Syncs the rails of a train's route, which clients use to show the route. The route is encoded when the packet is created, so the same
+ * packet can be sent to every player. In the compact format the client expands the route with its own network, see {@link RouteSerializer}.
+ * The compact format includes the version of the network it was written with. When the client's network has another version, its edges
+ * may differ, so it requests the route as a list of every rail instead, see {@link PacketRequestTrainPath}.
+ */
 public class PacketUpdateTrainPath extends AbstractPacket<PacketUpdateTrainPath>{
+    private static final int NO_PATH = 0, RAIL_LIST = 1, COMPACT = 2;
+
     private int trainID;
+    private long networkVersion;
+    private ByteBuf encodedPath;
     private RailRoute<MCPos> path;
 
     //private Set<MCPos> claimedPositions;
@@ -18,21 +32,39 @@ public class PacketUpdateTrainPath extends AbstractPacket<PacketUpdateTrainPath>
     public PacketUpdateTrainPath(){}
 
     public PacketUpdateTrainPath(MCTrain train){
+        this(train, SignalsConfig.performance.compactRoutePackets);
+    }
+
+    /**
+     * @param train
+     * @param compact when false, the route is always written as a list of every rail.
+     */
+    public PacketUpdateTrainPath(MCTrain train, boolean compact){
         this.trainID = train.id;
-        this.path = train.getCurRoute();
+        RailRoute<MCPos> path = train.getCurRoute();
+        RailNetworkManager manager = RailNetworkManager.getServerInstance();
+        long version = manager.getBuiltNetworkVersion();
+        encodedPath = Unpooled.buffer();
+        if(path == null) {
+            encodedPath.writeByte(NO_PATH);
+        } else if(compact && version >= 0) {
+            encodedPath.writeByte(COMPACT);
+            new PacketBuffer(encodedPath).writeVarLong(version);
+            RouteSerializer.writeRoute(path.routeRails, manager.getNetwork(), encodedPath);
+        } else {
+            encodedPath.writeByte(RAIL_LIST);
+            encodedPath.writeInt(path.routeRails.size());
+            for(MCPos pos : path.routeRails) {
+                pos.writeToBuf(encodedPath);
+            }
+        }
         //this.claimedPositions = train.getClaimedSections().stream().flatMap(s -> s.getRailPositions()).collect(Collectors.toSet());
     }
 
     @Override
     public void toBytes(ByteBuf b){
         b.writeInt(trainID);
-        b.writeBoolean(path != null);
-        if(path != null) {
-            b.writeInt(path.routeRails.size());
-            for(MCPos pos : path.routeRails) {
-                pos.writeToBuf(b);
-            }
-        }
+        b.writeBytes(encodedPath, encodedPath.readerIndex(), encodedPath.readableBytes());
 
         /*b.writeInt(claimedPositions.size());
         for(MCPos pos : claimedPositions) {
@@ -43,7 +75,11 @@ public class PacketUpdateTrainPath extends AbstractPacket<PacketUpdateTrainPath>
     @Override
     public void fromBytes(ByteBuf b){
         trainID = b.readInt();
-        if(b.readBoolean()) {
+        int format = b.readByte();
+        if(format == COMPACT) {
+            networkVersion = new PacketBuffer(b).readVarLong();
+            encodedPath = b.readBytes(b.readableBytes()); //Expanded when handled, as that needs the client's network.
+        } else if(format == RAIL_LIST) {
             int count = b.readInt();
             ImmutableList.Builder<MCPos> routeRails = ImmutableList.builder();
             for(int i = 0; i < count; i++) {
@@ -63,6 +99,14 @@ public class PacketUpdateTrainPath extends AbstractPacket<PacketUpdateTrainPath>
     public void handleClientSide(EntityPlayer player){
         MCTrain train = RailNetworkManager.getClientInstance().getTrainByID(trainID);
         if(train != null) {
+            if(encodedPath != null) {
+                if(networkVersion != RailNetworkManager.getClientInstance().getBuiltNetworkVersion()) {
+                    NetworkHandler.sendToServer(new PacketRequestTrainPath(trainID));
+                    return;
+                }
+                ImmutableList<MCPos> routeRails = RouteSerializer.readRoute(encodedPath, RailNetworkManager.getClientInstance().getNetwork());
+                path = new RailRoute<>(ImmutableList.of(), routeRails, ImmutableList.of(), ImmutableList.of());
+            }
             //((MCTrainClient)train).clientClaimedPositions = claimedPositions;
             train.setPath(path);
         }
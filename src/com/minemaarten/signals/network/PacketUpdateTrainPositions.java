@@ -0,0 +1,133 @@
+package com.minemaarten.signals.network;
+
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
+import io.netty.buffer.ByteBuf;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.minecraft.entity.player.EntityPlayer;
+import net.minecraft.network.PacketBuffer;
+import net.minecraft.util.math.BlockPos;
+
+import com.google.common.collect.ImmutableSet;
+import com.minemaarten.signals.lib.ZigZagUtils;
+import com.minemaarten.signals.rail.network.mc.MCPos;
+import com.minemaarten.signals.rail.network.mc.MCTrain;
+import com.minemaarten.signals.rail.network.mc.RailNetworkManager;
+
+/**
+ * The positions of the trains that moved since the last sync, batched into a single packet. Trains are referenced by id only, as the carts
+ * of the trains are synced by {@link PacketAddOrUpdateTrain} when a train is created or its carts change.
+ * Positions are grouped by dimension, and written as varint deltas to the previous position in the same dimension, which for the carts of
+ * a single train mostly fit in a byte per coordinate.
+ * @author Maarten
+ *
+ */
+public class PacketUpdateTrainPositions extends AbstractPacket<PacketUpdateTrainPositions>{
+    private TIntObjectMap<Map<Integer, List<MCPos>>> positionsByDimension; //Dimension -> train id -> positions in that dimension
+
+    public PacketUpdateTrainPositions(){}
+
+    public PacketUpdateTrainPositions(Collection<MCTrain> trains){
+        positionsByDimension = new TIntObjectHashMap<>();
+        for(MCTrain train : trains) {
+            if(train.getPositions().isEmpty()) {
+                getTrainPositions(0, train.id); //Still sync the train, without any positions
+            }
+            for(MCPos pos : train.getPositions()) {
+                getTrainPositions(pos.getDimID(), train.id).add(pos);
+            }
+        }
+    }
+
+    private List<MCPos> getTrainPositions(int dimID, int trainID){
+        Map<Integer, List<MCPos>> trainPositions = positionsByDimension.get(dimID);
+        if(trainPositions == null) {
+            trainPositions = new LinkedHashMap<>();
+            positionsByDimension.put(dimID, trainPositions);
+        }
+        return trainPositions.computeIfAbsent(trainID, id -> new ArrayList<>());
+    }
+
+    @Override
+    public void toBytes(ByteBuf b){
+        PacketBuffer pb = new PacketBuffer(b);
+        pb.writeVarInt(positionsByDimension.size());
+        positionsByDimension.forEachEntry((dimID, trainPositions) -> {
+            pb.writeVarInt(ZigZagUtils.encode(dimID));
+            pb.writeVarInt(trainPositions.size());
+            int prevX = 0, prevY = 0, prevZ = 0;
+            for(Map.Entry<Integer, List<MCPos>> entry : trainPositions.entrySet()) {
+                pb.writeVarInt(entry.getKey());
+                pb.writeVarInt(entry.getValue().size());
+                for(MCPos pos : entry.getValue()) {
+                    pb.writeVarInt(ZigZagUtils.encode(pos.getX() - prevX));
+                    pb.writeVarInt(ZigZagUtils.encode(pos.getY() - prevY));
+                    pb.writeVarInt(ZigZagUtils.encode(pos.getZ() - prevZ));
+                    prevX = pos.getX();
+                    prevY = pos.getY();
+                    prevZ = pos.getZ();
+                }
+            }
+            return true;
+        });
+    }
+
+    @Override
+    public void fromBytes(ByteBuf b){
+        PacketBuffer pb = new PacketBuffer(b);
+        int dimensions = pb.readVarInt();
+        positionsByDimension = new TIntObjectHashMap<>(dimensions);
+        for(int i = 0; i < dimensions; i++) {
+            int dimID = ZigZagUtils.decode(pb.readVarInt());
+            int trains = pb.readVarInt();
+            int x = 0, y = 0, z = 0;
+            for(int j = 0; j < trains; j++) {
+                int trainID = pb.readVarInt();
+                int posCount = pb.readVarInt();
+                List<MCPos> positions = getTrainPositions(dimID, trainID);
+                for(int k = 0; k < posCount; k++) {
+                    x += ZigZagUtils.decode(pb.readVarInt());
+                    y += ZigZagUtils.decode(pb.readVarInt());
+                    z += ZigZagUtils.decode(pb.readVarInt());
+                    positions.add(new MCPos(dimID, new BlockPos(x, y, z)));
+                }
+            }
+        }
+    }
+
+    @Override
+    public void handleClientSide(EntityPlayer player){
+        //Trains passing through a portal can be in multiple dimensions, so combine the positions of every dimension first.
+        TIntObjectMap<ImmutableSet.Builder<MCPos>> trainPositions = new TIntObjectHashMap<>();
+        positionsByDimension.forEachValue(positions -> {
+            for(Map.Entry<Integer, List<MCPos>> entry : positions.entrySet()) {
+                ImmutableSet.Builder<MCPos> builder = trainPositions.get(entry.getKey());
+                if(builder == null) {
+                    builder = ImmutableSet.builder();
+                    trainPositions.put(entry.getKey(), builder);
+                }
+                builder.addAll(entry.getValue());
+            }
+            return true;
+        });
+
+        RailNetworkManager manager = RailNetworkManager.getClientInstance();
+        trainPositions.forEachEntry((trainID, positions) -> {
+            MCTrain train = manager.getTrainByID(trainID);
+            if(train != null) train.setPositions(null, null, positions.build());
+            return true;
+        });
+    }
+
+    @Override
+    public void handleServerSide(EntityPlayer player){
+
+    }
+
+}
@@ -1,7 +1,10 @@
 package com.minemaarten.signals.proxy;
 
+import java.io.File;
+
 import net.minecraft.block.Block;
 import net.minecraft.client.Minecraft;
+import net.minecraft.client.multiplayer.ServerData;
 import net.minecraft.client.renderer.block.model.ModelBakery;
 import net.minecraft.client.renderer.block.model.ModelResourceLocation;
 import net.minecraft.client.settings.GameSettings;
@@ -99,6 +102,17 @@ public class ClientProxy extends CommonProxy{
         return Minecraft.getMinecraft().player;
     }
 
+    /**
+     * Only networks of remote servers are cached, as in singleplayer the network is always available from the integrated server.
+     */
+    @Override
+    public File getNetworkCacheFile(){
+        ServerData serverData = Minecraft.getMinecraft().getCurrentServerData();
+        if(serverData == null || Minecraft.getMinecraft().isSingleplayer()) return null;
+        String fileName = serverData.serverIP.replaceAll("[^a-zA-Z0-9._-]", "_") + ".dat";
+        return new File(Minecraft.getMinecraft().mcDataDir, "signals/network_cache/" + fileName);
+    }
+
     @Override
     public void addScheduledTask(Runnable runnable, boolean serverSide){
         if(serverSide) {
@@ -1,5 +1,7 @@
 package com.minemaarten.signals.proxy;
 
+import java.io.File;
+
 import net.minecraft.entity.Entity;
 import net.minecraft.entity.item.EntityMinecart;
 import net.minecraft.entity.player.EntityPlayer;
@@ -33,6 +35,13 @@ public class CommonProxy implements IGuiHandler{
         return null;
     }
 
+    /**
+     * @return the file the rail network of the server the client is connected to is cached in, or null when it shouldn't be cached.
+     */
+    public File getNetworkCacheFile(){
+        return null;
+    }
+
     public void addScheduledTask(Runnable runnable, boolean serverSide){
         FMLCommonHandler.instance().getMinecraftServerInstance().addScheduledTask(runnable);
     }
@@ -0,0 +1,136 @@
+package com.minemaarten.signals.rail.network;
+
+import gnu.trove.iterator.TIntObjectIterator;
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import com.minemaarten.signals.lib.Log;
+
+/**
+ * Routes trains on a worker pool instead of in the server tick, so many trains pathfinding at once (for example after loading chunks) don't
+ * stall the tick. The routes are searched against a snapshot of the lamp statusses, which is safe as networks are immutable, and are claimed
+ * by the trains in the next update of the state. The snapshot routes like the state does, via the contraction hierarchy or the destination
+ * trees when enabled, see {@link NetworkState#createRoutingSnapshot(RailNetwork)}.
+ * Only one route is searched per train at a time, and when too many routes are pending, trains are routed synchronously instead.
+ * @author Maarten
+ *
+ * @param <TPos>
+ */
+class AsyncRouter<TPos extends IPosition<TPos>> {
+    public static final int MAX_PENDING_ROUTES = 64;
+
+    private static class PendingRoute<TPos extends IPosition<TPos>> {
+        private final Train<TPos> train;
+        private final NetworkIds<TPos> ids; //The ids the signal id belongs to
+        private final int signalId;
+        private final NetworkState<TPos> snapshot;
+        private final List<Set<TPos>> goals;
+        private final Future<RailRoute<TPos>> route;
+
+        public PendingRoute(Train<TPos> train, NetworkIds<TPos> ids, int signalId, NetworkState<TPos> snapshot, List<Set<TPos>> goals, Future<RailRoute<TPos>> route){
+            this.train = train;
+            this.ids = ids;
+            this.signalId = signalId;
+            this.snapshot = snapshot;
+            this.goals = goals;
+            this.route = route;
+        }
+    }
+
+    @FunctionalInterface
+    public interface IRouteConsumer<TPos extends IPosition<TPos>> {
+        void accept(Train<TPos> train, int signalId, RailRoute<TPos> route);
+    }
+
+    private final ExecutorService executor;
+    private final TIntObjectMap<PendingRoute<TPos>> pendingRoutes = new TIntObjectHashMap<>(); //Per train id
+    private NetworkState<TPos> snapshot; //Shared by the routes submitted in the same update
+
+    public AsyncRouter(ExecutorService executor){
+        this.executor = executor;
+    }
+
+    public ExecutorService getExecutor(){
+        return executor;
+    }
+
+    public boolean isPending(Train<TPos> train){
+        return pendingRoutes.containsKey(train.id);
+    }
+
+    public int getPendingCount(){
+        return pendingRoutes.size();
+    }
+
+    /**
+     * Passes the routes that finished since the last call to the consumer, on the calling thread. Routes searched for a network other than the
+     * one of the given ids are dropped. Searches that failed with an exception are passed as no route found, so the train routes again later.
+     * The destination trees built for the routes are added to the state.
+     * @param state
+     * @param ids
+     * @param consumer
+     */
+    public void claimFinishedRoutes(NetworkState<TPos> state, NetworkIds<TPos> ids, IRouteConsumer<TPos> consumer){
+        snapshot = null; //The lamp statusses are about to change
+        TIntObjectIterator<PendingRoute<TPos>> iterator = pendingRoutes.iterator();
+        while(iterator.hasNext()) {
+            iterator.advance();
+            PendingRoute<TPos> pendingRoute = iterator.value();
+            if(!pendingRoute.route.isDone()) continue;
+            iterator.remove();
+            if(pendingRoute.ids != ids) continue;
+            state.claimSnapshotTrees(pendingRoute.snapshot, pendingRoute.goals);
+            RailRoute<TPos> route;
+            try {
+                route = pendingRoute.route.get();
+            } catch(InterruptedException | ExecutionException e) {
+                Log.error("Routing train " + pendingRoute.train.id + " failed", e);
+                route = null;
+            }
+            consumer.accept(pendingRoute.train, pendingRoute.signalId, route);
+        }
+    }
+
+    /**
+     * Starts searching a route for the train at the signal, when the train supports it, see {@link Train#getRouteGoals(RailNetwork, IPosition, EnumHeading)}.
+     * @param network
+     * @param state the state to take the snapshot of the lamp statusses from.
+     * @param ids the ids of the network, which the signal id belongs to.
+     * @param train
+     * @param signalId
+     * @return false when the train should be routed synchronously instead.
+     */
+    public boolean submit(RailNetwork<TPos> network, NetworkState<TPos> state, NetworkIds<TPos> ids, Train<TPos> train, int signalId){
+        if(pendingRoutes.size() >= MAX_PENDING_ROUTES) return false;
+        NetworkSignal<TPos> signal = ids.getSignal(signalId);
+        TPos start = signal.getRailPos();
+        EnumHeading direction = signal.heading;
+        List<Set<TPos>> goals = train.getRouteGoals(network, start, direction);
+        if(goals == null) return false;
+
+        if(snapshot == null) snapshot = state.createRoutingSnapshot(network);
+        NetworkState<TPos> routingState = snapshot;
+        state.addSnapshotTrees(routingState, goals);
+        try {
+            Future<RailRoute<TPos>> route = executor.submit(() -> {
+                RailPathfinder<TPos> pathfinder = new RailPathfinder<>(network, routingState);
+                for(Set<TPos> destinationGoals : goals) {
+                    RailRoute<TPos> goalRoute = pathfinder.pathfindToDestination(start, direction, destinationGoals);
+                    if(goalRoute != null) return goalRoute;
+                }
+                return null;
+            });
+            pendingRoutes.put(train.id, new PendingRoute<>(train, ids, signalId, routingState, goals, route));
+            return true;
+        } catch(RejectedExecutionException e) {
+            return false;
+        }
+    }
+}
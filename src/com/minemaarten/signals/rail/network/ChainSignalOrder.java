@@ -0,0 +1,219 @@
+package com.minemaarten.signals.rail.network;
+
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.minemaarten.signals.rail.network.NetworkSignal.EnumSignalType;
+
+/**
+ * The order in which chain signals should be evaluated, so that the chain signals a chain signal depends on (the chain signals of its next section)
+ * are evaluated before it. Chain signals that depend on each other (for example on a loop) are put in the same group, and need to be
+ * evaluated together.
+ * Also holds which signals need to be re-evaluated when a section, or another signal changes.
+ * Signals and sections are referred to by their {@link NetworkIds}.
+ * @author Maarten
+ *
+ * @param <TPos>
+ */
+class ChainSignalOrder<TPos extends IPosition<TPos>> {
+    private static final int[] EMPTY = new int[0];
+
+    private final int[][] groups;
+    private final int[][] sectionsToSignals;
+    private final int[][] dependentChainSignals;
+    private final int[] groupIndices;
+
+    public ChainSignalOrder(NetworkIds<TPos> ids){
+        this(ids, null, null);
+    }
+
+    /**
+     * @param ids
+     * @param baseIds the ids the given ids were derived from, see {@link NetworkIds#NetworkIds(RailNetwork, NetworkIds)}, or null.
+     * @param baseOrder the order of the base ids. When none of the chain signals or their next sections changed, its groups are reused.
+     */
+    public ChainSignalOrder(NetworkIds<TPos> ids, NetworkIds<TPos> baseIds, ChainSignalOrder<TPos> baseOrder){
+        TIntList[] sectionsToSignals = new TIntList[ids.getSectionCount()];
+        TIntList chainSignals = new TIntArrayList();
+        for(int signalId = 0; signalId < ids.getSignalCount(); signalId++) {
+            int nextSectionId = ids.getNextSectionId(signalId);
+            if(ids.getSignal(signalId).type == EnumSignalType.CHAIN) chainSignals.add(signalId);
+            if(nextSectionId != NetworkIds.NO_ID) {
+                if(sectionsToSignals[nextSectionId] == null) sectionsToSignals[nextSectionId] = new TIntArrayList(2);
+                sectionsToSignals[nextSectionId].add(signalId);
+            }
+        }
+        this.sectionsToSignals = toArrays(sectionsToSignals);
+
+        int[] indices = new int[ids.getSignalCount()];
+        Arrays.fill(indices, -1);
+        for(int i = 0; i < chainSignals.size(); i++) {
+            indices[chainSignals.get(i)] = i;
+        }
+
+        int[][] dependencies = new int[chainSignals.size()][];
+        TIntList[] dependentChainSignals = new TIntList[ids.getSignalCount()];
+        for(int i = 0; i < chainSignals.size(); i++) {
+            int nextSectionId = ids.getNextSectionId(chainSignals.get(i));
+            int[] nextSignals = nextSectionId != NetworkIds.NO_ID ? ids.getSectionSignalIds(nextSectionId) : EMPTY;
+            int[] signalDependencies = new int[nextSignals.length];
+            int dependencyCount = 0;
+            for(int nextSignal : nextSignals) {
+                if(dependentChainSignals[nextSignal] == null) dependentChainSignals[nextSignal] = new TIntArrayList(2);
+                dependentChainSignals[nextSignal].add(chainSignals.get(i));
+                int index = indices[nextSignal];
+                if(index >= 0) signalDependencies[dependencyCount++] = index;
+            }
+            dependencies[i] = Arrays.copyOf(signalDependencies, dependencyCount);
+        }
+        this.dependentChainSignals = toArrays(dependentChainSignals);
+
+        int[][] baseGroups = baseOrder != null ? deriveGroups(ids, chainSignals, baseIds, baseOrder) : null;
+        groups = baseGroups != null ? baseGroups : buildGroups(chainSignals.toArray(), dependencies);
+        groupIndices = new int[ids.getSignalCount()];
+        Arrays.fill(groupIndices, -1);
+        for(int i = 0; i < groups.length; i++) {
+            for(int signalId : groups[i]) {
+                groupIndices[signalId] = i;
+            }
+        }
+    }
+
+    private static int[][] toArrays(TIntList[] lists){
+        int[][] arrays = new int[lists.length][];
+        for(int i = 0; i < lists.length; i++) {
+            arrays[i] = lists[i] != null ? lists[i].toArray() : EMPTY;
+        }
+        return arrays;
+    }
+
+    /**
+     * The dependencies of a chain signal are the signals of its next section. When every chain signal is an equal signal of the base, with the
+     * same next section, the dependencies are equal to those of the base, and so are the groups.
+     * @return the groups of the base order with the ids mapped to the given ids, or null when the dependencies may have changed.
+     */
+    private static <TPos extends IPosition<TPos>> int[][] deriveGroups(NetworkIds<TPos> ids, TIntList chainSignals, NetworkIds<TPos> baseIds, ChainSignalOrder<TPos> baseOrder){
+        int baseChainSignalCount = 0;
+        for(int[] group : baseOrder.groups) {
+            baseChainSignalCount += group.length;
+        }
+        if(chainSignals.size() != baseChainSignalCount) return null;
+
+        int[] baseToSignalIds = new int[baseIds.getSignalCount()];
+        for(int i = 0; i < chainSignals.size(); i++) {
+            int signalId = chainSignals.get(i);
+            int baseId = ids.getBaseSignalId(signalId);
+            if(baseId == NetworkIds.NO_ID || baseOrder.groupIndices[baseId] < 0) return null;
+            int nextSectionId = ids.getNextSectionId(signalId);
+            int baseNextSectionId = baseIds.getNextSectionId(baseId);
+            if(nextSectionId == NetworkIds.NO_ID ? baseNextSectionId != NetworkIds.NO_ID : baseNextSectionId == NetworkIds.NO_ID || ids.getSection(nextSectionId) != baseIds.getSection(baseNextSectionId)) return null;
+            baseToSignalIds[baseId] = signalId;
+        }
+
+        int[][] derivedGroups = new int[baseOrder.groups.length][];
+        for(int i = 0; i < derivedGroups.length; i++) {
+            int[] baseGroup = baseOrder.groups[i];
+            derivedGroups[i] = new int[baseGroup.length];
+            for(int j = 0; j < baseGroup.length; j++) {
+                derivedGroups[i][j] = baseToSignalIds[baseGroup[j]];
+            }
+        }
+        return derivedGroups;
+    }
+
+    /**
+     * Tarjan's strongly connected components algorithm, without recursion so long chains don't overflow the stack.
+     * Components are found in reverse topological order, which is exactly the order in which they need to be evaluated.
+     */
+    private static int[][] buildGroups(int[] signalIds, int[][] dependencies){
+        int n = signalIds.length;
+        int[] order = new int[n];
+        int[] lowLink = new int[n];
+        boolean[] onStack = new boolean[n];
+        Arrays.fill(order, -1);
+
+        int[] stack = new int[n];
+        int stackSize = 0;
+        int[] callStack = new int[n];
+        int[] callDependency = new int[n];
+        int nextOrder = 0;
+
+        List<int[]> groups = new ArrayList<>();
+        for(int root = 0; root < n; root++) {
+            if(order[root] >= 0) continue;
+
+            int callDepth = 0;
+            callStack[0] = root;
+            callDependency[0] = 0;
+            order[root] = lowLink[root] = nextOrder++;
+            stack[stackSize++] = root;
+            onStack[root] = true;
+
+            while(callDepth >= 0) {
+                int cur = callStack[callDepth];
+                if(callDependency[callDepth] < dependencies[cur].length) {
+                    int dependency = dependencies[cur][callDependency[callDepth]++];
+                    if(order[dependency] < 0) {
+                        order[dependency] = lowLink[dependency] = nextOrder++;
+                        stack[stackSize++] = dependency;
+                        onStack[dependency] = true;
+                        callDepth++;
+                        callStack[callDepth] = dependency;
+                        callDependency[callDepth] = 0;
+                    } else if(onStack[dependency]) {
+                        lowLink[cur] = Math.min(lowLink[cur], order[dependency]);
+                    }
+                } else {
+                    if(lowLink[cur] == order[cur]) {
+                        TIntList group = new TIntArrayList(1);
+                        int member;
+                        do {
+                            member = stack[--stackSize];
+                            onStack[member] = false;
+                            group.add(signalIds[member]);
+                        } while(member != cur);
+                        groups.add(group.toArray());
+                    }
+                    callDepth--;
+                    if(callDepth >= 0) {
+                        int parent = callStack[callDepth];
+                        lowLink[parent] = Math.min(lowLink[parent], lowLink[cur]);
+                    }
+                }
+            }
+        }
+        return groups.toArray(new int[0][]);
+    }
+
+    /**
+     * @return the groups of chain signal ids, in evaluation order. Groups with multiple signals form a cycle.
+     */
+    public int[][] getGroups(){
+        return groups;
+    }
+
+    /**
+     * @return the index of the group of the given chain signal, or -1 for other signals.
+     */
+    public int getGroupIndex(int signalId){
+        return groupIndices[signalId];
+    }
+
+    /**
+     * @return the ids of the signals that have the given section as next section.
+     */
+    public int[] getSignalsInFrontOf(int sectionId){
+        return sectionsToSignals[sectionId];
+    }
+
+    /**
+     * @return the ids of the chain signals of which the status depends on the status of the given signal.
+     */
+    public int[] getDependentChainSignals(int signalId){
+        return dependentChainSignals[signalId];
+    }
+}
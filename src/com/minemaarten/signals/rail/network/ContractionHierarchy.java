@@ -0,0 +1,626 @@
+package com.minemaarten.signals.rail.network;
+
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.TLongIntMap;
+import gnu.trove.map.hash.TLongIntHashMap;
+import gnu.trove.set.hash.TIntHashSet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * A contraction hierarchy of the network, to route over long distances by only searching upwards in the hierarchy from the start and the destinations.
+ * The vertices are the ways a train can arrive at a node, a node and the heading of the edge the train arrived over, as trains can't leave a node
+ * over the edge they arrived on. The vertices are contracted in order, and when a vertex is contracted, all its remaining neighbors are connected by shortcuts.
+ * The shortcuts are added regardless of the lengths of the edges (a customizable contraction hierarchy), so the hierarchy only depends on the
+ * layout of the network, and when signals turn red or stop being red, only the weights of the arcs need to be updated, see {@link Metric}.
+ * Nodes and edges are referred to by their {@link NetworkIds}.
+ * @author Maarten
+ *
+ * @param <TPos>
+ */
+class ContractionHierarchy<TPos extends IPosition<TPos>> {
+    public static final int INFINITY = Integer.MAX_VALUE / 2;
+    private static final int HEADINGS = EnumHeading.VALUES.length + 1; //The heading of an edge can be null, for example for edges via rail links.
+    private static final ThreadLocal<QueryBuffers> QUERY_BUFFERS = ThreadLocal.withInitial(QueryBuffers::new);
+
+    private final NetworkIds<TPos> ids;
+    private final int[] vertices; //[node * HEADINGS + heading], the vertex of arriving at the node with the heading, or -1.
+    private final int vertexCount;
+    private final int[][] exitEdgeIds; //[node][], the edges leaving each node
+    private final int[][] exitVertices; //[node][], the vertex arrived at via each exit edge
+
+    //The arcs between vertices, from the lower to the higher ranked vertex, ordered by the rank of the lower vertex, so the arcs
+    //a shortcut consists of come before the shortcut.
+    private final int[] arcStarts, arcEnds; //[vertex], the range of the arcs going up from the vertex
+    private final int[] arcLows, arcHighs;
+    private final int[] arcUpEdgeStarts, arcUpEdges; //[arc + 1], the range of the edges from the lower to the higher vertex of each arc, none for shortcuts.
+    private final int[] arcDownEdgeStarts, arcDownEdges; //The same for the edges from the higher to the lower vertex
+    private final int[] triangleStarts; //[arc + 1], the range of the lower triangles of each arc
+    private final int[] triangleLowArcs, triangleHighArcs; //The arcs from the lower vertex of the triangle to the low and high vertex of the arc
+    private final int[] upperArcStarts, upperArcs; //The arcs that have the arc in one of their lower triangles
+    private final int[] edgeArcStarts, edgeArcs; //The arcs that follow each edge
+
+    public ContractionHierarchy(RailNetwork<TPos> network){
+        ids = network.getIds();
+        int nodeCount = ids.getNodeCount();
+
+        //Trains can arrive at a node over any of the edges ending there, also over the edges that can't be traveled as a whole, when starting halfway.
+        vertices = new int[nodeCount * HEADINGS];
+        Arrays.fill(vertices, NetworkIds.NO_ID);
+        List<List<EnumHeading>> arrivalHeadings = new ArrayList<>(nodeCount);
+        int count = 0;
+        for(int node = 0; node < nodeCount; node++) {
+            TPos pos = ids.getNode(node);
+            List<EnumHeading> headings = new ArrayList<>(4);
+            for(RailEdge<TPos> edge : network.findEdgesAtIntersection(pos)) {
+                if(edge.startPos.equals(pos)) headings.add(edge.startHeading);
+                if(edge.endPos.equals(pos)) headings.add(edge.endHeading);
+            }
+            headings.addAll(Arrays.asList(ids.getEntryHeadings(node)));
+            for(EnumHeading heading : headings) {
+                int key = getVertexKey(node, heading);
+                if(vertices[key] == NetworkIds.NO_ID) vertices[key] = count++;
+            }
+            arrivalHeadings.add(headings);
+        }
+        vertexCount = count;
+
+        //The arcs between the vertices: from arriving at a node with one heading, to leaving it over an edge with another heading.
+        TIntArrayList[] nodeExitEdgeIds = new TIntArrayList[nodeCount];
+        TIntArrayList[] nodeExitVertices = new TIntArrayList[nodeCount];
+        for(int node = 0; node < nodeCount; node++) {
+            nodeExitEdgeIds[node] = new TIntArrayList(2);
+            nodeExitVertices[node] = new TIntArrayList(2);
+        }
+        TIntList edgeFroms = new TIntArrayList(), edgeTos = new TIntArrayList(), edgeIds = new TIntArrayList();
+        for(int node = 0; node < nodeCount; node++) {
+            int[] entryNodes = ids.getEntryNodes(node);
+            for(int i = 0; i < entryNodes.length; i++) {
+                int prevNode = entryNodes[i];
+                int edgeId = ids.getEntryEdgeIds(node)[i];
+                int to = getVertex(node, ids.getEntryHeadings(node)[i]);
+                EnumHeading exitHeading = ids.getEntryOtherHeadings(node)[i];
+                nodeExitEdgeIds[prevNode].add(edgeId);
+                nodeExitVertices[prevNode].add(to);
+                for(EnumHeading arrivalHeading : arrivalHeadings.get(prevNode)) {
+                    int from = getVertex(prevNode, arrivalHeading);
+                    if(arrivalHeading != exitHeading && from != to && !containsArc(edgeFroms, edgeTos, edgeIds, from, to, edgeId)) {
+                        edgeFroms.add(from);
+                        edgeTos.add(to);
+                        edgeIds.add(edgeId);
+                    }
+                }
+            }
+        }
+        exitEdgeIds = new int[nodeCount][];
+        exitVertices = new int[nodeCount][];
+        for(int node = 0; node < nodeCount; node++) {
+            exitEdgeIds[node] = nodeExitEdgeIds[node].toArray();
+            exitVertices[node] = nodeExitVertices[node].toArray();
+        }
+
+        //Contract the vertices with the fewest neighbors first, which keeps the amount of shortcuts low for networks with few junctions.
+        TIntHashSet[] neighbors = new TIntHashSet[vertexCount];
+        for(int vertex = 0; vertex < vertexCount; vertex++) {
+            neighbors[vertex] = new TIntHashSet(4);
+        }
+        for(int i = 0; i < edgeFroms.size(); i++) {
+            neighbors[edgeFroms.get(i)].add(edgeTos.get(i));
+            neighbors[edgeTos.get(i)].add(edgeFroms.get(i));
+        }
+        LongHeap queue = new LongHeap();
+        for(int vertex = 0; vertex < vertexCount; vertex++) {
+            queue.add(neighbors[vertex].size(), vertex);
+        }
+        int[] order = new int[vertexCount];
+        int[] ranks = new int[vertexCount];
+        int[][] upNeighbors = new int[vertexCount][];
+        int rank = 0;
+        while(!queue.isEmpty()) {
+            long entry = queue.poll();
+            int vertex = LongHeap.getId(entry);
+            if(upNeighbors[vertex] != null || LongHeap.getPriority(entry) != neighbors[vertex].size()) continue; //Outdated entry
+
+            int[] up = neighbors[vertex].toArray();
+            upNeighbors[vertex] = up;
+            neighbors[vertex] = null;
+            ranks[vertex] = rank;
+            order[rank++] = vertex;
+            for(int neighbor : up) {
+                neighbors[neighbor].remove(vertex);
+            }
+            for(int i = 0; i < up.length; i++) {
+                for(int j = i + 1; j < up.length; j++) {
+                    if(neighbors[up[i]].add(up[j])) neighbors[up[j]].add(up[i]);
+                }
+            }
+            for(int neighbor : up) {
+                queue.add(neighbors[neighbor].size(), neighbor);
+            }
+        }
+
+        //Assign the arcs in the order of the lower vertex.
+        arcStarts = new int[vertexCount];
+        arcEnds = new int[vertexCount];
+        TIntList lows = new TIntArrayList(), highs = new TIntArrayList();
+        TLongIntMap arcIds = new TLongIntHashMap(vertexCount * 2, 0.5F, Long.MIN_VALUE, NetworkIds.NO_ID);
+        for(int vertex : order) {
+            arcStarts[vertex] = lows.size();
+            for(int neighbor : upNeighbors[vertex]) {
+                arcIds.put(getArcKey(vertex, neighbor), lows.size());
+                lows.add(vertex);
+                highs.add(neighbor);
+            }
+            arcEnds[vertex] = lows.size();
+        }
+        arcLows = lows.toArray();
+        arcHighs = highs.toArray();
+        int arcCount = arcLows.length;
+
+        //Two edges between the same vertices would need to start and end with the same headings. If it ever happens both are kept, as which
+        //one is shorter depends on the red signals on them.
+        int[] arcUpEdgeCounts = new int[arcCount + 1];
+        int[] arcDownEdgeCounts = new int[arcCount + 1];
+        int[] edgeArcCounts = new int[ids.getEdgeCount() + 1];
+        int[] originalArcs = new int[edgeFroms.size()];
+        boolean[] originalUps = new boolean[edgeFroms.size()];
+        for(int i = 0; i < edgeFroms.size(); i++) {
+            int from = edgeFroms.get(i);
+            int to = edgeTos.get(i);
+            boolean up = ranks[from] < ranks[to];
+            int arc = up ? arcIds.get(getArcKey(from, to)) : arcIds.get(getArcKey(to, from));
+            (up ? arcUpEdgeCounts : arcDownEdgeCounts)[arc + 1]++;
+            originalArcs[i] = arc;
+            originalUps[i] = up;
+            edgeArcCounts[edgeIds.get(i) + 1]++;
+        }
+        arcUpEdgeStarts = toStarts(arcUpEdgeCounts);
+        arcDownEdgeStarts = toStarts(arcDownEdgeCounts);
+        arcUpEdges = new int[arcUpEdgeStarts[arcCount]];
+        arcDownEdges = new int[arcDownEdgeStarts[arcCount]];
+        edgeArcStarts = toStarts(edgeArcCounts);
+        edgeArcs = new int[edgeFroms.size()];
+        int[] arcUpEdgeIndices = Arrays.copyOf(arcUpEdgeStarts, arcUpEdgeStarts.length);
+        int[] arcDownEdgeIndices = Arrays.copyOf(arcDownEdgeStarts, arcDownEdgeStarts.length);
+        int[] edgeArcIndices = Arrays.copyOf(edgeArcStarts, edgeArcStarts.length);
+        for(int i = 0; i < edgeFroms.size(); i++) {
+            int arc = originalArcs[i];
+            int edgeId = edgeIds.get(i);
+            if(originalUps[i]) {
+                arcUpEdges[arcUpEdgeIndices[arc]++] = edgeId;
+            } else {
+                arcDownEdges[arcDownEdgeIndices[arc]++] = edgeId;
+            }
+            edgeArcs[edgeArcIndices[edgeId]++] = arc;
+        }
+
+        //Every pair of neighbors of a contracted vertex forms a lower triangle with the vertex.
+        int[] triangleCounts = new int[arcCount + 1];
+        for(int vertex : order) {
+            int[] up = upNeighbors[vertex];
+            for(int i = 0; i < up.length; i++) {
+                for(int j = i + 1; j < up.length; j++) {
+                    triangleCounts[getArc(arcIds, ranks, up[i], up[j]) + 1]++;
+                }
+            }
+        }
+        triangleStarts = toStarts(triangleCounts);
+        triangleLowArcs = new int[triangleStarts[arcCount]];
+        triangleHighArcs = new int[triangleStarts[arcCount]];
+        int[] triangleIndices = Arrays.copyOf(triangleStarts, triangleStarts.length);
+        int[] upperArcCounts = new int[arcCount + 1];
+        for(int vertex : order) {
+            int[] up = upNeighbors[vertex];
+            for(int i = 0; i < up.length; i++) {
+                for(int j = i + 1; j < up.length; j++) {
+                    int arc = getArc(arcIds, ranks, up[i], up[j]);
+                    int triangle = triangleIndices[arc]++;
+                    triangleLowArcs[triangle] = arcIds.get(getArcKey(vertex, arcLows[arc]));
+                    triangleHighArcs[triangle] = arcIds.get(getArcKey(vertex, arcHighs[arc]));
+                    upperArcCounts[triangleLowArcs[triangle] + 1]++;
+                    upperArcCounts[triangleHighArcs[triangle] + 1]++;
+                }
+            }
+        }
+        upperArcStarts = toStarts(upperArcCounts);
+        upperArcs = new int[upperArcStarts[arcCount]];
+        int[] upperArcIndices = Arrays.copyOf(upperArcStarts, upperArcStarts.length);
+        for(int arc = 0; arc < arcCount; arc++) {
+            for(int triangle = triangleStarts[arc]; triangle < triangleStarts[arc + 1]; triangle++) {
+                upperArcs[upperArcIndices[triangleLowArcs[triangle]]++] = arc;
+                upperArcs[upperArcIndices[triangleHighArcs[triangle]]++] = arc;
+            }
+        }
+    }
+
+    private static boolean containsArc(TIntList froms, TIntList tos, TIntList edgeIds, int from, int to, int edgeId){
+        for(int i = froms.size() - 1; i >= 0 && edgeIds.get(i) == edgeId; i--) {
+            if(froms.get(i) == from && tos.get(i) == to) return true;
+        }
+        return false;
+    }
+
+    private static long getArcKey(int low, int high){
+        return (long)low << 32 | high;
+    }
+
+    private static int getArc(TLongIntMap arcIds, int[] ranks, int vertex1, int vertex2){
+        return ranks[vertex1] < ranks[vertex2] ? arcIds.get(getArcKey(vertex1, vertex2)) : arcIds.get(getArcKey(vertex2, vertex1));
+    }
+
+    /**
+     * @param counts the counts per index, shifted by one.
+     * @return the start of the range of each index, and the total count at the end.
+     */
+    private static int[] toStarts(int[] counts){
+        for(int i = 1; i < counts.length; i++) {
+            counts[i] += counts[i - 1];
+        }
+        return counts;
+    }
+
+    private static int getVertexKey(int node, EnumHeading heading){
+        return node * HEADINGS + (heading != null ? heading.ordinal() : HEADINGS - 1);
+    }
+
+    public NetworkIds<TPos> getIds(){
+        return ids;
+    }
+
+    /**
+     * @param node
+     * @param heading
+     * @return the vertex of arriving at the node over an edge with the given heading at the node, or -1 when no edge arrives with that heading.
+     */
+    public int getVertex(int node, EnumHeading heading){
+        return vertices[getVertexKey(node, heading)];
+    }
+
+    /**
+     * @param node
+     * @return the vertices of arriving at the node, over any of the edges ending at the node.
+     */
+    public TIntList getArrivalVertices(int node){
+        TIntList arrivalVertices = new TIntArrayList(HEADINGS);
+        for(int key = node * HEADINGS; key < (node + 1) * HEADINGS; key++) {
+            if(vertices[key] != NetworkIds.NO_ID) arrivalVertices.add(vertices[key]);
+        }
+        return arrivalVertices;
+    }
+
+    public int getVertexCount(){
+        return vertexCount;
+    }
+
+    public int getArcCount(){
+        return arcLows.length;
+    }
+
+    /**
+     * @param node
+     * @return the ids of the edges trains can leave the given node over.
+     */
+    public int[] getExitEdgeIds(int node){
+        return exitEdgeIds[node];
+    }
+
+    /**
+     * @param node
+     * @return the vertices arrived at when leaving the node over each of its exit edges.
+     */
+    public int[] getExitVertices(int node){
+        return exitVertices[node];
+    }
+
+    /**
+     * The shortest path found by a query.
+     */
+    static class Path {
+        final int sourceIndex, targetIndex; //The index of the source and target the path leads from and to
+        final int distance;
+        final TIntList edgeIds; //The edges from the source to the target
+
+        Path(int sourceIndex, int targetIndex, int distance, TIntList edgeIds){
+            this.sourceIndex = sourceIndex;
+            this.targetIndex = targetIndex;
+            this.distance = distance;
+            this.edgeIds = edgeIds;
+        }
+    }
+
+    /**
+     * Searches the shortest path from any of the sources to any of the targets, by searching upwards from the sources and from the targets.
+     * The shortest path goes up from the source, and down to the target, via the highest vertex of the path.
+     * @param metric the weights to use.
+     * @param sources the vertices to start from.
+     * @param sourceDistances the distance already traveled to each of the sources.
+     * @param targets the vertices to reach.
+     * @param targetDistances the distance still to travel from each of the targets.
+     * @param maxDistance only paths shorter than this are returned.
+     * @return the shortest path, or null when there is no path shorter than the max distance.
+     */
+    public Path query(Metric<TPos> metric, TIntList sources, TIntList sourceDistances, TIntList targets, TIntList targetDistances, int maxDistance){
+        QueryBuffers buffers = QUERY_BUFFERS.get();
+        buffers.reset(vertexCount);
+        search(metric.upWeights, sources, sourceDistances, maxDistance, buffers.forward, buffers);
+        search(metric.downWeights, targets, targetDistances, maxDistance, buffers.backward, buffers);
+
+        int bestVertex = NetworkIds.NO_ID;
+        int bestDistance = maxDistance;
+        TIntList reached = buffers.backward.reached;
+        for(int i = 0; i < reached.size(); i++) {
+            int vertex = reached.get(i);
+            if(buffers.forward.isReached(vertex, buffers.stamp)) {
+                long distance = (long)buffers.forward.distances[vertex] + buffers.backward.distances[vertex];
+                if(distance < bestDistance) {
+                    bestDistance = (int)distance;
+                    bestVertex = vertex;
+                }
+            }
+        }
+        if(bestVertex == NetworkIds.NO_ID) return null;
+
+        TIntList upArcs = new TIntArrayList();
+        int vertex = bestVertex;
+        while(buffers.forward.prevArcs[vertex] != NetworkIds.NO_ID) {
+            upArcs.add(buffers.forward.prevArcs[vertex]);
+            vertex = arcLows[buffers.forward.prevArcs[vertex]];
+        }
+        int sourceIndex = buffers.forward.origins[vertex];
+
+        TIntList edgeIds = new TIntArrayList();
+        for(int i = upArcs.size() - 1; i >= 0; i--) {
+            unpack(metric, upArcs.get(i), true, edgeIds);
+        }
+        vertex = bestVertex;
+        while(buffers.backward.prevArcs[vertex] != NetworkIds.NO_ID) {
+            int arc = buffers.backward.prevArcs[vertex];
+            unpack(metric, arc, false, edgeIds);
+            vertex = arcLows[arc];
+        }
+        return new Path(sourceIndex, buffers.backward.origins[vertex], bestDistance, edgeIds);
+    }
+
+    /**
+     * Dijkstra over the arcs going up from the given origins.
+     * @param weights the weights of the arcs, up for searching from the sources, down for searching from the targets.
+     */
+    private void search(int[] weights, TIntList origins, TIntList originDistances, int maxDistance, QueryLabels labels, QueryBuffers buffers){
+        LongHeap heap = buffers.heap;
+        heap.clear();
+        for(int i = 0; i < origins.size(); i++) {
+            int vertex = origins.get(i);
+            int distance = originDistances.get(i);
+            if(distance < maxDistance && distance < labels.getDistance(vertex, buffers.stamp)) {
+                labels.reach(vertex, buffers.stamp, distance, NetworkIds.NO_ID, i);
+                heap.add(distance, vertex);
+            }
+        }
+        while(!heap.isEmpty()) {
+            long entry = heap.poll();
+            int vertex = LongHeap.getId(entry);
+            int distance = LongHeap.getPriority(entry);
+            if(distance > labels.distances[vertex]) continue; //Outdated entry
+
+            for(int arc = arcStarts[vertex]; arc < arcEnds[vertex]; arc++) {
+                if(weights[arc] >= INFINITY) continue;
+                int nextDistance = distance + weights[arc];
+                int nextVertex = arcHighs[arc];
+                if(nextDistance < maxDistance && nextDistance < labels.getDistance(nextVertex, buffers.stamp)) {
+                    labels.reach(nextVertex, buffers.stamp, nextDistance, arc, labels.origins[vertex]);
+                    heap.add(nextDistance, nextVertex);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the edges the arc consists of.
+     * @param up true to travel the arc from the lower to the higher vertex.
+     */
+    private void unpack(Metric<TPos> metric, int arc, boolean up, TIntList edgeIds){
+        int weight = up ? metric.upWeights[arc] : metric.downWeights[arc];
+        int[] arcEdgeStarts = up ? arcUpEdgeStarts : arcDownEdgeStarts;
+        int[] arcEdges = up ? arcUpEdges : arcDownEdges;
+        for(int i = arcEdgeStarts[arc]; i < arcEdgeStarts[arc + 1]; i++) {
+            if(metric.edgeWeights[arcEdges[i]] == weight) {
+                edgeIds.add(arcEdges[i]);
+                return;
+            }
+        }
+        for(int triangle = triangleStarts[arc]; triangle < triangleStarts[arc + 1]; triangle++) {
+            int lowArc = triangleLowArcs[triangle];
+            int highArc = triangleHighArcs[triangle];
+            if(up) {
+                if(metric.downWeights[lowArc] + metric.upWeights[highArc] == weight) {
+                    unpack(metric, lowArc, false, edgeIds);
+                    unpack(metric, highArc, true, edgeIds);
+                    return;
+                }
+            } else {
+                if(metric.downWeights[highArc] + metric.upWeights[lowArc] == weight) {
+                    unpack(metric, highArc, false, edgeIds);
+                    unpack(metric, lowArc, true, edgeIds);
+                    return;
+                }
+            }
+        }
+        throw new IllegalStateException("Arc " + arc + " can't be unpacked");
+    }
+
+    /**
+     * The weights of the arcs for the red signals of a network state.
+     * @param <TPos>
+     */
+    static class Metric<TPos extends IPosition<TPos>> {
+        final ContractionHierarchy<TPos> hierarchy;
+        private final int[] edgeWeights;
+        private final int[] upWeights, downWeights; //The lengths of the shortest paths from the lower to the higher vertex of each arc, and back.
+        private final BitSet dirtyArcs = new BitSet(); //Global var to prevent putting pressure on GC
+        private final BitSet changedSignals = new BitSet(); //Global var to prevent putting pressure on GC
+        private boolean customized;
+        private int epoch; //The red signal epoch of the network state the weights are for.
+
+        Metric(ContractionHierarchy<TPos> hierarchy){
+            this.hierarchy = hierarchy;
+            edgeWeights = new int[hierarchy.ids.getEdgeCount()];
+            upWeights = new int[hierarchy.getArcCount()];
+            downWeights = new int[hierarchy.getArcCount()];
+            Arrays.fill(upWeights, INFINITY);
+            Arrays.fill(downWeights, INFINITY);
+        }
+
+        private Metric(Metric<TPos> metric){
+            hierarchy = metric.hierarchy;
+            edgeWeights = metric.edgeWeights.clone();
+            upWeights = metric.upWeights.clone();
+            downWeights = metric.downWeights.clone();
+            customized = metric.customized;
+            epoch = metric.epoch;
+        }
+
+        /**
+         * @return a copy of this metric, for when this metric is still being read by other threads, see {@link NetworkState#createRoutingSnapshot(RailNetwork)}.
+         */
+        Metric<TPos> copy(){
+            return new Metric<>(this);
+        }
+
+        /**
+         * @param state
+         * @return true when the weights are for the current red signals of the state.
+         */
+        boolean isUpToDate(NetworkState<TPos> state){
+            return customized && state.getRedSignalEpoch() == epoch;
+        }
+
+        /**
+         * Updates the weights of the edges of which red signals changed, and of the shortcuts over these edges.
+         * @param state
+         */
+        void update(NetworkState<TPos> state){
+            if(isUpToDate(state)) return;
+
+            dirtyArcs.clear();
+            changedSignals.clear();
+            int[] stateWeights = state.getEdgeWeights(hierarchy.ids);
+            if(customized && state.getRedChangedSignals(epoch, changedSignals)) {
+                for(int signalId = changedSignals.nextSetBit(0); signalId >= 0; signalId = changedSignals.nextSetBit(signalId + 1)) {
+                    for(int edgeId : hierarchy.ids.getSignalEdgeIds(signalId)) {
+                        updateEdgeWeight(state, stateWeights, edgeId);
+                    }
+                }
+            } else {
+                for(int edgeId = 0; edgeId < edgeWeights.length; edgeId++) {
+                    updateEdgeWeight(state, stateWeights, edgeId);
+                }
+            }
+            if(!customized) dirtyArcs.set(0, hierarchy.getArcCount());
+
+            //Arcs only consist of arcs with a lower id, so when handled in order, the arcs they consist of are up to date.
+            for(int arc = dirtyArcs.nextSetBit(0); arc >= 0; arc = dirtyArcs.nextSetBit(arc + 1)) {
+                int up = getMinEdgeWeight(hierarchy.arcUpEdgeStarts, hierarchy.arcUpEdges, arc);
+                int down = getMinEdgeWeight(hierarchy.arcDownEdgeStarts, hierarchy.arcDownEdges, arc);
+                for(int triangle = hierarchy.triangleStarts[arc]; triangle < hierarchy.triangleStarts[arc + 1]; triangle++) {
+                    int lowArc = hierarchy.triangleLowArcs[triangle];
+                    int highArc = hierarchy.triangleHighArcs[triangle];
+                    up = Math.min(up, downWeights[lowArc] + upWeights[highArc]);
+                    down = Math.min(down, downWeights[highArc] + upWeights[lowArc]);
+                }
+                up = Math.min(up, INFINITY);
+                down = Math.min(down, INFINITY);
+                if(up != upWeights[arc] || down != downWeights[arc]) {
+                    upWeights[arc] = up;
+                    downWeights[arc] = down;
+                    for(int i = hierarchy.upperArcStarts[arc]; i < hierarchy.upperArcStarts[arc + 1]; i++) {
+                        dirtyArcs.set(hierarchy.upperArcs[i]);
+                    }
+                }
+            }
+            customized = true;
+            epoch = state.getRedSignalEpoch();
+        }
+
+        private void updateEdgeWeight(NetworkState<TPos> state, int[] stateWeights, int edgeId){
+            int pathLength = stateWeights != null ? stateWeights[edgeId] : hierarchy.ids.getEdge(edgeId).getPathLength(state);
+            int weight = Math.min(INFINITY, pathLength);
+            if(!customized || weight != edgeWeights[edgeId]) {
+                edgeWeights[edgeId] = weight;
+                for(int i = hierarchy.edgeArcStarts[edgeId]; i < hierarchy.edgeArcStarts[edgeId + 1]; i++) {
+                    dirtyArcs.set(hierarchy.edgeArcs[i]);
+                }
+            }
+        }
+
+        /**
+         * @return the lowest weight of the given edges of the arc, or INFINITY when it has none.
+         */
+        private int getMinEdgeWeight(int[] arcEdgeStarts, int[] arcEdges, int arc){
+            int weight = INFINITY;
+            for(int i = arcEdgeStarts[arc]; i < arcEdgeStarts[arc + 1]; i++) {
+                weight = Math.min(weight, edgeWeights[arcEdges[i]]);
+            }
+            return weight;
+        }
+    }
+
+    private static class QueryLabels {
+        private int[] distances = new int[0];
+        private int[] prevArcs = new int[0];
+        private int[] origins = new int[0]; //The index of the source or target the vertex was reached from
+        private int[] stamps = new int[0];
+        private final TIntList reached = new TIntArrayList();
+
+        private void reset(int vertexCount, boolean clearStamps){
+            if(distances.length < vertexCount) {
+                distances = new int[vertexCount];
+                prevArcs = new int[vertexCount];
+                origins = new int[vertexCount];
+                stamps = new int[vertexCount];
+            } else if(clearStamps) {
+                Arrays.fill(stamps, 0);
+            }
+            reached.clear();
+        }
+
+        private boolean isReached(int vertex, int stamp){
+            return stamps[vertex] == stamp;
+        }
+
+        private int getDistance(int vertex, int stamp){
+            return isReached(vertex, stamp) ? distances[vertex] : Integer.MAX_VALUE;
+        }
+
+        private void reach(int vertex, int stamp, int distance, int prevArc, int origin){
+            if(!isReached(vertex, stamp)) {
+                stamps[vertex] = stamp;
+                reached.add(vertex);
+            }
+            distances[vertex] = distance;
+            prevArcs[vertex] = prevArc;
+            origins[vertex] = origin;
+        }
+    }
+
+    /**
+     * The labels of both directions, reused per thread to prevent putting pressure on GC.
+     */
+    private static class QueryBuffers {
+        private final QueryLabels forward = new QueryLabels();
+        private final QueryLabels backward = new QueryLabels();
+        private final LongHeap heap = new LongHeap();
+        private int stamp;
+
+        private void reset(int vertexCount){
+            boolean clearStamps = stamp == Integer.MAX_VALUE;
+            if(clearStamps) stamp = 0;
+            forward.reset(vertexCount, clearStamps);
+            backward.reset(vertexCount, clearStamps);
+            stamp++;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.minemaarten.signals.rail.network;
+
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Caches the reverse shortest path trees of destinations, so all trains heading to the same destinations share one search.
+ * A tree holds the shortest path from every intersection to the destinations. The trees are only valid for the network they were built for,
+ * and as long as none of the signals on the edges of the tree turned red or stopped being red, and none of the signals on the other edges
+ * stopped being red. Those other edges only get longer when their signals turn red, which can't make them part of a shortest path.
+ * The cache is thread safe, as the caches of routing snapshots are used by multiple routing threads at once.
+ * @author Maarten
+ *
+ * @param <TPos>
+ */
+public class DestinationTreeCache<TPos extends IPosition<TPos>> {
+    private static final int MAX_TREES = 64;
+
+    static class DestinationTree<TPos extends IPosition<TPos>> {
+        final RailPathfinder.SearchLabels<TPos> labels;
+        final BitSet treeSignalIds; //The signals on the edges of the tree, these determine the distances in the tree.
+        final BitSet offTreeSignalIds; //The signals on the other edges the tree was built over.
+        int epoch; //The red signal epoch of the network state this tree was last known to be valid at.
+
+        DestinationTree(RailPathfinder.SearchLabels<TPos> labels, BitSet treeSignalIds, BitSet offTreeSignalIds, int epoch){
+            this.labels = labels;
+            this.treeSignalIds = treeSignalIds;
+            this.offTreeSignalIds = offTreeSignalIds;
+            this.epoch = epoch;
+        }
+
+        /**
+         * @return a copy for another cache, as the epoch is updated by the cache the tree is in.
+         */
+        DestinationTree<TPos> copy(){
+            return new DestinationTree<>(labels, treeSignalIds, offTreeSignalIds, epoch);
+        }
+    }
+
+    private final Map<Set<TPos>, DestinationTree<TPos>> trees = new LinkedHashMap<Set<TPos>, DestinationTree<TPos>>(16, 0.75F, true){
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Set<TPos>, DestinationTree<TPos>> eldest){
+            return size() > MAX_TREES;
+        }
+    };
+    private long hits, misses;
+
+    /**
+     * @param destinations
+     * @param state
+     * @return the tree of the given destinations, or null when there's no tree or when signals it depends on changed.
+     */
+    synchronized DestinationTree<TPos> get(Set<TPos> destinations, NetworkState<TPos> state){
+        DestinationTree<TPos> tree = trees.get(destinations);
+        if(tree != null) {
+            if(state.isRedStatusUnchanged(tree.treeSignalIds, tree.epoch) && !state.hasRedSignalCleared(tree.offTreeSignalIds, tree.epoch)) {
+                tree.epoch = state.getRedSignalEpoch();
+                hits++;
+                return tree;
+            }
+            trees.remove(destinations);
+        }
+        misses++;
+        return null;
+    }
+
+    synchronized void put(Set<TPos> destinations, DestinationTree<TPos> tree){
+        trees.put(ImmutableSet.copyOf(destinations), tree);
+    }
+
+    synchronized void putIfAbsent(Set<TPos> destinations, DestinationTree<TPos> tree){
+        if(!trees.containsKey(destinations)) put(destinations, tree);
+    }
+
+    /**
+     * @param destinations
+     * @return the tree of the given destinations, without checking whether it's still valid.
+     */
+    synchronized DestinationTree<TPos> getUnchecked(Set<TPos> destinations){
+        return trees.get(destinations);
+    }
+
+    /**
+     * Removes all trees, for when the network changed.
+     */
+    public synchronized void clear(){
+        trees.clear();
+    }
+
+    public synchronized int size(){
+        return trees.size();
+    }
+
+    public synchronized long getHits(){
+        return hits;
+    }
+
+    public synchronized long getMisses(){
+        return misses;
+    }
+}
@@ -5,6 +5,28 @@ import java.util.List;
 public interface IPosition<TPos> extends Comparable<TPos>{
     public double distanceSq(TPos other);
 
+    /**
+     * The dimension (or any other separate space) this position is in. Positions in different planes are never equal.
+     * @return
+     */
+    public int getPlane();
+
+    /**
+     * The coordinates of this position packed into a long, which should be unique within the plane. This allows looking up positions without
+     * creating position objects. Implementations should use {@link IPosition#hashCode(int, long)} as hashCode, so maps keyed by positions can
+     * be queried by plane and packed coordinates.
+     * @return
+     */
+    public long toLong();
+
+    public static int hashCode(int plane, long packed){
+        return Long.hashCode(packed) * 31 + plane;
+    }
+
+    public default boolean isAt(int plane, long packed){
+        return getPlane() == plane && toLong() == packed;
+    }
+
     /**
      * Should take 'this - from' , and use those diffs to determine a heading.
      * This is meant to be the opposite from 'offset', it is expected that this.offset(heading) == from (when not considering y)
@@ -0,0 +1,222 @@
+package com.minemaarten.signals.rail.network;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Multimap;
+import com.minemaarten.signals.lib.IdentityHashSet;
+
+/**
+ * Builds the sections and edges of a network from the previous version of that network. Only the sections and edges touching the changed positions
+ * (or their neighbors) are rebuilt, all other sections and edges are reused.
+ * @author Maarten
+ *
+ * @param <TPos>
+ */
+class IncrementalNetworkBuilder<TPos extends IPosition<TPos>> {
+    private final RailNetwork<TPos> prevNetwork, network;
+    private final Set<TPos> affectedPositions = new HashSet<>();
+    private final List<NetworkRail<TPos>> neighborBuffer = new ArrayList<>();
+
+    private final IdentityHashSet<RailSection<TPos>> droppedSections = new IdentityHashSet<>();
+    private final IdentityHashSet<RailEdge<TPos>> droppedEdges = new IdentityHashSet<>();
+    private List<RailSection<TPos>> newSections;
+    private Set<RailEdge<TPos>> newEdges;
+
+    public IncrementalNetworkBuilder(RailNetwork<TPos> prevNetwork, RailNetwork<TPos> network, Collection<TPos> changedPositions){
+        this.prevNetwork = prevNetwork;
+        this.network = network;
+        calculateAffectedPositions(changedPositions);
+    }
+
+    /**
+     * @return false when the changes turned out to affect more than their surroundings, and the network needs to be built fully.
+     */
+    public boolean build(){
+        try {
+            return buildSections() && buildEdges();
+        } catch(IllegalStateException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the positions of which the rail, or the neighbors of the rail may have changed.
+     */
+    public Collection<TPos> getAffectedPositions(){
+        return affectedPositions;
+    }
+
+    public Collection<RailSection<TPos>> getDroppedSections(){
+        return droppedSections.keySet();
+    }
+
+    public Collection<RailSection<TPos>> getNewSections(){
+        return newSections;
+    }
+
+    public Collection<RailEdge<TPos>> getDroppedEdges(){
+        return droppedEdges.keySet();
+    }
+
+    public Collection<RailEdge<TPos>> getNewEdges(){
+        return newEdges;
+    }
+
+    /**
+     * The changed positions, the neighbors of the changed objects, and the neighbors of the rails there.
+     * Any rail outside of these has the same neighbors, and the same signals next to it, in both networks.
+     * @param changedPositions
+     */
+    private void calculateAffectedPositions(Collection<TPos> changedPositions){
+        Set<TPos> changed = new HashSet<>(changedPositions);
+
+        //Signals that became valid or invalid, because of changes in the rails next to them. Looked up around the changes.
+        for(TPos pos : RailObjectHolder.getPossiblyRevalidatedSignals(prevNetwork.unfilteredRailObjects, network.unfilteredRailObjects, changedPositions)) {
+            if(!Objects.equals(network.railObjects.get(pos), prevNetwork.railObjects.get(pos))) changed.add(pos);
+        }
+
+        for(TPos pos : changed) {
+            affectedPositions.add(pos);
+            addObjectNeighbors(prevNetwork.unfilteredRailObjects.get(pos));
+            addObjectNeighbors(network.unfilteredRailObjects.get(pos));
+        }
+
+        for(TPos pos : new ArrayList<>(affectedPositions)) {
+            addRailNeighbors(prevNetwork.railObjects, pos);
+            addRailNeighbors(network.railObjects, pos);
+        }
+    }
+
+    private void addObjectNeighbors(INetworkObject<TPos> obj){
+        if(obj != null) {
+            affectedPositions.addAll(obj.getNetworkNeighbors());
+            if(obj instanceof IRailLink) {
+                TPos destination = ((IRailLink<TPos>)obj).getDestinationPos();
+                if(destination != null) affectedPositions.add(destination);
+            }
+        }
+    }
+
+    private void addRailNeighbors(RailObjectHolder<TPos> railObjects, TPos pos){
+        NetworkRail<TPos> rail = railObjects.getRail(pos);
+        if(rail != null) {
+            affectedPositions.addAll(rail.getPotentialNeighborRailLocations());
+            rail.getSectionNeighborRails(railObjects, neighborBuffer);
+            for(int i = 0; i < neighborBuffer.size(); i++) {
+                affectedPositions.add(neighborBuffer.get(i).getPos());
+            }
+        }
+    }
+
+    private boolean buildSections(){
+        for(TPos pos : affectedPositions) {
+            RailSection<TPos> section = prevNetwork.findSection(pos);
+            if(section != null) droppedSections.add(section);
+        }
+
+        Set<NetworkRail<TPos>> toTraverse = new HashSet<>();
+        addRails(toTraverse, affectedPositions);
+        for(RailSection<TPos> section : droppedSections.keySet()) {
+            for(NetworkRail<TPos> rail : section) {
+                addRails(toTraverse, rail.getPos());
+            }
+        }
+
+        newSections = network.buildRailSections(toTraverse);
+
+        //Validate that the new sections don't overlap with reused sections.
+        for(RailSection<TPos> section : newSections) {
+            for(NetworkRail<TPos> rail : section) {
+                RailSection<TPos> prevSection = prevNetwork.findSection(rail.getPos());
+                if(prevSection != null && !droppedSections.contains(prevSection)) return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean buildEdges(){
+        for(TPos pos : affectedPositions) {
+            RailEdge<TPos> edge = prevNetwork.findEdge(pos);
+            if(edge != null) droppedEdges.add(edge);
+            prevNetwork.findEdgesAtIntersection(pos).forEach(droppedEdges::add);
+        }
+
+        Set<TPos> rebuiltPositions = new HashSet<>(affectedPositions);
+        Multimap<TPos, TPos> droppedNeighbors = HashMultimap.create(); //Neighboring rails in the dropped edges.
+        for(RailEdge<TPos> edge : droppedEdges.keySet()) {
+            for(int i = 0; i < edge.length; i++) {
+                rebuiltPositions.add(edge.get(i).getPos());
+                if(i > 0) {
+                    droppedNeighbors.put(edge.get(i - 1).getPos(), edge.get(i).getPos());
+                    droppedNeighbors.put(edge.get(i).getPos(), edge.get(i - 1).getPos());
+                }
+            }
+        }
+
+        Set<NetworkRail<TPos>> toTraverse = new HashSet<>();
+        addRails(toTraverse, rebuiltPositions);
+
+        //Only create edges between two intersections when they are new, or when they were part of a dropped edge. Others are still part of reused edges.
+        Set<RailEdge<TPos>> roughEdges = network.buildRoughRailEdges(toTraverse, (r1, r2) -> {
+            return affectedPositions.contains(r1.getPos()) || affectedPositions.contains(r2.getPos()) || droppedNeighbors.containsEntry(r1.getPos(), r2.getPos());
+        });
+
+        for(RailEdge<TPos> edge : roughEdges) {
+            if(isLoop(edge)) return false; //The shape of a looping edge depends on where it was walked from, let a full build decide.
+            for(int i = 1; i < edge.length - 1; i++) {
+                if(!rebuiltPositions.contains(edge.get(i).getPos())) return false; //Walked into a reused edge.
+            }
+        }
+
+        newEdges = network.mergeCrossingEdges(roughEdges, this::getReusedEdgeHeadings);
+        return true;
+    }
+
+    private boolean isLoop(RailEdge<TPos> edge){
+        if(edge.length < 3) return false;
+        RailGraph<TPos> graph = network.getRailGraph();
+        int first = graph.indexOf(edge.get(0).getPos());
+        int last = graph.indexOf(edge.get(edge.length - 1).getPos());
+        for(int i = 0; i < graph.getNeighborCount(first); i++) {
+            if(graph.getNeighbor(first, i) == last) return true;
+        }
+        return false;
+    }
+
+    /**
+     * The outward headings of the reused edges connected to the given intersection.
+     * @param intersection
+     * @return
+     */
+    private Collection<EnumHeading> getReusedEdgeHeadings(TPos intersection){
+        List<EnumHeading> headings = new ArrayList<>();
+        for(RailEdge<TPos> edge : prevNetwork.findEdgesAtIntersection(intersection)) {
+            if(!droppedEdges.contains(edge)) {
+                for(int i = 0; i < edge.length; i++) {
+                    if(edge.get(i).getPos().equals(intersection)) {
+                        if(i > 0) headings.add(intersection.getRelativeHeading(edge.get(i - 1).getPos()));
+                        if(i < edge.length - 1) headings.add(intersection.getRelativeHeading(edge.get(i + 1).getPos()));
+                    }
+                }
+            }
+        }
+        return headings;
+    }
+
+    private void addRails(Set<NetworkRail<TPos>> rails, Collection<TPos> positions){
+        for(TPos pos : positions) {
+            addRails(rails, pos);
+        }
+    }
+
+    private void addRails(Set<NetworkRail<TPos>> rails, TPos pos){
+        NetworkRail<TPos> rail = network.railObjects.getRail(pos);
+        if(rail != null) rails.add(rail);
+    }
+}
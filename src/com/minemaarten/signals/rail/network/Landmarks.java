@@ -0,0 +1,211 @@
+package com.minemaarten.signals.rail.network;
+
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Landmark nodes, with the travel distances from and to every node of the network, for the ALT (A*, landmarks, triangle inequality) heuristic.
+ * The triangle inequality gives a lower bound of the distance between two nodes, also when routes cross dimensions or teleport, where the
+ * straight line distance between positions says nothing about the distance.
+ * The distances use the lengths of the edges, ignoring red signals and the direction trains need to leave intersections in, so they are never
+ * longer than the actual path lengths.
+ * Nodes are referred to by their {@link NetworkIds}.
+ * @author Maarten
+ *
+ * @param <TPos>
+ */
+class Landmarks<TPos extends IPosition<TPos>> {
+    public static final int LANDMARK_COUNT = 8;
+    private static final int UNREACHABLE = Integer.MAX_VALUE;
+
+    private final int[] landmarkNodes;
+    private final int[][] distancesFrom; //[landmark][node], the distance from the landmark to the node
+    private final int[][] distancesTo; //[landmark][node], the distance from the node to the landmark
+
+    public Landmarks(NetworkIds<TPos> ids){
+        int nodeCount = ids.getNodeCount();
+
+        //The entry edges lead from the entry nodes into a node, invert these to get the edges leading out of a node.
+        int[][] entryNodes = new int[nodeCount][];
+        int[][] entryLengths = new int[nodeCount][];
+        int[] exitCounts = new int[nodeCount];
+        for(int node = 0; node < nodeCount; node++) {
+            RailEdge<TPos>[] entryEdges = ids.getEntryEdges(node);
+            entryNodes[node] = ids.getEntryNodes(node);
+            entryLengths[node] = new int[entryEdges.length];
+            for(int i = 0; i < entryEdges.length; i++) {
+                entryLengths[node][i] = entryEdges[i].length;
+                exitCounts[entryNodes[node][i]]++;
+            }
+        }
+        int[][] exitNodes = new int[nodeCount][];
+        int[][] exitLengths = new int[nodeCount][];
+        for(int node = 0; node < nodeCount; node++) {
+            exitNodes[node] = new int[exitCounts[node]];
+            exitLengths[node] = new int[exitCounts[node]];
+            exitCounts[node] = 0;
+        }
+        for(int node = 0; node < nodeCount; node++) {
+            for(int i = 0; i < entryNodes[node].length; i++) {
+                int entryNode = entryNodes[node][i];
+                exitNodes[entryNode][exitCounts[entryNode]] = node;
+                exitLengths[entryNode][exitCounts[entryNode]] = entryLengths[node][i];
+                exitCounts[entryNode]++;
+            }
+        }
+
+        //Split the landmarks over the (weakly) connected parts of the network by size, as a landmark only bounds the distances in its own part.
+        int[] components = getComponents(nodeCount, exitNodes);
+        int[] componentSizes = new int[nodeCount];
+        for(int node = 0; node < nodeCount; node++) {
+            componentSizes[components[node]]++;
+        }
+        Integer[] componentOrder = new Integer[nodeCount];
+        for(int i = 0; i < nodeCount; i++) {
+            componentOrder[i] = i;
+        }
+        Arrays.sort(componentOrder, (c1, c2) -> Integer.compare(componentSizes[c2], componentSizes[c1]));
+
+        TIntList landmarkList = new TIntArrayList();
+        List<int[]> fromList = new ArrayList<>();
+        List<int[]> toList = new ArrayList<>();
+        for(int i = 0; i < nodeCount && landmarkList.size() < LANDMARK_COUNT; i++) {
+            int component = componentOrder[i];
+            if(componentSizes[component] < 2) break;
+            int componentLandmarks = Math.min(LANDMARK_COUNT - landmarkList.size(), Math.max(1, LANDMARK_COUNT * componentSizes[component] / nodeCount));
+            addLandmarks(component, components, componentLandmarks, exitNodes, exitLengths, entryNodes, entryLengths, landmarkList, fromList, toList);
+        }
+        landmarkNodes = landmarkList.toArray();
+        distancesFrom = fromList.toArray(new int[0][]);
+        distancesTo = toList.toArray(new int[0][]);
+    }
+
+    /**
+     * Pick the landmarks of a part of the network far away from each other, so they are spread over the part: the first landmark is the node
+     * farthest from an arbitrary node, every next landmark the node farthest from the landmarks picked so far.
+     */
+    private static void addLandmarks(int component, int[] components, int count, int[][] exitNodes, int[][] exitLengths, int[][] entryNodes, int[][] entryLengths, TIntList landmarkList, List<int[]> fromList, List<int[]> toList){
+        int nodeCount = components.length;
+        int firstNode = 0;
+        while(components[firstNode] != component) {
+            firstNode++;
+        }
+        int[] firstDistances = getDistances(firstNode, exitNodes, exitLengths);
+        int nextLandmark = firstNode;
+        for(int node = 0; node < nodeCount; node++) {
+            if(firstDistances[node] != UNREACHABLE && firstDistances[node] > firstDistances[nextLandmark]) nextLandmark = node;
+        }
+
+        long[] landmarkDistances = new long[nodeCount];
+        Arrays.fill(landmarkDistances, Long.MAX_VALUE);
+        for(int i = 0; i < count; i++) {
+            int[] from = getDistances(nextLandmark, exitNodes, exitLengths);
+            int[] to = getDistances(nextLandmark, entryNodes, entryLengths);
+            landmarkList.add(nextLandmark);
+            fromList.add(from);
+            toList.add(to);
+
+            //Nodes that can't be reached from or can't reach a landmark (one way rails) are the farthest away.
+            for(int node = 0; node < nodeCount; node++) {
+                long distance = from[node] == UNREACHABLE || to[node] == UNREACHABLE ? Long.MAX_VALUE - 1 : (long)from[node] + to[node];
+                landmarkDistances[node] = Math.min(landmarkDistances[node], distance);
+            }
+            landmarkDistances[nextLandmark] = -1;
+            for(int node = 0; node < nodeCount; node++) {
+                if(components[node] == component && landmarkDistances[node] > landmarkDistances[nextLandmark]) nextLandmark = node;
+            }
+            if(landmarkDistances[nextLandmark] <= 0) break; //All nodes are landmarks
+        }
+    }
+
+    /**
+     * @return the part of the network each node belongs to, ignoring the direction of the edges, identified by one of the nodes of the part.
+     */
+    private static int[] getComponents(int nodeCount, int[][] exitNodes){
+        int[] parents = new int[nodeCount];
+        for(int node = 0; node < nodeCount; node++) {
+            parents[node] = node;
+        }
+        for(int node = 0; node < nodeCount; node++) {
+            for(int exitNode : exitNodes[node]) {
+                int root = getRoot(parents, node);
+                int exitRoot = getRoot(parents, exitNode);
+                if(root != exitRoot) parents[exitRoot] = root;
+            }
+        }
+        for(int node = 0; node < nodeCount; node++) {
+            parents[node] = getRoot(parents, node);
+        }
+        return parents;
+    }
+
+    private static int getRoot(int[] parents, int node){
+        while(parents[node] != node) {
+            parents[node] = parents[parents[node]];
+            node = parents[node];
+        }
+        return node;
+    }
+
+    /**
+     * Dijkstra from the source node.
+     * @return the distances from the source node to all nodes.
+     */
+    private static int[] getDistances(int source, int[][] neighbors, int[][] lengths){
+        int[] distances = new int[neighbors.length];
+        Arrays.fill(distances, UNREACHABLE);
+        distances[source] = 0;
+
+        LongHeap heap = new LongHeap(); //May contain outdated distances of nodes.
+        heap.add(0, source);
+        while(!heap.isEmpty()) {
+            long entry = heap.poll();
+            int node = LongHeap.getId(entry);
+            int distance = LongHeap.getPriority(entry);
+            if(distance > distances[node]) continue;
+
+            for(int i = 0; i < neighbors[node].length; i++) {
+                int neighbor = neighbors[node][i];
+                int neighborDistance = distance + lengths[node][i];
+                if(neighborDistance < distances[neighbor]) {
+                    distances[neighbor] = neighborDistance;
+                    heap.add(neighborDistance, neighbor);
+                }
+            }
+        }
+        return distances;
+    }
+
+    public int getLandmarkCount(){
+        return landmarkNodes.length;
+    }
+
+    public int getLandmarkNode(int landmark){
+        return landmarkNodes[landmark];
+    }
+
+    /**
+     * @param from
+     * @param to
+     * @return a lower bound of the distance of traveling from node 'from' to node 'to'.
+     */
+    public int getLowerBound(int from, int to){
+        int bound = 0;
+        for(int i = 0; i < landmarkNodes.length; i++) {
+            //d(landmark, to) <= d(landmark, from) + d(from, to)
+            int landmarkToFrom = distancesFrom[i][from];
+            int landmarkToTo = distancesFrom[i][to];
+            if(landmarkToFrom != UNREACHABLE && landmarkToTo != UNREACHABLE) bound = Math.max(bound, landmarkToTo - landmarkToFrom);
+
+            //d(from, landmark) <= d(from, to) + d(to, landmark)
+            int fromToLandmark = distancesTo[i][from];
+            int toToLandmark = distancesTo[i][to];
+            if(fromToLandmark != UNREACHABLE && toToLandmark != UNREACHABLE) bound = Math.max(bound, fromToLandmark - toToLandmark);
+        }
+        return bound;
+    }
+}
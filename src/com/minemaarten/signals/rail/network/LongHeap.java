@@ -0,0 +1,69 @@
+package com.minemaarten.signals.rail.network;
+
+import java.util.Arrays;
+
+/**
+ * Binary min-heap of (priority, id) pairs packed in longs, for the graph searches that need a priority queue of ints without boxing.
+ * Entries can't be updated, instead the same id is added again with the new priority, and the outdated entries are skipped when polled.
+ * @author Maarten
+ *
+ */
+class LongHeap {
+    private long[] heap = new long[16];
+    private int size;
+
+    /**
+     * @param priority a non-negative priority, lower priorities are polled first.
+     * @param id
+     */
+    public void add(int priority, int id){
+        if(size == heap.length) heap = Arrays.copyOf(heap, size * 2);
+        long entry = (long)priority << 32 | id;
+        int index = size++;
+        while(index > 0) {
+            int parentIndex = (index - 1) >>> 1;
+            if(entry >= heap[parentIndex]) break;
+            heap[index] = heap[parentIndex];
+            index = parentIndex;
+        }
+        heap[index] = entry;
+    }
+
+    /**
+     * @return the entry with the lowest priority, which is removed. Use {@link LongHeap#getPriority(long)} and {@link LongHeap#getId(long)} to unpack it.
+     */
+    public long poll(){
+        long first = heap[0];
+        size--;
+        if(size > 0) {
+            long entry = heap[size];
+            int index = 0;
+            int half = size >>> 1;
+            while(index < half) {
+                int childIndex = 2 * index + 1;
+                if(childIndex + 1 < size && heap[childIndex + 1] < heap[childIndex]) childIndex++;
+                if(entry <= heap[childIndex]) break;
+                heap[index] = heap[childIndex];
+                index = childIndex;
+            }
+            heap[index] = entry;
+        }
+        return first;
+    }
+
+    public boolean isEmpty(){
+        return size == 0;
+    }
+
+    public void clear(){
+        size = 0;
+    }
+
+    public static int getPriority(long entry){
+        return (int)(entry >>> 32);
+    }
+
+    public static int getId(long entry){
+        return (int)entry;
+    }
+}
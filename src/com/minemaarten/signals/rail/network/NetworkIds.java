@@ -0,0 +1,356 @@
+package com.minemaarten.signals.rail.network;
+
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.TLongIntMap;
+import gnu.trove.map.TObjectIntMap;
+import gnu.trove.map.custom_hash.TObjectIntCustomHashMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
+import gnu.trove.map.hash.TLongIntHashMap;
+import gnu.trove.strategy.IdentityHashingStrategy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Dense ids for the signals, sections and edges of a network, assigned once per network, so per-tick state can be stored in arrays indexed
+ * by these ids, instead of in maps keyed by the objects. Sections in particular are expensive to hash, as their hash is based on all of their rails.
+ * Also holds the next section of every signal, which otherwise needs to be looked up via the neighbors of the signal's rail, and the
+ * edges leading into every intersection, for pathfinding.
+ * @author Maarten
+ *
+ * @param <TPos>
+ */
+class NetworkIds<TPos extends IPosition<TPos>> {
+    public static final int NO_ID = -1;
+
+    private final NetworkSignal<TPos>[] signals;
+    private final TIntObjectMap<TLongIntMap> planeSignalIds = new TIntObjectHashMap<>();
+    private final int[] nextSectionIds;
+    private final int[] baseSignalIds; //The id of the equal signal in the ids this was derived from
+    private final PositionMap<TPos, int[]> signalsInFront = new PositionMap<>(); //The signals of which the position is in front, see RailNetwork#getPositionsInFront
+
+    private final RailSection<TPos>[] sections;
+    private final TObjectIntMap<RailSection<TPos>> sectionIds;
+    private final int[][] sectionSignalIds;
+
+    private final RailEdge<TPos>[] edges;
+    private final TObjectIntMap<RailEdge<TPos>> edgeIds;
+    private final int[][] edgeSignalIds;
+    private final int[][] signalEdgeIds; //The edges each signal is on
+
+    private final List<TPos> nodes = new ArrayList<>(); //The start and end positions of the edges
+    private final TIntObjectMap<TLongIntMap> planeNodeIds = new TIntObjectHashMap<>();
+    private final RailEdge<TPos>[][] entryEdges; //The edges leading into each node, like RailNetwork#findConnectedEdgesBackwards
+    private final int[][] entryEdgeIds;
+    private final int[][] entryNodes; //The node at the other end of each entry edge
+    private final EnumHeading[][] entryHeadings; //The heading of each entry edge at the node
+    private final EnumHeading[][] entryOtherHeadings; //The heading of each entry edge at the other node
+
+    private final RailNetwork<TPos> network;
+
+    public NetworkIds(RailNetwork<TPos> network){
+        this(network, null);
+    }
+
+    /**
+     * @param network
+     * @param baseIds the ids of the network the given network was built incrementally from, or null. The signals of the edges that were reused
+     * from that network are taken from these ids, instead of traversing the edges again.
+     */
+    public NetworkIds(RailNetwork<TPos> network, NetworkIds<TPos> baseIds){
+        this.network = network;
+
+        List<NetworkSignal<TPos>> signalList = network.railObjects.getSignals();
+        signals = toSignalArray(signalList);
+        for(int i = 0; i < signals.length; i++) {
+            TPos pos = signals[i].getPos();
+            TLongIntMap signalIds = planeSignalIds.get(pos.getPlane());
+            if(signalIds == null) {
+                signalIds = new TLongIntHashMap(16, 0.5F, Long.MIN_VALUE, NO_ID);
+                planeSignalIds.put(pos.getPlane(), signalIds);
+            }
+            signalIds.put(pos.toLong(), i);
+        }
+        baseSignalIds = new int[signals.length];
+        for(int i = 0; i < signals.length; i++) {
+            int baseId = baseIds != null ? baseIds.getSignalId(signals[i].getPos()) : NO_ID;
+            baseSignalIds[i] = baseId != NO_ID && baseIds.signals[baseId].equals(signals[i]) ? baseId : NO_ID;
+        }
+        for(int i = 0; i < signals.length; i++) {
+            for(TPos pos : network.getPositionsInFront(signals[i])) {
+                int[] signalIds = signalsInFront.get(pos);
+                if(signalIds == null) {
+                    signalIds = new int[]{i};
+                } else {
+                    signalIds = Arrays.copyOf(signalIds, signalIds.length + 1);
+                    signalIds[signalIds.length - 1] = i;
+                }
+                signalsInFront.put(pos, signalIds);
+            }
+        }
+
+        sections = toSectionArray(network.getAllSections());
+        sectionIds = new TObjectIntCustomHashMap<>(IdentityHashingStrategy.INSTANCE, sections.length, 0.5F, NO_ID);
+        sectionSignalIds = new int[sections.length][];
+        for(int i = 0; i < sections.length; i++) {
+            sectionIds.put(sections[i], i);
+            List<NetworkSignal<TPos>> sectionSignals = sections[i].railObjects.getSignals();
+            sectionSignalIds[i] = new int[sectionSignals.size()];
+            for(int j = 0; j < sectionSignals.size(); j++) {
+                sectionSignalIds[i][j] = getSignalId(sectionSignals.get(j).getPos());
+            }
+        }
+
+        nextSectionIds = new int[signals.length];
+        for(int i = 0; i < signals.length; i++) {
+            RailSection<TPos> nextSection = signals[i].getNextRailSection(network);
+            nextSectionIds[i] = nextSection != null ? getSectionId(nextSection) : NO_ID;
+        }
+
+        edges = toEdgeArray(network.getAllEdges());
+        edgeIds = new TObjectIntCustomHashMap<>(IdentityHashingStrategy.INSTANCE, edges.length, 0.5F, NO_ID);
+        edgeSignalIds = new int[edges.length][];
+        for(int i = 0; i < edges.length; i++) {
+            edgeIds.put(edges[i], i);
+            int baseEdgeId = baseIds != null ? baseIds.getEdgeId(edges[i]) : NO_ID;
+            if(baseEdgeId != NO_ID) { //Reused edge, with the same signals
+                int[] baseEdgeSignalIds = baseIds.edgeSignalIds[baseEdgeId];
+                edgeSignalIds[i] = new int[baseEdgeSignalIds.length];
+                for(int j = 0; j < baseEdgeSignalIds.length; j++) {
+                    int baseSignalId = baseEdgeSignalIds[j];
+                    edgeSignalIds[i][j] = baseSignalId != NO_ID ? getSignalId(baseIds.signals[baseSignalId].getPos()) : NO_ID;
+                }
+            } else {
+                List<NetworkSignal<TPos>> edgeSignals = edges[i].traverseSignalsWithFirst(edges[i].startPos);
+                edgeSignalIds[i] = new int[edgeSignals.size()];
+                for(int j = 0; j < edgeSignals.size(); j++) {
+                    edgeSignalIds[i][j] = getSignalId(edgeSignals.get(j).getPos());
+                }
+            }
+            addNode(edges[i].startPos);
+            addNode(edges[i].endPos);
+        }
+
+        int[] signalEdgeCounts = new int[signals.length];
+        for(int[] signalIds : edgeSignalIds) {
+            for(int signalId : signalIds) {
+                if(signalId != NO_ID) signalEdgeCounts[signalId]++;
+            }
+        }
+        signalEdgeIds = new int[signals.length][];
+        for(int i = 0; i < signals.length; i++) {
+            signalEdgeIds[i] = new int[signalEdgeCounts[i]];
+            signalEdgeCounts[i] = 0;
+        }
+        for(int i = 0; i < edges.length; i++) {
+            for(int signalId : edgeSignalIds[i]) {
+                if(signalId != NO_ID) signalEdgeIds[signalId][signalEdgeCounts[signalId]++] = i;
+            }
+        }
+
+        entryEdges = newEdgeArrays(nodes.size());
+        entryEdgeIds = new int[nodes.size()][];
+        entryNodes = new int[nodes.size()][];
+        entryHeadings = new EnumHeading[nodes.size()][];
+        entryOtherHeadings = new EnumHeading[nodes.size()][];
+        for(int i = 0; i < nodes.size(); i++) {
+            TPos pos = nodes.get(i);
+            Collection<RailEdge<TPos>> nodeEntryEdges = network.findConnectedEdgesBackwards(pos);
+            entryEdges[i] = toEdgeArray(nodeEntryEdges);
+            entryEdgeIds[i] = new int[entryEdges[i].length];
+            entryNodes[i] = new int[entryEdges[i].length];
+            entryHeadings[i] = new EnumHeading[entryEdges[i].length];
+            entryOtherHeadings[i] = new EnumHeading[entryEdges[i].length];
+            for(int j = 0; j < entryEdges[i].length; j++) {
+                RailEdge<TPos> edge = entryEdges[i][j];
+                TPos otherPos = edge.other(pos);
+                entryEdgeIds[i][j] = getEdgeId(edge);
+                entryNodes[i][j] = getNodeId(otherPos);
+                entryHeadings[i][j] = edge.headingForEndpoint(pos);
+                entryOtherHeadings[i][j] = edge.headingForEndpoint(otherPos);
+            }
+        }
+    }
+
+    private void addNode(TPos pos){
+        TLongIntMap nodeIds = planeNodeIds.get(pos.getPlane());
+        if(nodeIds == null) {
+            nodeIds = new TLongIntHashMap(16, 0.5F, Long.MIN_VALUE, NO_ID);
+            planeNodeIds.put(pos.getPlane(), nodeIds);
+        }
+        if(nodeIds.putIfAbsent(pos.toLong(), nodes.size()) == NO_ID) {
+            nodes.add(pos);
+        }
+    }
+
+    public int getSignalCount(){
+        return signals.length;
+    }
+
+    public NetworkSignal<TPos> getSignal(int id){
+        return signals[id];
+    }
+
+    /**
+     * @param pos
+     * @return the id of the signal at the given position, or -1 when there is no signal.
+     */
+    public int getSignalId(TPos pos){
+        TLongIntMap signalIds = planeSignalIds.get(pos.getPlane());
+        return signalIds != null ? signalIds.get(pos.toLong()) : NO_ID;
+    }
+
+    /**
+     * @param signalId
+     * @return the id of the equal signal in the ids these ids were derived from, or -1 when there is none.
+     */
+    public int getBaseSignalId(int signalId){
+        return baseSignalIds[signalId];
+    }
+
+    /**
+     * @param pos
+     * @return the ids of the signals that have the given position in front of them, so a train at the position is at these signals. null when none.
+     */
+    public int[] getSignalIdsInFrontOf(TPos pos){
+        return signalsInFront.get(pos);
+    }
+
+    /**
+     * @param signalId
+     * @return the id of the section the signal is guarding, or -1 when there's no rail in front of the signal.
+     */
+    public int getNextSectionId(int signalId){
+        return nextSectionIds[signalId];
+    }
+
+    public int getSectionCount(){
+        return sections.length;
+    }
+
+    public RailSection<TPos> getSection(int id){
+        return sections[id];
+    }
+
+    /**
+     * @param section
+     * @return the id of the given section, or of the equal section in this network for sections of other networks, or -1.
+     */
+    public int getSectionId(RailSection<TPos> section){
+        int id = sectionIds.get(section);
+        if(id == NO_ID) { //Rare, section of a previous version of the network.
+            RailSection<TPos> networkSection = network.findSection(section.iterator().next().getPos());
+            if(networkSection != null && networkSection.equals(section)) {
+                id = sectionIds.get(networkSection);
+            }
+        }
+        return id;
+    }
+
+    /**
+     * @param sectionId
+     * @return the ids of the signals in the given section.
+     */
+    public int[] getSectionSignalIds(int sectionId){
+        return sectionSignalIds[sectionId];
+    }
+
+    public int getEdgeCount(){
+        return edges.length;
+    }
+
+    public RailEdge<TPos> getEdge(int id){
+        return edges[id];
+    }
+
+    /**
+     * @param edge
+     * @return the id of the given edge, or -1 when the edge is not part of this network.
+     */
+    public int getEdgeId(RailEdge<TPos> edge){
+        return edgeIds.get(edge);
+    }
+
+    /**
+     * @param edgeId
+     * @return the ids of the signals on the given edge.
+     */
+    public int[] getEdgeSignalIds(int edgeId){
+        return edgeSignalIds[edgeId];
+    }
+
+    /**
+     * @param signalId
+     * @return the ids of the edges the given signal is on.
+     */
+    public int[] getSignalEdgeIds(int signalId){
+        return signalEdgeIds[signalId];
+    }
+
+    public int getNodeCount(){
+        return nodes.size();
+    }
+
+    public TPos getNode(int id){
+        return nodes.get(id);
+    }
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private static <TPos extends IPosition<TPos>> NetworkSignal<TPos>[] toSignalArray(Collection<NetworkSignal<TPos>> signals){
+        return signals.toArray(new NetworkSignal[0]);
+    }
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private static <TPos extends IPosition<TPos>> RailSection<TPos>[] toSectionArray(Collection<RailSection<TPos>> sections){
+        return sections.toArray(new RailSection[0]);
+    }
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private static <TPos extends IPosition<TPos>> RailEdge<TPos>[] toEdgeArray(Collection<RailEdge<TPos>> edges){
+        return edges.toArray(new RailEdge[0]);
+    }
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private static <TPos extends IPosition<TPos>> RailEdge<TPos>[][] newEdgeArrays(int size){
+        return new RailEdge[size][];
+    }
+
+    /**
+     * @param pos
+     * @return the id of the node at the given position, or -1 when no edge starts or ends at the position.
+     */
+    public int getNodeId(TPos pos){
+        TLongIntMap nodeIds = planeNodeIds.get(pos.getPlane());
+        return nodeIds != null ? nodeIds.get(pos.toLong()) : NO_ID;
+    }
+
+    public RailEdge<TPos>[] getEntryEdges(int nodeId){
+        return entryEdges[nodeId];
+    }
+
+    /**
+     * @param nodeId
+     * @return the edge ids of the entry edges of the given node.
+     */
+    public int[] getEntryEdgeIds(int nodeId){
+        return entryEdgeIds[nodeId];
+    }
+
+    /**
+     * @param nodeId
+     * @return the node ids at the other end of the entry edges of the given node.
+     */
+    public int[] getEntryNodes(int nodeId){
+        return entryNodes[nodeId];
+    }
+
+    public EnumHeading[] getEntryHeadings(int nodeId){
+        return entryHeadings[nodeId];
+    }
+
+    public EnumHeading[] getEntryOtherHeadings(int nodeId){
+        return entryOtherHeadings[nodeId];
+    }
+}
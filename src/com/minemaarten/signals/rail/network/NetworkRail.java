@@ -59,9 +59,33 @@ public abstract class NetworkRail<TPos extends IPosition<TPos>> extends NetworkO
     }
     //@formatter:on
 
-    public Stream<NetworkRail<TPos>> getSectionNeighborRails(RailObjectHolder<TPos> railObjects){
-        Stream<NetworkRail<TPos>> normalNeighbors = railObjects.getNeighborRails(getPotentialNeighborRailLocations());
-        return Streams.concat(normalNeighbors, getRailLinkConnectedRails(railObjects));
+    /**
+     * The rails next to this rail, and the rails connected to it via Rail Links.
+     * @param railObjects
+     * @param neighbors cleared and filled with the neighbors, so callers can reuse it. Nothing is allocated for rails without Rail Links.
+     */
+    public void getSectionNeighborRails(RailObjectHolder<TPos> railObjects, List<NetworkRail<TPos>> neighbors){
+        neighbors.clear();
+        List<TPos> potentialNeighbors = getPotentialNeighborRailLocations();
+        for(int i = 0; i < potentialNeighbors.size(); i++) {
+            NetworkRail<TPos> neighbor = railObjects.getRail(potentialNeighbors.get(i));
+            if(neighbor != null) neighbors.add(neighbor);
+        }
+        if(hasRailLinkConnections(railObjects)) {
+            getRailLinkConnectedRails(railObjects).forEach(neighbors::add);
+        }
+    }
+
+    /**
+     * Cheap check to skip the rail link look-ups for nearly all rails.
+     */
+    boolean hasRailLinkConnections(RailObjectHolder<TPos> railObjects){
+        if(railObjects.getRailLinks().isEmpty()) return false;
+        List<TPos> objectNeighbors = getPotentialNeighborObjectLocations();
+        for(int i = 0; i < objectNeighbors.size(); i++) {
+            if(railObjects.get(objectNeighbors.get(i)) instanceof IRailLink) return true;
+        }
+        return !railObjects.findRailLinksConnectingTo(getPos()).isEmpty();
     }
 
     public EnumSet<EnumHeading> getActualNeighborRailHeadings(RailObjectHolder<TPos> railObjects){
@@ -19,11 +19,13 @@ public class NetworkSignal<TPos extends IPosition<TPos>> extends NetworkObject<T
 
     public final EnumHeading heading;
     public final EnumSignalType type;
+    private final TPos railPos;
 
     public NetworkSignal(TPos pos, EnumHeading heading, EnumSignalType type){
         super(pos);
         this.heading = heading;
         this.type = type;
+        railPos = pos.offset(heading.rotateCCW());
     }
 
     @Override
@@ -32,7 +34,7 @@ public class NetworkSignal<TPos extends IPosition<TPos>> extends NetworkObject<T
     }
 
     public TPos getRailPos(){
-        return getPos().offset(heading.rotateCCW());
+        return railPos;
     }
 
     //@formatter:off
@@ -1,20 +1,27 @@
 package com.minemaarten.signals.rail.network;
 
+import gnu.trove.iterator.TIntIterator;
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.map.TIntObjectMap;
 import gnu.trove.map.hash.TIntObjectHashMap;
 
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.concurrent.ExecutorService;
 import java.util.stream.Stream;
 
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.SetMultimap;
 import com.minemaarten.signals.api.access.ISignal.EnumForceMode;
 import com.minemaarten.signals.api.access.ISignal.EnumLampStatus;
+import com.minemaarten.signals.rail.network.DestinationTreeCache.DestinationTree;
 import com.minemaarten.signals.rail.network.NetworkSignal.EnumSignalType;
 
 /**
@@ -23,13 +30,163 @@ import com.minemaarten.signals.rail.network.NetworkSignal.EnumSignalType;
  *
  */
 public class NetworkState<TPos extends IPosition<TPos>> {
+    private static final int MAX_RED_SIGNAL_CHANGES = 1024; //The amount of red signal changes remembered for updating contraction hierarchy metrics
     private TIntObjectMap<Train<TPos>> trains = new TIntObjectHashMap<>();
     protected Map<TPos, EnumLampStatus> signalToLampStatusses = new HashMap<>();
     protected Map<TPos, EnumForceMode> signalForces = new HashMap<>();
-    private Map<NetworkSignal<TPos>, Train<TPos>> trainsAtSignals = new HashMap<>();
-    private Map<RailSection<TPos>, Train<TPos>> trainsOnSections = new HashMap<>();
+    private final PositionMap<TPos, Train<TPos>> trainPositions = new PositionMap<>(); //Kept up to date by the trains, when they move
+    private final SetMultimap<TPos, Train<TPos>> sharedTrainPositions = HashMultimap.create(); //Other trains on positions already in trainPositions, rare
+
+    /**
+     * The per-tick state is stored in arrays, indexed by the {@link NetworkIds} of the network the state was last updated for.
+     * When updating for a different network, the arrays are rebuilt for the ids of that network.
+     */
+    private NetworkIds<TPos> ids;
+    private EnumLampStatus[] lampStatusses = new EnumLampStatus[0]; //null when not evaluated
+    private EnumForceMode[] forceModes = new EnumForceMode[0]; //null when not forced
+    private Train<TPos>[] trainsAtSignals = newTrainArray(0);
+    private boolean allTrainsAtSignalsDirty = true;
+    private final BitSet trainsAtSignalsDirty = new BitSet(); //Signals of which trains moved in front since the last update
+    private final BitSet occupiedSignals = new BitSet(); //Signals with a train at them, the only signals trains can be routed from
+    private Train<TPos>[] trainsOnSections = newTrainArray(0);
+    private Train<TPos>[] claimingTrains = newTrainArray(0); //Kept up to date by the trains, when their claims change
+    private final TIntList chainSignalsToEvaluate = new TIntArrayList(); //Global var to prevent putting pressure on GC
+
+    private boolean incrementalSignalUpdates = true;
+    private boolean allSignalsDirty = true;
+    private final BitSet dirtySections = new BitSet(); //Sections of which the trains or claims changed since the last update
+    private final BitSet dirtySignals = new BitSet(); //Signals that need to be re-evaluated
+    private final BitSet evaluatedSignals = new BitSet(); //The signals re-evaluated in this update
+    private EnumLampStatus[] prevStatusses = new EnumLampStatus[0]; //The statusses of the evaluated signals, before this update
+
+    /**
+     * The index of the chain signal group being evaluated. Chain signals of later groups are not evaluated yet, and should not be used by the
+     * signals depending on them.
+     */
+    private int evaluatingGroup = Integer.MAX_VALUE;
+    private ChainSignalOrder<TPos> chainSignalOrder;
+
+    private boolean destinationTreeCaching = true;
+    private final DestinationTreeCache<TPos> destinationTreeCache = new DestinationTreeCache<>();
+    private int redSignalEpoch; //Incremented every time a signal turns red or stops being red, as red signals penalize routes.
+    private int[] redSignalChangeEpochs = new int[0]; //The epoch at which each signal last turned red or stopped being red
+    private final TIntList redSignalChanges = new TIntArrayList(); //The signal that turned red or stopped being red at each epoch since the start epoch
+    private int redSignalChangesStartEpoch;
+    private boolean routeCaching = true;
+    private final RailRouteCache<TPos> routeCache = new RailRouteCache<>();
+    private int lampStatusEpoch; //Incremented every time a signal changes status
+    private int[] lampStatusChangeEpochs = new int[0]; //The epoch at which each signal last changed status
+    private int[] edgeWeights = new int[0]; //The path length of each edge, including the penalties of its red signals
+    private boolean allEdgeWeightsDirty = true;
+    private final BitSet redChangedSignals = new BitSet(); //Signals that turned red or stopped being red since the edge weights were updated
+    private boolean contractionHierarchyRouting;
+    private ContractionHierarchy.Metric<TPos> contractionHierarchyMetric;
+    private AsyncRouter<TPos> asyncRouter; //null when routing synchronously
+    private boolean routingSnapshot; //True for the snapshots of AsyncRouter, which only read what they share with the state they were taken from
+    private boolean lampStatussesShared, edgeWeightsShared, metricShared; //Shared with a routing snapshot, so copied before being modified
+
+    /**
+     * When true, only the signals that are affected by changes since the last update are re-evaluated, instead of all signals.
+     * @param incrementalSignalUpdates
+     */
+    public void setIncrementalSignalUpdates(boolean incrementalSignalUpdates){
+        this.incrementalSignalUpdates = incrementalSignalUpdates;
+    }
+
+    /**
+     * When true, the shortest path trees to destinations are cached and shared by all trains routing to the same destinations.
+     * @param destinationTreeCaching
+     */
+    public void setDestinationTreeCaching(boolean destinationTreeCaching){
+        this.destinationTreeCaching = destinationTreeCaching;
+    }
+
+    /**
+     * When true, found routes are cached, and reused when pathfinding from the same position to the same destinations.
+     * @param routeCaching
+     */
+    public void setRouteCaching(boolean routeCaching){
+        this.routeCaching = routeCaching;
+    }
+
+    /**
+     * When not null, trains are routed on the given executor, and claim their routes in the next update, instead of being routed during the update.
+     * Trains that don't support this, see {@link Train#getRouteGoals(RailNetwork, IPosition, EnumHeading)}, are still routed during the update.
+     * @param executor
+     */
+    public void setAsyncRouting(ExecutorService executor){
+        if(executor == null) {
+            asyncRouter = null;
+        } else if(asyncRouter == null || asyncRouter.getExecutor() != executor) {
+            asyncRouter = new AsyncRouter<>(executor);
+        }
+    }
+
+    /**
+     * @param network the network routes will be searched in
+     * @return a state with the lamp statusses, edge weights and contraction hierarchy metric of this state, for routing off thread while this
+     * state keeps updating. These are shared until this state modifies them, after which this state continues with a copy. The snapshot
+     * has its own destination tree cache, see {@link NetworkState#addSnapshotTrees(NetworkState, List)}. The route cache isn't used, as
+     * trains routed asynchronously are routed to route goals, which don't go via the route cache.
+     */
+    NetworkState<TPos> createRoutingSnapshot(RailNetwork<TPos> network){
+        NetworkState<TPos> snapshot = new NetworkState<>();
+        snapshot.routingSnapshot = true;
+        snapshot.signalToLampStatusses = signalToLampStatusses;
+        lampStatussesShared = true;
+        snapshot.redSignalEpoch = redSignalEpoch;
+        if(ids != null) {
+            snapshot.ids = ids;
+            snapshot.edgeWeights = getEdgeWeights(ids);
+            snapshot.allEdgeWeightsDirty = false;
+            edgeWeightsShared = true;
+        }
+        snapshot.contractionHierarchyRouting = contractionHierarchyRouting;
+        snapshot.contractionHierarchyMetric = getContractionHierarchyMetric(network); //Updated on this thread, so the snapshot only reads it.
+        metricShared = true;
+        snapshot.destinationTreeCaching = destinationTreeCaching;
+        snapshot.routeCaching = false;
+        return snapshot;
+    }
+
+    /**
+     * Copies the valid trees of the given destinations into the destination tree cache of the snapshot, which is only used by routes searched
+     * for the red signals the snapshot was taken at.
+     * @param snapshot
+     * @param destinations
+     */
+    void addSnapshotTrees(NetworkState<TPos> snapshot, List<Set<TPos>> destinations){
+        if(!destinationTreeCaching || !snapshot.destinationTreeCaching || snapshot.redSignalEpoch != redSignalEpoch) return;
+        for(Set<TPos> goals : destinations) {
+            DestinationTree<TPos> tree = destinationTreeCache.get(goals, this);
+            if(tree != null) snapshot.destinationTreeCache.put(goals, tree.copy());
+        }
+    }
+
+    /**
+     * Copies the trees of the given destinations the snapshot built into the destination tree cache of this state, when this state has none.
+     * They are checked against the red signals that changed since the snapshot was taken when used.
+     * @param snapshot
+     * @param destinations
+     */
+    void claimSnapshotTrees(NetworkState<TPos> snapshot, List<Set<TPos>> destinations){
+        if(!destinationTreeCaching) return;
+        for(Set<TPos> goals : destinations) {
+            DestinationTree<TPos> tree = snapshot.destinationTreeCache.getUnchecked(goals);
+            if(tree != null) destinationTreeCache.putIfAbsent(goals, tree.copy());
+        }
+    }
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private static <TPos extends IPosition<TPos>> Train<TPos>[] newTrainArray(int size){
+        return new Train[size];
+    }
 
     public void setTrains(Collection<? extends Train<TPos>> trains){
+        allSignalsDirty = true;
+        for(Train<TPos> t : this.trains.valueCollection()) {
+            t.setIndexingState(null);
+        }
         this.trains = new TIntObjectHashMap<>(trains.size());
         for(Train<TPos> t : trains) {
             addTrain(t);
@@ -37,17 +194,16 @@ public class NetworkState<TPos extends IPosition<TPos>> {
     }
 
     public void addTrain(Train<TPos> train){
-        trains.put(train.id, train);
+        Train<TPos> prevTrain = trains.put(train.id, train);
+        if(prevTrain != null && prevTrain != train) prevTrain.setIndexingState(null);
+        train.setIndexingState(this);
+        updateTrainAtSections(train, Collections.emptyList(), train.getCurSections());
     }
 
     public Train<TPos> getTrain(int id){
         return trains.get(id);
     }
 
-    private Stream<Train<TPos>> getTrainsInAABB(PosAABB<TPos> aabb){
-        return trains.valueCollection().stream().filter(t -> t.isInAABB(aabb));
-    }
-
     public Iterable<Train<TPos>> getTrains(){
         return trains.valueCollection();
     }
@@ -64,85 +220,333 @@ public class NetworkState<TPos extends IPosition<TPos>> {
     }
 
     public void update(RailNetwork<TPos> network){
+        updateIds(network);
         trains.valueCollection().forEach(train -> train.updatePositions(this));
         updateTrainsAtSignals(network);
         updateSignalStatusses(network);
+        updateEdgeWeights();
         pathfindTrains(network);
         updateRailLinkHolds(network);
     }
 
+    /**
+     * Rebuilds the per-tick state arrays when the network has changed.
+     * @param network
+     */
+    private void updateIds(RailNetwork<TPos> network){
+        NetworkIds<TPos> newIds = network.getIds();
+        if(newIds == ids) return;
+        NetworkIds<TPos> prevIds = ids;
+        Train<TPos>[] prevTrainsAtSignals = trainsAtSignals;
+        ids = newIds;
+        chainSignalOrder = network.getChainSignalOrder();
+
+        int signalCount = ids.getSignalCount();
+        lampStatusses = new EnumLampStatus[signalCount];
+        forceModes = new EnumForceMode[signalCount];
+        prevStatusses = new EnumLampStatus[signalCount];
+        redSignalChangeEpochs = new int[signalCount];
+        redSignalEpoch++;
+        redSignalChanges.clear();
+        redSignalChangesStartEpoch = redSignalEpoch;
+        destinationTreeCache.clear();
+        lampStatusChangeEpochs = new int[signalCount];
+        lampStatusEpoch++;
+        routeCache.clear();
+        edgeWeights = new int[ids.getEdgeCount()];
+        edgeWeightsShared = false;
+        allEdgeWeightsDirty = true;
+        redChangedSignals.clear();
+        trainsAtSignals = newTrainArray(signalCount);
+        for(int signalId = 0; signalId < signalCount; signalId++) {
+            TPos pos = ids.getSignal(signalId).getPos();
+            lampStatusses[signalId] = signalToLampStatusses.get(pos);
+            forceModes[signalId] = signalForces.get(pos);
+        }
+        if(prevIds != null) { //Keep the trains at signals that still exist, so leaving trains reset force modes.
+            for(int prevId = 0; prevId < prevTrainsAtSignals.length; prevId++) {
+                if(prevTrainsAtSignals[prevId] != null) {
+                    NetworkSignal<TPos> prevSignal = prevIds.getSignal(prevId);
+                    int signalId = ids.getSignalId(prevSignal.getPos());
+                    if(signalId != NetworkIds.NO_ID && ids.getSignal(signalId).equals(prevSignal)) {
+                        trainsAtSignals[signalId] = prevTrainsAtSignals[prevId];
+                    }
+                }
+            }
+        }
+        occupiedSignals.clear();
+        for(int signalId = 0; signalId < signalCount; signalId++) {
+            if(trainsAtSignals[signalId] != null) occupiedSignals.set(signalId);
+        }
+        trainsAtSignalsDirty.clear();
+        allTrainsAtSignalsDirty = true;
+
+        trainsOnSections = newTrainArray(ids.getSectionCount());
+        claimingTrains = newTrainArray(ids.getSectionCount());
+        for(Train<TPos> train : trains.valueCollection()) {
+            for(RailSection<TPos> section : train.getCurSections()) {
+                int sectionId = ids.getSectionId(section);
+                if(sectionId != NetworkIds.NO_ID) trainsOnSections[sectionId] = train;
+            }
+            for(RailSection<TPos> section : train.getClaimedSections()) {
+                int sectionId = ids.getSectionId(section);
+                if(sectionId != NetworkIds.NO_ID && claimingTrains[sectionId] == null) claimingTrains[sectionId] = train;
+            }
+        }
+
+        dirtySections.clear();
+        dirtySignals.clear();
+        allSignalsDirty = true;
+    }
+
     private void updateTrainsAtSignals(RailNetwork<TPos> network){
-        Map<NetworkSignal<TPos>, Train<TPos>> newTrainsAtSignals = new HashMap<>(); //Can't use Collectors.toMap because of null values https://stackoverflow.com/questions/24630963/java-8-nullpointerexception-in-collectors-tomap
-        network.railObjects.getSignals().forEach(s -> newTrainsAtSignals.put(s, getTrainAtSignal(network, s)));
+        if(incrementalSignalUpdates && !allTrainsAtSignalsDirty) {
+            for(int signalId = trainsAtSignalsDirty.nextSetBit(0); signalId >= 0; signalId = trainsAtSignalsDirty.nextSetBit(signalId + 1)) {
+                updateTrainAtSignal(network, signalId);
+            }
+        } else {
+            for(int signalId = 0; signalId < ids.getSignalCount(); signalId++) {
+                updateTrainAtSignal(network, signalId);
+            }
+            allTrainsAtSignalsDirty = false;
+        }
+        trainsAtSignalsDirty.clear();
+    }
 
-        for(Map.Entry<NetworkSignal<TPos>, Train<TPos>> entry : newTrainsAtSignals.entrySet()) {
-            Train<TPos> curTrain = entry.getValue();
-            Train<TPos> prevTrain = trainsAtSignals.get(entry.getKey());
-            if(prevTrain != null && curTrain != prevTrain) { //When the prev train left this signal
-                setForceMode(network, entry.getKey().getPos(), EnumForceMode.NONE);
+    private void updateTrainAtSignal(RailNetwork<TPos> network, int signalId){
+        NetworkSignal<TPos> signal = ids.getSignal(signalId);
+        Train<TPos> curTrain = getTrainAtSignal(network, signal);
+        Train<TPos> prevTrain = trainsAtSignals[signalId];
+        if(curTrain != prevTrain) {
+            trainsAtSignals[signalId] = curTrain;
+            occupiedSignals.set(signalId, curTrain != null);
+            if(prevTrain != null) { //When the prev train left this signal
+                setForceMode(network, signal.getPos(), EnumForceMode.NONE);
             }
+            dirtySignals.set(signalId);
         }
-        trainsAtSignals = newTrainsAtSignals;
     }
 
     public void updateTrainAtSections(Train<TPos> train, Iterable<RailSection<TPos>> prevSections, Iterable<RailSection<TPos>> newSections){
+        if(ids == null) return; //Will be indexed when first updated
+
         for(RailSection<TPos> prevSection : prevSections) {
-            trainsOnSections.remove(prevSection);
+            int sectionId = ids.getSectionId(prevSection);
+            if(sectionId != NetworkIds.NO_ID) {
+                trainsOnSections[sectionId] = null;
+                dirtySections.set(sectionId);
+            }
         }
 
         for(RailSection<TPos> newSection : newSections) {
-            trainsOnSections.put(newSection, train);
+            int sectionId = ids.getSectionId(newSection);
+            if(sectionId != NetworkIds.NO_ID) {
+                trainsOnSections[sectionId] = train;
+                dirtySections.set(sectionId);
+            }
+        }
+    }
+
+    /**
+     * Marks the signals in front of the given sections to be re-evaluated, for example because the trains on them moved, or claims changed.
+     * @param sections
+     */
+    void markSectionsDirty(Collection<RailSection<TPos>> sections){
+        if(ids == null) return;
+        for(RailSection<TPos> section : sections) {
+            int sectionId = ids.getSectionId(section);
+            if(sectionId != NetworkIds.NO_ID) dirtySections.set(sectionId);
         }
     }
 
     private void updateSignalStatusses(RailNetwork<TPos> network){
-        List<NetworkSignal<TPos>> allSignals = network.railObjects.getSignals();
+        if(incrementalSignalUpdates && !allSignalsDirty) {
+            updateDirtySignalStatusses(network);
+        } else {
+            updateAllSignalStatusses(network);
+            allSignalsDirty = false;
+        }
+        dirtySections.clear();
+        dirtySignals.clear();
+    }
+
+    private void updateAllSignalStatusses(RailNetwork<TPos> network){
         Map<TPos, EnumLampStatus> prevLampStatusses = signalToLampStatusses;
-        signalToLampStatusses = new HashMap<>();
+        Arrays.fill(lampStatusses, null);
 
         //First evaluate the block signal statusses
         //The status of these is independent of other signals
-        for(NetworkSignal<TPos> signal : allSignals) {
-            if(signal.type == EnumSignalType.BLOCK) {
-                EnumLampStatus signalStatus = getForcedStatus(signal.getPos());
-                if(signalStatus == null) signalStatus = getBlockSignalStatus(network, signal);
-                signalToLampStatusses.put(signal.getPos(), signalStatus);
+        for(int signalId = 0; signalId < ids.getSignalCount(); signalId++) {
+            if(ids.getSignal(signalId).type == EnumSignalType.BLOCK) {
+                EnumLampStatus signalStatus = getForcedStatus(signalId);
+                if(signalStatus == null) signalStatus = getBlockSignalStatus(signalId);
+                lampStatusses[signalId] = signalStatus;
             }
         }
 
         //Then evaluate the chain signals
-        //We might need multiple iterations, as chain signal statuses are dependent of the next signal's status.
-        //TODO more efficient, by arranging a signal list, so that statuses can be determined in one iteration (built when the network is rebuilt)
-        //@formatter:off
-        Set<NetworkSignal<TPos>> toEvaluate = allSignals.stream().filter(s -> s.type == EnumSignalType.CHAIN).collect(Collectors.toSet());
-        while(!toEvaluate.isEmpty()){
+        //Chain signal statuses are dependent of the next signal's status, so these are evaluated in an order where the next signals are evaluated first.
+        chainSignalsToEvaluate.clear();
+        int[][] groups = chainSignalOrder.getGroups();
+        for(evaluatingGroup = 0; evaluatingGroup < groups.length; evaluatingGroup++) {
+            int[] group = groups[evaluatingGroup];
+            if(group.length == 1) {
+                int chainSignalId = group[0];
+                if(!evaluateChainSignal(network, chainSignalId)) chainSignalsToEvaluate.add(chainSignalId);
+            } else {
+                evaluateChainSignals(network, new TIntArrayList(group));
+            }
+        }
+        evaluatingGroup = Integer.MAX_VALUE;
+
+        //Signals that depend on signals evaluated after them, like a routed train's signals that come before the chain signal.
+        evaluateChainSignals(network, chainSignalsToEvaluate);
+
+        signalToLampStatusses = new HashMap<>();
+        lampStatussesShared = false;
+        for(int signalId = 0; signalId < ids.getSignalCount(); signalId++) {
+            if(lampStatusses[signalId] != null) signalToLampStatusses.put(ids.getSignal(signalId).getPos(), lampStatusses[signalId]);
+        }
+        Map<TPos, EnumLampStatus> changedSignals = getChangedSignals(prevLampStatusses, signalToLampStatusses);
+        for(Map.Entry<TPos, EnumLampStatus> changedSignal : changedSignals.entrySet()) {
+            onLampStatusChanged(ids.getSignalId(changedSignal.getKey()), prevLampStatusses.get(changedSignal.getKey()), changedSignal.getValue());
+        }
+        if(!changedSignals.isEmpty()) {
+            onSignalsChanged(changedSignals);
+        }
+    }
+
+    /**
+     * Only re-evaluates the signals of which the inputs changed since the last update: the signals in front of the sections of which the
+     * trains or claims changed, signals of which the train at the signal or force mode changed, and the chain signals depending on the signals
+     * that changed status as a result. Chain signals routing a train depend on the whole route, so these are always re-evaluated.
+     * This results in the same statusses as re-evaluating all signals.
+     */
+    private void updateDirtySignalStatusses(RailNetwork<TPos> network){
+        for(int sectionId = dirtySections.nextSetBit(0); sectionId >= 0; sectionId = dirtySections.nextSetBit(sectionId + 1)) {
+            for(int signalId : chainSignalOrder.getSignalsInFrontOf(sectionId)) {
+                dirtySignals.set(signalId);
+            }
+        }
+        evaluatedSignals.clear();
+
+        //Dependents of changed block signals are chain signals, which are only evaluated after this loop.
+        for(int signalId = dirtySignals.nextSetBit(0); signalId >= 0; signalId = dirtySignals.nextSetBit(signalId + 1)) {
+            if(ids.getSignal(signalId).type == EnumSignalType.BLOCK) {
+                EnumLampStatus prevStatus = lampStatusses[signalId];
+                EnumLampStatus signalStatus = getForcedStatus(signalId);
+                if(signalStatus == null) signalStatus = getBlockSignalStatus(signalId);
+                lampStatusses[signalId] = signalStatus;
+                prevStatusses[signalId] = prevStatus;
+                evaluatedSignals.set(signalId);
+                if(signalStatus != prevStatus) markDependentsDirty(signalId);
+            }
+        }
+
+        chainSignalsToEvaluate.clear();
+        int[][] groups = chainSignalOrder.getGroups();
+        for(evaluatingGroup = 0; evaluatingGroup < groups.length; evaluatingGroup++) {
+            int[] group = groups[evaluatingGroup];
+            if(!isGroupDirty(group)) continue;
+
+            //Forget the statusses, like they weren't evaluated yet.
+            for(int chainSignalId : group) {
+                prevStatusses[chainSignalId] = lampStatusses[chainSignalId];
+                lampStatusses[chainSignalId] = null;
+                evaluatedSignals.set(chainSignalId);
+            }
+            if(group.length == 1) {
+                int chainSignalId = group[0];
+                if(!evaluateChainSignal(network, chainSignalId)) {
+                    chainSignalsToEvaluate.add(chainSignalId);
+                    markDependentsDirty(chainSignalId); //They would be looking at a signal that isn't evaluated yet.
+                }
+            } else {
+                evaluateChainSignals(network, new TIntArrayList(group));
+            }
+            for(int chainSignalId : group) {
+                if(lampStatusses[chainSignalId] != prevStatusses[chainSignalId]) markDependentsDirty(chainSignalId);
+            }
+        }
+        evaluatingGroup = Integer.MAX_VALUE;
+
+        evaluateChainSignals(network, chainSignalsToEvaluate);
+
+        Map<TPos, EnumLampStatus> changedSignals = null;
+        for(int signalId = evaluatedSignals.nextSetBit(0); signalId >= 0; signalId = evaluatedSignals.nextSetBit(signalId + 1)) {
+            EnumLampStatus status = lampStatusses[signalId];
+            if(status != prevStatusses[signalId]) {
+                onLampStatusChanged(signalId, prevStatusses[signalId], status);
+                TPos pos = ids.getSignal(signalId).getPos();
+                getModifiableLampStatusses().put(pos, status);
+                if(changedSignals == null) changedSignals = new HashMap<>();
+                changedSignals.put(pos, status);
+            }
+        }
+        if(changedSignals != null) {
+            onSignalsChanged(changedSignals);
+        }
+    }
+
+    private boolean isGroupDirty(int[] group){
+        for(int chainSignalId : group) {
+            if(dirtySignals.get(chainSignalId) || trainsAtSignals[chainSignalId] != null) return true;
+        }
+        return false;
+    }
+
+    private void markDependentsDirty(int signalId){
+        for(int dependentId : chainSignalOrder.getDependentChainSignals(signalId)) {
+            dirtySignals.set(dependentId);
+        }
+    }
+
+    /**
+     * The status of the given signal, as far as it has been evaluated.
+     */
+    private EnumLampStatus getEvaluatedLampStatus(int signalId){
+        if(evaluatingGroup != Integer.MAX_VALUE && chainSignalOrder.getGroupIndex(signalId) > evaluatingGroup) {
+            return EnumLampStatus.YELLOW_BLINKING;
+        }
+        EnumLampStatus status = lampStatusses[signalId];
+        return status != null ? status : EnumLampStatus.YELLOW_BLINKING;
+    }
+
+    /**
+     * Evaluates the given chain signals, in multiple iterations when they depend on each other.
+     * @param network
+     * @param toEvaluate the ids of the signals, gets emptied in the process.
+     */
+    private void evaluateChainSignals(RailNetwork<TPos> network, TIntList toEvaluate){
+        while(!toEvaluate.isEmpty()) {
             boolean hasEvaluated = false; //Flag to make sure we do evaluate something every cycle.
-            Iterator<NetworkSignal<TPos>> iterator = toEvaluate.iterator();
-            while(iterator.hasNext()){
-                NetworkSignal<TPos> chainSignal = iterator.next();
-                EnumLampStatus signalStatus = getForcedStatus(chainSignal.getPos());
-                if(signalStatus == null) signalStatus = getChainSignalStatus(network, toEvaluate, chainSignal);
-                if(signalStatus != EnumLampStatus.YELLOW_BLINKING){ //If the signal status could be evaluated
-                    signalToLampStatusses.put(chainSignal.getPos(), signalStatus);
+            TIntIterator iterator = toEvaluate.iterator();
+            while(iterator.hasNext()) {
+                if(evaluateChainSignal(network, iterator.next())) {
                     iterator.remove();
                     hasEvaluated = true;
                 }
             }
-            
-            //If we couldn't evaluate any signals, we are probably recursively looking, break this by allowing a signal to turn green.
-            if(!hasEvaluated){
-                iterator = toEvaluate.iterator();
-                NetworkSignal<TPos> chainSignal = iterator.next();
-                
-                iterator.remove();
-                signalToLampStatusses.put(chainSignal.getPos(), EnumLampStatus.GREEN);
+
+            //If we couldn't evaluate any signals, we are recursively looking, break this by allowing a signal to turn green.
+            if(!hasEvaluated) {
+                int chainSignalId = toEvaluate.removeAt(0);
+                lampStatusses[chainSignalId] = EnumLampStatus.GREEN;
             }
         }
-        //@formatter:on
+    }
 
-        Map<TPos, EnumLampStatus> changedSignals = getChangedSignals(prevLampStatusses, signalToLampStatusses);
-        if(!changedSignals.isEmpty()) {
-            onSignalsChanged(changedSignals);
+    /**
+     * @return false if the status could not be evaluated yet, because it depends on signals that aren't evaluated yet.
+     */
+    private boolean evaluateChainSignal(RailNetwork<TPos> network, int chainSignalId){
+        EnumLampStatus signalStatus = getForcedStatus(chainSignalId);
+        if(signalStatus == null) signalStatus = getChainSignalStatus(network, chainSignalId);
+        if(signalStatus != EnumLampStatus.YELLOW_BLINKING) {
+            lampStatusses[chainSignalId] = signalStatus;
+            return true;
+        } else {
+            return false;
         }
     }
 
@@ -150,6 +554,192 @@ public class NetworkState<TPos extends IPosition<TPos>> {
 
     }
 
+    private void onLampStatusChanged(int signalId, EnumLampStatus prevStatus, EnumLampStatus newStatus){
+        if(signalId != NetworkIds.NO_ID && prevStatus != newStatus) {
+            lampStatusChangeEpochs[signalId] = ++lampStatusEpoch;
+            if((prevStatus == EnumLampStatus.RED) != (newStatus == EnumLampStatus.RED)) {
+                redSignalChangeEpochs[signalId] = ++redSignalEpoch;
+                redChangedSignals.set(signalId);
+                if(redSignalChanges.size() == MAX_RED_SIGNAL_CHANGES) {
+                    redSignalChanges.clear();
+                    redSignalChangesStartEpoch = redSignalEpoch - 1;
+                }
+                redSignalChanges.add(signalId);
+            }
+        }
+    }
+
+    /**
+     * Recomputes the weights of the edges of which a signal turned red or stopped being red, or of all edges when the network changed.
+     */
+    private void updateEdgeWeights(){
+        if(edgeWeightsShared && (allEdgeWeightsDirty || !redChangedSignals.isEmpty())) {
+            edgeWeights = edgeWeights.clone();
+            edgeWeightsShared = false;
+        }
+        if(allEdgeWeightsDirty) {
+            for(int edgeId = 0; edgeId < edgeWeights.length; edgeId++) {
+                edgeWeights[edgeId] = ids.getEdge(edgeId).getPathLength(this);
+            }
+            allEdgeWeightsDirty = false;
+        } else {
+            for(int signalId = redChangedSignals.nextSetBit(0); signalId >= 0; signalId = redChangedSignals.nextSetBit(signalId + 1)) {
+                for(int edgeId : ids.getSignalEdgeIds(signalId)) {
+                    edgeWeights[edgeId] = ids.getEdge(edgeId).getPathLength(this);
+                }
+            }
+        }
+        redChangedSignals.clear();
+    }
+
+    /**
+     * @param networkIds
+     * @return the path length of each edge for the current signal statusses, see {@link RailEdge#getPathLength(NetworkState)}, indexed by edge id,
+     * or null when this state is not updated for the network of the given ids. Not to be modified.
+     */
+    int[] getEdgeWeights(NetworkIds<TPos> networkIds){
+        if(ids == null || ids != networkIds) return null;
+        if(allEdgeWeightsDirty || !redChangedSignals.isEmpty()) updateEdgeWeights(); //When statusses were set outside of an update
+        return edgeWeights;
+    }
+
+    /**
+     * Checks if the edge weights equal the path lengths of the edges.
+     * @throws IllegalStateException when they don't.
+     */
+    public void validateEdgeWeights(){
+        if(ids == null) return;
+        int[] weights = getEdgeWeights(ids);
+        for(int edgeId = 0; edgeId < ids.getEdgeCount(); edgeId++) {
+            int expected = ids.getEdge(edgeId).getPathLength(this);
+            if(weights[edgeId] != expected) {
+                throw new IllegalStateException("Edge weight inconsistent for " + ids.getEdge(edgeId) + ", expected " + expected + ", got " + weights[edgeId]);
+            }
+        }
+    }
+
+    /**
+     * When true, routes are found via the contraction hierarchy of the network, when it's built, see {@link RailNetwork#buildContractionHierarchy()}.
+     * @param contractionHierarchyRouting
+     */
+    public void setContractionHierarchyRouting(boolean contractionHierarchyRouting){
+        this.contractionHierarchyRouting = contractionHierarchyRouting;
+    }
+
+    /**
+     * @param network
+     * @return the weights of the contraction hierarchy of the given network for the current red signals, or null when routing via contraction hierarchies
+     * is disabled, the hierarchy isn't built yet, or this state is not updated for the network.
+     */
+    ContractionHierarchy.Metric<TPos> getContractionHierarchyMetric(RailNetwork<TPos> network){
+        if(!contractionHierarchyRouting || ids == null || ids != network.getIds()) return null;
+        if(routingSnapshot) return contractionHierarchyMetric; //Taken from the state, when it was built
+        ContractionHierarchy<TPos> hierarchy = network.getBuiltContractionHierarchy();
+        if(hierarchy == null) return null;
+        if(contractionHierarchyMetric == null || contractionHierarchyMetric.hierarchy != hierarchy) {
+            contractionHierarchyMetric = new ContractionHierarchy.Metric<>(hierarchy);
+            metricShared = false;
+        } else if(metricShared && !contractionHierarchyMetric.isUpToDate(this)) {
+            contractionHierarchyMetric = contractionHierarchyMetric.copy();
+            metricShared = false;
+        }
+        contractionHierarchyMetric.update(this);
+        return contractionHierarchyMetric;
+    }
+
+    int getLampStatusEpoch(){
+        return lampStatusEpoch;
+    }
+
+    /**
+     * @param signalIds
+     * @param epoch
+     * @return true when none of the given signals changed status after the given lamp status epoch.
+     */
+    boolean isLampStatusUnchanged(int[] signalIds, int epoch){
+        if(epoch == lampStatusEpoch) return true;
+        for(int signalId : signalIds) {
+            if(signalId == NetworkIds.NO_ID || lampStatusChangeEpochs[signalId] > epoch) return false;
+        }
+        return true;
+    }
+
+    int getRedSignalEpoch(){
+        return redSignalEpoch;
+    }
+
+    /**
+     * @param signalIds
+     * @param epoch
+     * @return true when none of the given signals turned red or stopped being red after the given red signal epoch.
+     */
+    boolean isRedStatusUnchanged(BitSet signalIds, int epoch){
+        if(epoch == redSignalEpoch) return true;
+        for(int signalId = signalIds.nextSetBit(0); signalId >= 0; signalId = signalIds.nextSetBit(signalId + 1)) {
+            if(redSignalChangeEpochs[signalId] > epoch) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Adds the signals that turned red or stopped being red after the given red signal epoch.
+     * @param epoch
+     * @param signalIds
+     * @return false when the changes since the given epoch aren't known anymore, because the network changed or too many signals changed since.
+     */
+    boolean getRedChangedSignals(int epoch, BitSet signalIds){
+        if(epoch < redSignalChangesStartEpoch || epoch > redSignalEpoch) return false;
+        for(int i = epoch - redSignalChangesStartEpoch; i < redSignalChanges.size(); i++) {
+            signalIds.set(redSignalChanges.get(i));
+        }
+        return true;
+    }
+
+    /**
+     * @param signalIds
+     * @param epoch
+     * @return true when any of the given signals stopped being red after the given red signal epoch, and isn't red now.
+     */
+    boolean hasRedSignalCleared(BitSet signalIds, int epoch){
+        if(epoch == redSignalEpoch) return false;
+        for(int signalId = signalIds.nextSetBit(0); signalId >= 0; signalId = signalIds.nextSetBit(signalId + 1)) {
+            if(redSignalChangeEpochs[signalId] > epoch && lampStatusses[signalId] != EnumLampStatus.RED) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @param network
+     * @return the cache to use when pathfinding in the given network, or null when caching is disabled or this state is not updated for the network.
+     */
+    DestinationTreeCache<TPos> getDestinationTreeCache(RailNetwork<TPos> network){
+        return destinationTreeCaching && ids != null && ids == network.getIds() ? destinationTreeCache : null;
+    }
+
+    public DestinationTreeCache<TPos> getDestinationTreeCache(){
+        return destinationTreeCache;
+    }
+
+    /**
+     * @param network
+     * @return the cache to use when pathfinding in the given network, or null when caching is disabled or this state is not updated for the network.
+     */
+    RailRouteCache<TPos> getRouteCache(RailNetwork<TPos> network){
+        return routeCaching && ids != null && ids == network.getIds() ? routeCache : null;
+    }
+
+    public RailRouteCache<TPos> getRouteCache(){
+        return routeCache;
+    }
+
+    /**
+     * @param signalPos
+     * @return the id of the signal in the network this state was last updated for, or -1.
+     */
+    int getSignalId(TPos signalPos){
+        return ids != null ? ids.getSignalId(signalPos) : NetworkIds.NO_ID;
+    }
+
     /**
      * Cleanup the forced signals when the signal is removed.
      * @param network
@@ -169,43 +759,49 @@ public class NetworkState<TPos extends IPosition<TPos>> {
         return changedSignals;
     }
 
-    private EnumLampStatus getChainSignalStatus(RailNetwork<TPos> network, Set<NetworkSignal<TPos>> toEvaluate, NetworkSignal<TPos> chainSignal){
-        EnumLampStatus blockSignalStatus = getBlockSignalStatus(network, chainSignal);
+    private EnumLampStatus getChainSignalStatus(RailNetwork<TPos> network, int chainSignalId){
+        EnumLampStatus blockSignalStatus = getBlockSignalStatus(chainSignalId);
         if(blockSignalStatus == EnumLampStatus.RED || blockSignalStatus == EnumLampStatus.YELLOW) { //It is not going to get any greener if there's a train in the way, or the next section was claimed
             return blockSignalStatus;
         } else {
-            Train<TPos> routedTrain = trainsAtSignals.get(chainSignal);
+            Train<TPos> routedTrain = trainsAtSignals[chainSignalId];
             if(routedTrain != null) {
                 if(routedTrain.getCurRoute() != null) {
-                    return evaluateCurRoutedTrain(network, routedTrain, chainSignal);
+                    return evaluateCurRoutedTrain(network, routedTrain, chainSignalId);
                 } else {
                     return EnumLampStatus.RED; //A cart with no route cannot be routed.
                 }
             } else {//If we are not routing a train, the status of this signal is just for visuals
-                RailSection<TPos> nextRailSection = chainSignal.getNextRailSection(network);
-                if(nextRailSection == null) return EnumLampStatus.GREEN; //No next section is OK
-                Set<EnumLampStatus> nextSignalStatusses = nextRailSection.getSignals().map(s -> getLampStatus(s.getPos())).collect(Collectors.toSet());
-                if(nextSignalStatusses.size() == 1) {
-                    return nextSignalStatusses.iterator().next();
-                } else {
-                    return EnumLampStatus.YELLOW; //Different signals, we don't know
+                int nextSectionId = ids.getNextSectionId(chainSignalId);
+                if(nextSectionId == NetworkIds.NO_ID) return EnumLampStatus.GREEN; //No next section is OK
+                EnumLampStatus nextSignalStatus = null;
+                for(int nextSignalId : ids.getSectionSignalIds(nextSectionId)) {
+                    EnumLampStatus status = getEvaluatedLampStatus(nextSignalId);
+                    if(nextSignalStatus == null) {
+                        nextSignalStatus = status;
+                    } else if(nextSignalStatus != status) {
+                        return EnumLampStatus.YELLOW; //Different signals, we don't know
+                    }
                 }
+                return nextSignalStatus != null ? nextSignalStatus : EnumLampStatus.YELLOW;
             }
         }
     }
 
-    private EnumLampStatus evaluateCurRoutedTrain(RailNetwork<TPos> network, Train<TPos> train, NetworkSignal<TPos> curSignal){
+    private EnumLampStatus evaluateCurRoutedTrain(RailNetwork<TPos> network, Train<TPos> train, int curSignalId){
         RailRoute<TPos> route = train.getCurRoute();
 
-        if(isTrainClaimingNextSection(network, curSignal, train)) {
+        if(isTrainClaimingSection(ids.getNextSectionId(curSignalId), train)) {
             return EnumLampStatus.RED;
         }
 
+        NetworkSignal<TPos> curSignal = ids.getSignal(curSignalId);
         for(NetworkSignal<TPos> signalInRoute : route.routeSignals) {
             if(signalInRoute != curSignal) {
-                EnumLampStatus nextSignalStatus = getLampStatus(signalInRoute.getPos());
+                int signalId = ids.getSignalId(signalInRoute.getPos());
+                EnumLampStatus nextSignalStatus = signalId != NetworkIds.NO_ID ? getEvaluatedLampStatus(signalId) : EnumLampStatus.YELLOW_BLINKING;
                 if(nextSignalStatus == EnumLampStatus.YELLOW) {
-                    if(isTrainClaimingNextSection(network, signalInRoute, train)) {
+                    if(isTrainClaimingSection(getNextSectionId(network, signalInRoute, signalId), train)) {
                         return EnumLampStatus.RED;
                     }
                     if(signalInRoute.type == EnumSignalType.BLOCK) return EnumLampStatus.GREEN;
@@ -218,17 +814,27 @@ public class NetworkState<TPos extends IPosition<TPos>> {
         return EnumLampStatus.GREEN;
     }
 
-    private EnumLampStatus getBlockSignalStatus(RailNetwork<TPos> network, NetworkSignal<TPos> signal){
+    /**
+     * @param signalId the id of the signal at the position of the given signal.
+     * @return the id of the next section of the given signal, which may be a signal of a route planned on a previous version of the network.
+     */
+    private int getNextSectionId(RailNetwork<TPos> network, NetworkSignal<TPos> signal, int signalId){
+        if(signalId != NetworkIds.NO_ID && ids.getSignal(signalId) == signal) return ids.getNextSectionId(signalId);
         RailSection<TPos> nextSection = signal.getNextRailSection(network);
-        if(nextSection != null) {
-            Train<TPos> trainOnSection = trainsOnSections.get(nextSection);
+        return nextSection != null ? ids.getSectionId(nextSection) : NetworkIds.NO_ID;
+    }
+
+    private EnumLampStatus getBlockSignalStatus(int signalId){
+        int nextSectionId = ids.getNextSectionId(signalId);
+        if(nextSectionId != NetworkIds.NO_ID) {
+            Train<TPos> trainOnSection = trainsOnSections[nextSectionId];
 
             //When there's a train on the next section, and it is not a train that's exiting this signal
-            if(trainOnSection != null && !trainOnSection.getPositions().contains(signal.getRailPos())) {
+            if(trainOnSection != null && !trainOnSection.getPositions().contains(ids.getSignal(signalId).getRailPos())) {
                 return EnumLampStatus.RED;
             } else {
-                Train<TPos> trainClaimingSection = getClaimingTrain(nextSection);
-                if(trainClaimingSection != null && !trainClaimingSection.equals(trainsAtSignals.get(signal))) {
+                Train<TPos> trainClaimingSection = claimingTrains[nextSectionId];
+                if(trainClaimingSection != null && !trainClaimingSection.equals(trainsAtSignals[signalId])) {
                     return EnumLampStatus.YELLOW; //Claimed by another train.
                 } else {
                     return EnumLampStatus.GREEN;
@@ -239,11 +845,10 @@ public class NetworkState<TPos extends IPosition<TPos>> {
         }
     }
 
-    private boolean isTrainClaimingNextSection(RailNetwork<TPos> network, NetworkSignal<TPos> signal, Train<TPos> ignoredTrain){
-        RailSection<TPos> nextSection = signal.getNextRailSection(network);
-        if(nextSection == null) return false;
+    private boolean isTrainClaimingSection(int sectionId, Train<TPos> ignoredTrain){
+        if(sectionId == NetworkIds.NO_ID) return false;
 
-        Train<TPos> trainClaimingSection = getClaimingTrain(nextSection);
+        Train<TPos> trainClaimingSection = claimingTrains[sectionId];
         return trainClaimingSection != null && !trainClaimingSection.equals(ignoredTrain);
     }
 
@@ -252,8 +857,8 @@ public class NetworkState<TPos extends IPosition<TPos>> {
         return forceMode != null ? forceMode : EnumForceMode.NONE;
     }
 
-    private EnumLampStatus getForcedStatus(TPos signalPos){
-        EnumForceMode forceMode = getForceMode(signalPos);
+    private EnumLampStatus getForcedStatus(int signalId){
+        EnumForceMode forceMode = forceModes[signalId];
         if(forceMode == EnumForceMode.FORCED_GREEN_ONCE) return EnumLampStatus.GREEN;
         if(forceMode == EnumForceMode.FORCED_RED) return EnumLampStatus.RED;
         return null;
@@ -266,6 +871,11 @@ public class NetworkState<TPos extends IPosition<TPos>> {
             } else {
                 signalForces.remove(signalPos);
             }
+            int signalId = ids != null ? ids.getSignalId(signalPos) : NetworkIds.NO_ID;
+            if(signalId != NetworkIds.NO_ID) {
+                forceModes[signalId] = forceMode != EnumForceMode.NONE ? forceMode : null;
+                dirtySignals.set(signalId);
+            }
             onForceModeChanged(signalPos, forceMode);
         }
     }
@@ -274,9 +884,68 @@ public class NetworkState<TPos extends IPosition<TPos>> {
 
     }
 
+    /**
+     * @param positions
+     * @return a train on any of the given positions, checking the positions in order, or null.
+     */
     public Train<TPos> getTrainAtPositions(List<TPos> positions){
-        PosAABB<TPos> aabb = new PosAABB<>(positions);
-        return getTrainsInAABB(aabb).findFirst().orElse(null);
+        for(int i = 0; i < positions.size(); i++) {
+            Train<TPos> train = trainPositions.get(positions.get(i));
+            if(train != null) return train;
+        }
+        return null;
+    }
+
+    /**
+     * @param pos
+     * @return a train on the given position, or null.
+     */
+    public Train<TPos> getTrainAt(TPos pos){
+        return trainPositions.get(pos);
+    }
+
+    /**
+     * Called by trains when they move.
+     * @param train
+     * @param prevPositions
+     * @param newPositions
+     */
+    void updateTrainPositions(Train<TPos> train, Set<TPos> prevPositions, Set<TPos> newPositions){
+        for(TPos prevPos : prevPositions) {
+            if(!newPositions.contains(prevPos)) {
+                markTrainsAtSignalsDirty(prevPos);
+                if(trainPositions.remove(prevPos, train)) {
+                    if(!sharedTrainPositions.isEmpty() && sharedTrainPositions.containsKey(prevPos)) {
+                        Train<TPos> otherTrain = sharedTrainPositions.get(prevPos).iterator().next();
+                        sharedTrainPositions.remove(prevPos, otherTrain);
+                        trainPositions.put(prevPos, otherTrain);
+                    }
+                } else {
+                    sharedTrainPositions.remove(prevPos, train);
+                }
+            }
+        }
+        for(TPos newPos : newPositions) {
+            if(!prevPositions.contains(newPos)) {
+                markTrainsAtSignalsDirty(newPos);
+                Train<TPos> otherTrain = trainPositions.get(newPos);
+                if(otherTrain == null) {
+                    trainPositions.put(newPos, train);
+                } else if(otherTrain != train) {
+                    sharedTrainPositions.put(newPos, train);
+                }
+            }
+        }
+    }
+
+    private void markTrainsAtSignalsDirty(TPos pos){
+        if(ids == null) return; //All signals are updated when first updated
+        int[] signalIds = ids.getSignalIdsInFrontOf(pos);
+        if(signalIds != null) {
+            for(int signalId : signalIds) {
+                trainsAtSignalsDirty.set(signalId);
+            }
+        }
     }
 
     private Train<TPos> getTrainAtSignal(RailNetwork<TPos> network, NetworkSignal<TPos> signal){
@@ -284,7 +953,20 @@ public class NetworkState<TPos extends IPosition<TPos>> {
     }
 
     protected void setLampStatus(TPos signalPos, EnumLampStatus status){
-        signalToLampStatusses.put(signalPos, status);
+        getModifiableLampStatusses().put(signalPos, status);
+        int signalId = getSignalId(signalPos);
+        if(signalId != NetworkIds.NO_ID) {
+            onLampStatusChanged(signalId, lampStatusses[signalId], status);
+            lampStatusses[signalId] = status;
+        }
+    }
+
+    private Map<TPos, EnumLampStatus> getModifiableLampStatusses(){
+        if(lampStatussesShared) {
+            signalToLampStatusses = new HashMap<>(signalToLampStatusses);
+            lampStatussesShared = false;
+        }
+        return signalToLampStatusses;
     }
 
     public EnumLampStatus getLampStatus(TPos signalPos){
@@ -292,34 +974,109 @@ public class NetworkState<TPos extends IPosition<TPos>> {
     }
 
     public Train<TPos> getClaimingTrain(RailSection<TPos> section){
+        int sectionId = ids != null ? ids.getSectionId(section) : NetworkIds.NO_ID;
+        return sectionId != NetworkIds.NO_ID ? claimingTrains[sectionId] : null;
+    }
+
+    /**
+     * Called by trains when their claims change.
+     * @param train
+     * @param prevSections the sections the train claimed before.
+     * @param newSections the sections the train claims now.
+     */
+    void updateClaimingTrain(Train<TPos> train, Set<RailSection<TPos>> prevSections, Set<RailSection<TPos>> newSections){
+        if(ids == null) return; //Will be indexed when first updated
+
+        for(RailSection<TPos> prevSection : prevSections) {
+            if(!newSections.contains(prevSection)) {
+                int sectionId = ids.getSectionId(prevSection);
+                if(sectionId != NetworkIds.NO_ID && claimingTrains[sectionId] == train) {
+                    claimingTrains[sectionId] = null;
+                    dirtySections.set(sectionId);
+                }
+            }
+        }
+        for(RailSection<TPos> newSection : newSections) {
+            int sectionId = ids.getSectionId(newSection);
+            if(sectionId != NetworkIds.NO_ID && claimingTrains[sectionId] == null) {
+                claimingTrains[sectionId] = train;
+                dirtySections.set(sectionId);
+            }
+        }
+    }
+
+    /**
+     * Checks that the position and claim indices match the positions and claims of the trains, for testing purposes.
+     * @throws IllegalStateException when an index is inconsistent.
+     */
+    public void validateTrainIndices(){
+        int positionCount = 0;
         for(Train<TPos> train : trains.valueCollection()) {
-            if(train.getClaimedSections().contains(section)) {
-                return train;
+            positionCount += train.getPositions().size();
+            for(TPos pos : train.getPositions()) {
+                if(trainPositions.get(pos) != train && !sharedTrainPositions.containsEntry(pos, train)) {
+                    throw new IllegalStateException("Train " + train + " at " + pos + " is not indexed");
+                }
             }
         }
-        return null;
+        for(Map.Entry<TPos, Train<TPos>> entry : sharedTrainPositions.entries()) {
+            if(trains.get(entry.getValue().id) != entry.getValue() || !entry.getValue().getPositions().contains(entry.getKey())) {
+                throw new IllegalStateException("Train " + entry.getValue() + " is indexed at " + entry.getKey() + " but is not there");
+            }
+        }
+        if(positionCount != trainPositions.size() + sharedTrainPositions.size()) {
+            throw new IllegalStateException("Expected " + positionCount + " indexed train positions, got " + (trainPositions.size() + sharedTrainPositions.size()));
+        }
+
+        if(ids == null) return; //Claims aren't indexed yet
+        Train<TPos>[] expected = newTrainArray(ids.getSectionCount());
+        for(Train<TPos> train : trains.valueCollection()) {
+            for(RailSection<TPos> section : train.getClaimedSections()) {
+                int sectionId = ids.getSectionId(section);
+                if(sectionId == NetworkIds.NO_ID) continue;
+                if(expected[sectionId] != null) throw new IllegalStateException("Section " + section + " claimed by both " + expected[sectionId] + " and " + train);
+                expected[sectionId] = train;
+            }
+        }
+        if(!Arrays.equals(expected, claimingTrains)) {
+            throw new IllegalStateException("Claim index inconsistent, expected " + Arrays.toString(expected) + ", got " + Arrays.toString(claimingTrains));
+        }
     }
 
     private void pathfindTrains(RailNetwork<TPos> network){
-        for(NetworkSignal<TPos> signal : network.railObjects.getSignals()) {
-            if(signal.type == EnumSignalType.CHAIN || getLampStatus(signal.getPos()) == EnumLampStatus.GREEN) {
-                pathfindTrains(network, signal); //Only check signals that signal green, or are route dependent
+        if(asyncRouter != null) {
+            asyncRouter.claimFinishedRoutes(this, ids, (train, signalId, route) -> {
+                //Only claim the route when the train is still waiting at the signal, and the signal still allows routing.
+                if(trainsAtSignals[signalId] == train && (ids.getSignal(signalId).type == EnumSignalType.CHAIN || lampStatusses[signalId] == EnumLampStatus.GREEN)) {
+                    applyRoute(network, signalId, train, route);
+                }
+            });
+        }
+        for(int signalId = occupiedSignals.nextSetBit(0); signalId >= 0; signalId = occupiedSignals.nextSetBit(signalId + 1)) {
+            if(ids.getSignal(signalId).type == EnumSignalType.CHAIN || lampStatusses[signalId] == EnumLampStatus.GREEN) {
+                pathfindTrains(network, signalId); //Only check signals that signal green, or are route dependent
             }
         }
     }
 
-    private void pathfindTrains(RailNetwork<TPos> network, NetworkSignal<TPos> signal){
-        Train<TPos> trainAtSignal = trainsAtSignals.get(signal);
-        if(trainAtSignal != null && trainAtSignal.shouldPathfind(signal.getPos())) {
-            RailRoute<TPos> route = trainAtSignal.pathfind(signal.getRailPos(), signal.heading);
-            if(trainAtSignal.tryUpdatePath(network, this, route) && signal.type == EnumSignalType.CHAIN) {
-                EnumLampStatus status = getChainSignalStatus(network, new HashSet<>(), signal);
-                if(status != EnumLampStatus.GREEN) {
-                    trainAtSignal.setPath(null); //Only claim sections when the train can actually travel to the other side of the intersection.
-                }
+    private void pathfindTrains(RailNetwork<TPos> network, int signalId){
+        Train<TPos> trainAtSignal = trainsAtSignals[signalId];
+        NetworkSignal<TPos> signal = ids.getSignal(signalId);
+        if(trainAtSignal != null && (asyncRouter == null || !asyncRouter.isPending(trainAtSignal)) && trainAtSignal.shouldPathfind(signal.getPos())) {
+            if(asyncRouter == null || !asyncRouter.submit(network, this, ids, trainAtSignal, signalId)) {
+                applyRoute(network, signalId, trainAtSignal, trainAtSignal.pathfind(signal.getRailPos(), signal.heading));
+            }
+        }
+    }
+
+    private void applyRoute(RailNetwork<TPos> network, int signalId, Train<TPos> train, RailRoute<TPos> route){
+        if(train.tryUpdatePath(network, this, route) && ids.getSignal(signalId).type == EnumSignalType.CHAIN) {
+            EnumLampStatus status = getChainSignalStatus(network, signalId);
+            if(status != EnumLampStatus.GREEN) {
+                train.setPath(null); //Only claim sections when the train can actually travel to the other side of the intersection.
             }
-            onCartRouted(trainAtSignal, trainAtSignal.getCurRoute());
         }
+        onCartRouted(train, train.getCurRoute());
     }
 
     protected void onCartRouted(Train<TPos> train, RailRoute<TPos> route){
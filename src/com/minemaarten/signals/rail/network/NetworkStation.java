@@ -18,7 +18,24 @@ public abstract class NetworkStation<TPos extends IPosition<TPos>> extends Netwo
     }
 
     public boolean isTrainApplicable(Train<TPos> train, Pattern destinationRegex){
-        return destinationRegex.matcher(stationName).matches();
+        return destinationRegex.matcher(stationName).matches() || hasTrainSpecificDestinations() && isApplicableForTrain(train, destinationRegex);
+    }
+
+    /**
+     * @return true when this station can be applicable for trains of which the destination doesn't match the station name, in which case
+     * {@link NetworkStation#isApplicableForTrain(Train, Pattern)} is evaluated per train.
+     */
+    public boolean hasTrainSpecificDestinations(){
+        return false;
+    }
+
+    /**
+     * @param train
+     * @param destinationRegex
+     * @return true when this station is applicable for the train, regardless of the station name.
+     */
+    public boolean isApplicableForTrain(Train<TPos> train, Pattern destinationRegex){
+        return false;
     }
 
     public abstract List<TPos> getConnectedRailPositions(RailNetwork<TPos> network);
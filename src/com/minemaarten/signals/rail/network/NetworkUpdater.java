@@ -8,7 +8,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.Stack;
 
-import com.google.common.collect.ImmutableMap;
+import com.minemaarten.signals.lib.PersistentHashMap;
 
 public class NetworkUpdater<TPos extends IPosition<TPos>> {
     private static final int MAX_UPDATES_PER_TICK = 500;
@@ -17,7 +17,8 @@ public class NetworkUpdater<TPos extends IPosition<TPos>> {
     private boolean wasVeryBusy, isVeryBusy;
 
     private Map<TPos, INetworkObject<TPos>> changedObjects = new HashMap<>(); //Global var to prevent putting pressure on GC
-    private Set<TPos> allPositions = new HashSet<>(); //Global var to prevent putting pressure on GC
+    private Map<TPos, Boolean> positionChanges = new HashMap<>(); //Positions added (true) or removed (false) compared to allObjects. Global var to prevent putting pressure on GC
+    private Map<TPos, INetworkObject<TPos>> allObjects; //The objects of the network the position changes were made to
 
     public NetworkUpdater(INetworkObjectProvider<TPos> objectProvider){
         this.objectProvider = objectProvider;
@@ -56,16 +57,16 @@ public class NetworkUpdater<TPos extends IPosition<TPos>> {
 
         changedObjects.clear();
 
-        Set<TPos> curAllPositions = network.unfilteredRailObjects.getAllNetworkObjects().keySet();
-        //Peformance: only reinit the mutable positions map if it was different from last time
-        if(allPositions.hashCode() != curAllPositions.hashCode() || !allPositions.equals(curAllPositions)) {
-            allPositions.clear();
-            allPositions.addAll(curAllPositions);
+        //Peformance: only forget the position changes when the network was updated since last time
+        Map<TPos, INetworkObject<TPos>> curAllObjects = network.unfilteredRailObjects.getAllNetworkObjects();
+        if(allObjects != curAllObjects) {
+            allObjects = curAllObjects;
+            positionChanges.clear();
         }
 
         //Remove all existing objects that were marked dirty.
         for(TPos dirtyPos : dirtyPositions) {
-            if(allPositions.remove(dirtyPos)) {
+            if(removePosition(dirtyPos)) {
                 changedObjects.put(dirtyPos, objectProvider.provideRemovalMarker(dirtyPos));
             }
         }
@@ -78,7 +79,7 @@ public class NetworkUpdater<TPos extends IPosition<TPos>> {
         while(!toEvaluate.isEmpty()) {
             TPos curPos = toEvaluate.pop();
 
-            if(!allPositions.contains(curPos) && !lazyRails.contains(curPos)) {
+            if(!containsPosition(curPos) && !lazyRails.contains(curPos)) {
                 INetworkObject<TPos> networkObject = objectProvider.provide(curPos);
                 if(networkObject != null) {
 
@@ -90,7 +91,7 @@ public class NetworkUpdater<TPos extends IPosition<TPos>> {
                         }
                     }
 
-                    allPositions.add(curPos);
+                    positionChanges.put(curPos, true);
 
                     for(TPos neighborPos : networkObject.getNetworkNeighbors()) {
                         toEvaluate.push(neighborPos);
@@ -127,6 +128,21 @@ public class NetworkUpdater<TPos extends IPosition<TPos>> {
         return changedObjects.values();
     }
 
+    /**
+     * The positions of the network, with the changes made so far applied to it. Kept as a difference to the network, so the network's positions
+     * don't need to be copied.
+     */
+    private boolean containsPosition(TPos pos){
+        Boolean changed = positionChanges.get(pos);
+        return changed != null ? changed : allObjects.containsKey(pos);
+    }
+
+    private boolean removePosition(TPos pos){
+        boolean contained = containsPosition(pos);
+        positionChanges.put(pos, false);
+        return contained;
+    }
+
     private boolean isNextToNetwork(NetworkRail<TPos> rail, RailNetwork<TPos> network, Set<TPos> changedPositions){
         for(TPos neighbor : rail.getPotentialNeighborRailLocations()) {
             if(network.unfilteredRailObjects.get(neighbor) != null || changedPositions.contains(neighbor)) {
@@ -139,9 +155,12 @@ public class NetworkUpdater<TPos extends IPosition<TPos>> {
     public RailNetwork<TPos> applyUpdates(RailNetwork<TPos> network, Collection<INetworkObject<TPos>> changedObjects){
         if(changedObjects.isEmpty()) return network;
 
-        Map<TPos, INetworkObject<TPos>> allObjects = new HashMap<>(network.unfilteredRailObjects.getAllNetworkObjects());
+        //Only the changed paths of the persistent map are copied, the rest is shared with the previous network.
+        PersistentHashMap.Builder<TPos, INetworkObject<TPos>> allObjects = network.unfilteredRailObjects.getAllNetworkObjects().toBuilder();
+        Set<TPos> changedPositions = new HashSet<>();
 
         for(INetworkObject<TPos> changedObject : changedObjects) {
+            changedPositions.add(changedObject.getPos());
             if(changedObject instanceof IRemovalMarker) {
                 allObjects.remove(changedObject.getPos());
             } else {
@@ -149,10 +168,11 @@ public class NetworkUpdater<TPos extends IPosition<TPos>> {
             }
         }
 
+        //Only validates the signals, and rebuilds the parts of the network that changed.
         if(network instanceof RailNetworkClient) {
-            return new RailNetworkClient<TPos>(ImmutableMap.copyOf(allObjects));
+            return new RailNetworkClient<TPos>((RailNetworkClient<TPos>)network, allObjects.build(), changedPositions);
         } else {
-            return new RailNetwork<TPos>(ImmutableMap.copyOf(allObjects));
+            return new RailNetwork<TPos>(network, allObjects.build(), changedPositions);
         }
     }
 }
@@ -0,0 +1,315 @@
+package com.minemaarten.signals.rail.network;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.stream.Collectors;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Builds the rail sections and (rough) rail edges of a {@link RailNetwork} on a fork/join pool.
+ * The rails of the network's {@link RailGraph} are split up in contiguous partitions which are processed independently. Sections crossing partition borders are stitched together
+ * afterwards, edges crossing partition borders are only created by the partition that owns the lowest end of the edge.
+ *
+ * This results in the same sections and edges as the serial build, as long as rail neighbors are symmetric (when A is a neighbor of B, B is a neighbor of A).
+ * @author Maarten
+ *
+ * @param <TPos>
+ */
+class ParallelNetworkBuilder<TPos extends IPosition<TPos>> {
+    private final RailNetwork<TPos> network;
+    private final RailObjectHolder<TPos> railObjects;
+    private final ForkJoinPool pool;
+
+    /**
+     * The rails and their neighbors. The rails of a fully built graph are sorted, so partitions are spatially grouped.
+     */
+    private final RailGraph<TPos> graph;
+    private final int railCount;
+    private final int[] partitionStarts;
+
+    /**
+     * Per rail index, the indices of the section neighbor rails that are not separated by a signal.
+     */
+    private final int[][] sectionNeighbors;
+
+    private final int[] sectionParents;
+    private final BitSet walkedEdgeRails;
+    private final List<List<RailSection<TPos>>> partitionSections = new ArrayList<>();
+    private final List<Set<RailEdge<TPos>>> partitionEdges = new ArrayList<>();
+    private final Set<RailEdge<TPos>> ringEdges = new HashSet<>();
+
+    public ParallelNetworkBuilder(RailNetwork<TPos> network, RailGraph<TPos> graph, ForkJoinPool pool, int partitionCount){
+        this.network = network;
+        this.railObjects = network.railObjects;
+        this.graph = graph;
+        this.pool = pool;
+
+        railCount = graph.size();
+        partitionCount = Math.max(1, Math.min(partitionCount, railCount));
+        partitionStarts = new int[partitionCount + 1];
+        for(int i = 0; i <= partitionCount; i++) {
+            partitionStarts[i] = (int)((long)railCount * i / partitionCount);
+        }
+
+        sectionNeighbors = new int[railCount][];
+        sectionParents = new int[railCount];
+        walkedEdgeRails = new BitSet(railCount);
+        for(int i = 0; i < partitionCount; i++) {
+            partitionSections.add(null);
+            partitionEdges.add(null);
+        }
+    }
+
+    private int getPartitionCount(){
+        return partitionStarts.length - 1;
+    }
+
+    public void build(){
+        forEachPartition(this::buildSectionNeighbors);
+        forEachPartition(partition -> {
+            buildLocalSections(partition);
+            buildEdges(partition);
+        });
+        stitchSections();
+        walkRemainingRings();
+        buildSections();
+    }
+
+    public List<RailSection<TPos>> getSections(){
+        return partitionSections.stream().flatMap(List::stream).collect(Collectors.toList());
+    }
+
+    public Set<RailEdge<TPos>> getRoughEdges(){
+        Set<RailEdge<TPos>> edges = new HashSet<>(ringEdges);
+        partitionEdges.forEach(edges::addAll);
+        return edges;
+    }
+
+    private void buildSectionNeighbors(int partition){
+        int[] sectionNeighborIndices = new int[8];
+        for(int i = partitionStarts[partition]; i < partitionStarts[partition + 1]; i++) {
+            NetworkRail<TPos> rail = graph.getRail(i);
+            int neighborCount = graph.getNeighborCount(i);
+            if(sectionNeighborIndices.length < neighborCount) sectionNeighborIndices = new int[neighborCount];
+            int sectionNeighborCount = 0;
+            for(int j = 0; j < neighborCount; j++) {
+                int neighborIndex = graph.getNeighbor(i, j);
+                NetworkRail<TPos> neighbor = graph.getRail(neighborIndex);
+
+                EnumHeading dir = neighbor.getPos().getRelativeHeading(rail.getPos());
+                if(dir == null || network.getSignalInDir(rail, dir) == null && network.getSignalInDir(neighbor, dir.getOpposite()) == null) {
+                    sectionNeighborIndices[sectionNeighborCount++] = neighborIndex;
+                }
+            }
+            sectionNeighbors[i] = Arrays.copyOf(sectionNeighborIndices, sectionNeighborCount);
+        }
+    }
+
+    private void buildLocalSections(int partition){
+        int start = partitionStarts[partition], end = partitionStarts[partition + 1];
+        for(int i = start; i < end; i++) {
+            sectionParents[i] = i;
+        }
+        for(int i = start; i < end; i++) {
+            for(int neighbor : sectionNeighbors[i]) {
+                if(neighbor >= start && neighbor < end) union(i, neighbor);
+            }
+        }
+    }
+
+    /**
+     * Merges the sections that were split up by partition borders. Sections are only merged within partitions before this, so the roots of
+     * partitions are not touched concurrently.
+     */
+    private void stitchSections(){
+        for(int partition = 0; partition < getPartitionCount(); partition++) {
+            int start = partitionStarts[partition], end = partitionStarts[partition + 1];
+            for(int i = start; i < end; i++) {
+                for(int neighbor : sectionNeighbors[i]) {
+                    if(neighbor < start || neighbor >= end) union(i, neighbor);
+                }
+            }
+        }
+        for(int i = 0; i < railCount; i++) {
+            sectionParents[i] = find(i);
+        }
+    }
+
+    private int find(int index){
+        while(sectionParents[index] != index) {
+            sectionParents[index] = sectionParents[sectionParents[index]];
+            index = sectionParents[index];
+        }
+        return index;
+    }
+
+    private void union(int a, int b){
+        int rootA = find(a), rootB = find(b);
+        if(rootA < rootB) {
+            sectionParents[rootB] = rootA;
+        } else if(rootB < rootA) {
+            sectionParents[rootA] = rootB;
+        }
+    }
+
+    /**
+     * Creates the RailSection objects, by the partition the section's root (lowest index) is in.
+     */
+    private void buildSections(){
+        int[] counts = new int[railCount];
+        for(int i = 0; i < railCount; i++) {
+            counts[sectionParents[i]]++;
+        }
+        int[] offsets = new int[railCount + 1];
+        for(int i = 0; i < railCount; i++) {
+            offsets[i + 1] = offsets[i] + counts[i];
+        }
+        int[] members = new int[railCount];
+        int[] fill = Arrays.copyOf(offsets, railCount);
+        for(int i = 0; i < railCount; i++) {
+            members[fill[sectionParents[i]]++] = i;
+        }
+
+        forEachPartition(partition -> {
+            List<RailSection<TPos>> sections = new ArrayList<>();
+            for(int root = partitionStarts[partition]; root < partitionStarts[partition + 1]; root++) {
+                if(sectionParents[root] == root && graph.getRail(root) != null) {
+                    List<NetworkRail<TPos>> sectionRails = new ArrayList<>(counts[root]);
+                    for(int i = offsets[root]; i < offsets[root + 1]; i++) {
+                        sectionRails.add(graph.getRail(members[i]));
+                    }
+                    sections.add(new RailSection<>(railObjects, sectionRails));
+                }
+            }
+            partitionSections.set(partition, sections);
+        });
+    }
+
+    private boolean isIntersection(int index){
+        return graph.getNeighborCount(index) >= 3;
+    }
+
+    private boolean isEdgeEnd(int index){
+        int neighborCount = graph.getNeighborCount(index);
+        if(neighborCount < 2) return true;
+        for(int i = 0; i < neighborCount; i++) {
+            if(isIntersection(graph.getNeighbor(index, i))) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Creates the edges between two neighboring intersections, and the edges owned by this partition. An edge is owned by the partition that
+     * contains the lowest indexed end of the edge.
+     * @param partition
+     */
+    private void buildEdges(int partition){
+        Set<RailEdge<TPos>> edges = new HashSet<>();
+        for(int i = partitionStarts[partition]; i < partitionStarts[partition + 1]; i++) {
+            if(graph.getRail(i) == null) continue; //Removed rail
+            if(isIntersection(i)) {
+                for(int j = 0; j < graph.getNeighborCount(i); j++) {
+                    int neighbor = graph.getNeighbor(i, j);
+                    if(isIntersection(neighbor)) {
+                        edges.add(new RailEdge<>(railObjects, ImmutableList.of(graph.getRail(i), graph.getRail(neighbor))));
+                    }
+                }
+            } else if(isEdgeEnd(i)) {
+                List<Integer> edge = walkEdge(i);
+                int owner = Integer.MAX_VALUE;
+                for(int railIndex : edge) {
+                    if(!isIntersection(railIndex) && isEdgeEnd(railIndex)) owner = Math.min(owner, railIndex);
+                }
+                if(owner == i) {
+                    markWalked(edge);
+                    if(edge.size() > 1) edges.add(toEdge(edge));
+                }
+            }
+        }
+        partitionEdges.set(partition, edges);
+    }
+
+    /**
+     * Edges without ends (rings not connected to any intersection) aren't owned by any partition, these are walked here.
+     */
+    private void walkRemainingRings(){
+        for(int i = walkedEdgeRails.nextClearBit(0); i < railCount; i = walkedEdgeRails.nextClearBit(i + 1)) {
+            if(graph.getRail(i) != null && !isIntersection(i)) {
+                List<Integer> edge = walkEdge(i);
+                markWalked(edge);
+                if(edge.size() > 1) ringEdges.add(toEdge(edge));
+            }
+        }
+    }
+
+    private void markWalked(List<Integer> edge){
+        synchronized(walkedEdgeRails) {
+            edge.forEach(walkedEdgeRails::set);
+        }
+    }
+
+    /**
+     * Walks the edge from the given rail, identical to {@link RailNetwork#buildRoughRailEdges()}.
+     * @param first
+     * @return the rail indices, in order of the edge.
+     */
+    private List<Integer> walkEdge(int first){
+        List<Integer> edge = new ArrayList<>();
+        edge.add(first);
+        Set<Integer> edgeSet = new HashSet<>();
+        edgeSet.add(first);
+
+        int[] toTraverse = new int[8];
+        int toTraverseCount = 0;
+        toTraverse[toTraverseCount++] = first;
+
+        while(toTraverseCount > 0) {
+            int curEntry = toTraverse[--toTraverseCount];
+            if(!isIntersection(curEntry)) {
+                for(int j = 0; j < graph.getNeighborCount(curEntry); j++) {
+                    int neighbor = graph.getNeighbor(curEntry, j);
+                    if(edgeSet.add(neighbor)) {
+                        if(toTraverseCount == toTraverse.length) toTraverse = Arrays.copyOf(toTraverse, toTraverseCount * 2);
+                        toTraverse[toTraverseCount++] = neighbor;
+
+                        if(edge.get(edge.size() - 1) == curEntry) {
+                            edge.add(neighbor);
+                        } else if(edge.get(0) == curEntry) {
+                            edge.add(0, neighbor);
+                        } else {
+                            throw new IllegalStateException("Currently evaluated pos is not at the start or end of an edge!");
+                        }
+                    }
+                }
+            }
+        }
+        return edge;
+    }
+
+    private RailEdge<TPos> toEdge(List<Integer> edge){
+        ImmutableList.Builder<NetworkRail<TPos>> builder = ImmutableList.builder();
+        edge.forEach(i -> builder.add(graph.getRail(i)));
+        return new RailEdge<>(railObjects, builder.build());
+    }
+
+    private interface PartitionTask{
+        public void run(int partition);
+    }
+
+    private void forEachPartition(PartitionTask task){
+        List<ForkJoinTask<?>> tasks = new ArrayList<>(getPartitionCount());
+        for(int i = 0; i < getPartitionCount(); i++) {
+            final int partition = i;
+            tasks.add(pool.submit(() -> task.run(partition)));
+        }
+        tasks.forEach(ForkJoinTask::join);
+    }
+
+}
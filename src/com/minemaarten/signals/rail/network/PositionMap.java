@@ -0,0 +1,75 @@
+package com.minemaarten.signals.rail.network;
+
+import gnu.trove.iterator.TIntObjectIterator;
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.TLongObjectMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
+
+import java.util.Objects;
+
+/**
+ * Maps positions to values. Stored per plane in maps keyed by the packed position, so lookups don't need to create, hash or compare position objects.
+ * @author Maarten
+ *
+ * @param <TPos>
+ * @param <V>
+ */
+class PositionMap<TPos extends IPosition<TPos>, V> {
+    private final TIntObjectMap<TLongObjectMap<V>> planes = new TIntObjectHashMap<>();
+
+    public PositionMap(){}
+
+    public PositionMap(PositionMap<TPos, V> other){
+        TIntObjectIterator<TLongObjectMap<V>> iterator = other.planes.iterator();
+        while(iterator.hasNext()) {
+            iterator.advance();
+            planes.put(iterator.key(), new TLongObjectHashMap<>(iterator.value()));
+        }
+    }
+
+    public V get(TPos pos){
+        return get(pos.getPlane(), pos.toLong());
+    }
+
+    public V get(int plane, long packedPos){
+        TLongObjectMap<V> map = planes.get(plane);
+        return map != null ? map.get(packedPos) : null;
+    }
+
+    public boolean containsKey(TPos pos){
+        TLongObjectMap<V> map = planes.get(pos.getPlane());
+        return map != null && map.containsKey(pos.toLong());
+    }
+
+    public void put(TPos pos, V value){
+        TLongObjectMap<V> map = planes.get(pos.getPlane());
+        if(map == null) {
+            map = new TLongObjectHashMap<>();
+            planes.put(pos.getPlane(), map);
+        }
+        map.put(pos.toLong(), value);
+    }
+
+    public int size(){
+        int size = 0;
+        for(TLongObjectMap<V> map : planes.valueCollection()) {
+            size += map.size();
+        }
+        return size;
+    }
+
+    /**
+     * Removes the mapping only when the position is mapped to the given value.
+     * @return true when removed.
+     */
+    public boolean remove(TPos pos, V value){
+        TLongObjectMap<V> map = planes.get(pos.getPlane());
+        if(map != null && Objects.equals(map.get(pos.toLong()), value)) {
+            map.remove(pos.toLong());
+            return true;
+        } else {
+            return false;
+        }
+    }
+}
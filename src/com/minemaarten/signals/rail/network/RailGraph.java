@@ -0,0 +1,266 @@
+package com.minemaarten.signals.rail.network;
+
+import gnu.trove.iterator.TIntObjectIterator;
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.TLongIntMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
+import gnu.trove.map.hash.TLongIntHashMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.stream.Collectors;
+
+/**
+ * The section neighbors of every rail in a network (see {@link NetworkRail#getSectionNeighborRails(RailObjectHolder, List)}), including the rails connected
+ * via Rail Links. Rails are identified by an index, and the neighbors of all rails are stored in a single array, where the neighbors of rail i are
+ * found between offsets[i] and offsets[i + 1]. Built once per network, so traversals don't need to look up neighbors via streams.
+ * @author Maarten
+ *
+ * @param <TPos>
+ */
+public class RailGraph<TPos extends IPosition<TPos>> {
+    /**
+     * When more than 1/x of the rails of a graph derived from another graph are removed or appended, the graph is rebuilt instead.
+     */
+    private static final int MAX_DERIVED_CHANGE_RATIO = 8;
+    /**
+     * Returned by {@link RailGraph#indexOf(IPosition)} for positions without a rail.
+     */
+    public static final int NO_INDEX = -1;
+
+    private final NetworkRail<TPos>[] rails; //null for removed rails in derived graphs
+    private final TIntObjectMap<TLongIntMap> planeIndices = new TIntObjectHashMap<>();
+    private final int[] offsets;
+    private final int[] neighbors;
+    private final int changedRails; //Removed or appended rails, compared to the last fully built graph
+
+    /**
+     * Builds the graph of all rails, sorted by position, so rails with nearby indices are nearby in the world.
+     * @param railObjects
+     * @param pool when not null, the neighbors are looked up in parallel on this pool.
+     * @param partitions
+     */
+    RailGraph(RailObjectHolder<TPos> railObjects, ForkJoinPool pool, int partitions){
+        rails = toRailArray(railObjects.getRails());
+        if(pool != null) {
+            pool.invoke(ForkJoinTask.adapt(() -> Arrays.parallelSort(rails, (r1, r2) -> r1.getPos().compareTo(r2.getPos()))));
+        } else {
+            Arrays.sort(rails, (r1, r2) -> r1.getPos().compareTo(r2.getPos()));
+        }
+        for(int i = 0; i < rails.length; i++) {
+            putIndex(rails[i].getPos(), i);
+        }
+
+        int[][] railNeighbors = new int[rails.length][];
+        if(pool != null) {
+            partitions = Math.max(1, Math.min(partitions, rails.length));
+            List<ForkJoinTask<?>> tasks = new ArrayList<>(partitions);
+            for(int p = 0; p < partitions; p++) {
+                int start = (int)((long)rails.length * p / partitions);
+                int end = (int)((long)rails.length * (p + 1) / partitions);
+                tasks.add(ForkJoinTask.adapt(() -> {
+                    for(int i = start; i < end; i++) {
+                        railNeighbors[i] = lookupNeighbors(railObjects, rails[i]);
+                    }
+                }));
+            }
+            pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(tasks)));
+        } else {
+            for(int i = 0; i < rails.length; i++) {
+                railNeighbors[i] = lookupNeighbors(railObjects, rails[i]);
+            }
+        }
+
+        offsets = new int[rails.length + 1];
+        for(int i = 0; i < rails.length; i++) {
+            offsets[i + 1] = offsets[i] + railNeighbors[i].length;
+        }
+        neighbors = new int[offsets[rails.length]];
+        for(int i = 0; i < rails.length; i++) {
+            System.arraycopy(railNeighbors[i], 0, neighbors, offsets[i], railNeighbors[i].length);
+        }
+        changedRails = 0;
+    }
+
+    /**
+     * Derives the graph from the graph of a previous version of the network. Rails keep their index, removed rails leave a gap, new rails are appended,
+     * and only the neighbors of the rails at the given positions are looked up again.
+     * @param prevGraph
+     * @param railObjects
+     * @param dirtyPositions the positions of which the rail, or the neighbors of the rail may have changed.
+     */
+    private RailGraph(RailGraph<TPos> prevGraph, RailObjectHolder<TPos> railObjects, Collection<TPos> dirtyPositions){
+        TIntObjectIterator<TLongIntMap> iterator = prevGraph.planeIndices.iterator();
+        while(iterator.hasNext()) {
+            iterator.advance();
+            planeIndices.put(iterator.key(), new TLongIntHashMap(iterator.value()));
+        }
+
+        int[][] dirtyNeighbors = new int[prevGraph.rails.length][];
+        List<NetworkRail<TPos>> appendedRails = new ArrayList<>();
+        int changedRails = prevGraph.changedRails;
+
+        //First update the rails, so all indices are known when looking up neighbors.
+        List<NetworkRail<TPos>> railsList = new ArrayList<>(Arrays.asList(prevGraph.rails));
+        for(TPos pos : dirtyPositions) {
+            int index = indexOf(pos);
+            NetworkRail<TPos> rail = railObjects.getRail(pos);
+            if(index != NO_INDEX) {
+                railsList.set(index, rail);
+                if(rail == null) {
+                    planeIndices.get(pos.getPlane()).remove(pos.toLong());
+                    changedRails++;
+                }
+            } else if(rail != null) {
+                putIndex(pos, railsList.size());
+                railsList.add(rail);
+                appendedRails.add(rail);
+                changedRails++;
+            }
+        }
+        rails = toRailArray(railsList);
+
+        int[][] appendedNeighbors = new int[appendedRails.size()][];
+        for(TPos pos : dirtyPositions) {
+            int index = indexOf(pos);
+            if(index != NO_INDEX) {
+                int[] railNeighbors = lookupNeighbors(railObjects, rails[index]);
+                if(index < dirtyNeighbors.length) {
+                    dirtyNeighbors[index] = railNeighbors;
+                } else {
+                    appendedNeighbors[index - dirtyNeighbors.length] = railNeighbors;
+                }
+            }
+        }
+
+        offsets = new int[rails.length + 1];
+        for(int i = 0; i < rails.length; i++) {
+            int count;
+            if(i >= dirtyNeighbors.length) {
+                count = appendedNeighbors[i - dirtyNeighbors.length].length;
+            } else if(rails[i] == null) {
+                count = 0;
+            } else if(dirtyNeighbors[i] != null) {
+                count = dirtyNeighbors[i].length;
+            } else {
+                count = prevGraph.getNeighborCount(i);
+            }
+            offsets[i + 1] = offsets[i] + count;
+        }
+        neighbors = new int[offsets[rails.length]];
+        for(int i = 0; i < rails.length; i++) {
+            int count = offsets[i + 1] - offsets[i];
+            if(i >= dirtyNeighbors.length) {
+                System.arraycopy(appendedNeighbors[i - dirtyNeighbors.length], 0, neighbors, offsets[i], count);
+            } else if(dirtyNeighbors[i] != null) {
+                System.arraycopy(dirtyNeighbors[i], 0, neighbors, offsets[i], count);
+            } else {
+                System.arraycopy(prevGraph.neighbors, prevGraph.offsets[i], neighbors, offsets[i], count);
+            }
+        }
+        this.changedRails = changedRails;
+    }
+
+    /**
+     * @return a graph for the given rail objects, derived from the given graph when only a few rails changed.
+     */
+    static <TPos extends IPosition<TPos>> RailGraph<TPos> derive(RailGraph<TPos> prevGraph, RailObjectHolder<TPos> railObjects, Collection<TPos> dirtyPositions){
+        if((prevGraph.changedRails + dirtyPositions.size()) * MAX_DERIVED_CHANGE_RATIO > prevGraph.size()) {
+            return new RailGraph<>(railObjects, null, 1);
+        } else {
+            return new RailGraph<>(prevGraph, railObjects, dirtyPositions);
+        }
+    }
+
+    private int[] lookupNeighbors(RailObjectHolder<TPos> railObjects, NetworkRail<TPos> rail){
+        int[] railNeighbors = new int[4];
+        int count = 0;
+        List<TPos> potentialNeighbors = rail.getPotentialNeighborRailLocations();
+        for(int i = 0; i < potentialNeighbors.size(); i++) {
+            int index = indexOf(potentialNeighbors.get(i));
+            if(index != NO_INDEX) {
+                if(count == railNeighbors.length) railNeighbors = Arrays.copyOf(railNeighbors, count * 2);
+                railNeighbors[count++] = index;
+            }
+        }
+        if(rail.hasRailLinkConnections(railObjects)) {
+            for(NetworkRail<TPos> linkedRail : rail.getRailLinkConnectedRails(railObjects).collect(Collectors.toList())) {
+                if(count == railNeighbors.length) railNeighbors = Arrays.copyOf(railNeighbors, count * 2);
+                railNeighbors[count++] = indexOf(linkedRail.getPos());
+            }
+        }
+        return count == railNeighbors.length ? railNeighbors : Arrays.copyOf(railNeighbors, count);
+    }
+
+    private void putIndex(TPos pos, int index){
+        TLongIntMap indices = planeIndices.get(pos.getPlane());
+        if(indices == null) {
+            indices = new TLongIntHashMap(16, 0.5F, Long.MIN_VALUE, NO_INDEX);
+            planeIndices.put(pos.getPlane(), indices);
+        }
+        indices.put(pos.toLong(), index);
+    }
+
+    /**
+     * The amount of indices. Some indices may not have a rail, in which case {@link RailGraph#getRail(int)} returns null.
+     * @return
+     */
+    public int size(){
+        return rails.length;
+    }
+
+    public NetworkRail<TPos> getRail(int index){
+        return rails[index];
+    }
+
+    /**
+     * @param pos
+     * @return the index of the rail at the given position, or -1 when there is no rail.
+     */
+    public int indexOf(TPos pos){
+        return indexOf(pos.getPlane(), pos.toLong());
+    }
+
+    public int indexOf(int plane, long packedPos){
+        TLongIntMap indices = planeIndices.get(plane);
+        return indices != null ? indices.get(packedPos) : NO_INDEX;
+    }
+
+    public int getNeighborCount(int index){
+        return offsets[index + 1] - offsets[index];
+    }
+
+    /**
+     * @param index the rail index.
+     * @param i the i-th neighbor, with i < getNeighborCount(index)
+     * @return the rail index of the neighbor.
+     */
+    public int getNeighbor(int index, int i){
+        return neighbors[offsets[index] + i];
+    }
+
+    /**
+     * Convenience method for code that isn't performance critical.
+     * @param rail
+     * @return
+     */
+    public List<NetworkRail<TPos>> getNeighborRails(NetworkRail<TPos> rail){
+        int index = indexOf(rail.getPos());
+        if(index == NO_INDEX) return Collections.emptyList();
+        List<NetworkRail<TPos>> neighborRails = new ArrayList<>(getNeighborCount(index));
+        for(int i = 0; i < getNeighborCount(index); i++) {
+            neighborRails.add(rails[getNeighbor(index, i)]);
+        }
+        return neighborRails;
+    }
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private static <TPos extends IPosition<TPos>> NetworkRail<TPos>[] toRailArray(Collection<NetworkRail<TPos>> rails){
+        return rails.toArray(new NetworkRail[0]);
+    }
+}
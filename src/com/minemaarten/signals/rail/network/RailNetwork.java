@@ -14,16 +14,19 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Stack;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
-import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Multimaps;
 import com.google.common.collect.Streams;
+import com.minemaarten.signals.lib.PersistentHashMap;
 
 /**
  * Entry point for dealing with rail networks. Designed to be immutable.
@@ -33,41 +36,91 @@ import com.google.common.collect.Streams;
  */
 public class RailNetwork<TPos extends IPosition<TPos>> {
     private static final int MAX_RAILS_IN_FRONT_SIGNAL = 5;
+    /**
+     * Below this amount of rails, the overhead of building in parallel isn't worth it.
+     */
+    public static final int MIN_RAILS_FOR_PARALLEL_BUILD = 4096;
+    private static final int PARTITIONS_PER_THREAD = 4;
+    /**
+     * When more than 1/x of the rails are changed, building incrementally isn't worth it.
+     */
+    private static final int MAX_INCREMENTAL_CHANGE_RATIO = 8;
     public final RailObjectHolder<TPos> railObjects;
     public final RailObjectHolder<TPos> unfilteredRailObjects; //All network objects, without filtered invalid signals.
-    private Map<TPos, RailSection<TPos>> railPosToRailSections;
-    private Set<RailEdge<TPos>> allEdges;
-    private Set<RailSection<TPos>> allSections;
+
+    /*
+     * The sections and edges are stored in persistent maps, so a network built incrementally shares them with the network it is built from, and
+     * only copies the paths to the sections and edges it replaces. The sets of sections and edges map every element to itself.
+     * Assigned when the network is built, railPosToRailSections last, as it marks the network as built.
+     */
+    private volatile PersistentHashMap<TPos, RailSection<TPos>> railPosToRailSections;
+    private PersistentHashMap<RailEdge<TPos>, RailEdge<TPos>> allEdges;
+    private PersistentHashMap<RailSection<TPos>, RailSection<TPos>> allSections;
     private TObjectIntMap<TPos> railLinkPosToDelays;
-    private final Map<TPos, List<TPos>> signalToPositionsInFrontCache = new HashMap<>();
-    private final ImmutableMap<TPos, NetworkCache<TPos>> cache;
+    private final Map<TPos, List<TPos>> signalToPositionsInFrontCache = new ConcurrentHashMap<>();
     private String[] stationNames;
 
     /**
      * Given a position of a path node, which edges can end up in this node?
      */
-    private Multimap<TPos, RailEdge<TPos>> positionsToEdgesBackward;
+    private PersistentHashMap<TPos, ImmutableList<RailEdge<TPos>>> positionsToEdgesBackward;
 
     /**
      * given any rail pos, which edge belongs to this rail?
      * Intersections don't return an edge.
      */
-    private Map<TPos, RailEdge<TPos>> railPosToRailEdges;
+    private PersistentHashMap<TPos, RailEdge<TPos>> railPosToRailEdges;
+
+    /**
+     * Given an intersection pos, which edges start, end, or cross here?
+     */
+    private PersistentHashMap<TPos, ImmutableList<RailEdge<TPos>>> intersectionsToEdges;
+
+    /**
+     * The sections and edges while the network is being built.
+     */
+    private StructureBuilder<TPos> structures;
+
+    /**
+     * The previously built network this network can be built from incrementally, with the positions that changed since.
+     * Only set until this network is built.
+     */
+    private RailNetwork<TPos> incrementalBase;
+    private Set<TPos> incrementalChanges;
+    private RailNetwork<TPos> reusedNetwork;
+    private volatile boolean built;
+    private volatile RailGraph<TPos> railGraph;
+    private volatile NetworkIds<TPos> ids;
+    private volatile ChainSignalOrder<TPos> chainSignalOrder;
+    private volatile Landmarks<TPos> landmarks;
+    private volatile ContractionHierarchy<TPos> contractionHierarchy;
+    private volatile StationIndex<TPos> stationIndex;
 
     public RailNetwork(Collection<INetworkObject<TPos>> allNetworkObjects){
         this.unfilteredRailObjects = new RailObjectHolder<>(allNetworkObjects);
         this.railObjects = unfilteredRailObjects.filterInvalidSignals();
-        cache = allNetworkObjects.stream().collect(ImmutableMap.toImmutableMap(INetworkObject::getPos, NetworkCache<TPos>::new));
     }
 
-    public RailNetwork(ImmutableMap<TPos, INetworkObject<TPos>> allNetworkObjects){
+    public RailNetwork(Map<TPos, INetworkObject<TPos>> allNetworkObjects){
         this.unfilteredRailObjects = new RailObjectHolder<>(allNetworkObjects);
         this.railObjects = unfilteredRailObjects.filterInvalidSignals();
-        cache = allNetworkObjects.values().stream().collect(ImmutableMap.toImmutableMap(INetworkObject::getPos, NetworkCache<TPos>::new));
+    }
+
+    /**
+     * Creates a network from a previous version of the network, and the positions that changed since. Only the signals near the changed positions
+     * are validated again, and the network can be built incrementally, see {@link RailNetwork#setIncrementalBase(RailNetwork, Collection)}.
+     * @param prevNetwork
+     * @param allNetworkObjects
+     * @param changedPositions
+     */
+    public RailNetwork(RailNetwork<TPos> prevNetwork, Map<TPos, INetworkObject<TPos>> allNetworkObjects, Collection<TPos> changedPositions){
+        this.unfilteredRailObjects = new RailObjectHolder<>(allNetworkObjects);
+        this.railObjects = unfilteredRailObjects.filterInvalidSignals(prevNetwork.unfilteredRailObjects, prevNetwork.railObjects, changedPositions);
+        setIncrementalBase(prevNetwork, changedPositions);
     }
 
     public static <TPos extends IPosition<TPos>> RailNetwork<TPos> empty(){
-        return new RailNetwork<>(ImmutableMap.<TPos, INetworkObject<TPos>> of());
+        return new RailNetwork<>(PersistentHashMap.<TPos, INetworkObject<TPos>> of());
     }
 
     /**
@@ -77,46 +130,250 @@ public class RailNetwork<TPos extends IPosition<TPos>> {
         if(railPosToRailSections == null) {
             synchronized(this) {
                 if(railPosToRailSections == null) {
-                    railPosToRailSections = new HashMap<>();
-                    allEdges = new HashSet<>();
-                    allSections = new HashSet<>();
-                    railLinkPosToDelays = new TObjectIntHashMap<TPos>();
-                    railPosToRailEdges = new HashMap<>();
-                    positionsToEdgesBackward = ArrayListMultimap.create();
+                    if(!tryBuildIncremental()) {
+                        initBuild();
 
-                    buildRailSections();//TODO rail section and edge building can be done in parallel? No MC dependences or interdependencies.
+                        buildRailSections(new HashSet<>(railObjects.getRails())).forEach(structures::addSection);
 
-                    Set<RailEdge<TPos>> allEdges = buildRoughRailEdges();
-                    mergeCrossingEdges(allEdges).forEach(edge -> addEdge(edge));
+                        Set<RailEdge<TPos>> allEdges = buildRoughRailEdges(new HashSet<>(railObjects.getRails()), (r1, r2) -> true);
+                        mergeCrossingEdges(allEdges, null).forEach(structures::addEdge);
+                    }
+                    finishBuild();
+                }
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Build the network like {@link RailNetwork#build()}, but building the sections and edges in parallel on the given pool.
+     * Small networks are built serially.
+     * @param pool
+     * @return
+     */
+    public RailNetwork<TPos> buildParallel(ForkJoinPool pool){
+        if(railObjects.getRails().size() < MIN_RAILS_FOR_PARALLEL_BUILD) return build();
+        return buildParallel(pool, pool.getParallelism() * PARTITIONS_PER_THREAD);
+    }
+
+    public RailNetwork<TPos> buildParallel(ForkJoinPool pool, int partitions){
+        if(railPosToRailSections == null) {
+            synchronized(this) {
+                if(railPosToRailSections == null) {
+                    if(tryBuildIncremental()) {
+                        finishBuild();
+                        return this;
+                    }
+                    initBuild();
+
+                    if(railGraph == null) railGraph = new RailGraph<>(railObjects, pool, partitions);
+                    ParallelNetworkBuilder<TPos> builder = new ParallelNetworkBuilder<>(this, railGraph, pool, partitions);
+                    builder.build();
+                    builder.getSections().forEach(structures::addSection);
+                    mergeCrossingEdges(builder.getRoughEdges(), null).forEach(structures::addEdge);
 
-                    buildStationNames();
-                    buildRailLinkToDelayMap();
-                    onAfterBuild();
+                    finishBuild();
                 }
             }
         }
         return this;
     }
 
+    private void initBuild(){
+        structures = new StructureBuilder<>(null);
+        railLinkPosToDelays = new TObjectIntHashMap<TPos>();
+    }
+
+    private void finishBuild(){
+        buildStationNames();
+        buildRailLinkToDelayMap();
+        allEdges = structures.allEdges.build();
+        allSections = structures.allSections.build();
+        positionsToEdgesBackward = structures.positionsToEdgesBackward.build();
+        railPosToRailEdges = structures.railPosToRailEdges.build();
+        intersectionsToEdges = structures.intersectionsToEdges.build();
+        railPosToRailSections = structures.railPosToRailSections.build();
+        structures = null;
+        buildIds();
+        onAfterBuild();
+        incrementalBase = null;
+        incrementalChanges = null;
+        reusedNetwork = null;
+        built = true;
+    }
+
+    public boolean isBuilt(){
+        return built;
+    }
+
+    /**
+     * Allow this network to be built from the given network, only rebuilding the sections and edges near the given changed positions.
+     * When the given network isn't built yet, the network it would be built from is used.
+     * @param prevNetwork
+     * @param changedPositions
+     */
+    void setIncrementalBase(RailNetwork<TPos> prevNetwork, Collection<TPos> changedPositions){
+        if(prevNetwork.isBuilt()) {
+            incrementalBase = prevNetwork;
+            incrementalChanges = new HashSet<>(changedPositions);
+        } else {
+            RailNetwork<TPos> base = prevNetwork.incrementalBase;
+            Set<TPos> prevChanges = prevNetwork.incrementalChanges;
+            if(base != null && prevChanges != null) {
+                incrementalBase = base;
+                incrementalChanges = new HashSet<>(prevChanges);
+                incrementalChanges.addAll(changedPositions);
+            }
+        }
+    }
+
+    /**
+     * The network sections and edges were reused from, when this network is built incrementally. Only available in {@link RailNetwork#onAfterBuild()}.
+     * @return
+     */
+    protected RailNetwork<TPos> getReusedNetwork(){
+        return reusedNetwork;
+    }
+
+    private boolean tryBuildIncremental(){
+        RailNetwork<TPos> base = incrementalBase;
+        Set<TPos> changes = incrementalChanges;
+        if(base == null || !base.isBuilt() || changes.size() * MAX_INCREMENTAL_CHANGE_RATIO > unfilteredRailObjects.getAllNetworkObjects().size()) return false;
+
+        IncrementalNetworkBuilder<TPos> builder = new IncrementalNetworkBuilder<>(base, this, changes);
+        if(railGraph == null) railGraph = RailGraph.derive(base.getRailGraph(), railObjects, builder.getAffectedPositions());
+        if(!builder.build()) return false;
+
+        structures = new StructureBuilder<>(base);
+        builder.getDroppedSections().forEach(structures::removeSection);
+        builder.getNewSections().forEach(structures::addSection);
+
+        Set<TPos> unmappedPositions = new HashSet<>();
+        for(RailEdge<TPos> edge : builder.getDroppedEdges()) {
+            structures.removeEdge(edge, unmappedPositions);
+        }
+        builder.getNewEdges().forEach(structures::addEdge);
+        for(TPos pos : unmappedPositions) { //Intersections may still be part of other edges
+            if(structures.railPosToRailEdges.get(pos) == null) {
+                ImmutableList<RailEdge<TPos>> edges = structures.intersectionsToEdges.get(pos);
+                if(edges != null) structures.railPosToRailEdges.put(pos, edges.get(0));
+            }
+        }
+
+        railLinkPosToDelays = new TObjectIntHashMap<TPos>();
+        reusedNetwork = base;
+        return true;
+    }
+
     protected void onAfterBuild(){
 
     }
 
+    /**
+     * The rails of this network, with their section neighbors. Built once per network.
+     * @return
+     */
+    public RailGraph<TPos> getRailGraph(){
+        RailGraph<TPos> graph = railGraph;
+        if(graph == null) {
+            synchronized(this) {
+                if(railGraph == null) railGraph = new RailGraph<>(railObjects, null, 1);
+                graph = railGraph;
+            }
+        }
+        return graph;
+    }
+
     private void buildStationNames(){
         Stream<String> stationNameStream = railObjects.getStations().stream().map(s -> s.stationName).filter(s -> !"".equals(s));
         stationNameStream = Streams.concat(stationNameStream, Stream.of("ITEM")).distinct().sorted();
         stationNames = stationNameStream.toArray(String[]::new);
     }
 
+    /**
+     * Builds the ids and chain signal order as part of building the network, so the network is ready to be updated when swapped in.
+     * When built incrementally, these are derived from the ids of the reused network.
+     */
+    private void buildIds(){
+        RailNetwork<TPos> base = reusedNetwork;
+        NetworkIds<TPos> baseIds = base != null ? base.ids : null;
+        ChainSignalOrder<TPos> baseOrder = base != null ? base.chainSignalOrder : null;
+        ids = new NetworkIds<>(this, baseIds);
+        chainSignalOrder = new ChainSignalOrder<>(ids, baseIds, baseOrder);
+    }
+
+    /**
+     * The ids of the signals, sections and edges of this network, assigned once per network when it is built.
+     * @return
+     */
+    NetworkIds<TPos> getIds(){
+        return build().ids;
+    }
+
+    /**
+     * The order chain signals need to be evaluated in, computed once per network when it is built.
+     * @return
+     */
+    ChainSignalOrder<TPos> getChainSignalOrder(){
+        return build().chainSignalOrder;
+    }
+
+    /**
+     * Builds the landmarks used by the pathfinding heuristic. Like the contraction hierarchy, this should be done off thread, after building the network.
+     * Until they are built, routes are searched without the landmark heuristic.
+     * @return
+     */
+    public RailNetwork<TPos> buildLandmarks(){
+        NetworkIds<TPos> networkIds = getIds();
+        if(landmarks == null) {
+            synchronized(this) {
+                if(landmarks == null) landmarks = new Landmarks<>(networkIds);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * @return the landmarks used by the pathfinding heuristic, or null when they aren't built (yet).
+     */
+    Landmarks<TPos> getBuiltLandmarks(){
+        return landmarks;
+    }
+
+    /**
+     * Builds the contraction hierarchy used for routing when enabled, see {@link NetworkState#setContractionHierarchyRouting(boolean)}.
+     * This takes a while for large networks, so should be done off thread, after building the network.
+     * @return
+     */
+    public RailNetwork<TPos> buildContractionHierarchy(){
+        if(contractionHierarchy == null) {
+            synchronized(this) {
+                if(contractionHierarchy == null) contractionHierarchy = new ContractionHierarchy<>(this);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * @return the contraction hierarchy, or null when it isn't built (yet).
+     */
+    ContractionHierarchy<TPos> getBuiltContractionHierarchy(){
+        return contractionHierarchy;
+    }
+
     public String[] getStationNames(){
         build();
         return stationNames;
     }
 
-    private void buildRailSections(){
-        //Wrap in HashSet because java doesn't guarantee mutability with Collectors.toSet()
-        Set<NetworkRail<TPos>> toTraverse = new HashSet<>(railObjects.getRails());
-
+    /**
+     * Flood fills sections starting from the given rails.
+     * @param toTraverse the rails to build the sections of. Gets emptied in the process.
+     * @return
+     */
+    List<RailSection<TPos>> buildRailSections(Set<NetworkRail<TPos>> toTraverse){
+        RailGraph<TPos> graph = getRailGraph();
+        List<RailSection<TPos>> sections = new ArrayList<>();
         while(!toTraverse.isEmpty()) {
             Iterator<NetworkRail<TPos>> toTraverseIterator = toTraverse.iterator();
             NetworkRail<TPos> first = toTraverseIterator.next();
@@ -130,9 +387,10 @@ public class RailNetwork<TPos extends IPosition<TPos>> {
 
             while(!sectionToTraverse.isEmpty()) {
                 NetworkRail<TPos> curRail = sectionToTraverse.pop();
-                List<NetworkRail<TPos>> neighbors = curRail.getSectionNeighborRails(railObjects).collect(Collectors.toList());
+                int curIndex = graph.indexOf(curRail.getPos());
 
-                for(NetworkRail<TPos> neighbor : neighbors) {
+                for(int i = 0; i < graph.getNeighborCount(curIndex); i++) {
+                    NetworkRail<TPos> neighbor = graph.getRail(graph.getNeighbor(curIndex, i));
                     EnumHeading dir = neighbor.getPos().getRelativeHeading(curRail.getPos());
                     if(dir == null || getSignalInDir(curRail, dir) == null) { //Only when the neighbor is not on a next section, continue
                         if(dir == null || getSignalInDir(neighbor, dir.getOpposite()) == null) {
@@ -146,8 +404,9 @@ public class RailNetwork<TPos extends IPosition<TPos>> {
                 }
             }
 
-            addSection(new RailSection<>(railObjects, sectionSet));
+            sections.add(new RailSection<>(railObjects, sectionSet));
         }
+        return sections;
     }
 
     private void buildRailLinkToDelayMap(){
@@ -168,25 +427,18 @@ public class RailNetwork<TPos extends IPosition<TPos>> {
         return railLinkPosToDelays.get(pos);
     }
 
-    private NetworkSignal<TPos> getSignalInDir(NetworkRail<TPos> rail, EnumHeading dir){
-        return cache.get(rail.getPos()).getObjectNeighbors(this).getSignals().stream().filter(s -> s.heading == dir && s.getRailPos().equals(rail.getPos())).findFirst().orElse(null);
+    NetworkSignal<TPos> getSignalInDir(NetworkRail<TPos> rail, EnumHeading dir){
+        return railObjects.getAttachedSignal(rail, dir);
     }
 
     public Collection<RailSection<TPos>> getAllSections(){
         build();
-        return allSections;
+        return allSections.keySet();
     }
 
     public Collection<RailEdge<TPos>> getAllEdges(){
         build();
-        return allEdges;
-    }
-
-    private void addSection(RailSection<TPos> section){
-        allSections.add(section);
-        section.getRailPositions().forEach(pos -> {
-            railPosToRailSections.put(pos, section);
-        });
+        return allEdges.keySet();
     }
 
     public RailSection<TPos> findSection(TPos pos){
@@ -194,16 +446,28 @@ public class RailNetwork<TPos extends IPosition<TPos>> {
         return railPosToRailSections.get(pos);
     }
 
+    /**
+     * Allocation free variant of {@link RailNetwork#findSection(IPosition)}.
+     * @param plane
+     * @param packedPos see {@link IPosition#toLong()}
+     * @return
+     */
+    public RailSection<TPos> findSection(int plane, long packedPos){
+        build();
+        return railPosToRailSections.get(IPosition.hashCode(plane, packedPos), plane, packedPos, RailObjectHolder.POS_MATCHER);
+    }
+
     /**
      * Build edges naively, by assuming that any possible pathfind neighbor of a given rail can map to any other neighbor of this rail.
      * This isn't always the case, for example with rail crossings, where only N<-->S and W<-->E are mapped. These are filtered out
      * in {@link RailNetwork#mergeCrossingEdges(Set)}. It turned out to be computationally easier to not having to deal with sides in this method.
+     * @param toTraverse the rails to build edges from. All rails need to be traversed, in every direction, because a rail may be a junction, in which case a single block is part of multiple edges.
+     * Gets emptied in the process.
+     * @param intersectionEdgeFilter which edges spanning two neighboring intersections should be created
      * @return
      */
-    private Set<RailEdge<TPos>> buildRoughRailEdges(){
-        //All rails need to be traversed, in every direction, because a rail may be a junction, in which case a single block is part of multiple edges.
-        Set<NetworkRail<TPos>> toTraverse = new HashSet<>(railObjects.getRails());
-
+    Set<RailEdge<TPos>> buildRoughRailEdges(Set<NetworkRail<TPos>> toTraverse, BiPredicate<NetworkRail<TPos>, NetworkRail<TPos>> intersectionEdgeFilter){
+        RailGraph<TPos> graph = getRailGraph();
         Set<NetworkRail<TPos>> edgeSet = new HashSet<>();
         List<NetworkRail<TPos>> edge = new ArrayList<>();
         Set<RailEdge<TPos>> allEdges = new HashSet<>();
@@ -221,10 +485,12 @@ public class RailNetwork<TPos extends IPosition<TPos>> {
 
             while(!edgeToTraverse.isEmpty()) {
                 NetworkRail<TPos> curEntry = edgeToTraverse.pop();
-                List<NetworkRail<TPos>> neighbors = curEntry.getSectionNeighborRails(railObjects).collect(Collectors.toList());
-                if(neighbors.size() < 3) { //If not on an intersection, expand further
+                int curIndex = graph.indexOf(curEntry.getPos());
+                int neighborCount = graph.getNeighborCount(curIndex);
+                if(neighborCount < 3) { //If not on an intersection, expand further
                     toTraverse.remove(curEntry);
-                    for(NetworkRail<TPos> neighbor : neighbors) {
+                    for(int i = 0; i < neighborCount; i++) {
+                        NetworkRail<TPos> neighbor = graph.getRail(graph.getNeighbor(curIndex, i));
                         if(edgeSet.add(neighbor)) {
                             edgeToTraverse.push(neighbor);
 
@@ -242,9 +508,10 @@ public class RailNetwork<TPos extends IPosition<TPos>> {
                 } else if(edge.size() == 1) { //when evaluating starting from an intersection, we can create edges that span only 2 blocks, from one intersection to the next
                     toTraverse.remove(curEntry);
                     //When evaluating from an intersection, only look at directly neighboring intersections.
-                    for(NetworkRail<TPos> neighbor : neighbors) {
-                        List<NetworkRail<TPos>> neighborNeighbors = neighbor.getSectionNeighborRails(railObjects).collect(Collectors.toList());
-                        if(neighborNeighbors.size() > 2) { //When the neighbor also is on an intersection, we have an edge
+                    for(int i = 0; i < neighborCount; i++) {
+                        int neighborIndex = graph.getNeighbor(curIndex, i);
+                        NetworkRail<TPos> neighbor = graph.getRail(neighborIndex);
+                        if(graph.getNeighborCount(neighborIndex) > 2 && intersectionEdgeFilter.test(curEntry, neighbor)) { //When the neighbor also is on an intersection, we have an edge
                             ImmutableList<NetworkRail<TPos>> e = ImmutableList.of(curEntry, neighbor);
                             RailEdge<TPos> railEdge = new RailEdge<>(railObjects, e);
                             allEdges.add(railEdge);
@@ -266,9 +533,10 @@ public class RailNetwork<TPos extends IPosition<TPos>> {
     /**
      * Merge edges that aren't actually on intersections, when encountering rail junctions.
      * @param allEdges
+     * @param otherEdgeHeadings when only merging part of the network, the outward headings of the other edges connected to the given intersection.
      * @return
      */
-    private Set<RailEdge<TPos>> mergeCrossingEdges(Set<RailEdge<TPos>> allEdges){
+    Set<RailEdge<TPos>> mergeCrossingEdges(Set<RailEdge<TPos>> allEdges, Function<TPos, Collection<EnumHeading>> otherEdgeHeadings){
         Multimap<TPos, RailEdge<TPos>> connectedEdges = Multimaps.newSetMultimap(new HashMap<>(), HashSet::new);
         for(RailEdge<TPos> edge : allEdges) {
             connectedEdges.put(edge.startPos, edge);
@@ -283,9 +551,9 @@ public class RailNetwork<TPos extends IPosition<TPos>> {
             curMergedEdges.clear();
             curMergedEdges.add(first);
 
-            RailEdge<TPos> combinedEdge = mergeEdgeFrom(connectedEdges, curMergedEdges, first, first, first.get(0));
+            RailEdge<TPos> combinedEdge = mergeEdgeFrom(connectedEdges, otherEdgeHeadings, curMergedEdges, first, first, first.get(0));
             if(!first.startPos.equals(first.endPos)) {
-                combinedEdge = mergeEdgeFrom(connectedEdges, curMergedEdges, combinedEdge, first, first.get(first.length - 1));
+                combinedEdge = mergeEdgeFrom(connectedEdges, otherEdgeHeadings, curMergedEdges, combinedEdge, first, first.get(first.length - 1));
             }
 
             allEdges.removeAll(curMergedEdges);
@@ -295,7 +563,7 @@ public class RailNetwork<TPos extends IPosition<TPos>> {
         return newEdges;
     }
 
-    private RailEdge<TPos> mergeEdgeFrom(Multimap<TPos, RailEdge<TPos>> connectedEdges, Set<RailEdge<TPos>> curMergedEdges, RailEdge<TPos> combinedEdge, RailEdge<TPos> startEdge, NetworkRail<TPos> startPos){
+    private RailEdge<TPos> mergeEdgeFrom(Multimap<TPos, RailEdge<TPos>> connectedEdges, Function<TPos, Collection<EnumHeading>> otherEdgeHeadings, Set<RailEdge<TPos>> curMergedEdges, RailEdge<TPos> combinedEdge, RailEdge<TPos> startEdge, NetworkRail<TPos> startPos){
         NetworkRail<TPos> curRail = startPos;
         RailEdge<TPos> prevEdge = startEdge;
         boolean hasCombined;
@@ -312,6 +580,13 @@ public class RailNetwork<TPos extends IPosition<TPos>> {
                                                                           e.headingForEndpoint(fCurRail.getPos()) == null))
                                                                  .collect(Collectors.toList());
             //@formatter:on
+            if(otherEdgeHeadings != null) {
+                long otherConnected = otherEdgeHeadings.apply(curRail.getPos()).stream().filter(h -> h == null || validHeadings.contains(h)).count();
+                if(otherConnected == 1 && actualConnected.isEmpty()) {
+                    throw new IllegalStateException("Edge at " + curRail.getPos() + " should be merged with an edge that isn't rebuilt");
+                }
+                if(otherConnected > 0) break; //Can't be merged, connected to multiple edges.
+            }
             if(actualConnected.size() == 1) { //When not actually on an intersection, in terms of pathfinding
                 RailEdge<TPos> nextEdge = actualConnected.get(0);
                 if(curMergedEdges.add(nextEdge)) {
@@ -327,12 +602,82 @@ public class RailNetwork<TPos extends IPosition<TPos>> {
         return combinedEdge;
     }
 
-    private void addEdge(RailEdge<TPos> railEdge){
-        if(allEdges.add(railEdge)) {
-            if(railEdge.directionality.canTravelBackwards) positionsToEdgesBackward.put(railEdge.startPos, railEdge);
-            if(railEdge.directionality.canTravelForwards) positionsToEdgesBackward.put(railEdge.endPos, railEdge);
-            for(int i = 0; i < railEdge.length; i++) {
-                railPosToRailEdges.put(railEdge.get(i).getPos(), railEdge);
+    /**
+     * Builders of the persistent maps holding the sections and edges. Started empty, or from the maps of the network that is built from
+     * incrementally.
+     */
+    private static class StructureBuilder<TPos extends IPosition<TPos>> {
+        private final PersistentHashMap.Builder<TPos, RailSection<TPos>> railPosToRailSections;
+        private final PersistentHashMap.Builder<RailSection<TPos>, RailSection<TPos>> allSections;
+        private final PersistentHashMap.Builder<RailEdge<TPos>, RailEdge<TPos>> allEdges;
+        private final PersistentHashMap.Builder<TPos, ImmutableList<RailEdge<TPos>>> positionsToEdgesBackward;
+        private final PersistentHashMap.Builder<TPos, RailEdge<TPos>> railPosToRailEdges;
+        private final PersistentHashMap.Builder<TPos, ImmutableList<RailEdge<TPos>>> intersectionsToEdges;
+
+        public StructureBuilder(RailNetwork<TPos> base){
+            railPosToRailSections = base != null ? base.railPosToRailSections.toBuilder() : PersistentHashMap.builder();
+            allSections = base != null ? base.allSections.toBuilder() : PersistentHashMap.builder();
+            allEdges = base != null ? base.allEdges.toBuilder() : PersistentHashMap.builder();
+            positionsToEdgesBackward = base != null ? base.positionsToEdgesBackward.toBuilder() : PersistentHashMap.builder();
+            railPosToRailEdges = base != null ? base.railPosToRailEdges.toBuilder() : PersistentHashMap.builder();
+            intersectionsToEdges = base != null ? base.intersectionsToEdges.toBuilder() : PersistentHashMap.builder();
+        }
+
+        public void addSection(RailSection<TPos> section){
+            allSections.put(section, section);
+            section.getRailPositions().forEach(pos -> railPosToRailSections.put(pos, section));
+        }
+
+        public void removeSection(RailSection<TPos> section){
+            allSections.remove(section);
+            section.getRailPositions().forEach(pos -> {
+                if(railPosToRailSections.get(pos) == section) railPosToRailSections.remove(pos);
+            });
+        }
+
+        public void addEdge(RailEdge<TPos> railEdge){
+            if(allEdges.get(railEdge) == null) {
+                allEdges.put(railEdge, railEdge);
+                if(railEdge.directionality.canTravelBackwards) putMulti(positionsToEdgesBackward, railEdge.startPos, railEdge);
+                if(railEdge.directionality.canTravelForwards) putMulti(positionsToEdgesBackward, railEdge.endPos, railEdge);
+                getIntersectionPositions(railEdge).forEach(pos -> putMulti(intersectionsToEdges, pos, railEdge));
+                for(int i = 0; i < railEdge.length; i++) {
+                    railPosToRailEdges.put(railEdge.get(i).getPos(), railEdge);
+                }
+            }
+        }
+
+        /**
+         * @param railEdge
+         * @param unmappedPositions gets the positions added that were mapped to the removed edge.
+         */
+        public void removeEdge(RailEdge<TPos> railEdge, Set<TPos> unmappedPositions){
+            allEdges.remove(railEdge);
+            removeMulti(positionsToEdgesBackward, railEdge.startPos, railEdge);
+            removeMulti(positionsToEdgesBackward, railEdge.endPos, railEdge);
+            getIntersectionPositions(railEdge).forEach(pos -> removeMulti(intersectionsToEdges, pos, railEdge));
+            for(NetworkRail<TPos> rail : railEdge) {
+                if(railEdge.equals(railPosToRailEdges.get(rail.getPos()))) {
+                    railPosToRailEdges.remove(rail.getPos());
+                    unmappedPositions.add(rail.getPos());
+                }
+            }
+        }
+
+        private static <K, V> void putMulti(PersistentHashMap.Builder<K, ImmutableList<V>> map, K key, V value){
+            ImmutableList<V> values = map.get(key);
+            map.put(key, values == null ? ImmutableList.of(value) : ImmutableList.<V> builder().addAll(values).add(value).build());
+        }
+
+        private static <K, V> void removeMulti(PersistentHashMap.Builder<K, ImmutableList<V>> map, K key, V value){
+            ImmutableList<V> values = map.get(key);
+            if(values != null && values.contains(value)) {
+                ImmutableList<V> remaining = values.stream().filter(v -> !v.equals(value)).collect(ImmutableList.toImmutableList());
+                if(remaining.isEmpty()) {
+                    map.remove(key);
+                } else {
+                    map.put(key, remaining);
+                }
             }
         }
     }
@@ -346,9 +691,31 @@ public class RailNetwork<TPos extends IPosition<TPos>> {
         return railPosToRailEdges.get(pos);
     }
 
+    /**
+     * Allocation free variant of {@link RailNetwork#findEdge(IPosition)}.
+     */
+    public RailEdge<TPos> findEdge(int plane, long packedPos){
+        build();
+        return railPosToRailEdges.get(IPosition.hashCode(plane, packedPos), plane, packedPos, RailObjectHolder.POS_MATCHER);
+    }
+
+    private static <TPos extends IPosition<TPos>> Stream<TPos> getIntersectionPositions(RailEdge<TPos> edge){
+        Stream<TPos> crossings = edge.getIntersectionsWithFirst(edge.startPos).stream().map(node -> node.pos);
+        return Stream.concat(Stream.of(edge.startPos, edge.endPos), crossings).distinct();
+    }
+
+    /**
+     * @param intersection
+     * @return all edges starting, ending, or crossing the given intersection
+     */
+    Collection<RailEdge<TPos>> findEdgesAtIntersection(TPos intersection){
+        build();
+        return intersectionsToEdges.getOrDefault(intersection, ImmutableList.of());
+    }
+
     public Collection<RailEdge<TPos>> findConnectedEdgesBackwards(TPos intersection){
         build();
-        return positionsToEdgesBackward.get(intersection);
+        return positionsToEdgesBackward.getOrDefault(intersection, ImmutableList.of());
     }
 
     /**
@@ -374,7 +741,11 @@ public class RailNetwork<TPos extends IPosition<TPos>> {
         if(positions == null) {
 
             RailEdge<TPos> edge = findEdge(signal.getRailPos());
-            if(edge == null) {
+            RailNetwork<TPos> base = reusedNetwork; //Only set while building
+            List<TPos> basePositions = base != null && edge != null && edge == base.findEdge(signal.getRailPos()) && signal.equals(base.railObjects.get(signal.getPos())) ? base.signalToPositionsInFrontCache.get(signal.getPos()) : null;
+            if(basePositions != null) { //The positions only depend on the signal and its edge
+                positions = basePositions;
+            } else if(edge == null) {
                 positions = Collections.emptyList();
             } else {
                 TPos firstPosInFront = signal.getRailPos().offset(signal.heading.getOpposite());
@@ -410,43 +781,38 @@ public class RailNetwork<TPos extends IPosition<TPos>> {
         return positions;
     }
 
-    public Set<TPos> getStationRails(Train<TPos> train, Pattern destinationRegex){
-        Set<TPos> rails = new HashSet<>();
-        Set<String> validNames = new HashSet<>();
-        List<NetworkStation<TPos>> stations = railObjects.getStations();
-        for(NetworkStation<TPos> station : stations) {
-            if(station.isTrainApplicable(train, destinationRegex)) {
-                rails.addAll(station.getConnectedRailPositions(this));
-                validNames.add(station.stationName);
+    /**
+     * The index of the stations by name, built once per network.
+     * @return
+     */
+    private StationIndex<TPos> getStationIndex(){
+        StationIndex<TPos> index = stationIndex;
+        if(index == null) {
+            synchronized(this) {
+                if(stationIndex == null) stationIndex = new StationIndex<>(this);
+                index = stationIndex;
             }
         }
+        return index;
+    }
 
-        //Make sure to include stations that don't match themselves, but other stations with the same name do.
-        for(NetworkStation<TPos> station : stations) {
-            if(validNames.contains(station.stationName)) {
-                rails.addAll(station.getConnectedRailPositions(this));
-            }
-        }
-        return rails;
+    /**
+     * @param train
+     * @param destinationRegex
+     * @return the rails next to the stations applicable for the train, including the stations with the same name as an applicable station.
+     * Not to be modified.
+     */
+    public Set<TPos> getStationRails(Train<TPos> train, Pattern destinationRegex){
+        return getStationIndex().getStationRails(train, destinationRegex);
     }
 
+    /**
+     * @param train
+     * @param destinationRegex
+     * @return the positions of the stations applicable for the train, including the stations with the same name as an applicable station.
+     * Not to be modified.
+     */
     public Set<TPos> getStations(Train<TPos> train, Pattern destinationRegex){
-        Set<TPos> stationPositions = new HashSet<>();
-        Set<String> validNames = new HashSet<>();
-        List<NetworkStation<TPos>> stations = railObjects.getStations();
-        for(NetworkStation<TPos> station : stations) {
-            if(station.isTrainApplicable(train, destinationRegex)) {
-                stationPositions.add(station.getPos());
-                validNames.add(station.stationName);
-            }
-        }
-
-        //Make sure to include stations that don't match themselves, but other stations with the same name do.
-        for(NetworkStation<TPos> station : stations) {
-            if(validNames.contains(station.stationName)) {
-                stationPositions.add(station.getPos());
-            }
-        }
-        return stationPositions;
+        return getStationIndex().getStations(train, destinationRegex);
     }
 }
@@ -1,10 +1,13 @@
 package com.minemaarten.signals.rail.network;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
 
-import com.google.common.collect.ImmutableMap;
 import com.minemaarten.signals.lib.IdentityHashSet;
+import com.minemaarten.signals.lib.PersistentHashMap;
 
 public class RailNetworkClient<TPos extends IPosition<TPos>> extends RailNetwork<TPos>{
 
@@ -15,19 +18,72 @@ public class RailNetworkClient<TPos extends IPosition<TPos>> extends RailNetwork
         super(allNetworkObjects);
     }
 
-    public RailNetworkClient(ImmutableMap<TPos, INetworkObject<TPos>> allNetworkObjects){
+    public RailNetworkClient(Map<TPos, INetworkObject<TPos>> allNetworkObjects){
         super(allNetworkObjects);
     }
 
+    public RailNetworkClient(RailNetworkClient<TPos> prevNetwork, Map<TPos, INetworkObject<TPos>> allNetworkObjects, Collection<TPos> changedPositions){
+        super(prevNetwork, allNetworkObjects, changedPositions);
+    }
+
     public static <TPos extends IPosition<TPos>> RailNetworkClient<TPos> empty(){
-        return new RailNetworkClient<>(ImmutableMap.<TPos, INetworkObject<TPos>> of());
+        return new RailNetworkClient<>(PersistentHashMap.<TPos, INetworkObject<TPos>> of());
     }
 
     @Override
     protected void onAfterBuild(){
         super.onAfterBuild();
-        adjacentSectionCache = calculateAdjacentSections(getAllSections());
-        adjacentEdgeCache = calculateAdjacentSections(getAllEdges());
+        RailNetwork<TPos> reusedNetwork = getReusedNetwork();
+        if(reusedNetwork instanceof RailNetworkClient) {
+            RailNetworkClient<TPos> prevNetwork = (RailNetworkClient<TPos>)reusedNetwork;
+            adjacentSectionCache = updateAdjacentSections(prevNetwork.adjacentSectionCache, getAllSections());
+            adjacentEdgeCache = updateAdjacentSections(prevNetwork.adjacentEdgeCache, getAllEdges());
+        } else {
+            adjacentSectionCache = calculateAdjacentSections(getAllSections());
+            adjacentEdgeCache = calculateAdjacentSections(getAllEdges());
+        }
+    }
+
+    /**
+     * Reuses the adjacency of the sections that were carried over from the previous network, and only calculates the adjacency of the new sections.
+     * @param prevCache
+     * @param allSections
+     * @return
+     */
+    private <T extends IAdjacentCheckable<T>> IdentityHashMap<T, IdentityHashSet<T>> updateAdjacentSections(IdentityHashMap<T, IdentityHashSet<T>> prevCache, Collection<T> allSections){
+        IdentityHashMap<T, IdentityHashSet<T>> map = new IdentityHashMap<>();
+        List<T> newSections = new ArrayList<>();
+        for(T section : allSections) {
+            IdentityHashSet<T> prevAdjacent = prevCache.get(section);
+            if(prevAdjacent != null) {
+                map.put(section, prevAdjacent);
+            } else {
+                newSections.add(section);
+            }
+        }
+
+        for(T section : newSections) {
+            map.put(section, new IdentityHashSet<>());
+        }
+        for(Map.Entry<T, IdentityHashSet<T>> entry : map.entrySet()) {
+            if(prevCache.containsKey(entry.getKey())) {
+                //Copy the sets of reused sections, removing the sections that aren't part of the network anymore.
+                IdentityHashSet<T> adjacentSections = new IdentityHashSet<>();
+                for(T adjacent : entry.getValue().keySet()) {
+                    if(map.containsKey(adjacent)) adjacentSections.add(adjacent);
+                }
+                entry.setValue(adjacentSections);
+            }
+        }
+
+        for(T s1 : newSections) {
+            for(T s2 : allSections) {
+                if(s1 != s2 && s1.isAdjacent(s2) && !map.get(s2).contains(s1)) {
+                    map.get(s1).add(s2);
+                }
+            }
+        }
+        return map;
     }
 
     private <T extends IAdjacentCheckable<T>> IdentityHashMap<T, IdentityHashSet<T>> calculateAdjacentSections(Collection<T> allSections){
@@ -53,11 +109,11 @@ public class RailNetworkClient<TPos extends IPosition<TPos>> extends RailNetwork
 
     public boolean areAdjacent(RailSection<TPos> s1, RailSection<TPos> s2){
         build();
-        return adjacentSectionCache.get(s1).contains(s2);
+        return adjacentSectionCache.get(s1).contains(s2) || adjacentSectionCache.get(s2).contains(s1);
     }
 
     public boolean areAdjacent(RailEdge<TPos> e1, RailEdge<TPos> e2){
         build();
-        return adjacentEdgeCache.get(e1).contains(e2);
+        return adjacentEdgeCache.get(e1).contains(e2) || adjacentEdgeCache.get(e2).contains(e1);
     }
 }
@@ -1,75 +1,174 @@
 package com.minemaarten.signals.rail.network;
 
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import com.google.common.base.Functions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableListMultimap;
-import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Multimaps;
 import com.google.common.reflect.TypeToken;
+import com.minemaarten.signals.lib.PersistentHashMap;
+import com.minemaarten.signals.lib.PersistentHashMap.PrimitiveKeyMatcher;
 import com.minemaarten.signals.lib.StreamUtils;
 
 /**
- * Helper class to allow querying network objects. Designed to be immutable.
+ * Helper class to allow querying network objects. Designed to be immutable. The objects are stored in a persistent map, so holders derived from
+ * another holder share most of their memory with it.
  * @author Maarten
  *
  * @param <TPos>
  */
 public class RailObjectHolder<TPos extends IPosition<TPos>> implements Iterable<INetworkObject<TPos>>{
-    private final ImmutableMap<TPos, INetworkObject<TPos>> allNetworkObjects;
-    private ImmutableListMultimap<TPos, IRailLink<TPos>> destinationsToRailLinks;
-    private final Map<Class<? extends INetworkObject<TPos>>, ImmutableList<? extends INetworkObject<TPos>>> objectTypeCache = new HashMap<>();
+    static final PrimitiveKeyMatcher<IPosition<?>> POS_MATCHER = IPosition::isAt;
+    private final PersistentHashMap<TPos, INetworkObject<TPos>> allNetworkObjects;
+    private volatile ImmutableListMultimap<TPos, IRailLink<TPos>> destinationsToRailLinks;
+    //Concurrent, as the network may be built from multiple threads
+    private final Map<Class<? extends INetworkObject<TPos>>, ImmutableList<? extends INetworkObject<TPos>>> objectTypeCache = new ConcurrentHashMap<>();
 
     public RailObjectHolder(Collection<INetworkObject<TPos>> allINetworkObjects){
         this(allINetworkObjects.stream());
     }
 
     public RailObjectHolder(Stream<INetworkObject<TPos>> allINetworkObjects){
-        this(allINetworkObjects.collect(ImmutableMap.toImmutableMap((INetworkObject<TPos> n) -> n.getPos(), Functions.identity())));
+        this(allINetworkObjects.collect(PersistentHashMap.toPersistentHashMap((INetworkObject<TPos> n) -> n.getPos(), Functions.identity())));
     }
 
-    public RailObjectHolder(ImmutableMap<TPos, INetworkObject<TPos>> allINetworkObjects){
-        this.allNetworkObjects = allINetworkObjects;
+    public RailObjectHolder(Map<TPos, INetworkObject<TPos>> allINetworkObjects){
+        this.allNetworkObjects = PersistentHashMap.copyOf(allINetworkObjects);
     }
 
-    public ImmutableMap<TPos, INetworkObject<TPos>> getAllNetworkObjects(){
+    public PersistentHashMap<TPos, INetworkObject<TPos>> getAllNetworkObjects(){
         return allNetworkObjects;
     }
 
     //Filter invalid signals, signals that are placed next to intersections, or not next to rails
     public RailObjectHolder<TPos> filterInvalidSignals(){
         Set<TPos> toRemove = new HashSet<>();
-        getSignals().forEach(signal -> {
-            INetworkObject<TPos> railObj = get(signal.getRailPos());
-            if(railObj instanceof NetworkRail) {
-                NetworkRail<TPos> rail = (NetworkRail<TPos>)railObj;
-                List<NetworkRail<TPos>> neighbors = rail.getSectionNeighborRails(this).collect(Collectors.toList());
-                if(neighbors.size() > 2) {
-                    toRemove.add(signal.getPos()); //Invalid: Attached to an intersection.
+        List<NetworkRail<TPos>> neighbors = new ArrayList<>();
+        for(NetworkSignal<TPos> signal : getSignals()) {
+            if(!isValidSignal(signal, neighbors)) toRemove.add(signal.getPos());
+        }
+
+        if(toRemove.isEmpty()) {
+            return this;//Short cut
+        } else {
+            return new RailObjectHolder<>(allNetworkObjects.minusAll(toRemove));
+        }
+    }
+
+    /**
+     * Like {@link RailObjectHolder#filterInvalidSignals()}, for a holder derived from a previous holder of which the valid signals are known.
+     * Only the signals of which the validity may have changed are validated again, see {@link RailObjectHolder#getPossiblyRevalidatedSignals}.
+     * @param prevUnfiltered the previous holder
+     * @param prevFiltered the previous holder, with its invalid signals filtered.
+     * @param changedPositions the positions that changed between the previous holder and this holder.
+     * @return
+     */
+    public RailObjectHolder<TPos> filterInvalidSignals(RailObjectHolder<TPos> prevUnfiltered, RailObjectHolder<TPos> prevFiltered, Collection<TPos> changedPositions){
+        PersistentHashMap.Builder<TPos, INetworkObject<TPos>> filtered = prevFiltered.allNetworkObjects.toBuilder();
+        for(TPos pos : changedPositions) {
+            INetworkObject<TPos> obj = get(pos);
+            if(obj != null) {
+                filtered.put(pos, obj);
+            } else {
+                filtered.remove(pos);
+            }
+        }
+        List<NetworkRail<TPos>> neighbors = new ArrayList<>();
+        for(TPos pos : getPossiblyRevalidatedSignals(prevUnfiltered, this, changedPositions)) {
+            INetworkObject<TPos> obj = get(pos);
+            if(obj instanceof NetworkSignal) {
+                if(isValidSignal((NetworkSignal<TPos>)obj, neighbors)) {
+                    filtered.put(pos, obj);
                 } else {
-                    EnumHeading signalHeading = signal.heading;
-                    if(neighbors.stream().map(n -> n.getPos().getRelativeHeading(rail.getPos())).anyMatch(h -> h != signalHeading && h != signalHeading.getOpposite())) {
-                        toRemove.add(signal.getPos());//Invalid: Not on a straight.
-                    }
+                    filtered.remove(pos);
                 }
-            } else {
-                toRemove.add(signal.getPos()); //Invalid: Not attached to a rail.
             }
-        });
+        }
+        PersistentHashMap<TPos, INetworkObject<TPos>> filteredObjects = filtered.build();
+        return filteredObjects.equals(allNetworkObjects) ? this : new RailObjectHolder<>(filteredObjects);
+    }
 
-        if(toRemove.isEmpty()) {
-            return this;//Short cut
+    private boolean isValidSignal(NetworkSignal<TPos> signal, List<NetworkRail<TPos>> neighbors){
+        INetworkObject<TPos> railObj = get(signal.getRailPos());
+        if(railObj instanceof NetworkRail) {
+            NetworkRail<TPos> rail = (NetworkRail<TPos>)railObj;
+            rail.getSectionNeighborRails(this, neighbors);
+            if(neighbors.size() > 2) {
+                return false; //Invalid: Attached to an intersection.
+            } else {
+                EnumHeading signalHeading = signal.heading;
+                //Invalid when not on a straight.
+                for(int i = 0; i < neighbors.size(); i++) {
+                    EnumHeading heading = neighbors.get(i).getPos().getRelativeHeading(rail.getPos());
+                    if(heading != signalHeading && heading != signalHeading.getOpposite()) return false;
+                }
+                return true;
+            }
         } else {
-            return new RailObjectHolder<>(allNetworkObjects.values().stream().filter(o -> !toRemove.contains(o.getPos())));
+            return false; //Invalid: Not attached to a rail.
+        }
+    }
+
+    /**
+     * The validity of a signal depends on the section neighbors of the rail it is attached to, so only the signals at the changed positions, and
+     * the signals attached to rails with changed neighbors can become valid or invalid. These are looked up by position, instead of checking every
+     * signal.
+     * @param prevObjects
+     * @param objects
+     * @param changedPositions the positions that changed between the two holders.
+     * @return the positions of the signals (in either holder) of which the validity may have changed.
+     */
+    static <TPos extends IPosition<TPos>> Set<TPos> getPossiblyRevalidatedSignals(RailObjectHolder<TPos> prevObjects, RailObjectHolder<TPos> objects, Collection<TPos> changedPositions){
+        Set<TPos> railPositions = new HashSet<>();
+        for(TPos pos : changedPositions) {
+            railPositions.add(pos);
+            addChangedNeighbors(railPositions, prevObjects, pos);
+            addChangedNeighbors(railPositions, objects, pos);
+        }
+
+        Set<TPos> signalPositions = new HashSet<>(changedPositions);
+        for(TPos railPos : railPositions) {
+            addAttachedSignals(signalPositions, prevObjects, railPos);
+            addAttachedSignals(signalPositions, objects, railPos);
+        }
+        return signalPositions;
+    }
+
+    /**
+     * Adds the rails of which the section neighbors may change, when the object at the given position changes.
+     */
+    private static <TPos extends IPosition<TPos>> void addChangedNeighbors(Set<TPos> railPositions, RailObjectHolder<TPos> railObjects, TPos pos){
+        INetworkObject<TPos> obj = railObjects.get(pos);
+        if(obj != null) {
+            railPositions.addAll(obj.getNetworkNeighbors());
+            if(obj instanceof IRailLink) {
+                TPos destination = ((IRailLink<TPos>)obj).getDestinationPos();
+                if(destination != null) railPositions.add(destination);
+            }
+        }
+        for(IRailLink<TPos> railLink : railObjects.findRailLinksConnectingTo(pos)) {
+            railPositions.addAll(railLink.getNetworkNeighbors());
+        }
+    }
+
+    private static <TPos extends IPosition<TPos>> void addAttachedSignals(Set<TPos> signalPositions, RailObjectHolder<TPos> railObjects, TPos railPos){
+        NetworkRail<TPos> rail = railObjects.getRail(railPos);
+        if(rail != null) {
+            List<TPos> neighbors = rail.getPotentialNeighborObjectLocations();
+            for(int i = 0; i < neighbors.size(); i++) {
+                INetworkObject<TPos> obj = railObjects.get(neighbors.get(i));
+                if(obj instanceof NetworkSignal && ((NetworkSignal<TPos>)obj).getRailPos().equals(railPos)) signalPositions.add(obj.getPos());
+            }
         }
     }
 
@@ -92,17 +191,24 @@ public class RailObjectHolder<TPos extends IPosition<TPos>> implements Iterable<
     }
 
     public RailObjectHolder<TPos> combine(RailObjectHolder<TPos> other){
-        Map<TPos, INetworkObject<TPos>> map = new HashMap<>(allNetworkObjects.size() + other.allNetworkObjects.size());
-        map.putAll(allNetworkObjects);
-        map.putAll(other.allNetworkObjects);
-        return new RailObjectHolder<>(ImmutableMap.copyOf(map));
+        return new RailObjectHolder<>(allNetworkObjects.plusAll(other.allNetworkObjects));
     }
 
     public INetworkObject<TPos> get(TPos pos){
         return allNetworkObjects.get(pos);
     }
 
-    private Collection<IRailLink<TPos>> findRailLinksConnectingTo(TPos pos){
+    /**
+     * Allocation free variant of {@link RailObjectHolder#get(IPosition)}.
+     * @param plane
+     * @param packedPos see {@link IPosition#toLong()}
+     * @return
+     */
+    public INetworkObject<TPos> get(int plane, long packedPos){
+        return allNetworkObjects.get(IPosition.hashCode(plane, packedPos), plane, packedPos, POS_MATCHER);
+    }
+
+    Collection<IRailLink<TPos>> findRailLinksConnectingTo(TPos pos){
         if(destinationsToRailLinks == null) {
             destinationsToRailLinks = Multimaps.index(getRailLinks().iterator(), IRailLink::getDestinationPos);
         }
@@ -118,6 +224,28 @@ public class RailObjectHolder<TPos extends IPosition<TPos>> implements Iterable<
         return obj instanceof NetworkRail ? (NetworkRail<TPos>)obj : null;
     }
 
+    public NetworkRail<TPos> getRail(int plane, long packedPos){
+        INetworkObject<TPos> obj = get(plane, packedPos);
+        return obj instanceof NetworkRail ? (NetworkRail<TPos>)obj : null;
+    }
+
+    /**
+     * @param rail
+     * @param heading the heading of the signal, or null for any heading.
+     * @return the signal attached to the given rail.
+     */
+    public NetworkSignal<TPos> getAttachedSignal(NetworkRail<TPos> rail, EnumHeading heading){
+        List<TPos> neighbors = rail.getPotentialNeighborObjectLocations();
+        for(int i = 0; i < neighbors.size(); i++) {
+            INetworkObject<TPos> obj = get(neighbors.get(i));
+            if(obj instanceof NetworkSignal) {
+                NetworkSignal<TPos> signal = (NetworkSignal<TPos>)obj;
+                if((heading == null || signal.heading == heading) && signal.getRailPos().equals(rail.getPos())) return signal;
+            }
+        }
+        return null;
+    }
+
     public int getNeighborRailCount(Collection<TPos> potentialNeighbors){
         int count = 0;
         for(TPos neighbor : potentialNeighbors) {
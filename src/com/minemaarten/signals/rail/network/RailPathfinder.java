@@ -1,91 +1,261 @@
 package com.minemaarten.signals.rail.network;
 
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Map;
-import java.util.PriorityQueue;
-import java.util.Queue;
 import java.util.Set;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Iterables;
+import com.minemaarten.signals.rail.network.DestinationTreeCache.DestinationTree;
 import com.minemaarten.signals.rail.network.RailRoute.RailRouteNode;
 import com.minemaarten.signals.rail.network.RailRoute.RailRouteResult;
 
 public class RailPathfinder<TPos extends IPosition<TPos>> {
+    /**
+     * The buffers of the searches are reused per thread, to prevent putting pressure on GC.
+     */
+    private static final ThreadLocal<SearchBuffers<?>> SEARCH_BUFFERS = ThreadLocal.withInitial(SearchBuffers::new);
+
     private final RailNetwork<TPos> network;
     private final NetworkState<TPos> state;
+    private int[] edgeWeights; //The path lengths of the edges of the network, or null when the state isn't updated for the network
 
     public RailPathfinder(RailNetwork<TPos> network, NetworkState<TPos> state){
         this.network = network;
         this.state = state;
     }
 
-    public class AStarRailNode implements Comparable<AStarRailNode>{
-        private int distanceFromGoal = Integer.MAX_VALUE;
-        private AStarRailNode prevNode;
-        private final TPos goal;
-        private final TPos pos;
-        public RailEdge<TPos> edge;
-
-        //  public final EnumHeading pathDir;
-
-        public AStarRailNode(TPos pos, RailEdge<TPos> edge, /* EnumHeading pathDir,*/TPos goal){
-            this.pos = pos;
-            this.edge = edge;
-            // this.pathDir = pathDir;
-            this.goal = goal;
-        }
-
-        public boolean checkImprovementAndUpdate(AStarRailNode node, RailEdge<TPos> edge, int edgeLength){
-            int nodeDist = node.distanceFromGoal + edgeLength;
-            if(nodeDist < distanceFromGoal) {
-                prevNode = node;
-                this.edge = edge;
-                distanceFromGoal = nodeDist;
-                return true;
-            } else {
-                return false;
+    /**
+     * The distances to the destinations found by a search, and the next node and edge toward the destinations, indexed by the node ids
+     * of the network. Positions that are not a node, like destinations in the middle of an edge, get ids after the nodes of the network.
+     * @author Maarten
+     *
+     * @param <TPos>
+     */
+    static class SearchLabels<TPos extends IPosition<TPos>> {
+        protected NetworkIds<TPos> ids;
+        protected int nodeCount;
+        protected List<TPos> extraNodes = new ArrayList<>();
+        protected int[] distances = new int[0];
+        protected int[] nextNodes = new int[0];
+        protected RailEdge<TPos>[] edges = newEdgeArray(0); //The edge from the node to the next node
+        protected EnumHeading[] edgeHeadings = new EnumHeading[0]; //The heading of the edge at the node
+        protected int[] stamps = new int[0]; //Labels are only valid for the nodes that have the current stamp, so the buffers don't need to be cleared.
+        protected int stamp;
+
+        public boolean isReached(int node){
+            return stamps[node] == stamp;
+        }
+
+        public int getDistance(int node){
+            return isReached(node) ? distances[node] : Integer.MAX_VALUE;
+        }
+
+        public TPos getPos(int node){
+            return node < nodeCount ? ids.getNode(node) : extraNodes.get(node - nodeCount);
+        }
+
+        /**
+         * @param pos
+         * @return the id of the node at the given pos, or -1 when there's no node at the pos.
+         */
+        public int getNodeId(TPos pos){
+            int node = ids.getNodeId(pos);
+            if(node == NetworkIds.NO_ID) {
+                int extraIndex = extraNodes.indexOf(pos);
+                if(extraIndex >= 0) node = nodeCount + extraIndex;
+            }
+            return node;
+        }
+
+        /**
+         * @return a copy of the labels, which isn't affected by further searches.
+         */
+        public SearchLabels<TPos> copy(){
+            int size = nodeCount + extraNodes.size();
+            SearchLabels<TPos> copy = new SearchLabels<>();
+            copy.ids = ids;
+            copy.nodeCount = nodeCount;
+            copy.extraNodes = new ArrayList<>(extraNodes);
+            copy.distances = Arrays.copyOf(distances, size);
+            copy.nextNodes = Arrays.copyOf(nextNodes, size);
+            copy.edges = Arrays.copyOf(edges, size);
+            copy.edgeHeadings = Arrays.copyOf(edgeHeadings, size);
+            copy.stamps = Arrays.copyOf(stamps, size);
+            copy.stamp = stamp;
+            return copy;
+        }
+    }
+
+    /**
+     * The labels, and the indexed binary heap of nodes to visit, ordered by distance + heuristic.
+     */
+    private static class SearchBuffers<TPos extends IPosition<TPos>> extends SearchLabels<TPos> {
+        private int[] costs = new int[0];
+        private int[] heuristics = new int[0]; //The lower bound of the distance from the start, calculated once per node per search
+        private int[] heapIndices = new int[0]; //The index of each node in the heap, or -1
+        private int[] heap = new int[0];
+        private int heapSize;
+        private int[] goalStamps = new int[0];
+        private Landmarks<TPos> landmarks;
+        private int[] heuristicSources = new int[0]; //The nodes the start leads to, with the distance from the start to them
+        private int[] heuristicSourceDistances = new int[0];
+        private int heuristicSourceCount;
+
+        public void reset(NetworkIds<TPos> ids, int maxExtraNodes){
+            this.ids = ids;
+            nodeCount = ids.getNodeCount();
+            extraNodes.clear();
+            heapSize = 0;
+            int size = nodeCount + maxExtraNodes;
+            if(distances.length < size) {
+                distances = new int[size];
+                nextNodes = new int[size];
+                edges = newEdgeArray(size);
+                edgeHeadings = new EnumHeading[size];
+                stamps = new int[size];
+                costs = new int[size];
+                heuristics = new int[size];
+                heapIndices = new int[size];
+                heap = new int[size];
+                goalStamps = new int[size];
+                stamp = 0;
+            }
+            if(stamp == Integer.MAX_VALUE) {
+                Arrays.fill(stamps, 0);
+                Arrays.fill(goalStamps, 0);
+                stamp = 0;
+            }
+            stamp++;
+        }
+
+        public int getOrAddNode(TPos pos){
+            int node = getNodeId(pos);
+            if(node == NetworkIds.NO_ID) {
+                node = nodeCount + extraNodes.size();
+                extraNodes.add(pos);
             }
+            return node;
         }
 
         /**
-         * Next node from the caller's POV.
-         * @return
+         * Sets the nodes the heuristic measures the distance from, with the distance of the start to them. Without sources there's no heuristic.
          */
-        public AStarRailNode getNextNode(){
-            return prevNode;
+        public void setHeuristicSources(Landmarks<TPos> landmarks, int[] sources, int[] sourceDistances, int sourceCount){
+            this.landmarks = landmarks;
+            if(heuristicSources.length < sourceCount) {
+                heuristicSources = new int[sourceCount];
+                heuristicSourceDistances = new int[sourceCount];
+            }
+            System.arraycopy(sources, 0, heuristicSources, 0, sourceCount);
+            System.arraycopy(sourceDistances, 0, heuristicSourceDistances, 0, sourceCount);
+            heuristicSourceCount = sourceCount;
         }
 
-        public TPos getRail(){
-            return pos;
+        public void reach(int node){
+            stamps[node] = stamp;
+            heapIndices[node] = -1;
+            heuristics[node] = getHeuristic(node);
         }
 
-        private double getCost(){
-            return distanceFromGoal + (goal != null ? getDistance(goal) : 0); //A*
+        /**
+         * A*, with a lower bound of the distance from the start to the node via the landmarks (ALT), which, unlike the straight line distance,
+         * also holds for routes that cross dimensions or teleport. The shortest route from the start passes one of the sources.
+         */
+        private int getHeuristic(int node){
+            if(heuristicSourceCount == 0 || node >= nodeCount) return 0;
+            int heuristic = Integer.MAX_VALUE;
+            for(int i = 0; i < heuristicSourceCount; i++) {
+                heuristic = Math.min(heuristic, heuristicSourceDistances[i] + landmarks.getLowerBound(heuristicSources[i], node));
+            }
+            return heuristic;
         }
 
-        /* public EnumHeading getPathDir(){
-             return pathDir;
-         }*/
+        public void push(int node){
+            costs[node] = distances[node] + heuristics[node];
+            if(heapIndices[node] < 0) {
+                heap[heapSize] = node;
+                heapIndices[node] = heapSize;
+                heapSize++;
+            }
+            siftUp(heapIndices[node]);
+        }
 
-        @Override
-        public int compareTo(AStarRailNode node){
-            return Double.compare(getCost(), node.getCost());
+        public int pop(){
+            int node = heap[0];
+            heapIndices[node] = -1;
+            heapSize--;
+            if(heapSize > 0) {
+                heap[0] = heap[heapSize];
+                heapIndices[heap[0]] = 0;
+                siftDown(0);
+            }
+            return node;
         }
 
-        private double getDistance(TPos rail){
-            return Math.sqrt(this.pos.distanceSq(rail));
+        /**
+         * Orders by cost, and on equal costs by the furthest from the goals, which is the closest to the start, so equally good nodes
+         * are followed through to the start instead of being expanded side by side.
+         */
+        private boolean isBefore(int node, int otherNode){
+            return costs[node] < costs[otherNode] || costs[node] == costs[otherNode] && distances[node] > distances[otherNode];
+        }
+
+        private void siftUp(int index){
+            int node = heap[index];
+            while(index > 0) {
+                int parentIndex = (index - 1) >>> 1;
+                int parent = heap[parentIndex];
+                if(!isBefore(node, parent)) break;
+                heap[index] = parent;
+                heapIndices[parent] = index;
+                index = parentIndex;
+            }
+            heap[index] = node;
+            heapIndices[node] = index;
+        }
+
+        private void siftDown(int index){
+            int node = heap[index];
+            int half = heapSize >>> 1;
+            while(index < half) {
+                int childIndex = 2 * index + 1;
+                int child = heap[childIndex];
+                int rightIndex = childIndex + 1;
+                if(rightIndex < heapSize && isBefore(heap[rightIndex], child)) {
+                    childIndex = rightIndex;
+                    child = heap[childIndex];
+                }
+                if(!isBefore(child, node)) break;
+                heap[index] = child;
+                heapIndices[child] = index;
+                index = childIndex;
+            }
+            heap[index] = node;
+            heapIndices[node] = index;
         }
     }
 
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private static <TPos extends IPosition<TPos>> RailEdge<TPos>[] newEdgeArray(int size){
+        return new RailEdge[size];
+    }
+
+    @SuppressWarnings("unchecked")
+    private SearchBuffers<TPos> getSearchBuffers(int maxExtraNodes){
+        SearchBuffers<TPos> buffers = (SearchBuffers<TPos>)SEARCH_BUFFERS.get();
+        buffers.reset(network.getIds(), maxExtraNodes);
+        return buffers;
+    }
+
     /**
      * @param start
      * @param destination
@@ -94,7 +264,15 @@ public class RailPathfinder<TPos extends IPosition<TPos>> {
     public RailRouteResult<TPos> pathfindToDestination(TPos start, Train<TPos> train, Pattern destinationRegex, EnumHeading direction){
         Set<TPos> stations = network.getStationRails(train, destinationRegex);
         if(stations.isEmpty()) return RailRouteResult.noStations();
+
+        RailRouteCache<TPos> routeCache = state.getRouteCache(network);
+        if(routeCache != null) {
+            RailRouteResult<TPos> cachedResult = routeCache.get(start, direction, destinationRegex, network, stations, state);
+            if(cachedResult != null) return cachedResult;
+        }
+
         RailRoute<TPos> route = pathfindToDestination(start, direction, stations);
+        if(routeCache != null) routeCache.put(start, direction, destinationRegex, network, stations, route, state);
         return route != null ? RailRouteResult.success(route) : RailRouteResult.noPath();
     }
 
@@ -103,37 +281,26 @@ public class RailPathfinder<TPos extends IPosition<TPos>> {
      */
     public RailRoute<TPos> pathfindToDestination(TPos start, EnumHeading direction, Set<TPos> goals){
         if(goals.isEmpty()) return null;
-
-        Map<TPos, RailEdge<TPos>> startToFirstIntersections;
+        edgeWeights = state.getEdgeWeights(network.getIds());
 
         RailEdge<TPos> startPosEdge = network.findEdge(start);
-        List<RailEdge<TPos>> startToFirstIntersectionList = startPosEdge != null && !startPosEdge.isAtStartOrEnd(start) ? startPosEdge.createExitPoints(start, direction) : null;
-        if(startToFirstIntersectionList == null) {
-            startToFirstIntersections = Collections.emptyMap();
-        } else {
-            if(startToFirstIntersectionList.isEmpty()) {
-                //When the start pos is in the middle of an edge, but we can't route to an end, we will never be able to route a train.
-                //Example: A signal facing in the opposite direction
-                return null;
-            } else {
-                startToFirstIntersections = startToFirstIntersectionList.stream().collect(Collectors.toMap(e -> e.other(start), e -> e));
-            }
+        List<RailEdge<TPos>> startToFirstIntersections = startPosEdge != null && !startPosEdge.isAtStartOrEnd(start) ? startPosEdge.createExitPoints(start, direction) : Collections.emptyList();
+        if(startPosEdge != null && !startPosEdge.isAtStartOrEnd(start) && startToFirstIntersections.isEmpty()) {
+            //When the start pos is in the middle of an edge, but we can't route to an end, we will never be able to route a train.
+            //Example: A signal facing in the opposite direction
+            return null;
         }
 
-        Queue<AStarRailNode> queue = new PriorityQueue<>();
-        Set<TPos> traversedRails = new HashSet<>();
-        Map<TPos, AStarRailNode> nodeMap = new HashMap<>();
-
-        AStarRailNode bestRoute = null; //In practice there will only be one route, as paths are created at a signal, which cannot be on an intersection.
+        //In practice there will only be one route, as paths are created at a signal, which cannot be on an intersection.
+        TPos bestRoutePos = null;
+        RailEdge<TPos> bestRouteEdge = null;
+        int bestDistance = Integer.MAX_VALUE;
 
         for(TPos goal : goals) {
-            AStarRailNode goalNode = new AStarRailNode(goal, null, /*null,*/start);
-            goalNode.distanceFromGoal = 0;
-            queue.add(goalNode);
-            nodeMap.put(goal, goalNode);
-
             if(start.equals(goal)) {
-                bestRoute = goalNode;
+                bestRoutePos = goal;
+                bestRouteEdge = null;
+                bestDistance = 0;
             } else
             //Special case: start is on the same edge as one of the goals.
             if(startPosEdge != null && startPosEdge.contains(goal)) {
@@ -147,99 +314,365 @@ public class RailPathfinder<TPos extends IPosition<TPos>> {
 
                 RailEdge<TPos> singleEdge = startPosEdge.subEdge(startIndex, endIndex);
                 if(singleEdge.canTravelFrom(start) && (direction == null || direction == EnumHeading.getOpposite(singleEdge.headingForEndpoint(start)))) {
-                    bestRoute = new AStarRailNode(goal, singleEdge, goal);
-                    bestRoute.distanceFromGoal = endIndex - startIndex;
+                    bestRoutePos = goal;
+                    bestRouteEdge = singleEdge;
+                    bestDistance = endIndex - startIndex;
                 }
             }
         }
 
-        while(!queue.isEmpty()) {
-            AStarRailNode node = queue.remove(); //Take the node with the highest priority of the queue.
-            traversedRails.add(node.pos); //Mark it as traversed so we won't put it on the queue anymore.
-
-            //Branch and bound as soon as we get nodes that cannot get better than our current solution.
-            if(bestRoute != null && node.distanceFromGoal >= bestRoute.distanceFromGoal) {
-                break;
+        ContractionHierarchy.Metric<TPos> hierarchyMetric = state.getContractionHierarchyMetric(network);
+        DestinationTreeCache<TPos> treeCache = state.getDestinationTreeCache(network);
+        if(hierarchyMetric != null) {
+            RailRoute<TPos> route = findRouteInHierarchy(hierarchyMetric, start, goals, startToFirstIntersections, bestDistance);
+            if(route != null) return route;
+        } else if(treeCache != null) {
+            DestinationTree<TPos> tree = treeCache.get(goals, state);
+            if(tree == null) {
+                tree = buildDestinationTree(goals);
+                treeCache.put(goals, tree);
+            }
+            RailRoute<TPos> route = findRouteInTree(tree.labels, start, startToFirstIntersections, bestDistance);
+            if(route != null) return route;
+        } else if(bestDistance > 0) {
+            SearchBuffers<TPos> buffers = getSearchBuffers(goals.size() + 1);
+            int startNode = buffers.getOrAddNode(start);
+            if(search(buffers, start, startNode, goals, startToFirstIntersections, bestDistance, null)) {
+                return toRailRoute(buffers, buffers.getPos(startNode), buffers.edges[startNode], buffers.nextNodes[startNode]);
             }
+        }
 
-            //Find the edges that lead into this intersection
-            Collection<RailEdge<TPos>> networkEntryEdges = network.findConnectedEdgesBackwards(node.pos);
+        return bestDistance < Integer.MAX_VALUE ? toRailRoute(null, bestRoutePos, bestRouteEdge, NetworkIds.NO_ID) : null;
+    }
 
-            //When nothing is found, check if we are currently checking the destination nodes, if so, we may not be on an intersection
-            if(networkEntryEdges.isEmpty() && goals.contains(node.pos)) {
-                RailEdge<TPos> destEdge = network.findEdge(node.pos);
+    /**
+     * Searches the shortest paths from all intersections to the given destinations, without a start to stop at.
+     * @param goals
+     * @return
+     */
+    private DestinationTree<TPos> buildDestinationTree(Set<TPos> goals){
+        SearchBuffers<TPos> buffers = getSearchBuffers(goals.size());
+        BitSet offTreeSignalIds = new BitSet();
+        search(buffers, null, NetworkIds.NO_ID, goals, Collections.emptyList(), Integer.MAX_VALUE, offTreeSignalIds);
+
+        SearchLabels<TPos> labels = buffers.copy();
+        BitSet treeSignalIds = new BitSet();
+        for(int node = 0; node < labels.nodeCount + labels.extraNodes.size(); node++) {
+            RailEdge<TPos> edge = labels.isReached(node) ? labels.edges[node] : null;
+            if(edge != null) addSignalIds(treeSignalIds, labels.ids, edge, labels.ids.getEdgeId(edge));
+        }
+        offTreeSignalIds.andNot(treeSignalIds);
+        return new DestinationTree<>(labels, treeSignalIds, offTreeSignalIds, state.getRedSignalEpoch());
+    }
 
-                //Make sure the edge to be considered can be split up, or else it should've been considered already in 'findConnectedEdgesBackwards'
-                if(destEdge != null && !destEdge.isAtStartOrEnd(node.pos)) {
-                    networkEntryEdges = destEdge.createEntryPoints(node.pos);
-                }
+    /**
+     * Finds the route from the start, by looking up the shortest path from the start, or from the intersections the start leads to.
+     * This results in the same route as a search from the start, as the shortest paths in the tree are final.
+     * @return the route, or null when there's no route shorter than the given distance.
+     */
+    private RailRoute<TPos> findRouteInTree(SearchLabels<TPos> tree, TPos start, List<RailEdge<TPos>> startToFirstIntersections, int bestDistance){
+        RailEdge<TPos> bestEdge = null;
+        int bestNextNode = NetworkIds.NO_ID;
+
+        int startNode = tree.getNodeId(start);
+        if(startNode != NetworkIds.NO_ID && tree.isReached(startNode) && tree.edges[startNode] != null && tree.distances[startNode] < bestDistance) {
+            bestDistance = tree.distances[startNode];
+            bestEdge = tree.edges[startNode];
+            bestNextNode = tree.nextNodes[startNode];
+        }
+
+        for(RailEdge<TPos> startToIntersection : startToFirstIntersections) {
+            TPos intersection = startToIntersection.other(start);
+            int node = tree.getNodeId(intersection);
+            if(node == NetworkIds.NO_ID || !tree.isReached(node)) continue;
+            if(tree.edges[node] != null && tree.edgeHeadings[node] == startToIntersection.headingForEndpoint(intersection)) {
+                continue; //We can't go back on the same edge
             }
+            int distance = tree.distances[node] + startToIntersection.getPathLength(state);
+            if(distance < bestDistance) {
+                bestDistance = distance;
+                bestEdge = startToIntersection;
+                bestNextNode = node;
+            }
+        }
+        return bestEdge != null ? toRailRoute(tree, start, bestEdge, bestNextNode) : null;
+    }
 
-            //Append the fake start edges, if applicable.
-            Iterable<RailEdge<TPos>> entryEdges;
-            RailEdge<TPos> startToIntersection = startToFirstIntersections.get(node.pos);
-            if(startToIntersection != null) {
-                entryEdges = Iterables.concat(networkEntryEdges, Collections.singleton(startToIntersection));
-            } else {
-                entryEdges = networkEntryEdges;
+    /**
+     * Finds the route via the contraction hierarchy, from the ways the start leads into the network to the ways the goals can be arrived at.
+     * @return the route, or null when there's no route shorter than the given distance.
+     */
+    private RailRoute<TPos> findRouteInHierarchy(ContractionHierarchy.Metric<TPos> metric, TPos start, Set<TPos> goals, List<RailEdge<TPos>> startToFirstIntersections, int bestDistance){
+        ContractionHierarchy<TPos> hierarchy = metric.hierarchy;
+        NetworkIds<TPos> ids = hierarchy.getIds();
+        RailRoute<TPos> bestRoute = null;
+
+        //The first edges of the route, and the vertices they arrive at.
+        List<RailEdge<TPos>> firstEdges = new ArrayList<>();
+        TIntList sources = new TIntArrayList(), sourceDistances = new TIntArrayList();
+        int startNode = ids.getNodeId(start);
+        if(startNode != NetworkIds.NO_ID) {
+            int[] exitEdgeIds = hierarchy.getExitEdgeIds(startNode);
+            for(int i = 0; i < exitEdgeIds.length; i++) {
+                RailEdge<TPos> exitEdge = ids.getEdge(exitEdgeIds[i]);
+                firstEdges.add(exitEdge);
+                sources.add(hierarchy.getExitVertices(startNode)[i]);
+                sourceDistances.add(edgeWeights != null ? edgeWeights[exitEdgeIds[i]] : exitEdge.getPathLength(state));
+            }
+        }
+        for(RailEdge<TPos> startToIntersection : startToFirstIntersections) {
+            TPos intersection = startToIntersection.other(start);
+            int vertex = hierarchy.getVertex(ids.getNodeId(intersection), startToIntersection.headingForEndpoint(intersection));
+            if(vertex != NetworkIds.NO_ID) {
+                firstEdges.add(startToIntersection);
+                sources.add(vertex);
+                sourceDistances.add(startToIntersection.getPathLength(state));
             }
+        }
 
-            for(RailEdge<TPos> nextEdge : entryEdges) {
-                if(node.edge != null && node.edge.headingForEndpoint(node.pos) == nextEdge.headingForEndpoint(node.pos)) {
-                    continue; //We can't go back on the same edge
+        //The last edges of the route, to goals in the middle of an edge, and the vertices they leave from.
+        List<RailEdge<TPos>> lastEdges = new ArrayList<>();
+        TIntList targets = new TIntArrayList(), targetDistances = new TIntArrayList();
+        for(TPos goal : goals) {
+            int goalNode = ids.getNodeId(goal);
+            if(goalNode != NetworkIds.NO_ID && ids.getEntryHeadings(goalNode).length > 0) {
+                TIntList goalVertices = hierarchy.getArrivalVertices(goalNode);
+                for(int i = 0; i < goalVertices.size(); i++) {
+                    lastEdges.add(null);
+                    targets.add(goalVertices.get(i));
+                    targetDistances.add(0);
                 }
+            } else {
+                RailEdge<TPos> destEdge = network.findEdge(goal);
+                if(destEdge != null && !destEdge.isAtStartOrEnd(goal)) {
+                    for(RailEdge<TPos> entryEdge : destEdge.createEntryPoints(goal)) {
+                        TPos entryPos = entryEdge.other(goal);
+                        int entryNode = ids.getNodeId(entryPos);
+                        EnumHeading entryHeading = entryEdge.headingForEndpoint(entryPos);
+                        int distance = entryEdge.getPathLength(state);
+                        if(entryNode == startNode && distance < bestDistance) {
+                            bestDistance = distance;
+                            bestRoute = toRailRoute(start, Collections.singletonList(entryEdge));
+                        }
+                        int entryVertex = hierarchy.getVertex(entryNode, entryHeading);
+                        TIntList arrivalVertices = hierarchy.getArrivalVertices(entryNode);
+                        for(int i = 0; i < arrivalVertices.size(); i++) {
+                            if(arrivalVertices.get(i) != entryVertex) { //We can't go back on the same edge
+                                lastEdges.add(entryEdge);
+                                targets.add(arrivalVertices.get(i));
+                                targetDistances.add(distance);
+                            }
+                        }
+                    }
+                }
+            }
+        }
 
-                TPos nextPos = nextEdge.other(node.pos);
-                AStarRailNode neighborNode = nodeMap.get(nextPos);
-                if(neighborNode == null) {
-                    neighborNode = new AStarRailNode(nextPos, nextEdge, start);
-                    nodeMap.put(nextPos, neighborNode);
+        ContractionHierarchy.Path path = hierarchy.query(metric, sources, sourceDistances, targets, targetDistances, bestDistance);
+        if(path == null) return bestRoute;
+        List<RailEdge<TPos>> routeEdges = new ArrayList<>(path.edgeIds.size() + 2);
+        routeEdges.add(firstEdges.get(path.sourceIndex));
+        for(int i = 0; i < path.edgeIds.size(); i++) {
+            routeEdges.add(ids.getEdge(path.edgeIds.get(i)));
+        }
+        if(lastEdges.get(path.targetIndex) != null) routeEdges.add(lastEdges.get(path.targetIndex));
+        return toRailRoute(start, routeEdges);
+    }
+
+    /**
+     * Searches backwards from the goals, until the start is found, or until all intersections are visited when there's no start.
+     * @param buffers the buffers to put the labels of the visited nodes in.
+     * @param start the pos to search for, or null to search to all intersections.
+     * @param startNode the node id of the start, or -1.
+     * @param goals
+     * @param startToFirstIntersections the fake edges from the start to the first intersections, when the start is not on an intersection.
+     * @param bestDistance the distance of the best route found so far.
+     * @param relaxedSignalIds when not null, the ids of the signals on all considered edges are added to this.
+     * @return true when a route from the start is found that is shorter than the given best distance.
+     */
+    private boolean search(SearchBuffers<TPos> buffers, TPos start, int startNode, Set<TPos> goals, List<RailEdge<TPos>> startToFirstIntersections, int bestDistance, BitSet relaxedSignalIds){
+        NetworkIds<TPos> ids = buffers.ids;
+        boolean foundStart = false;
+        int[] startEdgeNodes = new int[startToFirstIntersections.size()];
+        for(int i = 0; i < startEdgeNodes.length; i++) {
+            startEdgeNodes[i] = buffers.getNodeId(startToFirstIntersections.get(i).other(start));
+        }
+
+        Landmarks<TPos> landmarks = network.getBuiltLandmarks();
+        if(start == null || landmarks == null) { //Without landmarks, fall back to a search without heuristic, as that's still exact.
+            buffers.setHeuristicSources(null, new int[0], new int[0], 0);
+        } else if(startNode < buffers.nodeCount) {
+            buffers.setHeuristicSources(landmarks, new int[]{startNode}, new int[]{0}, 1);
+        } else {
+            //Any route from the start leads over the first intersections.
+            int[] startEdgeLengths = new int[startEdgeNodes.length];
+            int sourceCount = startEdgeNodes.length;
+            for(int i = 0; i < startEdgeNodes.length; i++) {
+                startEdgeLengths[i] = startToFirstIntersections.get(i).length;
+                if(startEdgeNodes[i] == NetworkIds.NO_ID || startEdgeNodes[i] >= buffers.nodeCount) sourceCount = 0;
+            }
+            buffers.setHeuristicSources(landmarks, startEdgeNodes, startEdgeLengths, sourceCount);
+        }
+
+        for(TPos goal : goals) {
+            int goalNode = buffers.getOrAddNode(goal);
+            buffers.reach(goalNode);
+            buffers.distances[goalNode] = 0;
+            buffers.nextNodes[goalNode] = NetworkIds.NO_ID;
+            buffers.edges[goalNode] = null;
+            buffers.edgeHeadings[goalNode] = null;
+            buffers.goalStamps[goalNode] = buffers.stamp;
+            buffers.push(goalNode);
+        }
+
+        while(buffers.heapSize > 0) {
+            int node = buffers.pop(); //Take the node with the highest priority of the queue.
+
+            //Branch and bound as soon as we get nodes that cannot get better than our current solution.
+            //As the heuristic never overestimates, the distance to the start is at least the cost.
+            if(buffers.costs[node] >= bestDistance) {
+                break;
+            }
+
+            //Relax the edges that lead into this intersection
+            boolean hasEntryEdges = false;
+            if(node < buffers.nodeCount) {
+                RailEdge<TPos>[] entryEdges = ids.getEntryEdges(node);
+                int[] entryEdgeIds = ids.getEntryEdgeIds(node);
+                int[] entryNodes = ids.getEntryNodes(node);
+                EnumHeading[] entryHeadings = ids.getEntryHeadings(node);
+                EnumHeading[] entryOtherHeadings = ids.getEntryOtherHeadings(node);
+                hasEntryEdges = entryEdges.length > 0;
+                for(int i = 0; i < entryEdges.length; i++) {
+                    if(relax(buffers, node, entryEdges[i], entryEdgeIds[i], entryNodes[i], entryHeadings[i], entryOtherHeadings[i], relaxedSignalIds)) {
+                        if(entryNodes[i] == startNode && buffers.distances[startNode] < bestDistance) {
+                            bestDistance = buffers.distances[startNode];
+                            foundStart = true;
+                        }
+                    }
                 }
-                if(neighborNode.checkImprovementAndUpdate(node, nextEdge, nextEdge.getPathLength(state))) {
-                    queue.add(neighborNode);
+            }
 
-                    if(neighborNode.pos.equals(start)) { //If we find the start, we have found a valid path from start to end.
+            //When nothing is found, check if we are currently checking the destination nodes, if so, we may not be on an intersection
+            if(!hasEntryEdges && buffers.goalStamps[node] == buffers.stamp) {
+                TPos pos = buffers.getPos(node);
+                RailEdge<TPos> destEdge = network.findEdge(pos);
+
+                //Make sure the edge to be considered can be split up, or else it should've been considered already in 'findConnectedEdgesBackwards'
+                if(destEdge != null && !destEdge.isAtStartOrEnd(pos)) {
+                    for(RailEdge<TPos> entryEdge : destEdge.createEntryPoints(pos)) {
+                        TPos nextPos = entryEdge.other(pos);
+                        int nextNode = buffers.getOrAddNode(nextPos);
+                        if(relax(buffers, node, entryEdge, NetworkIds.NO_ID, nextNode, entryEdge.headingForEndpoint(pos), entryEdge.headingForEndpoint(nextPos), relaxedSignalIds)) {
+                            if(nextNode == startNode && buffers.distances[startNode] < bestDistance) {
+                                bestDistance = buffers.distances[startNode];
+                                foundStart = true;
+                            }
+                        }
+                    }
+                }
+            }
 
-                        //If it's a better solution
-                        if(bestRoute == null || neighborNode.distanceFromGoal < bestRoute.distanceFromGoal) {
-                            bestRoute = neighborNode;
+            //The fake start edges, if applicable.
+            for(int i = 0; i < startEdgeNodes.length; i++) {
+                if(node == startEdgeNodes[i]) {
+                    RailEdge<TPos> startToIntersection = startToFirstIntersections.get(i);
+                    TPos intersection = startToIntersection.other(start);
+                    if(relax(buffers, node, startToIntersection, NetworkIds.NO_ID, startNode, startToIntersection.headingForEndpoint(intersection), startToIntersection.headingForEndpoint(start), relaxedSignalIds)) {
+                        if(buffers.distances[startNode] < bestDistance) {
+                            bestDistance = buffers.distances[startNode];
+                            foundStart = true;
                         }
                     }
                 }
             }
         }
+        return foundStart;
+    }
 
-        return bestRoute != null ? toRailRoute(bestRoute) : null;
+    /**
+     * Updates the next node when going from 'nextNode' via 'node' is shorter.
+     * @return true if the distance of 'nextNode' improved.
+     */
+    private boolean relax(SearchBuffers<TPos> buffers, int node, RailEdge<TPos> edge, int edgeId, int nextNode, EnumHeading heading, EnumHeading nextHeading, BitSet relaxedSignalIds){
+        if(buffers.edges[node] != null && buffers.edgeHeadings[node] == heading) {
+            return false; //We can't go back on the same edge
+        }
+
+        if(relaxedSignalIds != null) addSignalIds(relaxedSignalIds, buffers.ids, edge, edgeId);
+
+        int distance = buffers.distances[node] + (edgeId != NetworkIds.NO_ID && edgeWeights != null ? edgeWeights[edgeId] : edge.getPathLength(state));
+        if(distance < buffers.getDistance(nextNode)) {
+            if(!buffers.isReached(nextNode)) buffers.reach(nextNode);
+            buffers.distances[nextNode] = distance;
+            buffers.nextNodes[nextNode] = node;
+            buffers.edges[nextNode] = edge;
+            buffers.edgeHeadings[nextNode] = nextHeading;
+            buffers.push(nextNode);
+            return true;
+        } else {
+            return false;
+        }
     }
 
-    private RailRoute<TPos> toRailRoute(AStarRailNode node){
+    /**
+     * Adds the ids of the signals on the given edge.
+     * @param edgeId the id of the edge, or -1 for edges that aren't part of the network, like edges to a destination in the middle of an edge.
+     */
+    private void addSignalIds(BitSet signalIds, NetworkIds<TPos> ids, RailEdge<TPos> edge, int edgeId){
+        if(edgeId != NetworkIds.NO_ID) {
+            for(int signalId : ids.getEdgeSignalIds(edgeId)) {
+                if(signalId != NetworkIds.NO_ID) signalIds.set(signalId);
+            }
+        } else {
+            for(NetworkSignal<TPos> signal : edge.traverseSignalsWithFirst(edge.startPos)) {
+                int signalId = state.getSignalId(signal.getPos());
+                if(signalId != NetworkIds.NO_ID) signalIds.set(signalId);
+            }
+        }
+    }
+
+    /**
+     * @param labels the labels to follow after the first edge, or null when there's only a first edge.
+     * @param pos the first pos of the route.
+     * @param edge the first edge of the route, or null when the route is empty.
+     * @param nextNode the node at the end of the first edge, or -1.
+     */
+    private RailRoute<TPos> toRailRoute(SearchLabels<TPos> labels, TPos pos, RailEdge<TPos> edge, int nextNode){
+        List<RailEdge<TPos>> edges = new ArrayList<>();
+        if(edge != null) {
+            edges.add(edge);
+            for(int node = nextNode; node != NetworkIds.NO_ID && labels.edges[node] != null; node = labels.nextNodes[node]) {
+                edges.add(labels.edges[node]);
+            }
+        }
+        return toRailRoute(pos, edges);
+    }
+
+    /**
+     * @param pos the first pos of the route.
+     * @param edges the edges of the route, each starting where the previous one ended.
+     */
+    private RailRoute<TPos> toRailRoute(TPos pos, List<RailEdge<TPos>> edges){
         List<RailRouteNode<TPos>> routeNodes = new ArrayList<>();
         List<RailEdge<TPos>> routeEdges = new ArrayList<>();
         LinkedHashSet<TPos> routeRails = new LinkedHashSet<>();
         List<NetworkSignal<TPos>> routeSignals = new ArrayList<>();
 
-        if(node.edge != null) {
-            routeRails.addAll(node.edge.traverseWithFirst(node.pos).stream().map(NetworkObject::getPos).collect(Collectors.toList()));
-            routeEdges.add(node.edge);
-            routeNodes.addAll(node.edge.getIntersectionsWithFirst(node.pos));
-            routeSignals.addAll(node.edge.traverseSignalsWithFirst(node.pos));
-        }
-
-        AStarRailNode prevNode = node;
-        node = node.getNextNode();
-
-        while(node != null && node.edge != null) {
-            routeRails.addAll(node.edge.traverseWithFirst(node.pos).stream().map(NetworkObject::getPos).collect(Collectors.toList()));
-            routeEdges.add(node.edge);
-
-            EnumHeading dirIn = EnumHeading.getOpposite(prevNode.edge.headingForEndpoint(node.pos));
-            EnumHeading dirOut = EnumHeading.getOpposite(node.edge.headingForEndpoint(node.pos));
-            routeNodes.add(new RailRouteNode<TPos>(node.pos, dirIn, dirOut));
-            routeNodes.addAll(node.edge.getIntersectionsWithFirst(node.pos));
-            routeSignals.addAll(node.edge.traverseSignalsWithFirst(node.pos));
+        RailEdge<TPos> prevEdge = null;
+        for(RailEdge<TPos> edge : edges) {
+            if(prevEdge != null) {
+                EnumHeading dirIn = EnumHeading.getOpposite(prevEdge.headingForEndpoint(pos));
+                EnumHeading dirOut = EnumHeading.getOpposite(edge.headingForEndpoint(pos));
+                routeNodes.add(new RailRouteNode<TPos>(pos, dirIn, dirOut));
+            }
+            routeRails.addAll(edge.traverseWithFirst(pos).stream().map(NetworkObject::getPos).collect(Collectors.toList()));
+            routeEdges.add(edge);
+            routeNodes.addAll(edge.getIntersectionsWithFirst(pos));
+            routeSignals.addAll(edge.traverseSignalsWithFirst(pos));
 
-            prevNode = node;
-            node = node.getNextNode();
+            prevEdge = edge;
+            pos = edge.other(pos);
         }
 
         return new RailRoute<TPos>(ImmutableList.copyOf(routeNodes), ImmutableList.copyOf(routeRails), ImmutableList.copyOf(routeEdges), ImmutableList.copyOf(routeSignals));
@@ -0,0 +1,142 @@
+package com.minemaarten.signals.rail.network;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import com.google.common.collect.ImmutableSet;
+import com.minemaarten.signals.rail.network.RailRoute.RailRouteResult;
+
+/**
+ * Caches the routes found by the pathfinder, so trains that keep pathfinding from the same position, like trains waiting at a red signal,
+ * get the route without searching again. A route is only reused when the destinations resolve to the same station rails, as stations can
+ * be applicable for some trains only, when none of the signals on the route changed status since, no signal turned red or stopped being red,
+ * as red signals off the route may have caused a detour, and for the same network.
+ * @author Maarten
+ *
+ * @param <TPos>
+ */
+public class RailRouteCache<TPos extends IPosition<TPos>> {
+    private static final int MAX_ROUTES = 1024;
+
+    private static class RouteKey<TPos extends IPosition<TPos>> {
+        private final TPos start;
+        private final EnumHeading direction;
+        private final String destinationRegex;
+        private final RailNetwork<TPos> network;
+
+        public RouteKey(TPos start, EnumHeading direction, Pattern destinationRegex, RailNetwork<TPos> network){
+            this.start = start;
+            this.direction = direction;
+            this.destinationRegex = destinationRegex.pattern();
+            this.network = network;
+        }
+
+        @Override
+        public boolean equals(Object obj){
+            if(obj instanceof RouteKey) {
+                RouteKey<?> other = (RouteKey<?>)obj;
+                return start.equals(other.start) && direction == other.direction && destinationRegex.equals(other.destinationRegex) && network == other.network;
+            } else {
+                return false;
+            }
+        }
+
+        @Override
+        public int hashCode(){
+            return Objects.hash(start, direction, destinationRegex, System.identityHashCode(network));
+        }
+    }
+
+    private static class CachedRoute<TPos extends IPosition<TPos>> {
+        private final Set<TPos> destinations;
+        private final RailRoute<TPos> route; //null when there's no path
+        private final int[] signalIds; //The signals on the route
+        private int epoch; //The lamp status epoch of the network state this route was last known to be valid at.
+        private final int redSignalEpoch; //The red signal epoch of the network state this route was found at.
+
+        public CachedRoute(Set<TPos> destinations, RailRoute<TPos> route, int[] signalIds, int epoch, int redSignalEpoch){
+            this.destinations = destinations;
+            this.route = route;
+            this.signalIds = signalIds;
+            this.epoch = epoch;
+            this.redSignalEpoch = redSignalEpoch;
+        }
+    }
+
+    private final Map<RouteKey<TPos>, CachedRoute<TPos>> routes = new LinkedHashMap<RouteKey<TPos>, CachedRoute<TPos>>(16, 0.75F, true){
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<RouteKey<TPos>, CachedRoute<TPos>> eldest){
+            if(size() > MAX_ROUTES) {
+                evictions++;
+                return true;
+            } else {
+                return false;
+            }
+        }
+    };
+    private long hits, misses, evictions, invalidations;
+
+    /**
+     * @return the cached route result, or null when there's no valid cached route.
+     */
+    RailRouteResult<TPos> get(TPos start, EnumHeading direction, Pattern destinationRegex, RailNetwork<TPos> network, Set<TPos> destinations, NetworkState<TPos> state){
+        RouteKey<TPos> key = new RouteKey<>(start, direction, destinationRegex, network);
+        CachedRoute<TPos> cachedRoute = routes.get(key);
+        if(cachedRoute != null) {
+            if(cachedRoute.destinations.equals(destinations) && cachedRoute.redSignalEpoch == state.getRedSignalEpoch() && state.isLampStatusUnchanged(cachedRoute.signalIds, cachedRoute.epoch)) {
+                cachedRoute.epoch = state.getLampStatusEpoch();
+                hits++;
+                return cachedRoute.route != null ? RailRouteResult.success(cachedRoute.route) : RailRouteResult.noPath();
+            }
+            routes.remove(key);
+            invalidations++;
+        }
+        misses++;
+        return null;
+    }
+
+    void put(TPos start, EnumHeading direction, Pattern destinationRegex, RailNetwork<TPos> network, Set<TPos> destinations, RailRoute<TPos> route, NetworkState<TPos> state){
+        int[] signalIds = route != null ? route.routeSignals.stream().mapToInt(signal -> state.getSignalId(signal.getPos())).toArray() : new int[0];
+        routes.put(new RouteKey<>(start, direction, destinationRegex, network), new CachedRoute<>(ImmutableSet.copyOf(destinations), route, signalIds, state.getLampStatusEpoch(), state.getRedSignalEpoch()));
+    }
+
+    /**
+     * Removes all routes, for when the network changed.
+     */
+    public void clear(){
+        routes.clear();
+    }
+
+    public int size(){
+        return routes.size();
+    }
+
+    public long getHits(){
+        return hits;
+    }
+
+    public long getMisses(){
+        return misses;
+    }
+
+    public long getEvictions(){
+        return evictions;
+    }
+
+    public long getInvalidations(){
+        return invalidations;
+    }
+
+    /**
+     * @return the fraction of lookups that returned a cached route.
+     */
+    public double getHitRate(){
+        long lookups = hits + misses;
+        return lookups > 0 ? (double)hits / lookups : 0;
+    }
+}
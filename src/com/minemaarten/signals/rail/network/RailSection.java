@@ -55,6 +55,22 @@ public class RailSection<TPos extends IPosition<TPos>> implements Iterable<Netwo
         return trains.stream().filter(t -> t.isInAABB(aabb, true)).findFirst().orElse(null);
     }
 
+    /**
+     * Like {@link RailSection#getTrain(Collection)}, but looks up the trains on the rails of this section via the position index of the state.
+     * @param state
+     * @return the only train that should be on this block, or null.
+     */
+    public Train<TPos> getTrain(NetworkState<TPos> state){
+        for(TPos pos : rails.keySet()) {
+            Train<TPos> train = state.getTrainAt(pos);
+            if(train != null) return train;
+        }
+        for(Train<TPos> train : state.getTrains()) {
+            if(!train.getRailLinkHolds().isEmpty() && train.isInAABB(aabb, true)) return train;
+        }
+        return null;
+    }
+
     public Stream<TPos> getRailPositions(){
         return rails.keySet().stream();
     }
@@ -0,0 +1,126 @@
+package com.minemaarten.signals.rail.network;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * The stations of a network by name, and the stations matching destination regexes, so resolving the destination of a train doesn't need to
+ * match the regex against every station of the network every time the train pathfinds. Stations with the same name are interchangeable:
+ * when one of them matches, all of them do.
+ * Only the stations that can be applicable regardless of their name (see {@link NetworkStation#isApplicableForTrain(Train, Pattern)}) are
+ * evaluated per train.
+ * @author Maarten
+ *
+ * @param <TPos>
+ */
+class StationIndex<TPos extends IPosition<TPos>> {
+    private static final int MAX_CACHED_REGEXES = 256;
+    private static final Pattern META_CHARACTERS = Pattern.compile("[\\\\^$.|?*+()\\[\\]{}]");
+
+    private static class StationMatch<TPos> {
+        private final Set<String> names;
+        private final Set<TPos> rails;
+        private final Set<TPos> stations;
+
+        public StationMatch(Set<String> names, Set<TPos> rails, Set<TPos> stations){
+            this.names = names;
+            this.rails = rails;
+            this.stations = stations;
+        }
+    }
+
+    private final Map<String, Set<TPos>> railsByName = new HashMap<>();
+    private final Map<String, Set<TPos>> stationsByName = new HashMap<>();
+    private final List<NetworkStation<TPos>> trainSpecificStations = new ArrayList<>();
+    private final Map<String, StationMatch<TPos>> matches = new LinkedHashMap<String, StationMatch<TPos>>(16, 0.75F, true){
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, StationMatch<TPos>> eldest){
+            return size() > MAX_CACHED_REGEXES;
+        }
+    };
+
+    public StationIndex(RailNetwork<TPos> network){
+        Map<String, ImmutableSet.Builder<TPos>> railBuilders = new HashMap<>();
+        Map<String, ImmutableSet.Builder<TPos>> stationBuilders = new HashMap<>();
+        for(NetworkStation<TPos> station : network.railObjects.getStations()) {
+            railBuilders.computeIfAbsent(station.stationName, name -> ImmutableSet.builder()).addAll(station.getConnectedRailPositions(network));
+            stationBuilders.computeIfAbsent(station.stationName, name -> ImmutableSet.builder()).add(station.getPos());
+            if(station.hasTrainSpecificDestinations()) trainSpecificStations.add(station);
+        }
+        railBuilders.forEach((name, builder) -> railsByName.put(name, builder.build()));
+        stationBuilders.forEach((name, builder) -> stationsByName.put(name, builder.build()));
+    }
+
+    /**
+     * @param train
+     * @param destinationRegex
+     * @return the rails next to the stations applicable for the train. Not to be modified.
+     */
+    public Set<TPos> getStationRails(Train<TPos> train, Pattern destinationRegex){
+        StationMatch<TPos> match = getMatch(destinationRegex);
+        return addTrainSpecificStations(train, destinationRegex, match, match.rails, railsByName);
+    }
+
+    /**
+     * @param train
+     * @param destinationRegex
+     * @return the positions of the stations applicable for the train. Not to be modified.
+     */
+    public Set<TPos> getStations(Train<TPos> train, Pattern destinationRegex){
+        StationMatch<TPos> match = getMatch(destinationRegex);
+        return addTrainSpecificStations(train, destinationRegex, match, match.stations, stationsByName);
+    }
+
+    private Set<TPos> addTrainSpecificStations(Train<TPos> train, Pattern destinationRegex, StationMatch<TPos> match, Set<TPos> positions, Map<String, Set<TPos>> positionsByName){
+        Set<TPos> trainPositions = null;
+        Set<String> trainNames = null;
+        for(NetworkStation<TPos> station : trainSpecificStations) {
+            String name = station.stationName;
+            if(match.names.contains(name) || trainNames != null && trainNames.contains(name)) continue;
+            if(station.isApplicableForTrain(train, destinationRegex)) {
+                if(trainPositions == null) {
+                    trainPositions = new HashSet<>(positions);
+                    trainNames = new HashSet<>();
+                }
+                trainNames.add(name);
+                trainPositions.addAll(positionsByName.get(name));
+            }
+        }
+        return trainPositions != null ? trainPositions : positions;
+    }
+
+    private synchronized StationMatch<TPos> getMatch(Pattern destinationRegex){
+        String regex = destinationRegex.pattern();
+        StationMatch<TPos> match = matches.get(regex);
+        if(match == null) {
+            Set<String> names = new HashSet<>();
+            if(destinationRegex.flags() == 0 && !META_CHARACTERS.matcher(regex).find()) {
+                if(railsByName.containsKey(regex)) names.add(regex); //A literal matches its own name only
+            } else {
+                for(String name : railsByName.keySet()) {
+                    if(destinationRegex.matcher(name).matches()) names.add(name);
+                }
+            }
+
+            ImmutableSet.Builder<TPos> rails = ImmutableSet.builder();
+            ImmutableSet.Builder<TPos> stations = ImmutableSet.builder();
+            for(String name : names) {
+                rails.addAll(railsByName.get(name));
+                stations.addAll(stationsByName.get(name));
+            }
+            match = new StationMatch<>(names, rails.build(), stations.build());
+            matches.put(regex, match);
+        }
+        return match;
+    }
+}
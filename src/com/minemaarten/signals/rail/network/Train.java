@@ -4,8 +4,10 @@ import gnu.trove.iterator.TObjectIntIterator;
 import gnu.trove.map.TObjectIntMap;
 import gnu.trove.map.hash.TObjectIntHashMap;
 
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.stream.Collectors;
 
@@ -28,7 +30,8 @@ public abstract class Train<TPos extends IPosition<TPos>> {
     private int curIntersection;
 
     protected ImmutableSet<TPos> positions = ImmutableSet.of();
-    protected Set<RailSection<TPos>> claimedSections = Collections.emptySet();
+    private Set<RailSection<TPos>> claimedSections = ImmutableSet.of();
+    private NetworkState<TPos> indexingState; //The state that indexes the positions and claims of this train
 
     private TObjectIntMap<TPos> railLinkHolds = new TObjectIntHashMap<TPos>();
     private IdentityHashSet<RailSection<TPos>> curSections = new IdentityHashSet<>(); //Usually 1 big for single carts
@@ -63,6 +66,18 @@ public abstract class Train<TPos extends IPosition<TPos>> {
 
     public abstract RailRoute<TPos> pathfind(TPos start, EnumHeading dir);
 
+    /**
+     * Resolves the destinations of the train, for routing off the server thread, see {@link NetworkState#setAsyncRouting(java.util.concurrent.ExecutorService)}.
+     * Called on the server thread, so this may access the world.
+     * @param network
+     * @param start
+     * @param dir
+     * @return the station rails to route to, tried in order until a route is found, or null when the train can only be routed via {@link Train#pathfind(IPosition, EnumHeading)}.
+     */
+    public List<Set<TPos>> getRouteGoals(RailNetwork<TPos> network, TPos start, EnumHeading dir){
+        return null;
+    }
+
     protected abstract void updateIntersection(RailRouteNode<TPos> rail);
 
     /**
@@ -94,10 +109,20 @@ public abstract class Train<TPos extends IPosition<TPos>> {
         return railLinkHolds.keySet();
     }
 
+    /**
+     * @return true when the positions haven't been set yet, in which case setPositions should always be called.
+     */
+    protected final boolean isFirstUpdate(){
+        return firstUpdate;
+    }
+
     public final boolean setPositions(RailNetwork<TPos> network, NetworkState<TPos> state, ImmutableSet<TPos> positions){
         if(!this.positions.equals(positions) || firstUpdate) { //When the train has moved
+            if(state != null) state.markSectionsDirty(curSections.keySet());
             firstUpdate = false;
+            ImmutableSet<TPos> prevPositions = this.positions;
             this.positions = positions;
+            if(indexingState != null) indexingState.updateTrainPositions(this, prevPositions, positions);
             updateIntersections();
             updateClaimedSections(network);
             onPositionChanged(network, state);
@@ -107,6 +132,13 @@ public abstract class Train<TPos extends IPosition<TPos>> {
         }
     }
 
+    /**
+     * @return the sections the train is on.
+     */
+    Collection<RailSection<TPos>> getCurSections(){
+        return curSections.keySet();
+    }
+
     public void addRailLinkHold(TPos pos, int timeout){
         railLinkHolds.put(pos, timeout);
     }
@@ -114,6 +146,23 @@ public abstract class Train<TPos extends IPosition<TPos>> {
     public void invalidate(NetworkState<TPos> state){
         //Remove the train from the train sections -> train cache
         state.updateTrainAtSections(this, curSections.keySet(), Collections.emptyList());
+        setIndexingState(null);
+    }
+
+    /**
+     * Sets the state that indexes the positions and claims of this train, removing them from the indices of the previous state.
+     * @param state
+     */
+    void setIndexingState(NetworkState<TPos> state){
+        if(indexingState != null) {
+            indexingState.updateTrainPositions(this, positions, ImmutableSet.of());
+            indexingState.updateClaimingTrain(this, claimedSections, ImmutableSet.of());
+        }
+        indexingState = state;
+        if(indexingState != null) {
+            indexingState.updateTrainPositions(this, ImmutableSet.of(), positions);
+            indexingState.updateClaimingTrain(this, ImmutableSet.of(), claimedSections);
+        }
     }
 
     public boolean updatePositions(NetworkState<TPos> state){
@@ -168,7 +217,9 @@ public abstract class Train<TPos extends IPosition<TPos>> {
         if(!claimedSections.isEmpty()) {
             //Remove the sections the train is now on from the claim list.
             Set<RailSection<TPos>> curSections = positions.stream().map(network::findSection).collect(Collectors.toSet());
-            claimedSections.removeAll(curSections);
+            if(!Collections.disjoint(claimedSections, curSections)) {
+                setClaimedSections(claimedSections.stream().filter(s -> !curSections.contains(s)).collect(ImmutableSet.toImmutableSet()));
+            }
         }
     }
 
@@ -193,28 +244,39 @@ public abstract class Train<TPos extends IPosition<TPos>> {
     }
 
     public void clearClaims(){
-        claimedSections = Collections.emptySet();
+        setClaimedSections(ImmutableSet.of());
+    }
+
+    /**
+     * Replaces the claimed sections, and updates the claim index of the state accordingly. All changes to the claims should go through here.
+     * @param sections
+     */
+    protected final void setClaimedSections(Set<RailSection<TPos>> sections){
+        Set<RailSection<TPos>> prevSections = claimedSections;
+        claimedSections = sections;
+        if(indexingState != null) indexingState.updateClaimingTrain(this, prevSections, sections);
     }
 
     protected boolean trySetClaims(RailNetwork<TPos> network, NetworkState<TPos> state, RailRoute<TPos> path){
         if(path != null) {
-            claimedSections = new HashSet<>();
+            Set<RailSection<TPos>> sections = new HashSet<>();
 
             for(NetworkSignal<TPos> signal : path.routeSignals) {
                 RailSection<TPos> section = signal.getNextRailSection(network);
                 if(section != null) {
                     Train<TPos> claimingTrain = state.getClaimingTrain(section);
                     if(claimingTrain == null || claimingTrain.equals(this)) {
-                        claimedSections.add(section);
+                        sections.add(section);
                     } else {
-                        claimedSections = Collections.emptySet();
+                        setClaimedSections(ImmutableSet.of());
                         return false;
                     }
                 }
                 if(signal.type == EnumSignalType.BLOCK) break;
             }
+            setClaimedSections(Collections.unmodifiableSet(sections));
         } else {
-            claimedSections = Collections.emptySet();
+            setClaimedSections(ImmutableSet.of());
         }
         return true;
     }
@@ -0,0 +1,268 @@
+package com.minemaarten.signals.rail.network.mc;
+
+import io.netty.buffer.ByteBuf;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.minecraft.block.BlockRailBase.EnumRailDirection;
+import net.minecraft.network.PacketBuffer;
+import net.minecraft.util.math.BlockPos;
+import net.minecraftforge.fml.common.network.ByteBufUtils;
+
+import com.minemaarten.signals.lib.EnumSetUtils;
+import com.minemaarten.signals.lib.ZigZagUtils;
+import com.minemaarten.signals.rail.network.EnumHeading;
+import com.minemaarten.signals.rail.network.INetworkObject;
+import com.minemaarten.signals.rail.network.NetworkSignal.EnumSignalType;
+import com.minemaarten.signals.rail.network.mc.NetworkSerializer.EnumNetworkObject;
+
+/**
+ * Compact wire format of network objects, used by PacketUpdateNetwork as alternative to {@link NetworkSerializer#writeToBuf(Collection, ByteBuf)}.
+ *
+ * Objects are grouped by dimension and chunk, with the chunk coordinates written as varint deltas to the previous chunk. Within a chunk
+ * an object's position takes a byte for the x and z in the chunk, plus a varint delta to the previous y. Rail types and station names are
+ * written once into a string dictionary at the start of the packet, and referenced by index. The type of an object shares a header byte
+ * with its rail direction, or signal heading and type, so a regular rail takes 3 bytes instead of 20.
+ * @author Maarten
+ *
+ */
+public class CompactNetworkSerializer{
+
+    /**
+     * The order objects are written in. Sorting the objects of a large update in this order before splitting them over packets keeps the
+     * objects of one chunk in the same packet.
+     */
+    public static final Comparator<INetworkObject<MCPos>> CHUNK_ORDER = Comparator.<INetworkObject<MCPos>> comparingInt(o -> o.getPos().getDimID()).thenComparingInt(o -> o.getPos().getX() >> 4).thenComparingInt(o -> o.getPos().getZ() >> 4).thenComparingInt(o -> o.getPos().getY()).thenComparingInt(o -> o.getPos().getX()).thenComparingInt(o -> o.getPos().getZ());
+
+    private static final EnumRailDirection[] ALL_RAIL_DIRECTIONS_ARRAY = EnumRailDirection.values();
+    private static final EnumSet<EnumRailDirection> ALL_RAIL_DIRECTIONS = EnumSet.allOf(EnumRailDirection.class);
+
+    //Header byte layout. The lowest bits hold the object type, the rest depends on the type.
+    private static final int TYPE_BITS = 3;
+    private static final int TYPE_MASK = (1 << TYPE_BITS) - 1;
+    private static final int FLAG_BIT = 1 << TYPE_BITS; //Rails: non standard rail type. Rail links: has a destination. Stations: has destination providers.
+    private static final int RAIL_DIR_SHIFT = TYPE_BITS + 1;
+    private static final int SIGNAL_HEADING_SHIFT = TYPE_BITS;
+    private static final int SIGNAL_TYPE_SHIFT = SIGNAL_HEADING_SHIFT + 2;
+
+    static {
+        if(EnumNetworkObject.VALUES.length > 1 << TYPE_BITS || ALL_RAIL_DIRECTIONS_ARRAY.length > 1 << (8 - RAIL_DIR_SHIFT) || EnumHeading.VALUES.length > 1 << (SIGNAL_TYPE_SHIFT - SIGNAL_HEADING_SHIFT) || EnumSignalType.VALUES.length > 1 << (8 - SIGNAL_TYPE_SHIFT)) {
+            throw new IllegalStateException("Network object header does not fit in a byte!");
+        }
+    }
+
+    private ISerializableNetworkObject asSerializable(INetworkObject<MCPos> obj){
+        if(obj instanceof ISerializableNetworkObject) {
+            return (ISerializableNetworkObject)obj;
+        } else {
+            throw new IllegalStateException("Object " + obj + " of type " + obj.getClass() + " does not implement ISerializableNetworkObject!");
+        }
+    }
+
+    public void writeToBuf(Collection<INetworkObject<MCPos>> objects, ByteBuf b){
+        PacketBuffer pb = new PacketBuffer(b);
+        List<INetworkObject<MCPos>> sortedObjects = new ArrayList<>(objects);
+        sortedObjects.sort(CHUNK_ORDER);
+
+        Map<String, Integer> dictionary = new LinkedHashMap<>();
+        for(INetworkObject<MCPos> obj : sortedObjects) {
+            String s = getDictionaryString(obj);
+            if(s != null) dictionary.putIfAbsent(s, dictionary.size());
+        }
+        pb.writeVarInt(dictionary.size());
+        for(String s : dictionary.keySet()) {
+            ByteBufUtils.writeUTF8String(pb, s);
+        }
+
+        pb.writeVarInt(sortedObjects.size());
+        int prevDim = 0, prevChunkX = 0, prevChunkZ = 0, prevY = 0;
+        int index = 0;
+        while(index < sortedObjects.size()) {
+            MCPos first = sortedObjects.get(index).getPos();
+            int dim = first.getDimID(), chunkX = first.getX() >> 4, chunkZ = first.getZ() >> 4;
+            int end = index + 1;
+            while(end < sortedObjects.size() && isInChunk(sortedObjects.get(end).getPos(), dim, chunkX, chunkZ)) {
+                end++;
+            }
+
+            pb.writeVarInt(ZigZagUtils.encode(dim - prevDim));
+            pb.writeVarInt(ZigZagUtils.encode(chunkX - prevChunkX));
+            pb.writeVarInt(ZigZagUtils.encode(chunkZ - prevChunkZ));
+            pb.writeVarInt(end - index);
+            prevDim = dim;
+            prevChunkX = chunkX;
+            prevChunkZ = chunkZ;
+
+            for(; index < end; index++) {
+                INetworkObject<MCPos> obj = sortedObjects.get(index);
+                MCPos pos = obj.getPos();
+                writeHeader(asSerializable(obj), pb);
+                pb.writeByte(((pos.getX() & 15) << 4) | (pos.getZ() & 15));
+                pb.writeVarInt(ZigZagUtils.encode(pos.getY() - prevY));
+                prevY = pos.getY();
+                writePayload(asSerializable(obj), pb, dictionary);
+            }
+        }
+    }
+
+    public List<INetworkObject<MCPos>> readFromByteBuf(ByteBuf b){
+        PacketBuffer pb = new PacketBuffer(b);
+        String[] dictionary = new String[pb.readVarInt()];
+        for(int i = 0; i < dictionary.length; i++) {
+            dictionary[i] = ByteBufUtils.readUTF8String(pb);
+        }
+
+        int count = pb.readVarInt();
+        List<INetworkObject<MCPos>> ret = new ArrayList<>(count);
+        int dim = 0, chunkX = 0, chunkZ = 0, y = 0;
+        while(ret.size() < count) {
+            dim += ZigZagUtils.decode(pb.readVarInt());
+            chunkX += ZigZagUtils.decode(pb.readVarInt());
+            chunkZ += ZigZagUtils.decode(pb.readVarInt());
+            int chunkCount = pb.readVarInt();
+            for(int i = 0; i < chunkCount; i++) {
+                int header = pb.readUnsignedByte();
+                int xz = pb.readUnsignedByte();
+                y += ZigZagUtils.decode(pb.readVarInt());
+                MCPos pos = new MCPos(dim, new BlockPos((chunkX << 4) | (xz >> 4), y, (chunkZ << 4) | (xz & 15)));
+                ret.add(readPayload(header, pos, pb, dictionary));
+            }
+        }
+        return ret;
+    }
+
+    private static boolean isInChunk(MCPos pos, int dim, int chunkX, int chunkZ){
+        return pos.getDimID() == dim && pos.getX() >> 4 == chunkX && pos.getZ() >> 4 == chunkZ;
+    }
+
+    private static String getDictionaryString(INetworkObject<MCPos> obj){
+        if(obj instanceof MCNetworkRail) {
+            return ((MCNetworkRail)obj).getRailTypeName();
+        } else if(obj instanceof MCNetworkStation) {
+            return ((MCNetworkStation)obj).stationName;
+        } else {
+            return null;
+        }
+    }
+
+    private void writeHeader(ISerializableNetworkObject obj, PacketBuffer pb){
+        int header = obj.getType().ordinal();
+        switch(obj.getType()){
+            case RAIL:
+            case TELEPORT_RAIL:
+                MCNetworkRail rail = (MCNetworkRail)obj;
+                if(rail.getRailTypeName() != null) header |= FLAG_BIT;
+                header |= rail.getCurDir().ordinal() << RAIL_DIR_SHIFT;
+                break;
+            case SIGNAL:
+                MCNetworkSignal signal = (MCNetworkSignal)obj;
+                header |= signal.heading.ordinal() << SIGNAL_HEADING_SHIFT;
+                header |= signal.type.ordinal() << SIGNAL_TYPE_SHIFT;
+                break;
+            case RAIL_LINK:
+                if(((MCNetworkRailLink)obj).getDestinationPos() != null) header |= FLAG_BIT;
+                break;
+            case STATION:
+                if(((MCNetworkStation)obj).hasTrainSpecificDestinations()) header |= FLAG_BIT;
+                break;
+            default:
+                break;
+        }
+        pb.writeByte(header);
+    }
+
+    private void writePayload(ISerializableNetworkObject obj, PacketBuffer pb, Map<String, Integer> dictionary){
+        switch(obj.getType()){
+            case RAIL:
+                writeRailType((MCNetworkRail)obj, pb, dictionary);
+                break;
+            case TELEPORT_RAIL:
+                MCNetworkTeleportRail teleportRail = (MCNetworkTeleportRail)obj;
+                writeRailType(teleportRail, pb, dictionary);
+                pb.writeBoolean(teleportRail.getDestinationPos() != null);
+                if(teleportRail.getDestinationPos() != null) {
+                    writeDestination(teleportRail.getPos(), teleportRail.getDestinationPos(), pb);
+                }
+                break;
+            case RAIL_LINK:
+                MCNetworkRailLink railLink = (MCNetworkRailLink)obj;
+                if(railLink.getDestinationPos() != null) {
+                    writeDestination(railLink.getPos(), railLink.getDestinationPos(), pb);
+                }
+                pb.writeVarInt(railLink.getHoldDelay());
+                break;
+            case STATION:
+                pb.writeVarInt(dictionary.get(((MCNetworkStation)obj).stationName));
+                break;
+            case SIGNAL:
+            case REMOVAL_MARKER:
+                break;
+            default:
+                throw new IllegalStateException("Unsupported type: " + obj.getType());
+        }
+    }
+
+    private INetworkObject<MCPos> readPayload(int header, MCPos pos, PacketBuffer pb, String[] dictionary){
+        EnumNetworkObject type = EnumNetworkObject.VALUES[header & TYPE_MASK];
+        switch(type){
+            case RAIL:
+                return readRail(header, pos, pb, dictionary, MCNetworkRail::new);
+            case TELEPORT_RAIL:
+                return readRail(header, pos, pb, dictionary, (p, railType, curDir, validDirs) -> new MCNetworkTeleportRail(p, railType, curDir, validDirs, pb.readBoolean() ? readDestination(p, pb) : null));
+            case SIGNAL:
+                EnumHeading heading = EnumHeading.VALUES[(header >> SIGNAL_HEADING_SHIFT) & 3];
+                EnumSignalType signalType = EnumSignalType.VALUES[header >> SIGNAL_TYPE_SHIFT];
+                return new MCNetworkSignal(pos, heading, signalType);
+            case REMOVAL_MARKER:
+                return new NetworkRemovalMarker(pos);
+            case RAIL_LINK:
+                MCPos destination = (header & FLAG_BIT) != 0 ? readDestination(pos, pb) : null;
+                return new MCNetworkRailLink(pos, destination, pb.readVarInt());
+            case STATION:
+                return new MCNetworkStation(pos, dictionary[pb.readVarInt()], (header & FLAG_BIT) != 0);
+            default:
+                throw new IllegalStateException("Unsupported type: " + type);
+        }
+    }
+
+    private void writeRailType(MCNetworkRail rail, PacketBuffer pb, Map<String, Integer> dictionary){
+        if(rail.getRailTypeName() != null) {
+            pb.writeVarInt(dictionary.get(rail.getRailTypeName()));
+            pb.writeVarInt(EnumSetUtils.toShort(rail.getValidRailDirs()) & 0xFFFF);
+        }
+    }
+
+    private <T> T readRail(int header, MCPos pos, PacketBuffer pb, String[] dictionary, MCNetworkRail.IRailCreator<T> factory){
+        EnumRailDirection curDir = ALL_RAIL_DIRECTIONS_ARRAY[header >> RAIL_DIR_SHIFT];
+        if((header & FLAG_BIT) != 0) {
+            String railType = dictionary[pb.readVarInt()];
+            return factory.create(pos, railType, curDir, EnumSetUtils.toEnumSet(EnumRailDirection.class, ALL_RAIL_DIRECTIONS_ARRAY, pb.readVarInt()));
+        } else {
+            return factory.create(pos, (String)null, curDir, ALL_RAIL_DIRECTIONS);
+        }
+    }
+
+    /**
+     * Destinations are written relative to the linking object, as they are mostly nearby or at the same coordinates in another dimension.
+     */
+    private void writeDestination(MCPos pos, MCPos destination, PacketBuffer pb){
+        pb.writeVarInt(ZigZagUtils.encode(destination.getDimID() - pos.getDimID()));
+        pb.writeVarInt(ZigZagUtils.encode(destination.getX() - pos.getX()));
+        pb.writeVarInt(ZigZagUtils.encode(destination.getY() - pos.getY()));
+        pb.writeVarInt(ZigZagUtils.encode(destination.getZ() - pos.getZ()));
+    }
+
+    private MCPos readDestination(MCPos pos, PacketBuffer pb){
+        int dim = pos.getDimID() + ZigZagUtils.decode(pb.readVarInt());
+        int x = pos.getX() + ZigZagUtils.decode(pb.readVarInt());
+        int y = pos.getY() + ZigZagUtils.decode(pb.readVarInt());
+        int z = pos.getZ() + ZigZagUtils.decode(pb.readVarInt());
+        return new MCPos(dim, new BlockPos(x, y, z));
+    }
+}
@@ -151,6 +151,17 @@ public class MCNetworkRail extends NetworkRail<MCPos> implements ISerializableNe
         return curDir;
     }
 
+    /**
+     * @return the block registry name of the rail, or null for Blocks.RAIL.
+     */
+    public String getRailTypeName(){
+        return railType;
+    }
+
+    public EnumSet<EnumRailDirection> getValidRailDirs(){
+        return validRailDirs;
+    }
+
     @Override
     public List<MCPos> getPotentialNeighborRailLocations(){
         return potentialRailNeighbors;
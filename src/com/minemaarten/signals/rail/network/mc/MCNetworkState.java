@@ -4,6 +4,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -12,7 +13,6 @@ import java.util.UUID;
 
 import net.minecraft.entity.Entity;
 import net.minecraft.entity.item.EntityMinecart;
-import net.minecraft.entity.player.EntityPlayerMP;
 import net.minecraft.nbt.NBTTagCompound;
 import net.minecraft.nbt.NBTTagList;
 import net.minecraft.tileentity.TileEntity;
@@ -24,11 +24,7 @@ import net.minecraftforge.common.util.Constants;
 import com.google.common.collect.ImmutableSet;
 import com.minemaarten.signals.api.access.ISignal.EnumForceMode;
 import com.minemaarten.signals.api.access.ISignal.EnumLampStatus;
-import com.minemaarten.signals.network.NetworkHandler;
-import com.minemaarten.signals.network.PacketAddOrUpdateTrain;
-import com.minemaarten.signals.network.PacketRemoveTrain;
-import com.minemaarten.signals.network.PacketUpdateSignals;
-import com.minemaarten.signals.network.PacketUpdateTrainPath;
+import com.minemaarten.signals.config.SignalsConfig;
 import com.minemaarten.signals.rail.NetworkController;
 import com.minemaarten.signals.rail.RailManager;
 import com.minemaarten.signals.rail.network.NetworkSignal;
@@ -42,29 +38,23 @@ public class MCNetworkState extends NetworkState<MCPos>{
     private final RailNetworkManager railNetworkManager;
     private Map<UUID, EntityMinecart> trackingMinecarts = new HashMap<>();
     private final Map<UUID, MCTrain> cartIDsToTrains = new HashMap<>();
+    private final Set<MCTrain> movedTrains = new LinkedHashSet<>(); //Trains of which the positions haven't been synced to the clients yet
 
     public MCNetworkState(RailNetworkManager railNetworkManager){
         this.railNetworkManager = railNetworkManager;
     }
 
-    public void onPlayerJoin(EntityPlayerMP player){
-        for(Train<MCPos> train : getTrains()) {
-            NetworkHandler.sendTo(new PacketAddOrUpdateTrain((MCTrain)train), player);
-        }
-        NetworkHandler.sendTo(new PacketUpdateSignals(signalToLampStatusses), player);
-    }
-
     @Override
     protected void onCartRouted(Train<MCPos> train, RailRoute<MCPos> route){
         super.onCartRouted(train, route);
-        NetworkHandler.sendToAll(new PacketUpdateTrainPath((MCTrain)train));
+        railNetworkManager.getInterestManager().sendTrainPath((MCTrain)train);
         ((MCTrain)train).getCarts().forEach(cart -> cart.timeUntilPortal = 0); //Carts that pass a signal can travel through portals immediately
     }
 
     @Override
     protected void onSignalsChanged(Map<MCPos, EnumLampStatus> changedSignals){
         super.onSignalsChanged(changedSignals);
-        NetworkHandler.sendToAll(new PacketUpdateSignals(changedSignals));
+        railNetworkManager.getInterestManager().sendSignals(changedSignals);
 
         //Update the signals in the world.
         for(Map.Entry<MCPos, EnumLampStatus> entry : changedSignals.entrySet()) {
@@ -157,7 +147,7 @@ public class MCNetworkState extends NetworkState<MCPos>{
     private MCTrain addTrain(ImmutableSet<UUID> uuids){
         MCTrain train = new MCTrain(railNetworkManager, uuids);
         addTrain(train);
-        NetworkHandler.sendToAll(new PacketAddOrUpdateTrain(train));
+        railNetworkManager.getInterestManager().sendTrain(train);
         return train;
     }
 
@@ -171,10 +161,11 @@ public class MCNetworkState extends NetworkState<MCPos>{
     @Override
     public void removeTrain(Train<MCPos> train){
         super.removeTrain(train);
+        movedTrains.remove(train);
         for(UUID uuid : ((MCTrain)train).cartIDs) {
             cartIDsToTrains.remove(uuid);
         }
-        NetworkHandler.sendToAll(new PacketRemoveTrain((MCTrain)train));
+        railNetworkManager.getInterestManager().removeTrain((MCTrain)train);
     }
 
     public void onChunkUnload(Chunk chunk){
@@ -197,7 +188,27 @@ public class MCNetworkState extends NetworkState<MCPos>{
         removeDeadMinecarts();
         splitUngroupedCarts();
         mergeGroupedCarts();
+        setIncrementalSignalUpdates(SignalsConfig.performance.incrementalSignalUpdates);
+        setDestinationTreeCaching(SignalsConfig.performance.destinationTreeCaching);
+        setRouteCaching(SignalsConfig.performance.routeCaching);
+        setContractionHierarchyRouting(SignalsConfig.performance.contractionHierarchyRouting);
+        setAsyncRouting(SignalsConfig.performance.asyncRouting && !railNetworkManager.isClientInstance() ? railNetworkManager.getRoutingExecutor() : null);
         super.update(network);
+        syncTrainPositions();
+    }
+
+    public void onTrainMoved(MCTrain train){
+        if(!railNetworkManager.isClientInstance()) movedTrains.add(train);
+    }
+
+    /**
+     * Sends the positions of every train that moved this tick in a single packet per player, instead of a packet per train move.
+     */
+    private void syncTrainPositions(){
+        if(!movedTrains.isEmpty()) {
+            railNetworkManager.getInterestManager().sendTrainPositions(movedTrains);
+            movedTrains.clear();
+        }
     }
 
     private void removeDeadMinecarts(){
@@ -276,7 +287,7 @@ public class MCNetworkState extends NetworkState<MCPos>{
                         for(UUID uuid : train.cartIDs) {
                             cartIDsToTrains.put(uuid, matching);
                         }
-                        NetworkHandler.sendToAll(new PacketAddOrUpdateTrain(matching));
+                        railNetworkManager.getInterestManager().sendTrain(matching);
                         break; //Stop after combining a single train (because the traversedTrains isn't accurate anymore)
                     }
                 }
@@ -308,7 +319,7 @@ public class MCNetworkState extends NetworkState<MCPos>{
                 cartIDsToTrains.remove(cart.getUniqueID());
                 train.onCartRemoved(cart);
                 train.cartIDs = train.cartIDs.stream().filter(uuid -> !uuid.equals(cart.getUniqueID())).collect(ImmutableSet.toImmutableSet());
-                NetworkHandler.sendToAll(new PacketAddOrUpdateTrain(train));
+                railNetworkManager.getInterestManager().sendTrain(train);
             }
         }
     }
@@ -6,53 +6,52 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.regex.Pattern;
 
-import net.minecraft.entity.item.EntityMinecart;
 import net.minecraft.nbt.NBTTagCompound;
 import net.minecraft.tileentity.TileEntity;
-import net.minecraft.util.EnumFacing;
-import net.minecraft.util.EnumParticleTypes;
-import net.minecraft.util.math.BlockPos;
 import net.minecraft.world.World;
 import net.minecraftforge.fml.common.network.ByteBufUtils;
 
-import com.minemaarten.signals.capabilities.CapabilityDestinationProvider;
-import com.minemaarten.signals.network.NetworkHandler;
-import com.minemaarten.signals.network.PacketSpawnParticle;
 import com.minemaarten.signals.rail.network.EnumHeading;
 import com.minemaarten.signals.rail.network.NetworkStation;
 import com.minemaarten.signals.rail.network.RailNetwork;
 import com.minemaarten.signals.rail.network.Train;
 import com.minemaarten.signals.rail.network.mc.NetworkSerializer.EnumNetworkObject;
+import com.minemaarten.signals.tileentity.TileEntityStationMarker;
 
 public class MCNetworkStation extends NetworkStation<MCPos> implements ISerializableNetworkObject{
 
     private final List<MCPos> potentialNeighbors = new ArrayList<>();
+    private final boolean destinationProviders; //Whether there were destination providers next to the station marker when this was provided
 
-    public MCNetworkStation(MCPos pos, String stationName){
+    public MCNetworkStation(MCPos pos, String stationName, boolean destinationProviders){
         super(pos, stationName);
+        this.destinationProviders = destinationProviders;
         for(EnumHeading heading : EnumHeading.VALUES) {
             potentialNeighbors.add(pos.offset(heading));
         }
     }
 
     public static MCNetworkStation fromTag(NBTTagCompound tag){
-        return new MCNetworkStation(new MCPos(tag), tag.getString("station"));
+        //Networks saved before the flag existed may have destination providers anywhere.
+        return new MCNetworkStation(new MCPos(tag), tag.getString("station"), !tag.hasKey("destinationProviders") || tag.getBoolean("destinationProviders"));
     }
 
     public static MCNetworkStation fromByteBuf(ByteBuf buf){
-        return new MCNetworkStation(new MCPos(buf), ByteBufUtils.readUTF8String(buf));
+        return new MCNetworkStation(new MCPos(buf), ByteBufUtils.readUTF8String(buf), buf.readBoolean());
     }
 
     @Override
     public void writeToNBT(NBTTagCompound tag){
         getPos().writeToNBT(tag);
         tag.setString("station", stationName);
+        tag.setBoolean("destinationProviders", destinationProviders);
     }
 
     @Override
     public void writeToBuf(ByteBuf b){
         getPos().writeToBuf(b);
         ByteBufUtils.writeUTF8String(b, stationName);
+        b.writeBoolean(destinationProviders);
     }
 
     @Override
@@ -71,37 +70,20 @@ public class MCNetworkStation extends NetworkStation<MCPos> implements ISerializ
         return rails;
     }
 
+    /**
+     * Destination providers, like item routing, make the station applicable for trains regardless of their destination.
+     */
     @Override
-    public boolean isTrainApplicable(Train<MCPos> train, Pattern destinationRegex){
-        if(super.isTrainApplicable(train, destinationRegex)) return true;
-
-        World world = getPos().getWorld();
-        if(world != null) {
-            MCTrain mcTrain = (MCTrain)train;
-            for(EntityMinecart cart : mcTrain.getCarts()) {
-                if(isCartApplicable(world, cart, destinationRegex)) return true;
-            }
-        }
-        return false;
+    public boolean hasTrainSpecificDestinations(){
+        return destinationProviders;
     }
 
-    public boolean isCartApplicable(World world, EntityMinecart cart, Pattern destinationRegex){
-        for(EnumFacing dir : EnumFacing.VALUES) {
-            BlockPos neighborPos = getPos().getPos().offset(dir);
-            if(world.isBlockLoaded(neighborPos)) {
-                TileEntity te = world.getTileEntity(neighborPos);
-                if(te != null) {
-                    CapabilityDestinationProvider cap = te.getCapability(CapabilityDestinationProvider.INSTANCE, null);
-                    if(cap != null && cap.isCartApplicable(te, cart, destinationRegex)) {
-                        for(int i = 0; i < 10; i++) {
-                            double x = getPos().getPos().getX() + world.rand.nextDouble();
-                            double z = getPos().getPos().getZ() + world.rand.nextDouble();
-                            NetworkHandler.sendToAllAround(new PacketSpawnParticle(EnumParticleTypes.ENCHANTMENT_TABLE, x, getPos().getPos().getY() + 1, z, dir.getFrontOffsetX(), dir.getFrontOffsetY(), dir.getFrontOffsetZ()), world);
-                        }
-                        return true;
-                    }
-                }
-            }
+    @Override
+    public boolean isApplicableForTrain(Train<MCPos> train, Pattern destinationRegex){
+        World world = getPos().getWorld();
+        if(world != null && world.isBlockLoaded(getPos().getPos())) {
+            TileEntity te = world.getTileEntity(getPos().getPos());
+            if(te instanceof TileEntityStationMarker) return ((TileEntityStationMarker)te).isTrainApplicable((MCTrain)train, destinationRegex);
         }
         return false;
     }
@@ -110,4 +92,14 @@ public class MCNetworkStation extends NetworkStation<MCPos> implements ISerializ
     public EnumNetworkObject getType(){
         return EnumNetworkObject.STATION;
     }
+
+    @Override
+    public boolean equals(Object obj){
+        return super.equals(obj) && obj instanceof MCNetworkStation && ((MCNetworkStation)obj).destinationProviders == destinationProviders;
+    }
+
+    @Override
+    public int hashCode(){
+        return super.hashCode() * 31 + (destinationProviders ? 1 : 0);
+    }
 }
@@ -20,6 +20,15 @@ import com.minemaarten.signals.rail.network.EnumHeading;
 import com.minemaarten.signals.rail.network.IPosition;
 
 public class MCPos implements IPosition<MCPos>{
+    //Same layout as BlockPos#toLong(), which fits any position inside the world border.
+    private static final int NUM_X_BITS = 26;
+    private static final int NUM_Z_BITS = NUM_X_BITS;
+    private static final int NUM_Y_BITS = 64 - NUM_X_BITS - NUM_Z_BITS;
+    private static final int Y_SHIFT = NUM_Z_BITS;
+    private static final int X_SHIFT = Y_SHIFT + NUM_Y_BITS;
+    private static final long X_MASK = (1L << NUM_X_BITS) - 1L;
+    private static final long Y_MASK = (1L << NUM_Y_BITS) - 1L;
+    private static final long Z_MASK = (1L << NUM_Z_BITS) - 1L;
 
     private final BlockPos pos;
     private final int dimID;
@@ -82,6 +91,24 @@ public class MCPos implements IPosition<MCPos>{
         return dimID;
     }
 
+    @Override
+    public int getPlane(){
+        return dimID;
+    }
+
+    @Override
+    public long toLong(){
+        return toLong(pos.getX(), pos.getY(), pos.getZ());
+    }
+
+    public static long toLong(int x, int y, int z){
+        return ((long)x & X_MASK) << X_SHIFT | ((long)y & Y_MASK) << Y_SHIFT | (long)z & Z_MASK;
+    }
+
+    public static long toLong(BlockPos pos){
+        return toLong(pos.getX(), pos.getY(), pos.getZ());
+    }
+
     public TileEntity getLoadedTileEntity(){
         World world = getWorld();
         return world != null && world.isBlockLoaded(getPos()) ? world.getTileEntity(getPos()) : null;
@@ -158,7 +185,7 @@ public class MCPos implements IPosition<MCPos>{
 
     @Override
     public int hashCode(){
-        return pos.hashCode() * 13 + dimID;
+        return IPosition.hashCode(dimID, toLong());
     }
 
     @Override
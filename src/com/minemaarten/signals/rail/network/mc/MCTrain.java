@@ -18,6 +18,7 @@ import net.minecraft.nbt.NBTTagCompound;
 import net.minecraft.nbt.NBTTagList;
 import net.minecraft.nbt.NBTTagLong;
 import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.MathHelper;
 import net.minecraft.world.World;
 import net.minecraftforge.common.util.Constants;
 
@@ -26,14 +27,15 @@ import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Streams;
 import com.minemaarten.signals.api.IRail;
 import com.minemaarten.signals.capabilities.CapabilityMinecartDestination;
+import com.minemaarten.signals.capabilities.destinationproviders.CartFingerprints;
 import com.minemaarten.signals.lib.Log;
 import com.minemaarten.signals.network.NetworkHandler;
-import com.minemaarten.signals.network.PacketAddOrUpdateTrain;
 import com.minemaarten.signals.network.PacketUpdateMessage;
 import com.minemaarten.signals.rail.RailManager;
 import com.minemaarten.signals.rail.network.EnumHeading;
 import com.minemaarten.signals.rail.network.NetworkState;
 import com.minemaarten.signals.rail.network.RailNetwork;
+import com.minemaarten.signals.rail.network.RailObjectHolder;
 import com.minemaarten.signals.rail.network.RailRoute;
 import com.minemaarten.signals.rail.network.RailRoute.EnumRouteResult;
 import com.minemaarten.signals.rail.network.RailRoute.RailRouteNode;
@@ -56,6 +58,10 @@ public class MCTrain extends Train<MCPos>{
     private final RailNetworkManager railNetworkManager;
     public ImmutableSet<UUID> cartIDs;
     private Set<EntityMinecart> carts;
+    private long[] cartPositions = new long[0]; //Reused to check whether the carts moved without allocating
+    private int[] cartDimIDs = new int[0]; //The dimension of each of the cartPositions, as carts of a train can be in different dimensions
+    private CartFingerprints cartFingerprints; //Shared by the stations matched against in the same tick
+    private long cartFingerprintTime;
 
     protected MCTrain(RailNetworkManager railNetworkManager, int id, ImmutableSet<UUID> cartIDs){
         super(id);
@@ -80,6 +86,20 @@ public class MCTrain extends Train<MCPos>{
         return carts;
     }
 
+    /**
+     * @param world
+     * @return the stacks in the carts to match against destination providers. Computed once per tick, so once per pathfind instead of for every
+     * station the train is matched against.
+     */
+    public CartFingerprints getCartFingerprints(World world){
+        long time = world.getTotalWorldTime();
+        if(cartFingerprints == null || time != cartFingerprintTime) {
+            cartFingerprints = new CartFingerprints(getCarts());
+            cartFingerprintTime = time;
+        }
+        return cartFingerprints;
+    }
+
     public void onCartAdded(EntityMinecart cart){
         if(getCarts().size() < cartIDs.size() && cartIDs.contains(cart.getUniqueID())) { //Prevent set.contains if we can
             getCarts().add(cart);
@@ -103,13 +123,12 @@ public class MCTrain extends Train<MCPos>{
 
         Set<EntityMinecart> carts = getCarts();
         if(!carts.isEmpty()) { //Update if any cart is loaded, currently.
+            RailObjectHolder<MCPos> railObjects = railNetworkManager.getNetwork().railObjects;
+            if(!isFirstUpdate() && !havePositionsChanged(railObjects, carts)) return false; //Most ticks, only compare without allocating
+
             ImmutableSet.Builder<MCPos> positionBuilder = ImmutableSet.builder();
-            for(EntityMinecart cart : getCarts()) {
-                MCPos cartPos = new MCPos(cart.world, cart.getPosition().down());
-                if(railNetworkManager.getNetwork().railObjects.get(cartPos) == null) {
-                    cartPos = new MCPos(cart.world, cart.getPosition());
-                }
-                positionBuilder.add(cartPos);
+            for(EntityMinecart cart : carts) {
+                positionBuilder.add(getCartPos(railObjects, cart));
             }
             ImmutableSet<MCPos> positions = positionBuilder.build();
             return setPositions(railNetworkManager.getNetwork(), state, positions);
@@ -118,10 +137,63 @@ public class MCTrain extends Train<MCPos>{
         }
     }
 
+    /**
+     * @return the position the given cart is considered to be on, which is the block below the cart when there is a rail object.
+     */
+    public static MCPos getCartPos(RailObjectHolder<MCPos> railObjects, EntityMinecart cart){
+        MCPos cartPos = new MCPos(cart.world, cart.getPosition().down());
+        if(railObjects.get(cartPos) == null) {
+            cartPos = new MCPos(cart.world, cart.getPosition());
+        }
+        return cartPos;
+    }
+
+    private boolean havePositionsChanged(RailObjectHolder<MCPos> railObjects, Set<EntityMinecart> carts){
+        if(cartPositions.length < carts.size()) {
+            cartPositions = new long[carts.size()];
+            cartDimIDs = new int[carts.size()];
+        }
+        int cartCount = 0;
+        for(EntityMinecart cart : carts) {
+            //Equal to cart.getPosition(), without creating a BlockPos.
+            int x = MathHelper.floor(cart.posX);
+            int y = MathHelper.floor(cart.posY + 0.5D);
+            int z = MathHelper.floor(cart.posZ);
+            int dimID = cart.world.provider.getDimension();
+            long cartPos = MCPos.toLong(x, y - 1, z);
+            if(railObjects.get(dimID, cartPos) == null) {
+                cartPos = MCPos.toLong(x, y, z);
+            }
+            if(!containsPosition(dimID, cartPos)) return true;
+            cartPositions[cartCount] = cartPos;
+            cartDimIDs[cartCount++] = dimID;
+        }
+
+        //Every cart is on a known position, now check if every known position still has a cart.
+        for(MCPos pos : positions) {
+            if(!containsCartPosition(cartCount, pos.getDimID(), pos.toLong())) return true;
+        }
+        return false;
+    }
+
+    private boolean containsCartPosition(int cartCount, int dimID, long packedPos){
+        for(int i = 0; i < cartCount; i++) {
+            if(cartPositions[i] == packedPos && cartDimIDs[i] == dimID) return true;
+        }
+        return false;
+    }
+
+    private boolean containsPosition(int dimID, long packedPos){
+        for(MCPos pos : positions) {
+            if(pos.isAt(dimID, packedPos)) return true;
+        }
+        return false;
+    }
+
     @Override
     protected void onPositionChanged(RailNetwork<MCPos> network, NetworkState<MCPos> state){
         super.onPositionChanged(network, state);
-        NetworkHandler.sendToAll(new PacketAddOrUpdateTrain(this));
+        railNetworkManager.getState().onTrainMoved(this); //Synced in batch at the end of the tick
         NetworkStorage.getInstance(railNetworkManager.isClientInstance()).markDirty();
     }
 
@@ -177,6 +249,34 @@ public class MCTrain extends Train<MCPos>{
         // capability.setPath(cart, path);
     }
 
+    @Override
+    public List<Set<MCPos>> getRouteGoals(RailNetwork<MCPos> network, MCPos start, EnumHeading dir){
+        List<Set<MCPos>> goals = new ArrayList<>();
+        for(EntityMinecart cart : getCarts()) {
+            Set<MCPos> cartGoals = getRouteGoals(network, cart);
+            if(cartGoals != null) goals.add(cartGoals);
+        }
+        return goals;
+    }
+
+    /**
+     * Same as the destination selection of {@link MCTrain#pathfind(EntityMinecart, MCPos, EnumHeading)}: skips the destinations without matching stations.
+     * @return the station rails of the current destination of the cart, or null when the cart has no destination with stations.
+     */
+    private Set<MCPos> getRouteGoals(RailNetwork<MCPos> network, EntityMinecart cart){
+        CapabilityMinecartDestination capability = cart.getCapability(CapabilityMinecartDestination.INSTANCE, null);
+        int startDestinationIndex = capability.getDestinationIndex();
+        if(startDestinationIndex == -1) return null;
+        while(true) {
+            Set<MCPos> stations = network.getStationRails(this, capability.getCurrentDestinationRegex());
+            if(!stations.isEmpty()) return stations;
+            capability.nextDestination(); //Skip this destination
+            if(capability.getDestinationIndex() == startDestinationIndex) {
+                return null;
+            }
+        }
+    }
+
     @Override
     protected void updateIntersection(RailRouteNode<MCPos> routeNode){
         if(routeNode.isValid()) {
@@ -0,0 +1,60 @@
+package com.minemaarten.signals.rail.network.mc;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import net.minecraft.nbt.CompressedStreamTools;
+import net.minecraft.nbt.NBTTagCompound;
+
+import com.minemaarten.signals.lib.Log;
+import com.minemaarten.signals.rail.network.INetworkObject;
+import com.minemaarten.signals.rail.network.RailNetwork;
+
+/**
+ * Client-side on disk cache of the last rail network received from a server, so that when joining that server again only the changes since
+ * need to be synced. See {@link NetworkChangeJournal}.
+ * @author Maarten
+ *
+ */
+public class NetworkCache{
+    public final long networkId;
+    public final long version;
+    public final List<INetworkObject<MCPos>> objects;
+
+    private NetworkCache(long networkId, long version, List<INetworkObject<MCPos>> objects){
+        this.networkId = networkId;
+        this.version = version;
+        this.objects = objects;
+    }
+
+    /**
+     * @param file
+     * @return the cached network, or null when there is none, or it could not be read.
+     */
+    public static NetworkCache load(File file){
+        if(!file.exists()) return null;
+        try(FileInputStream in = new FileInputStream(file)) {
+            NBTTagCompound tag = CompressedStreamTools.readCompressed(in);
+            return new NetworkCache(tag.getLong("networkId"), tag.getLong("networkVersion"), new NetworkSerializer().loadObjectsFromTag(tag));
+        } catch(IOException | RuntimeException e) {
+            Log.warning("Could not read the cached rail network from " + file + ": " + e);
+            return null;
+        }
+    }
+
+    public static void save(File file, long networkId, long version, RailNetwork<MCPos> network){
+        NBTTagCompound tag = new NBTTagCompound();
+        tag.setLong("networkId", networkId);
+        tag.setLong("networkVersion", version);
+        new NetworkSerializer().writeToTag(network, tag);
+        file.getParentFile().mkdirs();
+        try(FileOutputStream out = new FileOutputStream(file)) {
+            CompressedStreamTools.writeCompressed(tag, out);
+        } catch(IOException e) {
+            Log.warning("Could not write the cached rail network to " + file + ": " + e);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.minemaarten.signals.rail.network.mc;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import net.minecraft.nbt.NBTTagCompound;
+
+import com.minemaarten.signals.rail.network.INetworkObject;
+
+/**
+ * Identifies the version of the server's rail network, so clients can tell whether the network they cached is still up to date. The network id
+ * is random per network, and the version is incremented with every network update. The positions changed by the most recent updates are kept,
+ * so a client with an older version of the network only needs to be sent the objects at those positions.
+ * A new network id is picked every time the network is loaded, as the saved network can be older than the versions clients have seen (when
+ * the server crashed, or a backup was restored), and the versions after loading would then refer to different networks than the clients'.
+ * Only a client that has the exact version the network was saved with keeps its network.
+ * @author Maarten
+ *
+ */
+public class NetworkChangeJournal{
+
+    /**
+     * The maximum number of changed positions kept, after which the oldest updates are forgotten.
+     */
+    private static final int MAX_JOURNAL_POSITIONS = 100000;
+
+    private static class Entry{
+        private final long version;
+        private final Set<MCPos> changedPositions;
+
+        public Entry(long version, Set<MCPos> changedPositions){
+            this.version = version;
+            this.changedPositions = changedPositions;
+        }
+    }
+
+    private static final Random RAND = new Random();
+
+    private long networkId;
+    private long version;
+    private long oldestVersion; //The oldest version changes can be retrieved from
+    private long loadedNetworkId, loadedVersion = -1; //The network id and version the network was saved with, -1 when not loaded
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+    private int journalPositions;
+
+    public NetworkChangeJournal(){
+        networkId = RAND.nextLong();
+    }
+
+    private NetworkChangeJournal(long loadedNetworkId, long loadedVersion){
+        this();
+        this.loadedNetworkId = loadedNetworkId;
+        this.loadedVersion = loadedVersion;
+        version = loadedVersion;
+        oldestVersion = loadedVersion;
+    }
+
+    public static NetworkChangeJournal fromNBT(NBTTagCompound tag){
+        if(tag.hasKey("networkId")) {
+            return new NetworkChangeJournal(tag.getLong("networkId"), tag.getLong("networkVersion"));
+        } else {
+            return new NetworkChangeJournal();
+        }
+    }
+
+    public void writeToNBT(NBTTagCompound tag){
+        tag.setLong("networkId", networkId);
+        tag.setLong("networkVersion", version);
+    }
+
+    public long getNetworkId(){
+        return networkId;
+    }
+
+    public long getVersion(){
+        return version;
+    }
+
+    /**
+     * Starts a new network, invalidating all networks cached by clients.
+     */
+    public void reset(){
+        networkId = RAND.nextLong();
+        version = 0;
+        oldestVersion = 0;
+        loadedVersion = -1;
+        entries.clear();
+        journalPositions = 0;
+    }
+
+    public void recordUpdate(Collection<INetworkObject<MCPos>> changedObjects){
+        Set<MCPos> changedPositions = new HashSet<>(changedObjects.size());
+        for(INetworkObject<MCPos> obj : changedObjects) {
+            changedPositions.add(obj.getPos());
+        }
+        version++;
+        entries.add(new Entry(version, changedPositions));
+        journalPositions += changedPositions.size();
+
+        while(journalPositions > MAX_JOURNAL_POSITIONS) {
+            Entry oldest = entries.poll();
+            journalPositions -= oldest.changedPositions.size();
+            oldestVersion = oldest.version;
+        }
+    }
+
+    /**
+     * @param sinceNetworkId the network id of the client's network
+     * @param sinceVersion the version of the client's network
+     * @return the positions changed after the given version, or null when the changes since that version are no longer known.
+     */
+    public Set<MCPos> getChangedPositionsSince(long sinceNetworkId, long sinceVersion){
+        boolean savedVersion = sinceNetworkId == loadedNetworkId && sinceVersion == loadedVersion;
+        if(sinceNetworkId != networkId && !savedVersion) return null;
+        if(sinceVersion < oldestVersion || sinceVersion > version) return null;
+        Set<MCPos> changedPositions = new HashSet<>();
+        for(Entry entry : entries) {
+            if(entry.version > sinceVersion) changedPositions.addAll(entry.changedPositions);
+        }
+        return changedPositions;
+    }
+}
@@ -0,0 +1,417 @@
+package com.minemaarten.signals.rail.network.mc;
+
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.TLongObjectMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.TLongSet;
+import gnu.trove.set.hash.TIntHashSet;
+import gnu.trove.set.hash.TLongHashSet;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+
+import net.minecraft.entity.player.EntityPlayer;
+import net.minecraft.entity.player.EntityPlayerMP;
+
+import com.minemaarten.signals.api.access.ISignal.EnumLampStatus;
+import com.minemaarten.signals.config.SignalsConfig;
+import com.minemaarten.signals.inventory.ContainerNetworkController;
+import com.minemaarten.signals.network.NetworkHandler;
+import com.minemaarten.signals.network.PacketAddOrUpdateTrain;
+import com.minemaarten.signals.network.PacketRemoveTrain;
+import com.minemaarten.signals.network.PacketUpdateSignals;
+import com.minemaarten.signals.network.PacketUpdateTrainPath;
+import com.minemaarten.signals.network.PacketUpdateTrainPositions;
+import com.minemaarten.signals.rail.network.NetworkSignal;
+import com.minemaarten.signals.rail.network.RailNetwork;
+import com.minemaarten.signals.rail.network.RailRoute;
+import com.minemaarten.signals.rail.network.Train;
+
+/**
+ * Keeps track of the part of the rail network each player is interested in, so trains, signals and routes are only synced to the players
+ * that can see them. Players are only interested while subscribed, which is while they hold a network visualization item or have the network
+ * controller open. Then, they are interested in the chunks around them, or in their whole dimension when the network controller is open.
+ * When the interest of a player changes, the trains and signals that came into view are resynced, and the trains that went out of view are
+ * removed from the client.
+ * Routes are only shown while subscribed, so route changes of trains players don't view are held back until they subscribe again, and routes
+ * equal to the last one sent are not sent at all.
+ * Signals and trains are indexed by chunk, so only the chunks around a player are looked at when the interest of the player changes.
+ * @author Maarten
+ *
+ */
+public class NetworkInterestManager{
+
+    private static class Interest{
+        private static final Interest NONE = new Interest(false, false, false, 0, 0, 0, 0);
+        private static final Interest ALL = new Interest(true, true, true, 0, 0, 0, 0);
+
+        private final boolean all; //When interest management is disabled
+        private final boolean subscribed;
+        private final boolean wholeDimension;
+        private final int dimID, chunkX, chunkZ, chunkRadius;
+
+        public Interest(boolean all, boolean subscribed, boolean wholeDimension, int dimID, int chunkX, int chunkZ, int chunkRadius){
+            this.all = all;
+            this.subscribed = subscribed;
+            this.wholeDimension = wholeDimension;
+            this.dimID = dimID;
+            this.chunkX = chunkX;
+            this.chunkZ = chunkZ;
+            this.chunkRadius = chunkRadius;
+        }
+
+        public boolean contains(MCPos pos){
+            if(all) return true;
+            if(!subscribed || pos.getDimID() != dimID) return false;
+            return wholeDimension || Math.abs((pos.getX() >> 4) - chunkX) <= chunkRadius && Math.abs((pos.getZ() >> 4) - chunkZ) <= chunkRadius;
+        }
+
+        /**
+         * @return true when only the chunks in the radius around the player are of interest, see {@link Interest#getChunkKeys()}.
+         */
+        public boolean isChunkBounded(){
+            return !all && subscribed && !wholeDimension;
+        }
+
+        /**
+         * @return the keys of the chunks of interest, see {@link NetworkInterestManager#getChunkKey(int, int, int)}. Only for interests that
+         * are chunk bounded.
+         */
+        public long[] getChunkKeys(){
+            int diameter = chunkRadius * 2 + 1;
+            long[] keys = new long[diameter * diameter];
+            int i = 0;
+            for(int x = chunkX - chunkRadius; x <= chunkX + chunkRadius; x++) {
+                for(int z = chunkZ - chunkRadius; z <= chunkZ + chunkRadius; z++) {
+                    keys[i++] = getChunkKey(dimID, x, z);
+                }
+            }
+            return keys;
+        }
+
+        public boolean containsAny(Collection<MCPos> positions){
+            if(all) return true;
+            for(MCPos pos : positions) {
+                if(contains(pos)) return true;
+            }
+            return false;
+        }
+
+        @Override
+        public boolean equals(Object obj){
+            if(!(obj instanceof Interest)) return false;
+            Interest other = (Interest)obj;
+            return all == other.all && subscribed == other.subscribed && wholeDimension == other.wholeDimension && dimID == other.dimID && chunkX == other.chunkX && chunkZ == other.chunkZ && chunkRadius == other.chunkRadius;
+        }
+
+        @Override
+        public int hashCode(){
+            return ((dimID * 31 + chunkX) * 31 + chunkZ) * 31 + chunkRadius;
+        }
+    }
+
+    private static class PlayerSync{
+        private EntityPlayerMP player;
+        private boolean subscribed;
+        private Interest interest = Interest.NONE;
+        private final TIntSet syncedTrains = new TIntHashSet(); //The trains the client of the player knows about
+        private final TIntSet outdatedPaths = new TIntHashSet(); //The synced trains of which the route changed while not viewing
+    }
+
+    private final RailNetworkManager railNetworkManager;
+    private final Map<UUID, PlayerSync> players = new HashMap<>();
+    private final TIntObjectMap<List<MCPos>> lastSentRoutes = new TIntObjectHashMap<>();
+
+    private RailNetwork<MCPos> signalIndexNetwork; //The network the signals are indexed for
+    private final TLongObjectMap<List<MCPos>> signalsByChunk = new TLongObjectHashMap<>();
+    private boolean trainIndexValid; //False when the trains of the state changed without being indexed, as happens when a network is loaded
+    private final TLongObjectMap<TIntObjectMap<MCTrain>> trainsByChunk = new TLongObjectHashMap<>(); //Per chunk, the trains by id
+    private final TIntObjectMap<long[]> trainChunks = new TIntObjectHashMap<>(); //The chunks each train is indexed in
+
+    public NetworkInterestManager(RailNetworkManager railNetworkManager){
+        this.railNetworkManager = railNetworkManager;
+    }
+
+    /**
+     * To be called when the client of the player has been cleared, at which point everything the player is interested in is synced again.
+     * @param player
+     */
+    public void onPlayerJoin(EntityPlayerMP player){
+        PlayerSync sync = players.computeIfAbsent(player.getUniqueID(), uuid -> new PlayerSync());
+        sync.player = player; //The player entity is recreated when changing dimensions
+        sync.interest = Interest.NONE;
+        sync.syncedTrains.clear();
+        sync.outdatedPaths.clear();
+        updateInterest(sync);
+    }
+
+    public void onPlayerLeave(EntityPlayer player){
+        players.remove(player.getUniqueID());
+    }
+
+    public void setSubscribed(EntityPlayer player, boolean subscribed){
+        PlayerSync sync = players.get(player.getUniqueID());
+        if(sync != null) sync.subscribed = subscribed;
+    }
+
+    /**
+     * To be called when the clients have been cleared, as happens when a different network is loaded.
+     */
+    public void resyncAll(){
+        trainIndexValid = false;
+        for(PlayerSync sync : players.values()) {
+            sync.interest = Interest.NONE;
+            sync.syncedTrains.clear();
+            sync.outdatedPaths.clear();
+        }
+    }
+
+    /**
+     * Resyncs the players that moved into a different region, or (un)subscribed.
+     */
+    public void update(){
+        for(PlayerSync sync : players.values()) {
+            updateInterest(sync);
+            if(!sync.outdatedPaths.isEmpty() && isViewingRoutes(sync)) {
+                sync.outdatedPaths.forEach(trainID -> {
+                    MCTrain train = railNetworkManager.getTrainByID(trainID);
+                    if(train != null && sync.syncedTrains.contains(trainID)) NetworkHandler.sendTo(new PacketUpdateTrainPath(train), sync.player);
+                    return true;
+                });
+                sync.outdatedPaths.clear();
+            }
+        }
+    }
+
+    private boolean isViewingRoutes(PlayerSync sync){
+        return sync.subscribed || sync.player.openContainer instanceof ContainerNetworkController;
+    }
+
+    /**
+     * @param player
+     * @param trainID
+     * @return true when the client of the player knows about the train, and currently shows routes, so the route of the train may be sent.
+     */
+    public boolean canViewRoute(EntityPlayer player, int trainID){
+        PlayerSync sync = players.get(player.getUniqueID());
+        return sync != null && sync.syncedTrains.contains(trainID) && isViewingRoutes(sync);
+    }
+
+    private Interest getInterest(PlayerSync sync){
+        if(!SignalsConfig.performance.interestManagement) return Interest.ALL;
+        EntityPlayerMP player = sync.player;
+        boolean controllerOpen = player.openContainer instanceof ContainerNetworkController;
+        if(!sync.subscribed && !controllerOpen) return Interest.NONE;
+        return new Interest(false, true, controllerOpen, player.dimension, player.chunkCoordX, player.chunkCoordZ, SignalsConfig.performance.interestChunkRadius);
+    }
+
+    private void updateInterest(PlayerSync sync){
+        Interest interest = getInterest(sync);
+        if(interest.equals(sync.interest)) return;
+        Interest prevInterest = sync.interest;
+        sync.interest = interest;
+
+        MCNetworkState state = railNetworkManager.getState();
+        Map<MCPos, EnumLampStatus> signalsInView = new HashMap<>();
+        if(interest.isChunkBounded()) {
+            updateSignalIndex();
+            for(long chunkKey : interest.getChunkKeys()) {
+                List<MCPos> signals = signalsByChunk.get(chunkKey);
+                if(signals != null) {
+                    for(MCPos pos : signals) {
+                        if(!prevInterest.contains(pos)) signalsInView.put(pos, state.getLampStatus(pos));
+                    }
+                }
+            }
+        } else {
+            for(NetworkSignal<MCPos> signal : railNetworkManager.getNetwork().railObjects.getSignals()) {
+                MCPos pos = signal.getPos();
+                if(interest.contains(pos) && !prevInterest.contains(pos)) {
+                    signalsInView.put(pos, state.getLampStatus(pos));
+                }
+            }
+        }
+        if(!signalsInView.isEmpty()) NetworkHandler.sendTo(new PacketUpdateSignals(signalsInView), sync.player);
+
+        if(interest.isChunkBounded()) {
+            //Only the trains in view can be added, and only the trains already synced can be removed.
+            updateTrainIndex();
+            TIntSet handledTrains = new TIntHashSet();
+            for(long chunkKey : interest.getChunkKeys()) {
+                TIntObjectMap<MCTrain> trains = trainsByChunk.get(chunkKey);
+                if(trains != null) {
+                    for(MCTrain train : trains.valueCollection()) {
+                        if(handledTrains.add(train.id)) syncTrain(sync, train);
+                    }
+                }
+            }
+            for(int trainID : sync.syncedTrains.toArray()) {
+                MCTrain train = railNetworkManager.getTrainByID(trainID);
+                if(train != null && handledTrains.add(trainID)) syncTrain(sync, train);
+            }
+        } else {
+            for(Train<MCPos> train : state.getTrains()) {
+                syncTrain(sync, (MCTrain)train);
+            }
+        }
+    }
+
+    private static long getChunkKey(int dimID, int chunkX, int chunkZ){
+        return (long)dimID << 48 ^ (long)(chunkX & 0xFFFFFF) << 24 ^ (chunkZ & 0xFFFFFF);
+    }
+
+    private static long getChunkKey(MCPos pos){
+        return getChunkKey(pos.getDimID(), pos.getX() >> 4, pos.getZ() >> 4);
+    }
+
+    private void updateSignalIndex(){
+        RailNetwork<MCPos> network = railNetworkManager.getNetwork();
+        if(signalIndexNetwork == network) return;
+        signalIndexNetwork = network;
+        signalsByChunk.clear();
+        for(NetworkSignal<MCPos> signal : network.railObjects.getSignals()) {
+            long chunkKey = getChunkKey(signal.getPos());
+            List<MCPos> signals = signalsByChunk.get(chunkKey);
+            if(signals == null) {
+                signals = new ArrayList<>(1);
+                signalsByChunk.put(chunkKey, signals);
+            }
+            signals.add(signal.getPos());
+        }
+    }
+
+    private void updateTrainIndex(){
+        if(trainIndexValid) return;
+        trainIndexValid = true;
+        trainsByChunk.clear();
+        trainChunks.clear();
+        for(Train<MCPos> train : railNetworkManager.getState().getTrains()) {
+            indexTrain((MCTrain)train);
+        }
+    }
+
+    /**
+     * Indexes the train by the chunks of its current positions.
+     */
+    private void indexTrain(MCTrain train){
+        unindexTrain(train);
+        TLongSet chunkKeys = new TLongHashSet(2);
+        for(MCPos pos : train.getPositions()) {
+            chunkKeys.add(getChunkKey(pos));
+        }
+        long[] keys = chunkKeys.toArray();
+        for(long chunkKey : keys) {
+            TIntObjectMap<MCTrain> trains = trainsByChunk.get(chunkKey);
+            if(trains == null) {
+                trains = new TIntObjectHashMap<>(2);
+                trainsByChunk.put(chunkKey, trains);
+            }
+            trains.put(train.id, train);
+        }
+        trainChunks.put(train.id, keys);
+    }
+
+    private void unindexTrain(MCTrain train){
+        long[] keys = trainChunks.remove(train.id);
+        if(keys != null) {
+            for(long chunkKey : keys) {
+                TIntObjectMap<MCTrain> trains = trainsByChunk.get(chunkKey);
+                if(trains != null) {
+                    trains.remove(train.id);
+                    if(trains.isEmpty()) trainsByChunk.remove(chunkKey);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the train to the client when it came into view, or removes it when it went out of view.
+     * @return true when the client already knew about the train, and still needs to.
+     */
+    private boolean syncTrain(PlayerSync sync, MCTrain train){
+        boolean interested = sync.interest.containsAny(train.getPositions());
+        boolean synced = sync.syncedTrains.contains(train.id);
+        if(interested && !synced) {
+            sync.syncedTrains.add(train.id);
+            NetworkHandler.sendTo(new PacketAddOrUpdateTrain(train), sync.player);
+            if(train.getCurRoute() != null) NetworkHandler.sendTo(new PacketUpdateTrainPath(train), sync.player);
+            sync.outdatedPaths.remove(train.id);
+        } else if(!interested && synced) {
+            sync.syncedTrains.remove(train.id);
+            sync.outdatedPaths.remove(train.id);
+            NetworkHandler.sendTo(new PacketRemoveTrain(train), sync.player);
+        }
+        return interested && synced;
+    }
+
+    /**
+     * Syncs a train that was created or of which the carts changed.
+     * @param train
+     */
+    public void sendTrain(MCTrain train){
+        if(trainIndexValid) indexTrain(train);
+        for(PlayerSync sync : players.values()) {
+            if(syncTrain(sync, train)) NetworkHandler.sendTo(new PacketAddOrUpdateTrain(train), sync.player);
+        }
+    }
+
+    public void sendTrainPath(MCTrain train){
+        RailRoute<MCPos> route = train.getCurRoute();
+        List<MCPos> routeRails = route != null ? route.routeRails : null;
+        if(lastSentRoutes.containsKey(train.id) && Objects.equals(lastSentRoutes.get(train.id), routeRails)) return;
+        lastSentRoutes.put(train.id, routeRails);
+
+        PacketUpdateTrainPath packet = null;
+        for(PlayerSync sync : players.values()) {
+            if(!sync.syncedTrains.contains(train.id)) continue;
+            if(isViewingRoutes(sync)) {
+                if(packet == null) packet = new PacketUpdateTrainPath(train);
+                NetworkHandler.sendTo(packet, sync.player);
+                sync.outdatedPaths.remove(train.id);
+            } else {
+                sync.outdatedPaths.add(train.id);
+            }
+        }
+    }
+
+    public void sendTrainPositions(Collection<MCTrain> movedTrains){
+        if(trainIndexValid) {
+            for(MCTrain train : movedTrains) {
+                indexTrain(train);
+            }
+        }
+        for(PlayerSync sync : players.values()) {
+            List<MCTrain> trains = new ArrayList<>();
+            for(MCTrain train : movedTrains) {
+                if(syncTrain(sync, train)) trains.add(train);
+            }
+            if(!trains.isEmpty()) NetworkHandler.sendTo(new PacketUpdateTrainPositions(trains), sync.player);
+        }
+    }
+
+    public void removeTrain(MCTrain train){
+        lastSentRoutes.remove(train.id);
+        if(trainIndexValid) unindexTrain(train);
+        for(PlayerSync sync : players.values()) {
+            sync.outdatedPaths.remove(train.id);
+            if(sync.syncedTrains.remove(train.id)) NetworkHandler.sendTo(new PacketRemoveTrain(train), sync.player);
+        }
+    }
+
+    public void sendSignals(Map<MCPos, EnumLampStatus> changedSignals){
+        for(PlayerSync sync : players.values()) {
+            Map<MCPos, EnumLampStatus> signalsInView = new HashMap<>();
+            for(Map.Entry<MCPos, EnumLampStatus> entry : changedSignals.entrySet()) {
+                if(sync.interest.contains(entry.getKey())) signalsInView.put(entry.getKey(), entry.getValue());
+            }
+            if(!signalsInView.isEmpty()) NetworkHandler.sendTo(new PacketUpdateSignals(signalsInView), sync.player);
+        }
+    }
+}
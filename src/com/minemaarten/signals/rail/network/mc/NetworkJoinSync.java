@@ -0,0 +1,187 @@
+package com.minemaarten.signals.rail.network.mc;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import net.minecraft.entity.player.EntityPlayer;
+import net.minecraft.entity.player.EntityPlayerMP;
+import net.minecraft.util.math.MathHelper;
+import net.minecraftforge.fml.common.FMLCommonHandler;
+
+import com.minemaarten.signals.config.SignalsConfig;
+import com.minemaarten.signals.network.NetworkHandler;
+import com.minemaarten.signals.network.PacketNetworkVersion;
+import com.minemaarten.signals.network.PacketSyncNetworkBatch;
+import com.minemaarten.signals.rail.network.INetworkObject;
+
+/**
+ * Streams the whole rail network to players that joined, instead of sending it in one burst. The positions of the network objects are
+ * snapshotted per chunk when the player joins, and sent chunk by chunk starting at the chunks nearest to the player, within a byte budget per
+ * tick. Objects are looked up in the current network when sent, so objects that changed since the snapshot are sent as they are now, and
+ * removed objects are skipped. Objects added since are sent to the player by the regular network updates, which the client merges with the
+ * streamed objects.
+ * When the client already has an older version of the network, only the objects at the positions changed since are streamed, see
+ * {@link NetworkChangeJournal}.
+ * @author Maarten
+ *
+ */
+public class NetworkJoinSync{
+
+    private static final int MAX_OBJECTS_PER_BATCH = 1000;
+
+    private static class ChunkPositions{
+        private final int dimID, chunkX, chunkZ;
+        private final List<MCPos> positions = new ArrayList<>();
+
+        public ChunkPositions(int dimID, int chunkX, int chunkZ){
+            this.dimID = dimID;
+            this.chunkX = chunkX;
+            this.chunkZ = chunkZ;
+        }
+    }
+
+    private static class SyncStream{
+        private final EntityPlayerMP player;
+        private final List<ChunkPositions> chunks;
+        private final boolean fullSync; //When false, only changes are sent, which includes removals.
+        private boolean sentFirst;
+        private int chunkIndex, posIndex;
+
+        public SyncStream(EntityPlayerMP player, List<ChunkPositions> chunks, boolean fullSync){
+            this.player = player;
+            this.chunks = chunks;
+            this.fullSync = fullSync;
+        }
+
+        public boolean isComplete(){
+            return sentFirst && chunkIndex >= chunks.size();
+        }
+    }
+
+    private final RailNetworkManager railNetworkManager;
+    private final Map<UUID, SyncStream> streams = new HashMap<>();
+
+    public NetworkJoinSync(RailNetworkManager railNetworkManager){
+        this.railNetworkManager = railNetworkManager;
+    }
+
+    /**
+     * Clears the network of the player's client with the first batch, and starts streaming the network to it.
+     * @param player
+     */
+    public void startSync(EntityPlayerMP player){
+        startStream(player, railNetworkManager.getNetwork().railObjects.getAllNetworkObjects().keySet(), true);
+    }
+
+    /**
+     * Starts streaming the objects at the given positions to a client which already has the rest of the network.
+     * @param player
+     * @param changedPositions
+     */
+    public void startDiffSync(EntityPlayerMP player, Collection<MCPos> changedPositions){
+        startStream(player, changedPositions, false);
+    }
+
+    /**
+     * Asks the client of the player which version of the network it has, after which it is synced when it replies.
+     * @param player
+     */
+    public void startHandshake(EntityPlayerMP player){
+        streams.remove(player.getUniqueID());
+        NetworkChangeJournal journal = railNetworkManager.getChangeJournal();
+        NetworkHandler.sendTo(new PacketNetworkVersion(journal.getNetworkId(), journal.getVersion(), true), player);
+    }
+
+    private void startStream(EntityPlayerMP player, Collection<MCPos> positions, boolean fullSync){
+        SyncStream stream = new SyncStream(player, getChunksNearestFirst(player, positions), fullSync);
+        streams.put(player.getUniqueID(), stream);
+        sendBatches(stream); //Start right away, so small networks are synced without delay.
+    }
+
+    public void startSyncAll(){
+        for(EntityPlayerMP player : FMLCommonHandler.instance().getMinecraftServerInstance().getPlayerList().getPlayers()) {
+            startSync(player);
+        }
+    }
+
+    public void onPlayerLeave(EntityPlayer player){
+        streams.remove(player.getUniqueID());
+    }
+
+    /**
+     * To be called when the clients have been cleared without a new network to sync, as happens when the network is rebuilt.
+     */
+    public void cancelAll(){
+        streams.clear();
+    }
+
+    public void update(){
+        streams.values().removeIf(stream -> {
+            sendBatches(stream);
+            return stream.isComplete();
+        });
+    }
+
+    private List<ChunkPositions> getChunksNearestFirst(EntityPlayerMP player, Collection<MCPos> positions){
+        Map<Integer, Map<Long, ChunkPositions>> chunksPerDimension = new HashMap<>();
+        for(MCPos pos : positions) {
+            int chunkX = pos.getX() >> 4, chunkZ = pos.getZ() >> 4;
+            chunksPerDimension.computeIfAbsent(pos.getDimID(), dimID -> new HashMap<>()).computeIfAbsent(MCPos.toLong(chunkX, 0, chunkZ), key -> new ChunkPositions(pos.getDimID(), chunkX, chunkZ)).positions.add(pos);
+        }
+
+        int playerChunkX = MathHelper.floor(player.posX) >> 4;
+        int playerChunkZ = MathHelper.floor(player.posZ) >> 4;
+        List<ChunkPositions> chunks = new ArrayList<>();
+        chunksPerDimension.values().forEach(c -> chunks.addAll(c.values()));
+        //The player's dimension first, then the rest, as the network controller can show other dimensions.
+        chunks.sort(Comparator.<ChunkPositions> comparingInt(c -> c.dimID == player.dimension ? 0 : 1).thenComparingLong(c -> {
+            long xDiff = c.chunkX - playerChunkX, zDiff = c.chunkZ - playerChunkZ;
+            return xDiff * xDiff + zDiff * zDiff;
+        }).thenComparingInt(c -> c.dimID));
+        return chunks;
+    }
+
+    /**
+     * Sends batches to the player until the byte budget for this tick is used up. At least one batch is sent every tick, so
+     * large batches don't stall the stream.
+     */
+    private void sendBatches(SyncStream stream){
+        if(stream.isComplete()) return;
+        Map<MCPos, INetworkObject<MCPos>> allObjects = railNetworkManager.getNetwork().railObjects.getAllNetworkObjects();
+        int bytesPerTick = SignalsConfig.performance.joinSyncBytesPerTick;
+        int bytesSent = 0;
+        while(!stream.isComplete() && (bytesPerTick <= 0 || bytesSent < bytesPerTick)) {
+            List<INetworkObject<MCPos>> batch = new ArrayList<>();
+            while(stream.chunkIndex < stream.chunks.size() && batch.size() < MAX_OBJECTS_PER_BATCH) {
+                List<MCPos> positions = stream.chunks.get(stream.chunkIndex).positions;
+                MCPos pos = positions.get(stream.posIndex++);
+                INetworkObject<MCPos> obj = allObjects.get(pos);
+                if(obj != null) {
+                    batch.add(obj);
+                } else if(!stream.fullSync) {
+                    batch.add(new NetworkRemovalMarker(pos));
+                }
+                if(stream.posIndex >= positions.size()) {
+                    stream.chunkIndex++;
+                    stream.posIndex = 0;
+                    if(batch.size() >= MAX_OBJECTS_PER_BATCH / 2) break; //Prefer to end a batch at a chunk border
+                }
+            }
+
+            PacketSyncNetworkBatch packet = new PacketSyncNetworkBatch(batch, stream.fullSync && !stream.sentFirst, stream.chunkIndex >= stream.chunks.size());
+            stream.sentFirst = true;
+            NetworkHandler.sendTo(packet, stream.player);
+            bytesSent += packet.getEncodedSize();
+        }
+
+        if(stream.isComplete()) {
+            NetworkChangeJournal journal = railNetworkManager.getChangeJournal();
+            NetworkHandler.sendTo(new PacketNetworkVersion(journal.getNetworkId(), journal.getVersion(), false), stream.player);
+        }
+    }
+}
@@ -63,7 +63,7 @@ public class NetworkObjectProvider implements INetworkObjectProvider<MCPos>{
 
         if(te instanceof TileEntityStationMarker) {
             TileEntityStationMarker stationMarker = (TileEntityStationMarker)te;
-            return new MCNetworkStation(mcPos, stationMarker.getStationName());
+            return new MCNetworkStation(mcPos, stationMarker.getStationName(), stationMarker.hasDestinationProviders());
         }
 
         return null;
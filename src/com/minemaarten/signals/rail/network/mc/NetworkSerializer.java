@@ -43,17 +43,21 @@ public class NetworkSerializer{
 
     public RailNetwork<MCPos> loadNetworkFromTag(NBTTagCompound tag){
         if(tag.hasKey("objects")) {
-            List<INetworkObject<MCPos>> objects = new ArrayList<>();
-            NBTTagList list = tag.getTagList("objects", Constants.NBT.TAG_COMPOUND);
-            for(int i = 0; i < list.tagCount(); i++) {
-                objects.add(loadFromTag(list.getCompoundTagAt(i)));
-            }
-            return new RailNetwork<>(objects);
+            return new RailNetwork<>(loadObjectsFromTag(tag));
         } else {
             return new RailNetwork<>(ImmutableMap.<MCPos, INetworkObject<MCPos>> of());
         }
     }
 
+    public List<INetworkObject<MCPos>> loadObjectsFromTag(NBTTagCompound tag){
+        List<INetworkObject<MCPos>> objects = new ArrayList<>();
+        NBTTagList list = tag.getTagList("objects", Constants.NBT.TAG_COMPOUND);
+        for(int i = 0; i < list.tagCount(); i++) {
+            objects.add(loadFromTag(list.getCompoundTagAt(i)));
+        }
+        return objects;
+    }
+
     private void writeToTag(INetworkObject<MCPos> obj, NBTTagCompound tag){
         writeToTag(asSerializable(obj), tag);
     }
@@ -17,6 +17,7 @@ public class NetworkStorage extends WorldSavedData{
     public static World overworld;
     private RailNetwork<MCPos> network;
     private MCNetworkState state;
+    private NetworkChangeJournal changeJournal;
     private final boolean clientSide;
 
     public NetworkStorage(String name){
@@ -28,6 +29,7 @@ public class NetworkStorage extends WorldSavedData{
         this.clientSide = clientSide;
         network = RailNetworkManager.getInstance(clientSide).getNetwork();
         state = RailNetworkManager.getInstance(clientSide).getState();
+        changeJournal = RailNetworkManager.getInstance(clientSide).getChangeJournal();
     }
 
     @SubscribeEvent
@@ -62,13 +64,19 @@ public class NetworkStorage extends WorldSavedData{
     public void readFromNBT(NBTTagCompound tag){
         network = new NetworkSerializer().loadNetworkFromTag(tag);
         state = MCNetworkState.fromNBT(RailNetworkManager.getInstance(clientSide), tag);
-        RailNetworkManager.getInstance(clientSide).loadNetwork(network, state);
+        changeJournal = NetworkChangeJournal.fromNBT(tag);
+        RailNetworkManager.getInstance(clientSide).loadNetwork(network, state, changeJournal);
     }
 
     @Override
     public NBTTagCompound writeToNBT(NBTTagCompound tag){
+        if(!clientSide) {
+            //Worlds are saved during the server tick, while the updates of this tick may still be applying. Wait for them, so the saved network is the version of the change journal.
+            RailNetworkManager.getInstance(clientSide).checkForNewNetwork(true);
+        }
         new NetworkSerializer().writeToTag(network, tag);
         state.writeToNBT(tag);
+        changeJournal.writeToNBT(tag);
         return tag;
     }
 }
@@ -1,15 +1,20 @@
 package com.minemaarten.signals.rail.network.mc;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
 import java.util.concurrent.Future;
 import java.util.regex.Pattern;
 import java.util.stream.Stream;
@@ -33,8 +38,9 @@ import com.minemaarten.signals.Signals;
 import com.minemaarten.signals.api.access.ISignal.EnumLampStatus;
 import com.minemaarten.signals.config.SignalsConfig;
 import com.minemaarten.signals.network.NetworkHandler;
-import com.minemaarten.signals.network.PacketAddOrUpdateTrain;
 import com.minemaarten.signals.network.PacketClearNetwork;
+import com.minemaarten.signals.network.PacketNetworkCacheVersion;
+import com.minemaarten.signals.network.PacketNetworkVersion;
 import com.minemaarten.signals.network.PacketUpdateNetwork;
 import com.minemaarten.signals.rail.network.EnumHeading;
 import com.minemaarten.signals.rail.network.INetworkObject;
@@ -71,10 +77,21 @@ public class RailNetworkManager{
     }
 
     private final ExecutorService railNetworkExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setNameFormat("signals-network-thread-%d").build());
+    private ForkJoinPool networkBuildPool; //Server-side, started when first needed, and shut down when the world unloads
+    private ExecutorService routingExecutor; //Server-side, started when first needed, and shut down when the world unloads
+    private ExecutorService preprocessingExecutor; //Server-side, started when first needed, and shut down when the world unloads
+    private volatile RailNetwork<MCPos> preprocessedNetwork; //Server-side, the network preprocessing was last scheduled for
     private Future<RailNetwork<MCPos>> networkUpdateTask;
     private RailNetwork<MCPos> network;
     private MCNetworkState state = new MCNetworkState(this);
     private final NetworkUpdater<MCPos> networkUpdater = new NetworkUpdater<>(new NetworkObjectProvider());
+    private final NetworkInterestManager interestManager = new NetworkInterestManager(this);
+    private final NetworkJoinSync joinSync = new NetworkJoinSync(this);
+    private NetworkChangeJournal changeJournal = new NetworkChangeJournal();
+    private Map<MCPos, INetworkObject<MCPos>> pendingSyncObjects; //Client-side, the objects streamed so far while the network is being synced
+    private long networkId, networkVersion = -1; //Client-side, the version of the network the client has, -1 when unknown
+    private long builtNetworkVersion = -1; //Client-side, the version of the network returned by getNetwork(), -1 when unknown
+    private File networkCacheFile; //Client-side
 
     private RailNetworkManager(boolean client){
         if(client) {
@@ -121,6 +138,10 @@ public class RailNetworkManager{
         validateOnServer();
 
         NetworkHandler.sendToAll(new PacketClearNetwork());
+        joinSync.cancelAll();
+        changeJournal.reset();
+        NetworkHandler.sendToAll(new PacketNetworkVersion(changeJournal.getNetworkId(), changeJournal.getVersion(), false));
+        interestManager.resyncAll();
         network = RailNetwork.empty();
         getStartNodes().forEach(networkUpdater::markDirty);
         initTrains();
@@ -141,7 +162,7 @@ public class RailNetworkManager{
         Set<MCTrain> trains = new NetworkObjectProvider().provideTrains(carts);
         state.setTrains(trains);
         for(MCTrain train : trains) {
-            NetworkHandler.sendToAll(new PacketAddOrUpdateTrain(train));
+            interestManager.sendTrain(train);
         }
     }
 
@@ -157,6 +178,23 @@ public class RailNetworkManager{
         return state;
     }
 
+    public NetworkInterestManager getInterestManager(){
+        return interestManager;
+    }
+
+    public NetworkChangeJournal getChangeJournal(){
+        return changeJournal;
+    }
+
+    /**
+     * @return the version of the network returned by {@link RailNetworkManager#getNetwork()}, or -1 when it is unknown, or updates are still
+     *         being applied to it.
+     */
+    public long getBuiltNetworkVersion(){
+        if(this == SERVER_INSTANCE) return networkUpdateTask == null ? changeJournal.getVersion() : -1;
+        return builtNetworkVersion;
+    }
+
     public NetworkRail<MCPos> getRail(World world, BlockPos pos){
         return getRail(new MCPos(world, pos));
     }
@@ -165,19 +203,23 @@ public class RailNetworkManager{
         return network.railObjects.getRail(pos);
     }
 
-    public void loadNetwork(RailNetwork<MCPos> network, MCNetworkState state){
+    /**
+     * Allocation free variant of {@link RailNetworkManager#getRail(World, BlockPos)}, for lookups done every tick.
+     */
+    public NetworkRail<MCPos> getRail(int dimID, int x, int y, int z){
+        return network.railObjects.getRail(dimID, MCPos.toLong(x, y, z));
+    }
+
+    public void loadNetwork(RailNetwork<MCPos> network, MCNetworkState state, NetworkChangeJournal changeJournal){
         networkUpdateTask = null;
         state.getTrackingCartsFrom(this.state); // Take carts that were loaded before this network state was loaded from nbt.
         this.network = network;
         this.state = state;
-
-        NetworkHandler.sendToAll(new PacketClearNetwork());
-        for(PacketUpdateNetwork packet : getSplitNetworkUpdatePackets(network.railObjects.getAllNetworkObjects().values())) {
-            NetworkHandler.sendToAll(packet);
-        }
-
-        for(Train<MCPos> train : state.getTrains()) {
-            NetworkHandler.sendToAll(new PacketAddOrUpdateTrain((MCTrain)train));
+        this.changeJournal = changeJournal;
+        if(this == SERVER_INSTANCE) {
+            schedulePreprocessing(network);
+            joinSync.startSyncAll();
+            interestManager.resyncAll(); //The trains and signals are resynced with the next update
         }
     }
 
@@ -190,10 +232,10 @@ public class RailNetworkManager{
     }
 
     public void addTrain(MCTrain train){
+        state.addTrain(train);
         if(this == SERVER_INSTANCE) {
-            NetworkHandler.sendToAll(new PacketAddOrUpdateTrain(train));
+            interestManager.sendTrain(train);
         }
-        state.addTrain(train);
     }
 
     public void removeTrain(int trainID){
@@ -204,6 +246,72 @@ public class RailNetworkManager{
         return state.getLampStatus(new MCPos(world, pos));
     }
 
+    public synchronized ExecutorService getRoutingExecutor(){
+        validateOnServer();
+        if(routingExecutor == null) {
+            routingExecutor = Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors() / 2), new ThreadFactoryBuilder().setNameFormat("signals-routing-thread-%d").setDaemon(true).build());
+        }
+        return routingExecutor;
+    }
+
+    private synchronized ExecutorService getPreprocessingExecutor(){
+        validateOnServer();
+        if(preprocessingExecutor == null) {
+            preprocessingExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setNameFormat("signals-preprocessing-thread-%d").setDaemon(true).build());
+        }
+        return preprocessingExecutor;
+    }
+
+    /**
+     * Builds the landmarks and, when enabled, the contraction hierarchy of the network on their own thread, as the network update thread is
+     * waited for by the server tick. Routes are searched without them until they're built. Networks that have been replaced by the time
+     * their turn comes are skipped, which matters for the hierarchy, as it takes long to build for large networks.
+     * @param network
+     */
+    private void schedulePreprocessing(RailNetwork<MCPos> network){
+        preprocessedNetwork = network;
+        getPreprocessingExecutor().submit(() -> {
+            if(preprocessedNetwork == network) network.buildLandmarks();
+            if(preprocessedNetwork == network && SignalsConfig.performance.contractionHierarchyRouting) network.buildContractionHierarchy();
+        });
+    }
+
+    private synchronized ForkJoinPool getNetworkBuildPool(){
+        validateOnServer();
+        if(networkBuildPool == null) {
+            networkBuildPool = new ForkJoinPool(Math.max(1, Runtime.getRuntime().availableProcessors() - 1), pool -> {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                thread.setName("signals-build-thread-" + thread.getPoolIndex());
+                thread.setDaemon(true);
+                return thread;
+            }, null, false);
+        }
+        return networkBuildPool;
+    }
+
+    /**
+     * Stops the worker threads of the server when the overworld unloads, which happens when the server stops. They are started again when
+     * another world is loaded.
+     * @param world
+     */
+    public synchronized void onWorldUnload(World world){
+        validateOnServer();
+        if(world.provider.getDimension() != 0) return;
+        if(routingExecutor != null) {
+            routingExecutor.shutdown();
+            routingExecutor = null;
+        }
+        if(networkBuildPool != null) {
+            networkBuildPool.shutdown();
+            networkBuildPool = null;
+        }
+        if(preprocessingExecutor != null) {
+            preprocessingExecutor.shutdown();
+            preprocessingExecutor = null;
+        }
+        preprocessedNetwork = null;
+    }
+
     public RailRouteResult<MCPos> pathfind(MCPos start, Train<MCPos> train, Pattern destinationRegex, EnumHeading direction){
         return new RailPathfinder<MCPos>(network, state).pathfindToDestination(start, train, destinationRegex, direction);
     }
@@ -222,6 +330,8 @@ public class RailNetworkManager{
             for(PacketUpdateNetwork packet : getSplitNetworkUpdatePackets(updates)) {
                 NetworkHandler.sendToAll(packet);
             }
+            changeJournal.recordUpdate(updates);
+            NetworkHandler.sendToAll(new PacketNetworkVersion(changeJournal.getNetworkId(), changeJournal.getVersion(), false));
         }
     }
 
@@ -233,11 +343,14 @@ public class RailNetworkManager{
                 NetworkStorage.getInstance(isClientInstance()).setNetwork(network);
 
                 if(this == CLIENT_INSTANCE) {
+                    if(pendingSyncObjects == null) builtNetworkVersion = networkVersion; //The network includes every update received before the version.
                     //Asynchronously update the renderers
                     railNetworkExecutor.submit(() -> {
-                        network.build(); //Build the network cache off thread
+                        build(network); //Build the network cache off thread
                         Signals.proxy.onRailNetworkUpdated();
                     });
+                } else {
+                    schedulePreprocessing(network);
                 }
 
                 state.onNetworkChanged(network);
@@ -255,10 +368,15 @@ public class RailNetworkManager{
      * @param changedObjects
      */
     public void applyUpdates(Collection<INetworkObject<MCPos>> changedObjects){
-        if(this == SERVER_INSTANCE || networkUpdateTask == null) {
+        if(pendingSyncObjects != null) {
+            //While the network is being streamed, only build once all of it arrived.
+            for(INetworkObject<MCPos> obj : changedObjects) {
+                pendingSyncObjects.put(obj.getPos(), obj);
+            }
+        } else if(this == SERVER_INSTANCE || networkUpdateTask == null) {
 
             checkForNewNetwork(true);
-            networkUpdateTask = railNetworkExecutor.submit(() -> networkUpdater.applyUpdates(getNetwork(), changedObjects).build());
+            networkUpdateTask = railNetworkExecutor.submit(() -> build(networkUpdater.applyUpdates(getNetwork(), changedObjects)));
         } else {
             //On the client, when the network was already updating, simply schedule the new update after the current one.
             final Future<RailNetwork<MCPos>> prevTask = networkUpdateTask;
@@ -268,8 +386,87 @@ public class RailNetworkManager{
         }
     }
 
+    private RailNetwork<MCPos> build(RailNetwork<MCPos> network){
+        return SignalsConfig.performance.parallelNetworkBuilding && this == SERVER_INSTANCE ? network.buildParallel(getNetworkBuildPool()) : network.build();
+    }
+
+    /**
+     * Collects the batches of the network streamed by {@link NetworkJoinSync}, and builds the network once when the last batch arrived.
+     * @param objects
+     * @param complete
+     */
+    public void onSyncBatch(Collection<INetworkObject<MCPos>> objects, boolean first, boolean complete){
+        validateOnClient();
+        if(first) clearNetwork();
+        if(pendingSyncObjects == null) pendingSyncObjects = new HashMap<>();
+        applyUpdates(objects);
+        if(complete) {
+            Collection<INetworkObject<MCPos>> syncedObjects = pendingSyncObjects.values();
+            pendingSyncObjects = null;
+            applyUpdates(syncedObjects);
+        }
+    }
+
+    /**
+     * Called when joining a server, replies with the version of the network the client already has, either in memory (as when changing
+     * dimensions) or on disk. The cached network is replied even when its network id differs from the server's, as the server picks a new id
+     * whenever it loads the network, and it decides whether the cached network is still valid. Until the server replies, the network is
+     * collected as pending, starting from that version.
+     * @param serverNetworkId
+     */
+    public void onNetworkHandshake(long serverNetworkId){
+        validateOnClient();
+        long cacheNetworkId = serverNetworkId, version = -1;
+        networkCacheFile = Signals.proxy.getNetworkCacheFile();
+        if(pendingSyncObjects == null && networkVersion >= 0 && networkId == serverNetworkId) {
+            version = networkVersion; //The changes are applied on top of the current network
+            state.setTrains(Collections.emptyList());
+            pendingSyncObjects = new HashMap<>();
+        } else {
+            NetworkCache cache = SignalsConfig.performance.clientNetworkCache && networkCacheFile != null ? NetworkCache.load(networkCacheFile) : null;
+            clearNetwork();
+            pendingSyncObjects = new HashMap<>();
+            if(cache != null) {
+                cacheNetworkId = cache.networkId;
+                version = cache.version;
+                for(INetworkObject<MCPos> obj : cache.objects) {
+                    pendingSyncObjects.put(obj.getPos(), obj);
+                }
+            }
+        }
+        networkId = serverNetworkId;
+        networkVersion = version;
+        NetworkHandler.sendToServer(new PacketNetworkCacheVersion(cacheNetworkId, version));
+    }
+
+    public void onNetworkVersion(long networkId, long version){
+        validateOnClient();
+        this.networkId = networkId;
+        this.networkVersion = version;
+        if(networkUpdateTask == null && pendingSyncObjects == null) builtNetworkVersion = version;
+    }
+
+    /**
+     * Writes the network to the cache of the server, when it was completely synced.
+     */
+    public void saveNetworkCache(){
+        validateOnClient();
+        if(!SignalsConfig.performance.clientNetworkCache || networkCacheFile == null || pendingSyncObjects != null || networkVersion < 0) return;
+        File file = networkCacheFile;
+        long id = networkId, version = networkVersion;
+        Future<RailNetwork<MCPos>> task = networkUpdateTask;
+        RailNetwork<MCPos> currentNetwork = network;
+        railNetworkExecutor.submit(() -> {
+            NetworkCache.save(file, id, version, task != null ? task.get() : currentNetwork); //The task is done, as it was submitted to this executor before
+            return null;
+        });
+    }
+
     public void clearNetwork(){
         validateOnClient();
+        pendingSyncObjects = null;
+        networkVersion = -1;
+        builtNetworkVersion = -1;
         network = RailNetworkClient.empty();
         state.setTrains(Collections.emptyList());
         Signals.proxy.onRailNetworkUpdated();
@@ -280,6 +477,8 @@ public class RailNetworkManager{
         validateOnServer();
         checkForNewNetwork(true);
         state.update(network);
+        joinSync.update();
+        interestManager.update();
         if(networkUpdater.didJustTurnBusy()) {
             notifyAllPlayers(new TextComponentTranslation("signals.message.signals_busy"));
         }
@@ -302,11 +501,31 @@ public class RailNetworkManager{
     }
 
     public void onPlayerJoin(EntityPlayerMP player){
-        NetworkHandler.sendTo(new PacketClearNetwork(), player);
-        for(PacketUpdateNetwork packet : getSplitNetworkUpdatePackets(network.railObjects.getAllNetworkObjects().values())) {
-            NetworkHandler.sendTo(packet, player);
+        if(SignalsConfig.performance.clientNetworkCache) {
+            joinSync.startHandshake(player);
+        } else {
+            joinSync.startSync(player);
+        }
+        interestManager.onPlayerJoin(player);
+    }
+
+    /**
+     * The reply to the handshake of a player that joined, with the version of the network the client has. Only the changes since are
+     * synced when they are still known, else the whole network is synced.
+     */
+    public void onClientNetworkVersion(EntityPlayerMP player, long clientNetworkId, long clientVersion){
+        validateOnServer();
+        Set<MCPos> changedPositions = changeJournal.getChangedPositionsSince(clientNetworkId, clientVersion);
+        if(changedPositions != null && changedPositions.size() < network.railObjects.getAllNetworkObjects().size()) {
+            joinSync.startDiffSync(player, changedPositions);
+        } else {
+            joinSync.startSync(player);
         }
-        state.onPlayerJoin(player);
+    }
+
+    public void onPlayerLeave(EntityPlayer player){
+        joinSync.onPlayerLeave(player);
+        interestManager.onPlayerLeave(player);
     }
 
     public void onChunkUnload(Chunk chunk){
@@ -326,6 +545,13 @@ public class RailNetworkManager{
     private List<PacketUpdateNetwork> getSplitNetworkUpdatePackets(Collection<INetworkObject<MCPos>> allChangedObjects){
         if(allChangedObjects.size() <= MAX_CHANGES_PER_PACKET) return Collections.singletonList(new PacketUpdateNetwork(allChangedObjects));
 
+        if(SignalsConfig.performance.compactNetworkPackets) {
+            //Split along chunks, so every packet only covers a few chunks
+            List<INetworkObject<MCPos>> sortedObjects = new ArrayList<>(allChangedObjects);
+            sortedObjects.sort(CompactNetworkSerializer.CHUNK_ORDER);
+            allChangedObjects = sortedObjects;
+        }
+
         List<PacketUpdateNetwork> packets = new ArrayList<>();
         Iterator<INetworkObject<MCPos>> iterator = allChangedObjects.iterator();
         List<INetworkObject<MCPos>> changedObjects = new ArrayList<>(MAX_CHANGES_PER_PACKET);
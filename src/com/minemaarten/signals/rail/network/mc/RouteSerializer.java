@@ -0,0 +1,154 @@
+package com.minemaarten.signals.rail.network.mc;
+
+import io.netty.buffer.ByteBuf;
+
+import java.util.List;
+
+import net.minecraft.network.PacketBuffer;
+import net.minecraft.util.math.BlockPos;
+
+import com.google.common.collect.ImmutableList;
+import com.minemaarten.signals.lib.ZigZagUtils;
+import com.minemaarten.signals.rail.network.RailEdge;
+import com.minemaarten.signals.rail.network.RailNetwork;
+import com.minemaarten.signals.rail.network.RailRoute.RailRouteNode;
+
+/**
+ * Compact wire format of the rails of a route, used by PacketUpdateTrainPath. Instead of every rail, the route is written as steps from one
+ * rail to the next. When a step enters an edge of the network, the number of rails the route follows that edge for is written with it, so
+ * every edge of the route takes a couple of bytes, and the receiving side expands it with the edges of its own network.
+ * A step is a byte with the offset to the neighboring rail, or a jump with the full delta to the next rail when they aren't neighbors (as
+ * happens with teleport rails). Edges are only referenced by rails that belong to a single edge, so the sender and receiver agree on the edge
+ * even though crossings map to an arbitrary edge.
+ * @author Maarten
+ *
+ */
+public class RouteSerializer{
+
+    private static final int JUMP = 27; //Offsets of neighboring rails take 0-26.
+
+    /**
+     * Walks along an edge of the network, starting at the rail a step entered.
+     */
+    private static class EdgeWalk{
+        private final RailEdge<MCPos> edge;
+        private final int index, direction;
+
+        private EdgeWalk(RailEdge<MCPos> edge, int index, int direction){
+            this.edge = edge;
+            this.index = index;
+            this.direction = direction;
+        }
+
+        /**
+         * @param from the rail before the step
+         * @param to the rail stepped on
+         * @return the walk along the edge 'to' belongs to, in the direction of the step, or null when that edge is ambiguous.
+         */
+        public static EdgeWalk start(RailNetwork<MCPos> network, MCPos from, MCPos to){
+            RailEdge<MCPos> edge = network.findEdge(to);
+            if(edge == null || edge.isAtStartOrEnd(to)) return null;
+            for(RailRouteNode<MCPos> intersection : edge.getIntersectionsWithFirst(edge.startPos)) {
+                if(intersection.pos.equals(to)) return null;
+            }
+            int index = edge.getIndex(to);
+            if(edge.get(index - 1).getPos().equals(from)) return new EdgeWalk(edge, index, 1);
+            if(edge.get(index + 1).getPos().equals(from)) return new EdgeWalk(edge, index, -1);
+            return null;
+        }
+
+        /**
+         * @return the rail the given amount of rails further along the edge, or null when past the end of the edge.
+         */
+        public MCPos get(int rails){
+            int i = index + rails * direction;
+            return i >= 0 && i < edge.length ? edge.get(i).getPos() : null;
+        }
+    }
+
+    public static void writeRoute(List<MCPos> routeRails, RailNetwork<MCPos> network, ByteBuf buf){
+        PacketBuffer b = new PacketBuffer(buf);
+        b.writeVarInt(routeRails.size());
+        if(routeRails.isEmpty()) return;
+
+        MCPos cur = routeRails.get(0);
+        cur.writeToBuf(b);
+        int i = 1;
+        while(i < routeRails.size()) {
+            MCPos next = routeRails.get(i++);
+            int offset = getNeighborOffset(cur, next);
+            if(offset == JUMP) {
+                b.writeByte(JUMP);
+                b.writeVarInt(ZigZagUtils.encode(next.getDimID() - cur.getDimID()));
+                b.writeVarInt(ZigZagUtils.encode(next.getX() - cur.getX()));
+                b.writeVarInt(ZigZagUtils.encode(next.getY() - cur.getY()));
+                b.writeVarInt(ZigZagUtils.encode(next.getZ() - cur.getZ()));
+            } else {
+                b.writeByte(offset);
+                int run = 0;
+                EdgeWalk walk = EdgeWalk.start(network, cur, next);
+                if(walk != null) {
+                    while(i + run < routeRails.size() && routeRails.get(i + run).equals(walk.get(run + 1))) {
+                        run++;
+                    }
+                }
+                b.writeVarInt(run);
+                if(run > 0) {
+                    next = routeRails.get(i + run - 1);
+                    i += run;
+                }
+            }
+            cur = next;
+        }
+    }
+
+    /**
+     * @param buf
+     * @param network the network to expand the edges of the route with
+     * @return the rails of the route. When the route references an edge the network does not have (yet), only the rails up to that edge.
+     */
+    public static ImmutableList<MCPos> readRoute(ByteBuf buf, RailNetwork<MCPos> network){
+        PacketBuffer b = new PacketBuffer(buf);
+        int count = b.readVarInt();
+        ImmutableList.Builder<MCPos> routeRails = ImmutableList.builder();
+        if(count == 0) return routeRails.build();
+
+        MCPos cur = new MCPos(b);
+        routeRails.add(cur);
+        int read = 1;
+        while(read < count) {
+            int offset = b.readUnsignedByte();
+            MCPos next;
+            if(offset == JUMP) {
+                next = new MCPos(cur.getDimID() + ZigZagUtils.decode(b.readVarInt()), new BlockPos(cur.getX() + ZigZagUtils.decode(b.readVarInt()), cur.getY() + ZigZagUtils.decode(b.readVarInt()), cur.getZ() + ZigZagUtils.decode(b.readVarInt())));
+            } else {
+                next = new MCPos(cur.getDimID(), cur.getPos().add(offset / 9 - 1, offset / 3 % 3 - 1, offset % 3 - 1));
+            }
+            routeRails.add(next);
+            read++;
+
+            int run = offset == JUMP ? 0 : b.readVarInt();
+            if(run > 0) {
+                EdgeWalk walk = EdgeWalk.start(network, cur, next);
+                if(walk == null) break;
+                for(int i = 1; i <= run; i++) {
+                    next = walk.get(i);
+                    if(next == null) return routeRails.build();
+                    routeRails.add(next);
+                }
+                read += run;
+            }
+            cur = next;
+        }
+        return routeRails.build();
+    }
+
+    /**
+     * @return the offset to the neighboring position as 0-26, or JUMP when not a neighbor.
+     */
+    private static int getNeighborOffset(MCPos from, MCPos to){
+        int xDiff = to.getX() - from.getX(), yDiff = to.getY() - from.getY(), zDiff = to.getZ() - from.getZ();
+        if(from.getDimID() != to.getDimID() || Math.abs(xDiff) > 1 || Math.abs(yDiff) > 1 || Math.abs(zDiff) > 1) return JUMP;
+        return (xDiff + 1) * 9 + (yDiff + 1) * 3 + zDiff + 1;
+    }
+}
@@ -1,7 +1,10 @@
 package com.minemaarten.signals.tileentity;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -22,7 +25,9 @@ import com.minemaarten.signals.block.BlockSignalBase;
 import com.minemaarten.signals.rail.network.INetworkObject;
 import com.minemaarten.signals.rail.network.NetworkSignal;
 import com.minemaarten.signals.rail.network.NetworkSignal.EnumSignalType;
+import com.minemaarten.signals.rail.network.Train;
 import com.minemaarten.signals.rail.network.mc.MCPos;
+import com.minemaarten.signals.rail.network.mc.MCTrain;
 import com.minemaarten.signals.rail.network.mc.RailNetworkManager;
 
 public abstract class TileEntitySignalBase extends TileEntityBase implements ITickable, ISignal{
@@ -80,7 +85,25 @@ public abstract class TileEntitySignalBase extends TileEntityBase implements ITi
     protected List<EntityMinecart> getNeighborMinecarts(){
         NetworkSignal<MCPos> signal = getSignal();
         if(signal == null) return Collections.emptyList();
-        return getNeighborMinecarts(RailNetworkManager.getInstance(world.isRemote).getNetwork().getPositionsInFront(signal).stream());
+        RailNetworkManager manager = RailNetworkManager.getInstance(world.isRemote);
+        List<MCPos> positions = manager.getNetwork().getPositionsInFront(signal);
+
+        //Look up the trains in front via the position index of the state, instead of searching the world for carts.
+        Set<Train<MCPos>> trains = new HashSet<>();
+        for(MCPos pos : positions) {
+            Train<MCPos> train = manager.getState().getTrainAt(pos);
+            if(train != null) trains.add(train);
+        }
+
+        List<EntityMinecart> carts = new ArrayList<>();
+        for(Train<MCPos> train : trains) {
+            for(EntityMinecart cart : ((MCTrain)train).getCarts()) {
+                if(positions.contains(MCTrain.getCartPos(manager.getNetwork().railObjects, cart))) {
+                    carts.add(cart);
+                }
+            }
+        }
+        return carts;
     }
 
     public static List<EntityMinecart> getNeighborMinecarts(Stream<MCPos> positions){
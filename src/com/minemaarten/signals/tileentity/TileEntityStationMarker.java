@@ -9,14 +9,21 @@ import net.minecraft.entity.item.EntityMinecart;
 import net.minecraft.nbt.NBTTagCompound;
 import net.minecraft.network.NetworkManager;
 import net.minecraft.network.play.server.SPacketUpdateTileEntity;
+import net.minecraft.tileentity.TileEntity;
 import net.minecraft.util.EnumFacing;
+import net.minecraft.util.EnumParticleTypes;
 import net.minecraft.util.ITickable;
+import net.minecraft.util.math.BlockPos;
 
 import org.apache.commons.lang3.Validate;
 
 import com.minemaarten.signals.api.access.IStationMarker;
+import com.minemaarten.signals.capabilities.CapabilityDestinationProvider;
 import com.minemaarten.signals.capabilities.CapabilityMinecartDestination;
+import com.minemaarten.signals.capabilities.destinationproviders.CartFingerprints;
 import com.minemaarten.signals.network.GuiSynced;
+import com.minemaarten.signals.network.NetworkHandler;
+import com.minemaarten.signals.network.PacketSpawnParticle;
 import com.minemaarten.signals.rail.network.INetworkObject;
 import com.minemaarten.signals.rail.network.NetworkRail;
 import com.minemaarten.signals.rail.network.PosAABB;
@@ -26,10 +33,17 @@ import com.minemaarten.signals.rail.network.mc.RailNetworkManager;
 
 public class TileEntityStationMarker extends TileEntityBase implements ITickable, IGUITextFieldSensitive,
         IStationMarker{
+    /**
+     * The minimum number of ticks between showing which destination provider matched, as carts can be routed every tick.
+     */
+    private static final int PARTICLE_INTERVAL = 20;
+
     private static int nextId;
     @GuiSynced
     private String stationName = "";
     private PosAABB<MCPos> neighborAABB;
+    private List<EnumFacing> destinationProviderSides; //The sides with destination providers, null when the neighbors changed
+    private long lastParticleTime = -PARTICLE_INTERVAL;
 
     public TileEntityStationMarker(){
         stationName = "Station" + nextId++;
@@ -65,6 +79,71 @@ public class TileEntityStationMarker extends TileEntityBase implements ITickable
         }
     }
 
+    /**
+     * @return true when any of the neighboring tile entities is a destination provider, which can make this station applicable for trains
+     * regardless of their destination. Also true when a neighbor is not loaded, as it may be a destination provider once it is.
+     */
+    public boolean hasDestinationProviders(){
+        if(!getDestinationProviderSides().isEmpty()) return true;
+        for(EnumFacing d : EnumFacing.VALUES) {
+            if(!world.isBlockLoaded(getPos().offset(d))) return true;
+        }
+        return false;
+    }
+
+    private List<EnumFacing> getDestinationProviderSides(){
+        if(destinationProviderSides != null) return destinationProviderSides;
+        List<EnumFacing> sides = new ArrayList<>(1);
+        boolean allLoaded = true;
+        for(EnumFacing d : EnumFacing.VALUES) {
+            BlockPos neighborPos = getPos().offset(d);
+            if(world.isBlockLoaded(neighborPos)) {
+                TileEntity te = world.getTileEntity(neighborPos);
+                if(te != null && te.hasCapability(CapabilityDestinationProvider.INSTANCE, null)) sides.add(d);
+            } else {
+                allLoaded = false;
+            }
+        }
+        if(allLoaded) destinationProviderSides = sides; //Neighbors that load later are looked up again.
+        return sides;
+    }
+
+    public void onNeighborChanged(){
+        destinationProviderSides = null;
+    }
+
+    /**
+     * @param train
+     * @param destinationRegex
+     * @return true when any of the neighboring destination providers is applicable for any of the carts of the train.
+     */
+    public boolean isTrainApplicable(MCTrain train, Pattern destinationRegex){
+        List<EnumFacing> sides = getDestinationProviderSides();
+        if(sides.isEmpty()) return false;
+        CartFingerprints cartFingerprints = train.getCartFingerprints(world);
+        for(EnumFacing side : sides) {
+            BlockPos neighborPos = getPos().offset(side);
+            TileEntity te = world.isBlockLoaded(neighborPos) ? world.getTileEntity(neighborPos) : null;
+            CapabilityDestinationProvider cap = te != null ? te.getCapability(CapabilityDestinationProvider.INSTANCE, null) : null;
+            if(cap != null && cap.isTrainApplicable(te, train.getCarts(), cartFingerprints, destinationRegex)) {
+                spawnMatchParticles(side);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void spawnMatchParticles(EnumFacing dir){
+        long time = world.getTotalWorldTime();
+        if(time - lastParticleTime < PARTICLE_INTERVAL && time >= lastParticleTime) return;
+        lastParticleTime = time;
+        for(int i = 0; i < 10; i++) {
+            double x = getPos().getX() + world.rand.nextDouble();
+            double z = getPos().getZ() + world.rand.nextDouble();
+            NetworkHandler.sendToAllAround(new PacketSpawnParticle(EnumParticleTypes.ENCHANTMENT_TABLE, x, getPos().getY() + 1, z, dir.getFrontOffsetX(), dir.getFrontOffsetY(), dir.getFrontOffsetZ()), world);
+        }
+    }
+
     public List<MCPos> getNeighborRails(){
         List<MCPos> neighbors = new ArrayList<>(1);
         for(EnumFacing d : EnumFacing.VALUES) {
@@ -3,6 +3,7 @@ package com.minemaarten.signals.benchmarks;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -32,6 +33,7 @@ public class NetworkBenchmarks{
     private static List<INetworkObject<Pos2D>> fullGrid, largeNetwork;
     private static RailNetwork<Pos2D> fullGridNetwork, largeNetworkNetwork;
     private static NetworkState<Pos2D> fullGridState, largeNetworkState;
+    private static final ForkJoinPool BUILD_POOL = new ForkJoinPool();
 
     @BeforeClass
     public static void prepare(){
@@ -94,6 +96,57 @@ public class NetworkBenchmarks{
         }
     }
 
+    //700ms
+    //500ms
+    /**
+     * Pathfinding between random rails, without the route and destination tree caches.
+     */
+    @Test
+    public void benchmarkPathfindLargeNetwork(){
+        Random rand = new Random(2);
+        List<Pos2D> rails = new ArrayList<>();
+        for(INetworkObject<Pos2D> obj : largeNetwork) {
+            if(obj instanceof DefaultRailNode) rails.add(obj.getPos());
+        }
+        largeNetworkState.update(largeNetworkNetwork);
+        largeNetworkState.setRouteCaching(false);
+        largeNetworkState.setDestinationTreeCaching(false);
+        largeNetworkNetwork.buildLandmarks();
+        for(int i = 0; i < 1000; i++) {
+            Pos2D start = rails.get(rand.nextInt(rails.size()));
+            Pos2D destination = rails.get(rand.nextInt(rails.size()));
+            largeNetworkNetwork.pathfind(largeNetworkState, start, null, ImmutableSet.of(destination));
+        }
+        largeNetworkState.setRouteCaching(true);
+        largeNetworkState.setDestinationTreeCaching(true);
+    }
+
+    //800ms
+    /**
+     * Same as {@link NetworkBenchmarks#benchmarkPathfindLargeNetwork()}, but routing via the contraction hierarchy, including building it.
+     */
+    @Test
+    public void benchmarkPathfindLargeNetworkContractionHierarchy(){
+        Random rand = new Random(2);
+        List<Pos2D> rails = new ArrayList<>();
+        for(INetworkObject<Pos2D> obj : largeNetwork) {
+            if(obj instanceof DefaultRailNode) rails.add(obj.getPos());
+        }
+        largeNetworkState.update(largeNetworkNetwork);
+        largeNetworkState.setRouteCaching(false);
+        largeNetworkState.setDestinationTreeCaching(false);
+        largeNetworkState.setContractionHierarchyRouting(true);
+        largeNetworkNetwork.buildContractionHierarchy();
+        for(int i = 0; i < 1000; i++) {
+            Pos2D start = rails.get(rand.nextInt(rails.size()));
+            Pos2D destination = rails.get(rand.nextInt(rails.size()));
+            largeNetworkNetwork.pathfind(largeNetworkState, start, null, ImmutableSet.of(destination));
+        }
+        largeNetworkState.setContractionHierarchyRouting(false);
+        largeNetworkState.setRouteCaching(true);
+        largeNetworkState.setDestinationTreeCaching(true);
+    }
+
     //900ms
     @Test
     public void benchmarkFullGrid(){
@@ -105,6 +158,15 @@ public class NetworkBenchmarks{
     @Test
     public void benchmarkLargeNetwork(){
         for(int i = 0; i < 1; i++)
-            new RailNetwork<>(largeNetwork);
+            new RailNetwork<>(largeNetwork).build();
+    }
+
+    /**
+     * Same as {@link NetworkBenchmarks#benchmarkLargeNetwork()}, but building the sections and edges in parallel.
+     */
+    @Test
+    public void benchmarkLargeNetworkParallel(){
+        for(int i = 0; i < 1; i++)
+            new RailNetwork<>(largeNetwork).buildParallel(BUILD_POOL);
     }
 }
@@ -0,0 +1,99 @@
+package com.minemaarten.signals.benchmarks;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Random;
+
+import net.minecraft.block.BlockRailBase.EnumRailDirection;
+import net.minecraft.util.math.BlockPos;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.minemaarten.signals.rail.network.EnumHeading;
+import com.minemaarten.signals.rail.network.INetworkObject;
+import com.minemaarten.signals.rail.network.NetworkSignal.EnumSignalType;
+import com.minemaarten.signals.rail.network.mc.CompactNetworkSerializer;
+import com.minemaarten.signals.rail.network.mc.MCNetworkRail;
+import com.minemaarten.signals.rail.network.mc.MCNetworkSignal;
+import com.minemaarten.signals.rail.network.mc.MCPos;
+import com.minemaarten.signals.rail.network.mc.NetworkSerializer;
+import com.minemaarten.signals.tests.NetworkSerializerTests;
+
+/**
+ * Bytes per object and throughput of the regular and compact network packet formats.
+ * @author Maarten
+ *
+ */
+public class NetworkSerializerBenchmarks{
+    private static final int LARGE_NETWORK_SIZE = 1000;
+    private static final int LARGE_NETWORK_SPACING = 50;
+    private static List<INetworkObject<MCPos>> largeNetwork, randomObjects;
+
+    @BeforeClass
+    public static void prepare(){
+        largeNetwork = new ArrayList<>();
+        for(int x = 0; x < LARGE_NETWORK_SIZE; x++) {
+            for(int z = 0; z < LARGE_NETWORK_SIZE; z++) {
+                MCPos pos = new MCPos(0, new BlockPos(x - LARGE_NETWORK_SIZE / 2, 64, z - LARGE_NETWORK_SIZE / 2));
+                if(x % LARGE_NETWORK_SPACING == 0 && z % LARGE_NETWORK_SPACING == 0) {
+                    largeNetwork.add(new MCNetworkRail(pos, "minecraft:golden_rail", EnumRailDirection.NORTH_SOUTH, EnumSet.allOf(EnumRailDirection.class)));
+                } else if(x % LARGE_NETWORK_SPACING == 0) {
+                    largeNetwork.add(new MCNetworkRail(pos, (String)null, EnumRailDirection.NORTH_SOUTH, EnumSet.allOf(EnumRailDirection.class)));
+                } else if(z % LARGE_NETWORK_SPACING == 0) {
+                    largeNetwork.add(new MCNetworkRail(pos, (String)null, EnumRailDirection.EAST_WEST, EnumSet.allOf(EnumRailDirection.class)));
+                }
+                if((x - 1) % LARGE_NETWORK_SPACING == 0 && (z - 1) % LARGE_NETWORK_SPACING == 0) {
+                    largeNetwork.add(new MCNetworkSignal(pos, EnumHeading.NORTH, EnumSignalType.BLOCK));
+                }
+            }
+        }
+
+        randomObjects = NetworkSerializerTests.createRandomObjects(new Random(1), 40000);
+    }
+
+    @Test
+    public void benchmarkBytesPerObjectLargeNetwork(){
+        assertCompactFormatSmaller("Large network", largeNetwork);
+    }
+
+    @Test
+    public void benchmarkBytesPerObjectRandom(){
+        assertCompactFormatSmaller("Random objects", randomObjects);
+    }
+
+    @Test
+    public void benchmarkRegularFormatLargeNetwork(){
+        for(int i = 0; i < 10; i++) {
+            ByteBuf buf = Unpooled.buffer();
+            new NetworkSerializer().writeToBuf(largeNetwork, buf);
+            new NetworkSerializer().readFromByteBuf(buf);
+        }
+    }
+
+    @Test
+    public void benchmarkCompactFormatLargeNetwork(){
+        for(int i = 0; i < 10; i++) {
+            ByteBuf buf = Unpooled.buffer();
+            new CompactNetworkSerializer().writeToBuf(largeNetwork, buf);
+            new CompactNetworkSerializer().readFromByteBuf(buf);
+        }
+    }
+
+    /**
+     * Asserts the compact format takes fewer bytes per object than the regular format, reporting both sizes when it doesn't.
+     */
+    private static void assertCompactFormatSmaller(String name, List<INetworkObject<MCPos>> objects){
+        ByteBuf regular = Unpooled.buffer();
+        new NetworkSerializer().writeToBuf(objects, regular);
+        ByteBuf compact = Unpooled.buffer();
+        new CompactNetworkSerializer().writeToBuf(objects, compact);
+        double regularBytes = (double)regular.readableBytes() / objects.size(), compactBytes = (double)compact.readableBytes() / objects.size();
+        Assert.assertTrue(String.format("%s (%d objects): regular %.1f bytes per object, compact %.1f bytes per object", name, objects.size(), regularBytes, compactBytes), compactBytes < regularBytes);
+    }
+}
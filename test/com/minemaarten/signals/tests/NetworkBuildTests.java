@@ -0,0 +1,307 @@
+package com.minemaarten.signals.tests;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.Sets;
+import com.minemaarten.signals.rail.network.EnumHeading;
+import com.minemaarten.signals.rail.network.INetworkObject;
+import com.minemaarten.signals.rail.network.NetworkRail;
+import com.minemaarten.signals.rail.network.NetworkSignal;
+import com.minemaarten.signals.rail.network.NetworkSignal.EnumSignalType;
+import com.minemaarten.signals.rail.network.NetworkUpdater;
+import com.minemaarten.signals.rail.network.RailEdge;
+import com.minemaarten.signals.rail.network.RailGraph;
+import com.minemaarten.signals.rail.network.RailNetwork;
+import com.minemaarten.signals.rail.network.RailSection;
+import com.minemaarten.signals.util.Pos2D;
+import com.minemaarten.signals.util.parsing.NetworkParser;
+import com.minemaarten.signals.util.railnode.DefaultRailNode;
+import com.minemaarten.signals.util.railnode.TestRemovalNode;
+
+//@formatter:off
+/**
+ * Tests whether the different ways of building a RailNetwork result in the same network.
+ * @author Maarten
+ *
+ */
+public class NetworkBuildTests{
+    private static final ForkJoinPool POOL = new ForkJoinPool(4);
+
+    @Test
+    public void testParallelBuildJunctions(){
+        List<String> map = new ArrayList<>();
+        map.add("++++++ +   ");
+        map.add("  +   +    ");
+        map.add(" +++#++++++");
+        map.add(" +  +  +  +");
+        map.add(" + +++++  +");
+        map.add(" ++++  ++++");
+        assertParallelBuildEqual(NetworkParser.createDefaultParser().parse(map).railObjects.getAllNetworkObjects().values());
+    }
+
+    @Test
+    public void testParallelBuildSignals(){
+        List<String> map = new ArrayList<>();
+        map.add("   +       ");
+        map.add("+++++ +    ");
+        map.add("  +   +<+  ");
+        map.add(" +++++++++ ");
+        map.add(" +  >^+    ");
+        map.add(" + ++ +v   ");
+        map.add(" ++++++++++");
+        assertParallelBuildEqual(NetworkParser.createDefaultParser().parse(map).railObjects.getAllNetworkObjects().values());
+    }
+
+    @Test
+    public void testParallelBuildRailLinks(){
+        List<String> map = new ArrayList<>();
+        map.add("+    +   + ");
+        map.add("+f   +t  +v");
+        map.add("+    +u  + ");
+        map.add("+++  +   + ");
+        map.add("  +++++  + ");
+        assertParallelBuildEqual(NetworkParser.createDefaultParser()
+                                              .addRailLink('f', 't')
+                                              .addRailLink('v', 'u')
+                                              .parse(map).railObjects.getAllNetworkObjects().values());
+    }
+
+    @Test
+    public void testParallelBuildRings(){
+        List<String> map = new ArrayList<>();
+        map.add("   ++++    ");
+        map.add("   +  +    ");
+        map.add("++++  +    ");
+        map.add("   +  ++++ ");
+        map.add("   ++++    ");
+        assertParallelBuildEqual(NetworkParser.createDefaultParser().parse(map).railObjects.getAllNetworkObjects().values());
+    }
+
+    @Test
+    public void testParallelBuildGrid(){
+        List<INetworkObject<Pos2D>> objects = new ArrayList<>();
+        for(int x = 0; x < 200; x++) {
+            for(int y = 0; y < 200; y++) {
+                if(x % 20 == 0 || y % 20 == 0) {
+                    objects.add(new DefaultRailNode(new Pos2D(x, y)));
+                }
+                if((x - 1) % 20 == 0 && (y - 1) % 20 == 0) {
+                    objects.add(new NetworkSignal<>(new Pos2D(x, y), EnumHeading.NORTH, EnumSignalType.BLOCK));
+                }
+            }
+        }
+        assertParallelBuildEqual(objects);
+    }
+
+    @Test
+    public void testIncrementalBuildSignal(){
+        List<String> before = new ArrayList<>();
+        before.add("++++++++++++");
+        before.add("     +      ");
+        before.add("     +      ");
+        before.add("++++++++++++");
+        List<String> after = new ArrayList<>();
+        after.add("++++++++++++");
+        after.add("     +      ");
+        after.add("     +      ");
+        after.add("++++++++++++");
+        after.add("         <  ");
+        assertIncrementalBuildEqual(NetworkParser.createDefaultParser(), before, after);
+    }
+
+    @Test
+    public void testIncrementalBuildSignalInvalidated(){
+        List<String> before = new ArrayList<>();
+        before.add("              +     ");
+        before.add("++++++++++++++++++++");
+        before.add("   <                ");
+        List<String> after = new ArrayList<>();
+        after.add("   +          +     ");
+        after.add("++++++++++++++++++++");
+        after.add("   <                ");
+        assertIncrementalBuildEqual(NetworkParser.createDefaultParser(), before, after); //Attached to an intersection
+        assertIncrementalBuildEqual(NetworkParser.createDefaultParser(), after, before);
+    }
+
+    @Test
+    public void testIncrementalBuildRailChanges(){
+        List<String> before = new ArrayList<>();
+        before.add("++++++++++++   ");
+        before.add("     +   +     ");
+        before.add("     +   +     ");
+        before.add("+++++++++++++++");
+        List<String> after = new ArrayList<>();
+        after.add("+++++ ++++++   ");
+        after.add("     +   +     ");
+        after.add("     +   ++    ");
+        after.add("+++++++++++++++");
+        assertIncrementalBuildEqual(NetworkParser.createDefaultParser(), before, after);
+    }
+
+    @Test
+    public void testIncrementalBuildCrossing(){
+        List<String> before = new ArrayList<>();
+        before.add("     +      +  ");
+        before.add("     +      +  ");
+        before.add("+++++++++++++++");
+        before.add("     +      +  ");
+        before.add("     +      +  ");
+        List<String> after = new ArrayList<>();
+        after.add("     +      +  ");
+        after.add("     +      +  ");
+        after.add("+++++#++++++#++");
+        after.add("     +      +  ");
+        after.add("     +      +  ");
+        assertIncrementalBuildEqual(NetworkParser.createDefaultParser(), before, after);
+        assertIncrementalBuildEqual(NetworkParser.createDefaultParser(), after, before);
+    }
+
+    @Test
+    public void testIncrementalBuildRailLink(){
+        List<String> before = new ArrayList<>();
+        before.add("+    +   + ");
+        before.add("+    +t  + ");
+        before.add("+    +   + ");
+        before.add("+++  +   + ");
+        List<String> after = new ArrayList<>();
+        after.add("+    +   + ");
+        after.add("+f   +t  + ");
+        after.add("+    +   + ");
+        after.add("+++  +   + ");
+        NetworkParser parser = NetworkParser.createDefaultParser().addRailLink('f', 't');
+        assertIncrementalBuildEqual(parser, before, after);
+        assertIncrementalBuildEqual(parser, after, before);
+    }
+
+    @Test
+    public void testIncrementalBuildGrid(){
+        List<INetworkObject<Pos2D>> objects = new ArrayList<>();
+        for(int x = 0; x < 200; x++) {
+            for(int y = 0; y < 200; y++) {
+                if(x % 20 == 0 || y % 20 == 0) {
+                    objects.add(new DefaultRailNode(new Pos2D(x, y)));
+                }
+            }
+        }
+        RailNetwork<Pos2D> network = new RailNetwork<>(objects).build();
+        List<INetworkObject<Pos2D>> changes = new ArrayList<>();
+        changes.add(new NetworkSignal<>(new Pos2D(41, 50), EnumHeading.NORTH, EnumSignalType.BLOCK));
+        changes.add(new TestRemovalNode(new Pos2D(100, 110)));
+        changes.add(new DefaultRailNode(new Pos2D(141, 141)));
+        assertIncrementalBuildEqual(network, changes);
+    }
+
+    @Test
+    public void testPrimitiveLookups(){
+        List<String> map = new ArrayList<>();
+        map.add("   +       ");
+        map.add("+++++ +    ");
+        map.add("  +   +<+  ");
+        map.add(" +++++++++ ");
+        map.add(" +  >^+    ");
+        RailNetwork<Pos2D> network = NetworkParser.createDefaultParser().parse(map).build();
+        for(int x = -1; x < 12; x++) {
+            for(int y = -1; y < 6; y++) {
+                Pos2D pos = new Pos2D(x, y);
+                Assert.assertSame(network.railObjects.get(pos), network.railObjects.get(0, pos.toLong()));
+                Assert.assertSame(network.findSection(pos), network.findSection(0, pos.toLong()));
+                Assert.assertSame(network.findEdge(pos), network.findEdge(0, pos.toLong()));
+                Assert.assertNull(network.railObjects.get(1, pos.toLong()));
+            }
+        }
+    }
+
+    private static void assertIncrementalBuildEqual(NetworkParser parser, List<String> before, List<String> after){
+        RailNetwork<Pos2D> prevNetwork = parser.parse(before).build();
+        Map<Pos2D, INetworkObject<Pos2D>> prevObjects = prevNetwork.unfilteredRailObjects.getAllNetworkObjects();
+        Map<Pos2D, INetworkObject<Pos2D>> objects = parser.parse(after).unfilteredRailObjects.getAllNetworkObjects();
+
+        List<INetworkObject<Pos2D>> changes = new ArrayList<>();
+        for(Pos2D pos : Sets.union(prevObjects.keySet(), objects.keySet())) {
+            if(!Objects.equals(prevObjects.get(pos), objects.get(pos))) {
+                changes.add(objects.containsKey(pos) ? objects.get(pos) : parser.provideRemovalMarker(pos));
+            }
+        }
+        assertIncrementalBuildEqual(prevNetwork, changes);
+    }
+
+    private static void assertIncrementalBuildEqual(RailNetwork<Pos2D> prevNetwork, List<INetworkObject<Pos2D>> changes){
+        RailNetwork<Pos2D> network = new NetworkUpdater<Pos2D>(null).applyUpdates(prevNetwork, changes).build();
+        RailNetwork<Pos2D> expected = new RailNetwork<>(network.unfilteredRailObjects.getAllNetworkObjects()).build();
+
+        Assert.assertEquals("Signals should be validated as in a full build", expected.railObjects, network.railObjects);
+
+        Assert.assertEquals(expected.getAllSections(), network.getAllSections());
+        Assert.assertEquals(expected.getAllEdges(), network.getAllEdges());
+        Assert.assertEquals(getEdgeRails(expected), getEdgeRails(network));
+        assertRailGraphValid(network);
+        for(RailSection<Pos2D> section : network.getAllSections()) {
+            for(NetworkRail<Pos2D> rail : section) {
+                Assert.assertSame(section, network.findSection(rail.getPos()));
+            }
+        }
+
+        //Assert that untouched parts are reused
+        Set<Object> prevObjects = Collections.newSetFromMap(new IdentityHashMap<>());
+        prevObjects.addAll(prevNetwork.getAllSections());
+        prevObjects.addAll(prevNetwork.getAllEdges());
+        if(prevNetwork.getAllSections().size() > 1) Assert.assertTrue(network.getAllSections().stream().anyMatch(prevObjects::contains));
+        Assert.assertTrue(network.getAllEdges().stream().anyMatch(prevObjects::contains));
+    }
+
+    private static void assertParallelBuildEqual(Collection<INetworkObject<Pos2D>> objects){
+        for(int partitions = 1; partitions <= 8; partitions++) {
+            RailNetwork<Pos2D> serial = new RailNetwork<>(objects).build();
+            RailNetwork<Pos2D> parallel = new RailNetwork<>(objects).buildParallel(POOL, partitions);
+
+            Assert.assertEquals(serial.getAllSections(), parallel.getAllSections());
+            Assert.assertEquals(serial.getAllEdges(), parallel.getAllEdges());
+            Assert.assertEquals(getEdgeRails(serial), getEdgeRails(parallel));
+            assertRailGraphValid(parallel);
+        }
+    }
+
+    /**
+     * Asserts the graph has the same neighbors as looking them up in the network objects.
+     */
+    private static void assertRailGraphValid(RailNetwork<Pos2D> network){
+        RailGraph<Pos2D> graph = network.getRailGraph();
+        int railCount = 0;
+        List<NetworkRail<Pos2D>> neighbors = new ArrayList<>();
+        for(int i = 0; i < graph.size(); i++) {
+            NetworkRail<Pos2D> rail = graph.getRail(i);
+            if(rail != null) {
+                railCount++;
+                Assert.assertSame(network.railObjects.getRail(rail.getPos()), rail);
+                Assert.assertEquals(i, graph.indexOf(rail.getPos()));
+                rail.getSectionNeighborRails(network.railObjects, neighbors);
+                Assert.assertEquals(neighbors, graph.getNeighborRails(rail));
+            }
+        }
+        Assert.assertEquals(network.railObjects.getRails().size(), railCount);
+    }
+
+    private static Set<Set<Pos2D>> getEdgeRails(RailNetwork<Pos2D> network){
+        return network.getAllEdges().stream().map(NetworkBuildTests::getRails).collect(Collectors.toSet());
+    }
+
+    private static Set<Pos2D> getRails(RailEdge<Pos2D> edge){
+        Set<Pos2D> rails = new HashSet<>();
+        edge.forEach(r -> rails.add(r.getPos()));
+        return rails;
+    }
+}
+//@formatter:on
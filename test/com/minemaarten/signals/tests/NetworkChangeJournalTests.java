@@ -0,0 +1,92 @@
+package com.minemaarten.signals.tests;
+
+import java.util.Collections;
+
+import net.minecraft.nbt.NBTTagCompound;
+import net.minecraft.util.math.BlockPos;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableSet;
+import com.minemaarten.signals.rail.network.INetworkObject;
+import com.minemaarten.signals.rail.network.mc.MCPos;
+import com.minemaarten.signals.rail.network.mc.NetworkChangeJournal;
+import com.minemaarten.signals.rail.network.mc.NetworkRemovalMarker;
+
+/**
+ * Tests which changes the server can send to clients with an older version of the network.
+ * @author Maarten
+ *
+ */
+public class NetworkChangeJournalTests{
+
+    private static MCPos pos(int x){
+        return new MCPos(0, new BlockPos(x, 64, 0));
+    }
+
+    private static void record(NetworkChangeJournal journal, int x){
+        journal.recordUpdate(Collections.<INetworkObject<MCPos>> singletonList(new NetworkRemovalMarker(pos(x))));
+    }
+
+    @Test
+    public void testChangesSinceVersion(){
+        NetworkChangeJournal journal = new NetworkChangeJournal();
+        record(journal, 1);
+        record(journal, 2);
+        record(journal, 3);
+        long id = journal.getNetworkId();
+        Assert.assertEquals(3, journal.getVersion());
+        Assert.assertEquals(ImmutableSet.of(pos(1), pos(2), pos(3)), journal.getChangedPositionsSince(id, 0));
+        Assert.assertEquals(ImmutableSet.of(pos(3)), journal.getChangedPositionsSince(id, 2));
+        Assert.assertEquals(ImmutableSet.of(), journal.getChangedPositionsSince(id, 3));
+        Assert.assertNull("Versions from the future are unknown", journal.getChangedPositionsSince(id, 4));
+        Assert.assertNull("No version", journal.getChangedPositionsSince(id, -1));
+        Assert.assertNull("Other network", journal.getChangedPositionsSince(id + 1, 3));
+    }
+
+    @Test
+    public void testOldChangesForgotten(){
+        NetworkChangeJournal journal = new NetworkChangeJournal();
+        for(int i = 0; i < 100001; i++) {
+            record(journal, i);
+        }
+        Assert.assertNull(journal.getChangedPositionsSince(journal.getNetworkId(), 0));
+        Assert.assertEquals(ImmutableSet.of(pos(100000)), journal.getChangedPositionsSince(journal.getNetworkId(), 100000));
+    }
+
+    @Test
+    public void testLoadedVersion(){
+        NetworkChangeJournal journal = new NetworkChangeJournal();
+        record(journal, 1);
+        NBTTagCompound tag = new NBTTagCompound();
+        journal.writeToNBT(tag);
+
+        NetworkChangeJournal loaded = NetworkChangeJournal.fromNBT(tag);
+        Assert.assertNotEquals("Loaded networks get a new id", journal.getNetworkId(), loaded.getNetworkId());
+        Assert.assertEquals(1, loaded.getVersion());
+        Assert.assertEquals("Clients with the saved version don't need changes", ImmutableSet.of(), loaded.getChangedPositionsSince(journal.getNetworkId(), 1));
+        Assert.assertNull("Changes before loading are unknown", loaded.getChangedPositionsSince(journal.getNetworkId(), 0));
+
+        record(loaded, 2);
+        Assert.assertEquals(ImmutableSet.of(pos(2)), loaded.getChangedPositionsSince(journal.getNetworkId(), 1));
+        Assert.assertEquals(ImmutableSet.of(pos(2)), loaded.getChangedPositionsSince(loaded.getNetworkId(), 1));
+
+        loaded.reset();
+        Assert.assertNull("Reset networks don't know the saved version", loaded.getChangedPositionsSince(journal.getNetworkId(), 0));
+    }
+
+    @Test
+    public void testVersionsAfterSaveNotReused(){
+        NetworkChangeJournal journal = new NetworkChangeJournal();
+        record(journal, 1);
+        NBTTagCompound tag = new NBTTagCompound();
+        journal.writeToNBT(tag);
+        record(journal, 2); //Seen by clients, but lost as the server crashed before saving again
+
+        NetworkChangeJournal loaded = NetworkChangeJournal.fromNBT(tag);
+        record(loaded, 3);
+        Assert.assertEquals(journal.getVersion(), loaded.getVersion());
+        Assert.assertNull("The client's version 2 is another network than the loaded version 2", loaded.getChangedPositionsSince(journal.getNetworkId(), 2));
+    }
+}
@@ -0,0 +1,99 @@
+package com.minemaarten.signals.tests;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Random;
+
+import net.minecraft.block.BlockRailBase.EnumRailDirection;
+import net.minecraft.util.math.BlockPos;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.minemaarten.signals.rail.network.EnumHeading;
+import com.minemaarten.signals.rail.network.INetworkObject;
+import com.minemaarten.signals.rail.network.NetworkSignal.EnumSignalType;
+import com.minemaarten.signals.rail.network.mc.CompactNetworkSerializer;
+import com.minemaarten.signals.rail.network.mc.MCNetworkRail;
+import com.minemaarten.signals.rail.network.mc.MCNetworkRailLink;
+import com.minemaarten.signals.rail.network.mc.MCNetworkSignal;
+import com.minemaarten.signals.rail.network.mc.MCNetworkStation;
+import com.minemaarten.signals.rail.network.mc.MCNetworkTeleportRail;
+import com.minemaarten.signals.rail.network.mc.MCPos;
+import com.minemaarten.signals.rail.network.mc.NetworkRemovalMarker;
+import com.minemaarten.signals.rail.network.mc.NetworkSerializer;
+
+/**
+ * Tests the compact network object format against the regular format.
+ * @author Maarten
+ *
+ */
+public class NetworkSerializerTests{
+
+    public static List<INetworkObject<MCPos>> createRandomObjects(Random rand, int count){
+        EnumRailDirection[] railDirs = EnumRailDirection.values();
+        List<INetworkObject<MCPos>> objects = new ArrayList<>();
+        for(int i = 0; i < count; i++) {
+            //Positions around the origin, so negative chunk coordinates are covered as well.
+            MCPos pos = new MCPos(rand.nextInt(3) - 1, new BlockPos(rand.nextInt(2000) - 1000, rand.nextInt(256), rand.nextInt(2000) - 1000));
+            MCPos destination = rand.nextBoolean() ? new MCPos(rand.nextInt(3) - 1, new BlockPos(rand.nextInt(2000) - 1000, rand.nextInt(256), rand.nextInt(2000) - 1000)) : null;
+            EnumRailDirection curDir = railDirs[rand.nextInt(railDirs.length)];
+            int type = rand.nextInt(10);
+            if(type < 4) {
+                objects.add(new MCNetworkRail(pos, (String)null, curDir, EnumSet.allOf(EnumRailDirection.class)));
+            } else if(type < 5) {
+                String railType = rand.nextBoolean() ? "minecraft:golden_rail" : "minecraft:detector_rail";
+                objects.add(new MCNetworkRail(pos, railType, curDir, EnumSet.of(EnumRailDirection.NORTH_SOUTH, EnumRailDirection.EAST_WEST, curDir)));
+            } else if(type < 6) {
+                objects.add(new MCNetworkTeleportRail(pos, rand.nextBoolean() ? null : "signals:teleport_rail", curDir, EnumSet.of(curDir), destination));
+            } else if(type < 7) {
+                objects.add(new MCNetworkSignal(pos, EnumHeading.VALUES[rand.nextInt(EnumHeading.VALUES.length)], EnumSignalType.VALUES[rand.nextInt(EnumSignalType.VALUES.length)]));
+            } else if(type < 8) {
+                objects.add(new MCNetworkRailLink(pos, destination, rand.nextInt(200)));
+            } else if(type < 9) {
+                objects.add(new MCNetworkStation(pos, "station" + rand.nextInt(20), rand.nextBoolean()));
+            } else {
+                objects.add(new NetworkRemovalMarker(pos));
+            }
+        }
+        return objects;
+    }
+
+    @Test
+    public void testCompactRoundTrip(){
+        List<INetworkObject<MCPos>> objects = createRandomObjects(new Random(0), 5000);
+
+        ByteBuf compactBuf = Unpooled.buffer();
+        new CompactNetworkSerializer().writeToBuf(objects, compactBuf);
+        List<INetworkObject<MCPos>> readObjects = new CompactNetworkSerializer().readFromByteBuf(compactBuf);
+        Assert.assertEquals(0, compactBuf.readableBytes());
+
+        //The compact format writes in chunk order, so compare in the same order, using the regular format of every object.
+        List<INetworkObject<MCPos>> sortedObjects = new ArrayList<>(objects);
+        sortedObjects.sort(CompactNetworkSerializer.CHUNK_ORDER);
+        Assert.assertEquals(sortedObjects.size(), readObjects.size());
+        for(int i = 0; i < sortedObjects.size(); i++) {
+            Assert.assertEquals(sortedObjects.get(i).getClass(), readObjects.get(i).getClass());
+            Assert.assertEquals(toRegularFormat(sortedObjects.get(i)), toRegularFormat(readObjects.get(i)));
+        }
+    }
+
+    @Test
+    public void testCompactRoundTripEmpty(){
+        ByteBuf compactBuf = Unpooled.buffer();
+        new CompactNetworkSerializer().writeToBuf(new ArrayList<>(), compactBuf);
+        Assert.assertTrue(new CompactNetworkSerializer().readFromByteBuf(compactBuf).isEmpty());
+    }
+
+    private static ByteBuf toRegularFormat(INetworkObject<MCPos> obj){
+        List<INetworkObject<MCPos>> objects = new ArrayList<>();
+        objects.add(obj);
+        ByteBuf buf = Unpooled.buffer();
+        new NetworkSerializer().writeToBuf(objects, buf);
+        return buf;
+    }
+}
@@ -1,14 +1,26 @@
 package com.minemaarten.signals.tests;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 
+import org.junit.Assert;
 import org.junit.Test;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.minemaarten.signals.api.access.ISignal.EnumForceMode;
 import com.minemaarten.signals.api.access.ISignal.EnumLampStatus;
 import com.minemaarten.signals.rail.network.EnumHeading;
+import com.minemaarten.signals.rail.network.NetworkSignal;
 import com.minemaarten.signals.rail.network.NetworkSignal.EnumSignalType;
 import com.minemaarten.signals.rail.network.NetworkState;
+import com.minemaarten.signals.rail.network.RailRoute;
+import com.minemaarten.signals.rail.network.RailSection;
+import com.minemaarten.signals.rail.network.Train;
 import com.minemaarten.signals.util.Pos2D;
 import com.minemaarten.signals.util.TestTrain;
 import com.minemaarten.signals.util.parsing.NetworkParser;
@@ -81,6 +93,27 @@ public class NetworkStateTests{
                      .validate();
     }
     
+    /**
+     * Assert that the status of the last signal of a long chain propagates all the way back
+     */
+    @Test
+    public void testChainLadder(){    
+        List<String> map = new ArrayList<>();
+        map.add("++++++++++++++t");
+        map.add(" 0 1 2 3 4 5 6 ");
+        NetworkParser.createDefaultParser()
+                     .addTrainGroups("t")
+                     .addExpectedSignal(0, EnumHeading.EAST, EnumSignalType.CHAIN, EnumLampStatus.RED)
+                     .addExpectedSignal(1, EnumHeading.EAST, EnumSignalType.CHAIN, EnumLampStatus.RED)
+                     .addExpectedSignal(2, EnumHeading.EAST, EnumSignalType.CHAIN, EnumLampStatus.RED)
+                     .addExpectedSignal(3, EnumHeading.EAST, EnumSignalType.CHAIN, EnumLampStatus.RED)
+                     .addExpectedSignal(4, EnumHeading.EAST, EnumSignalType.CHAIN, EnumLampStatus.RED)
+                     .addExpectedSignal(5, EnumHeading.EAST, EnumSignalType.CHAIN, EnumLampStatus.RED)
+                     .addExpectedSignal(6, EnumHeading.EAST, EnumSignalType.BLOCK, EnumLampStatus.RED) //A train is on the next section
+                     .parse(map)
+                     .validate();
+    }
+    
     @Test
     public void testRecursiveChain(){    
         List<String> map = new ArrayList<>();
@@ -287,5 +320,226 @@ public class NetworkStateTests{
                      .parse(map)
                      .validate();
     }
+    
+    /**
+     * Assert claims are released when the claiming train is removed
+     */
+    @Test
+    public void testSectionClaimReleased(){
+        List<String> map = new ArrayList<>();
+        map.add("++++c++");
+        map.add(" 0     ");
+        TestRailNetwork network = NetworkParser.createDefaultParser()
+                     .addObjCreator('c', pos -> {
+                         return new RailNodeTrainProvider(pos, 'c'){
+                             @Override
+                            public TestTrain provideTrain(TestRailNetwork network, NetworkState<Pos2D> state){
+                                 TestTrain train = super.provideTrain(network, state);
+                                 train.setPosition(network, state, new Pos2D(-1, -1));//Move the train off the map
+                                 train.setClaimingSection(network.findSection(pos)); //Claim the section the train was created on
+                                 return train;
+                             }
+                         };
+                     })
+                     .addObjCreator('0', pos -> new NetworkSignal<>(pos, EnumHeading.EAST, EnumSignalType.BLOCK))
+                     .parse(map);
+        NetworkState<Pos2D> state = network.getState();
+        RailSection<Pos2D> section = network.findSection(new Pos2D(4, 0));
+        Train<Pos2D> train = state.getTrains().iterator().next();
+        state.update(network);
+        Assert.assertEquals(train, state.getClaimingTrain(section));
+        Assert.assertEquals(EnumLampStatus.YELLOW, state.getLampStatus(new Pos2D(1, 1)));
+
+        state.removeTrain(train);
+        state.validateTrainIndices();
+        Assert.assertNull(state.getClaimingTrain(section));
+        state.update(network);
+        Assert.assertEquals(EnumLampStatus.GREEN, state.getLampStatus(new Pos2D(1, 1)));
+    }
+
+    /**
+     * Assert trains are found via the position index, also when multiple trains share a position
+     */
+    @Test
+    public void testTrainPositionIndex(){
+        List<String> map = new ArrayList<>();
+        map.add("+++++++");
+        TestRailNetwork network = NetworkParser.createDefaultParser().parse(map);
+        NetworkState<Pos2D> state = network.getState();
+        TestTrain a = new TestTrain(network, state, ImmutableSet.of(new Pos2D(1, 0), new Pos2D(2, 0)), 'a');
+        TestTrain b = new TestTrain(network, state, ImmutableSet.of(new Pos2D(5, 0)), 'b');
+        state.addTrain(a);
+        state.addTrain(b);
+        state.validateTrainIndices();
+        Assert.assertEquals(a, state.getTrainAtPositions(ImmutableList.of(new Pos2D(0, 0), new Pos2D(2, 0))));
+        Assert.assertEquals(b, network.findSection(new Pos2D(5, 0)).getTrain(state));
+
+        b.setPosition(network, state, new Pos2D(2, 0));
+        state.validateTrainIndices();
+        a.setPosition(network, state, new Pos2D(0, 0));
+        state.validateTrainIndices();
+        Assert.assertEquals(b, state.getTrainAt(new Pos2D(2, 0)));
+        Assert.assertEquals(a, state.getTrainAt(new Pos2D(0, 0)));
+        Assert.assertNull(state.getTrainAt(new Pos2D(1, 0)));
+
+        state.removeTrain(b);
+        state.validateTrainIndices();
+        Assert.assertNull(state.getTrainAt(new Pos2D(2, 0)));
+    }
+
+    /**
+     * Assert the state carries over when the state is updated for another version of the network
+     */
+    @Test
+    public void testNetworkSwap(){
+        List<String> map = new ArrayList<>();
+        map.add("++++t++");
+        map.add(" 0  2  ");
+        NetworkParser parser = NetworkParser.createDefaultParser()
+                                            .addTrainGroups("t")
+                                            .addObjCreator('0', pos -> new NetworkSignal<>(pos, EnumHeading.EAST, EnumSignalType.BLOCK))
+                                            .addObjCreator('2', pos -> new NetworkSignal<>(pos, EnumHeading.EAST, EnumSignalType.BLOCK));
+        TestRailNetwork network = parser.parse(map);
+        NetworkState<Pos2D> state = network.getState();
+        state.setForceMode(network, new Pos2D(4, 1), EnumForceMode.FORCED_RED);
+        state.update(network);
+        Assert.assertEquals(EnumLampStatus.RED, state.getLampStatus(new Pos2D(1, 1)));
+        Assert.assertEquals(EnumLampStatus.RED, state.getLampStatus(new Pos2D(4, 1)));
+
+        TestRailNetwork newNetwork = parser.parse(map);
+        state.update(newNetwork);
+        state.validateTrainIndices();
+        Assert.assertEquals(EnumLampStatus.RED, state.getLampStatus(new Pos2D(1, 1)));
+        Assert.assertEquals(EnumLampStatus.RED, state.getLampStatus(new Pos2D(4, 1)));
+
+        TestTrain train = (TestTrain)state.getTrains().iterator().next();
+        train.setPosition(newNetwork, state, new Pos2D(-1, -1));
+        state.update(newNetwork);
+        Assert.assertEquals(EnumLampStatus.GREEN, state.getLampStatus(new Pos2D(1, 1)));
+    }
+
+    /**
+     * Assert that only re-evaluating the signals affected by changes results in the same statusses as evaluating all signals.
+     */
+    @Test
+    public void testIncrementalSignalUpdates(){
+        List<String> map = new ArrayList<>();
+        map.add(" w < w w < w w   ");
+        map.add("s+++++++++++++++d");
+        map.add("  c > c c > c c+ ");
+        map.add("    +   +    +++ ");
+        map.add("    +++++  w < w ");
+        NetworkParser parser = NetworkParser.createDefaultParser()
+                                            .addObjCreator('c', pos -> new NetworkSignal<>(pos, EnumHeading.EAST, EnumSignalType.CHAIN))
+                                            .addObjCreator('w', pos -> new NetworkSignal<>(pos, EnumHeading.WEST, EnumSignalType.CHAIN));
+        TestRailNetwork incremental = parser.parse(map);
+        TestRailNetwork full = parser.parse(map);
+        full.getState().setIncrementalSignalUpdates(false);
+
+        List<Pos2D> trainPositions = new ArrayList<>();
+        for(int x = 0; x < 17; x++) trainPositions.add(new Pos2D(x, 1));
+        for(int x = 16; x >= 0; x--) trainPositions.add(new Pos2D(x, 1));
+        trainPositions.add(new Pos2D(-1, -1)); //Off the map
+
+        for(int i = 0; i < trainPositions.size(); i++) {
+            for(TestRailNetwork network : new TestRailNetwork[]{incremental, full}) {
+                TestTrain train = (TestTrain)network.getState().getTrains().iterator().next();
+                train.setPathfinder(network::pathfind);
+                train.setPosition(network, network.getState(), trainPositions.get(i));
+                if(i == 10) network.getState().setForceMode(network, new Pos2D(4, 2), EnumForceMode.FORCED_RED);
+                if(i == 20) network.getState().setForceMode(network, new Pos2D(4, 2), EnumForceMode.NONE);
+                network.getState().update(network);
+                network.getState().validateTrainIndices();
+                network.getState().validateEdgeWeights();
+            }
+            for(NetworkSignal<Pos2D> signal : full.railObjects.getSignals()) {
+                Assert.assertEquals("Signal " + signal.getPos() + " at step " + i, full.getState().getLampStatus(signal.getPos()), incremental.getState().getLampStatus(signal.getPos()));
+            }
+        }
+    }
+
+    /**
+     * Assert that trains routed asynchronously claim the same route as trains routed synchronously, in the next update, and that only one
+     * route is searched per train at a time.
+     */
+    @Test
+    public void testAsyncRouting(){
+        testAsyncRouting(false);
+    }
+
+    /**
+     * Assert that trains routed asynchronously route via the contraction hierarchy, when enabled.
+     */
+    @Test
+    public void testAsyncRoutingViaHierarchy(){
+        testAsyncRouting(true);
+    }
+
+    private void testAsyncRouting(boolean contractionHierarchyRouting){
+        List<String> map = new ArrayList<>();
+        map.add("+s+++d");
+        map.add(" >    ");
+        TestRailNetwork network = NetworkParser.createDefaultParser().parse(map);
+        NetworkState<Pos2D> state = network.getState();
+        if(contractionHierarchyRouting) {
+            network.buildContractionHierarchy();
+            state.setContractionHierarchyRouting(true);
+        }
+        TestTrain train = (TestTrain)state.getTrains().iterator().next();
+        RailRoute<Pos2D> expectedRoute = network.pathfind(state, new Pos2D(1, 0), EnumHeading.EAST, network.destinations);
+        Assert.assertNotNull(expectedRoute);
+        state.getDestinationTreeCache().clear();
+
+        List<Runnable> tasks = new ArrayList<>();
+        ExecutorService executor = new AbstractExecutorService(){
+            @Override
+            public void execute(Runnable command){
+                tasks.add(command);
+            }
+
+            @Override
+            public void shutdown(){}
+
+            @Override
+            public List<Runnable> shutdownNow(){
+                return Collections.emptyList();
+            }
+
+            @Override
+            public boolean isShutdown(){
+                return false;
+            }
+
+            @Override
+            public boolean isTerminated(){
+                return false;
+            }
+
+            @Override
+            public boolean awaitTermination(long timeout, TimeUnit unit){
+                return false;
+            }
+        };
+        state.setAsyncRouting(executor);
+        train.setRouteGoals(network.destinations);
+        state.update(network);
+        Assert.assertNull(train.getCurRoute());
+        Assert.assertEquals(1, tasks.size());
+
+        //While the route is searched, no other routes are searched for the train
+        for(int i = 0; i < 30; i++) {
+            state.update(network);
+        }
+        Assert.assertEquals(1, tasks.size());
+        Assert.assertNull(train.getCurRoute());
+
+        tasks.remove(0).run();
+        state.update(network);
+        Assert.assertNotNull(train.getCurRoute());
+        Assert.assertEquals(expectedRoute.routeRails, train.getCurRoute().routeRails);
+        if(!contractionHierarchyRouting) {
+            Assert.assertEquals("The destination tree built off thread should be cached", 1, state.getDestinationTreeCache().size());
+        }
+    }
 }
 //@formatter:on
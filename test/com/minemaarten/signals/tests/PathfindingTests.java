@@ -2,15 +2,28 @@ package com.minemaarten.signals.tests;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
 
 import org.junit.Assert;
 import org.junit.Test;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.minemaarten.signals.api.access.ISignal.EnumForceMode;
+import com.minemaarten.signals.rail.network.DestinationTreeCache;
 import com.minemaarten.signals.rail.network.EnumHeading;
+import com.minemaarten.signals.rail.network.NetworkState;
+import com.minemaarten.signals.rail.network.RailPathfinder;
 import com.minemaarten.signals.rail.network.RailRoute;
+import com.minemaarten.signals.rail.network.RailRoute.EnumRouteResult;
+import com.minemaarten.signals.rail.network.RailRoute.RailRouteResult;
+import com.minemaarten.signals.rail.network.RailRouteCache;
+import com.minemaarten.signals.rail.network.Train;
 import com.minemaarten.signals.util.Pos2D;
 import com.minemaarten.signals.util.parsing.NetworkParser;
 import com.minemaarten.signals.util.parsing.TestRailNetwork;
+import com.minemaarten.signals.util.railnode.TestStation;
 
 //@formatter:off
 /**
@@ -204,6 +217,266 @@ public class PathfindingTests{
                      .validate();
     }
     
+    /**
+     * Assert that routes found via the cached destination trees are the same as searched routes, and that the trees are rebuilt when
+     * a red signal they depend on changes.
+     */
+    @Test
+    public void testDestinationTreeCache(){
+        List<String> map = new ArrayList<>();
+        map.add("s++++++    ");
+        map.add(" v+ <v+ +  ");
+        map.add(" +t+++++++ ");
+        map.add(" d^   +    ");
+        map.add(" +<+ v+    ");
+        map.add(" ++++++    ");
+        TestRailNetwork network = NetworkParser.createDefaultParser().addTrainGroups("t").parse(map);
+        NetworkState<Pos2D> state = network.getState();
+        state.update(network);
+        DestinationTreeCache<Pos2D> cache = state.getDestinationTreeCache();
+        long hits = cache.getHits();
+        long misses = cache.getMisses();
+
+        RailRoute<Pos2D> cachedRoute = network.pathfind();
+        RailRoute<Pos2D> cachedRoute2 = network.pathfind();
+        state.setDestinationTreeCaching(false);
+        RailRoute<Pos2D> searchedRoute = network.pathfind();
+        state.setDestinationTreeCaching(true);
+        Assert.assertNotNull(searchedRoute);
+        Assert.assertEquals(searchedRoute.routeRails, cachedRoute.routeRails);
+        Assert.assertEquals(searchedRoute.routeRails, cachedRoute2.routeRails);
+        Assert.assertEquals(misses + 1, cache.getMisses());
+        Assert.assertEquals(hits + 1, cache.getHits());
+
+        //Removing the train turns its signal green, which makes the detour obsolete
+        for(Train<Pos2D> train : ImmutableList.copyOf(state.getTrains())) {
+            if(!train.getPositions().contains(network.start)) state.removeTrain(train);
+        }
+        state.update(network);
+        misses = cache.getMisses();
+        cachedRoute = network.pathfind();
+        state.setDestinationTreeCaching(false);
+        searchedRoute = network.pathfind();
+        Assert.assertEquals(misses + 1, cache.getMisses());
+        Assert.assertEquals(searchedRoute.routeRails, cachedRoute.routeRails);
+        Assert.assertNotEquals(cachedRoute2.routeRails, cachedRoute.routeRails);
+    }
+
+    /**
+     * Assert that a destination tree is kept when a signal on an edge that isn't part of the tree turns red, as that only makes the edge longer.
+     */
+    @Test
+    public void testDestinationTreeKeptOnRedSignalOffTree(){
+        List<String> map = new ArrayList<>();
+        map.add("s+++++++d");
+        map.add(" >+    + ");
+        map.add("  ++++++ ");
+        map.add("    >    ");
+        TestRailNetwork network = NetworkParser.createDefaultParser().parse(map);
+        NetworkState<Pos2D> state = network.getState();
+        state.update(network);
+        DestinationTreeCache<Pos2D> cache = state.getDestinationTreeCache();
+        RailRoute<Pos2D> route = network.pathfind();
+        Assert.assertEquals(1, route.routeSignals.size());
+        long misses = cache.getMisses();
+        long hits = cache.getHits();
+
+        state.setForceMode(network, new Pos2D(4, 3), EnumForceMode.FORCED_RED);
+        state.update(network);
+        Assert.assertEquals(route.routeRails, network.pathfind().routeRails);
+        Assert.assertEquals(misses, cache.getMisses());
+        Assert.assertEquals(hits + 1, cache.getHits());
+
+        //Stopping being red makes the edge shorter, which could change the tree
+        state.setForceMode(network, new Pos2D(4, 3), EnumForceMode.NONE);
+        state.update(network);
+        Assert.assertEquals(route.routeRails, network.pathfind().routeRails);
+        Assert.assertEquals(misses + 1, cache.getMisses());
+    }
+
+    /**
+     * Assert that routes found via the contraction hierarchy are the same as searched routes, also after a red signal on the route
+     * turns green.
+     */
+    @Test
+    public void testContractionHierarchyRoute(){
+        List<String> map = new ArrayList<>();
+        map.add("s++++++    ");
+        map.add(" v+ <v+ +  ");
+        map.add(" +t+++++++ ");
+        map.add(" d^   +    ");
+        map.add(" +<+ v+    ");
+        map.add(" ++++++    ");
+        TestRailNetwork network = NetworkParser.createDefaultParser().addTrainGroups("t").parse(map);
+        NetworkState<Pos2D> state = network.getState();
+        state.setDestinationTreeCaching(false);
+        state.setRouteCaching(false);
+        state.update(network);
+        network.buildContractionHierarchy();
+
+        RailRoute<Pos2D> searchedRoute = network.pathfind();
+        state.setContractionHierarchyRouting(true);
+        RailRoute<Pos2D> hierarchyRoute = network.pathfind();
+        Assert.assertNotNull(hierarchyRoute);
+        Assert.assertEquals(searchedRoute.routeRails, hierarchyRoute.routeRails);
+
+        //Removing the train turns its signal green, which makes the detour obsolete
+        for(Train<Pos2D> train : ImmutableList.copyOf(state.getTrains())) {
+            if(!train.getPositions().contains(network.start)) state.removeTrain(train);
+        }
+        state.update(network);
+        RailRoute<Pos2D> hierarchyRoute2 = network.pathfind();
+        state.setContractionHierarchyRouting(false);
+        searchedRoute = network.pathfind();
+        Assert.assertEquals(searchedRoute.routeRails, hierarchyRoute2.routeRails);
+        Assert.assertNotEquals(hierarchyRoute.routeRails, hierarchyRoute2.routeRails);
+    }
+
+    /**
+     * Assert that destinations resolve to the stations matching by name, including the stations with the same name as a matching station,
+     * and to the stations applicable for the specific train.
+     */
+    @Test
+    public void testStationResolution(){
+        List<String> map = new ArrayList<>();
+        map.add("A B A C");
+        map.add("s++++++");
+        TestRailNetwork network = NetworkParser.createDefaultParser()
+                                               .addObjCreator('A', pos -> new TestStation(pos, "A"))
+                                               .addObjCreator('B', pos -> new TestStation(pos, "AB"))
+                                               .addObjCreator('C', pos -> new TestStation(pos, "C"){
+                                                   @Override
+                                                   public boolean hasTrainSpecificDestinations(){
+                                                       return true;
+                                                   }
+
+                                                   @Override
+                                                   public boolean isApplicableForTrain(Train<Pos2D> train, Pattern destinationRegex){
+                                                       return destinationRegex.pattern().equals("ITEM");
+                                                   }
+                                               })
+                                               .parse(map);
+        Train<Pos2D> train = network.getState().getTrains().iterator().next();
+
+        Set<Pos2D> literalRails = network.getStationRails(train, Pattern.compile("A"));
+        Assert.assertEquals(ImmutableSet.of(new Pos2D(0, 1), new Pos2D(4, 1)), literalRails);
+        Assert.assertSame(literalRails, network.getStationRails(train, Pattern.compile("A")));
+        Assert.assertEquals(ImmutableSet.of(new Pos2D(0, 1), new Pos2D(2, 1), new Pos2D(4, 1)), network.getStationRails(train, Pattern.compile("A.*")));
+        Assert.assertEquals(ImmutableSet.of(new Pos2D(2, 0)), network.getStations(train, Pattern.compile("AB")));
+        Assert.assertEquals(ImmutableSet.of(new Pos2D(6, 1)), network.getStationRails(train, Pattern.compile("ITEM")));
+        Assert.assertEquals(ImmutableSet.of(new Pos2D(6, 1)), network.getStationRails(train, Pattern.compile("C|D")));
+        Assert.assertEquals(ImmutableSet.of(), network.getStationRails(train, Pattern.compile("D")));
+    }
+
+    /**
+     * Assert that stations without train specific destinations, like station markers without destination providers next to them, are only
+     * matched by name, and are not evaluated per train.
+     */
+    @Test
+    public void testNonSpecificStationSkipped(){
+        List<String> map = new ArrayList<>();
+        map.add("A B");
+        map.add("s++");
+        List<Pos2D> evaluatedStations = new ArrayList<>();
+        TestRailNetwork network = NetworkParser.createDefaultParser()
+                                               .addObjCreator('A', pos -> new TestStation(pos, "A"){
+                                                   @Override
+                                                   public boolean isApplicableForTrain(Train<Pos2D> train, Pattern destinationRegex){
+                                                       evaluatedStations.add(getPos());
+                                                       return true;
+                                                   }
+                                               })
+                                               .addObjCreator('B', pos -> new TestStation(pos, "B"){
+                                                   @Override
+                                                   public boolean hasTrainSpecificDestinations(){
+                                                       return true;
+                                                   }
+
+                                                   @Override
+                                                   public boolean isApplicableForTrain(Train<Pos2D> train, Pattern destinationRegex){
+                                                       evaluatedStations.add(getPos());
+                                                       return true;
+                                                   }
+                                               })
+                                               .parse(map);
+        Train<Pos2D> train = network.getState().getTrains().iterator().next();
+
+        Assert.assertEquals(ImmutableSet.of(new Pos2D(2, 0)), network.getStations(train, Pattern.compile("ITEM")));
+        Assert.assertEquals(ImmutableList.of(new Pos2D(2, 0)), evaluatedStations);
+        Assert.assertEquals(ImmutableSet.of(new Pos2D(0, 0), new Pos2D(2, 0)), network.getStations(train, Pattern.compile("A|ITEM")));
+    }
+
+    /**
+     * Assert that routes to destinations are reused, until a signal on the route changes status.
+     */
+    @Test
+    public void testRouteCache(){
+        List<String> map = new ArrayList<>();
+        map.add("+s++++A");
+        map.add("   >   ");
+        TestRailNetwork network = NetworkParser.createDefaultParser().addObjCreator('A', pos -> new TestStation(pos, "A")).parse(map);
+        NetworkState<Pos2D> state = network.getState();
+        state.update(network);
+        RailRouteCache<Pos2D> cache = state.getRouteCache();
+        Train<Pos2D> train = state.getTrains().iterator().next();
+        RailPathfinder<Pos2D> pathfinder = new RailPathfinder<>(network, state);
+
+        RailRouteResult<Pos2D> result = pathfinder.pathfindToDestination(network.start, train, Pattern.compile("A"), null);
+        Assert.assertEquals(EnumRouteResult.SUCCESS, result.routeResult);
+        Assert.assertEquals(1, result.railRoute.routeSignals.size());
+        Assert.assertSame(result.railRoute, pathfinder.pathfindToDestination(network.start, train, Pattern.compile("A"), null).railRoute);
+        Assert.assertEquals(EnumRouteResult.NO_STATIONS, pathfinder.pathfindToDestination(network.start, train, Pattern.compile("B"), null).routeResult);
+        Assert.assertEquals(1, cache.getHits());
+        Assert.assertEquals(1, cache.getMisses());
+
+        //A different heading or destination regex is a different route
+        Assert.assertEquals(EnumRouteResult.NO_PATH, pathfinder.pathfindToDestination(network.start, train, Pattern.compile("A"), EnumHeading.WEST).routeResult);
+        Assert.assertEquals(EnumRouteResult.SUCCESS, pathfinder.pathfindToDestination(network.start, train, Pattern.compile("A|B"), null).routeResult);
+        Assert.assertEquals(3, cache.getMisses());
+
+        state.setForceMode(network, result.railRoute.routeSignals.get(0).getPos(), EnumForceMode.FORCED_RED);
+        state.update(network);
+        Assert.assertNotSame(result.railRoute, pathfinder.pathfindToDestination(network.start, train, Pattern.compile("A"), null).railRoute);
+        Assert.assertEquals(1, cache.getInvalidations());
+    }
+
+    /**
+     * Assert that cached routes are not reused when a red signal off the route, which caused a detour, stops being red.
+     */
+    @Test
+    public void testRouteCacheRedSignalOffRoute(){
+        List<String> map = new ArrayList<>();
+        map.add("s++++++    ");
+        map.add(" v+ <v+ +  ");
+        map.add(" +t+++++++ ");
+        map.add(" A^   +    ");
+        map.add(" +<+ v+    ");
+        map.add(" ++++++    ");
+        TestRailNetwork network = NetworkParser.createDefaultParser().addTrainGroups("t").addObjCreator('A', pos -> new TestStation(pos, "A")).parse(map);
+        NetworkState<Pos2D> state = network.getState();
+        state.update(network);
+        RailRouteCache<Pos2D> cache = state.getRouteCache();
+        Train<Pos2D> train = null;
+        for(Train<Pos2D> t : state.getTrains()) {
+            if(t.getPositions().contains(network.start)) train = t;
+        }
+        RailPathfinder<Pos2D> pathfinder = new RailPathfinder<>(network, state);
+
+        RailRoute<Pos2D> detour = pathfinder.pathfindToDestination(network.start, train, Pattern.compile("A"), null).railRoute;
+        Assert.assertNotNull(detour);
+        Assert.assertSame(detour, pathfinder.pathfindToDestination(network.start, train, Pattern.compile("A"), null).railRoute);
+
+        //Removing the train turns its signal green, which makes the detour obsolete
+        for(Train<Pos2D> otherTrain : ImmutableList.copyOf(state.getTrains())) {
+            if(otherTrain != train) state.removeTrain(otherTrain);
+        }
+        state.update(network);
+        RailRoute<Pos2D> route = pathfinder.pathfindToDestination(network.start, train, Pattern.compile("A"), null).railRoute;
+        Assert.assertNotNull(route);
+        Assert.assertNotEquals(detour.routeRails, route.routeRails);
+        Assert.assertEquals(1, cache.getInvalidations());
+    }
+
     /**
      * Assert that a path can be created when two networks are bridged via a Rail Link.
      */
@@ -243,6 +516,23 @@ public class PathfindingTests{
                      .validate();
     }
     
+    /**
+     * Assert that a Rail Link leading close to the destination is taken, even though the link is far away from the start in a straight line.
+     */
+    @Test
+    public void testRailLinkShortcutRoute(){
+        List<String> map = new ArrayList<>();
+        map.add("s+0++++++++++++++1+d");
+        map.add("  +              +  ");
+        map.add("  f              t  ");
+        NetworkParser.createDefaultParser()
+                     .addRailLink('f', 't')
+                     .addExpectedIntersection(0, EnumHeading.WEST, EnumHeading.SOUTH)
+                     .addExpectedIntersection(1, EnumHeading.SOUTH, EnumHeading.EAST)
+                     .parse(map)
+                     .validate();
+    }
+    
     /**
      * A Rail Link is unidirectional, when reversed it should not result in a path.
      */
@@ -0,0 +1,113 @@
+package com.minemaarten.signals.tests;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.minemaarten.signals.lib.PersistentHashMap;
+
+/**
+ * Tests the persistent map backing the network objects against a regular HashMap.
+ * @author Maarten
+ *
+ */
+public class PersistentHashMapTests{
+
+    @Test
+    public void testRandomUpdates(){
+        Random rand = new Random(0);
+        Map<Integer, Integer> expected = new HashMap<>();
+        PersistentHashMap<Integer, Integer> map = PersistentHashMap.of();
+        for(int i = 0; i < 20000; i++) {
+            Integer key = rand.nextInt(5000);
+            if(rand.nextInt(3) == 0) {
+                expected.remove(key);
+                map = map.minus(key);
+            } else {
+                expected.put(key, i);
+                map = map.plus(key, i);
+            }
+        }
+        assertMapEquals(expected, map);
+    }
+
+    @Test
+    public void testOldVersionsUnaffected(){
+        PersistentHashMap.Builder<Integer, Integer> builder = PersistentHashMap.builder();
+        for(int i = 0; i < 1000; i++) {
+            builder.put(i, i);
+        }
+        PersistentHashMap<Integer, Integer> original = builder.build();
+        Map<Integer, Integer> expected = new HashMap<>(original);
+
+        PersistentHashMap.Builder<Integer, Integer> changed = original.toBuilder();
+        for(int i = 0; i < 1000; i += 2) {
+            changed.remove(i);
+            changed.put(i + 1, -i);
+        }
+        builder.put(5000, 5000); //Builders may be used after building, without affecting the built map.
+        changed.build();
+
+        assertMapEquals(expected, original);
+        Assert.assertEquals(500, changed.size());
+    }
+
+    @Test
+    public void testHashCollisions(){
+        Map<CollidingKey, Integer> expected = new HashMap<>();
+        PersistentHashMap<CollidingKey, Integer> map = PersistentHashMap.of();
+        for(int i = 0; i < 100; i++) {
+            expected.put(new CollidingKey(i), i);
+            map = map.plus(new CollidingKey(i), i);
+        }
+        for(int i = 0; i < 100; i += 3) {
+            expected.remove(new CollidingKey(i));
+            map = map.minus(new CollidingKey(i));
+        }
+        assertMapEquals(expected, map);
+    }
+
+    @Test
+    public void testPlusAll(){
+        PersistentHashMap<Integer, Integer> small = PersistentHashMap.<Integer, Integer> of().plus(1, 10).plus(2, 20);
+        PersistentHashMap<Integer, Integer> large = PersistentHashMap.<Integer, Integer> of().plus(2, 200).plus(3, 300).plus(4, 400);
+
+        Map<Integer, Integer> expected = new HashMap<>(small);
+        expected.putAll(large);
+        assertMapEquals(expected, small.plusAll(large));
+
+        expected = new HashMap<>(large);
+        expected.putAll(small);
+        assertMapEquals(expected, large.plusAll(small));
+    }
+
+    private static <K, V> void assertMapEquals(Map<K, V> expected, PersistentHashMap<K, V> map){
+        Assert.assertEquals(expected.size(), map.size());
+        Assert.assertEquals(expected, map);
+        Assert.assertEquals(map, expected);
+        Assert.assertEquals(expected.hashCode(), map.hashCode());
+        Assert.assertEquals(expected.size(), map.entrySet().stream().count());
+        expected.forEach((k, v) -> Assert.assertEquals(v, map.get(k)));
+    }
+
+    private static class CollidingKey{
+        private final int id;
+
+        public CollidingKey(int id){
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object obj){
+            return obj instanceof CollidingKey && ((CollidingKey)obj).id == id;
+        }
+
+        @Override
+        public int hashCode(){
+            return id % 4; //Only a few distinct hashes
+        }
+    }
+}
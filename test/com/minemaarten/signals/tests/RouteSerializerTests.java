@@ -0,0 +1,106 @@
+package com.minemaarten.signals.tests;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
+import net.minecraft.block.BlockRailBase.EnumRailDirection;
+import net.minecraft.util.math.BlockPos;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.minemaarten.signals.rail.network.INetworkObject;
+import com.minemaarten.signals.rail.network.RailNetwork;
+import com.minemaarten.signals.rail.network.mc.MCNetworkRail;
+import com.minemaarten.signals.rail.network.mc.MCPos;
+import com.minemaarten.signals.rail.network.mc.RouteSerializer;
+
+/**
+ * Tests that routes written as references to edges are expanded to the same rails.
+ * @author Maarten
+ *
+ */
+public class RouteSerializerTests{
+
+    private static MCPos pos(int x, int z){
+        return new MCPos(0, new BlockPos(x, 64, z));
+    }
+
+    private static MCNetworkRail rail(int x, int z, EnumRailDirection... validDirs){
+        return new MCNetworkRail(pos(x, z), (String)null, validDirs[0], EnumSet.of(validDirs[0], validDirs));
+    }
+
+    /**
+     * A track along x from 0 to 20, with a junction at x = 10 to a track along z from 0 to 10.
+     */
+    private static RailNetwork<MCPos> createNetwork(){
+        List<INetworkObject<MCPos>> objects = new ArrayList<>();
+        for(int x = 0; x <= 20; x++) {
+            if(x == 10) {
+                objects.add(rail(x, 0, EnumRailDirection.EAST_WEST, EnumRailDirection.NORTH_SOUTH));
+            } else {
+                objects.add(rail(x, 0, EnumRailDirection.EAST_WEST));
+            }
+        }
+        for(int z = 1; z <= 10; z++) {
+            objects.add(rail(10, z, EnumRailDirection.NORTH_SOUTH));
+        }
+        return new RailNetwork<>(objects).build();
+    }
+
+    private static List<MCPos> createRoute(){
+        List<MCPos> route = new ArrayList<>();
+        for(int x = 2; x <= 10; x++) {
+            route.add(pos(x, 0));
+        }
+        for(int z = 1; z <= 8; z++) {
+            route.add(pos(10, z));
+        }
+        return route;
+    }
+
+    private static ByteBuf write(List<MCPos> route, RailNetwork<MCPos> network){
+        ByteBuf buf = Unpooled.buffer();
+        RouteSerializer.writeRoute(route, network, buf);
+        return buf;
+    }
+
+    @Test
+    public void testRoundTrip(){
+        RailNetwork<MCPos> network = createNetwork();
+        List<MCPos> route = createRoute();
+        ByteBuf buf = write(route, network);
+        Assert.assertEquals(route, RouteSerializer.readRoute(buf, network));
+        Assert.assertEquals("Route rails in edges should not be written", 0, buf.readableBytes());
+        Assert.assertTrue("Encoded size: " + buf.writerIndex(), buf.writerIndex() < 30);
+    }
+
+    @Test
+    public void testReversedRoute(){
+        RailNetwork<MCPos> network = createNetwork();
+        List<MCPos> route = Lists.reverse(createRoute());
+        Assert.assertEquals(route, RouteSerializer.readRoute(write(route, network), network));
+    }
+
+    @Test
+    public void testJumpsAndUnknownRails(){
+        RailNetwork<MCPos> network = createNetwork();
+        List<MCPos> route = createRoute();
+        route.add(new MCPos(-1, new BlockPos(1000, 10, -1000))); //Teleported
+        route.add(new MCPos(-1, new BlockPos(1001, 10, -1000))); //Not in the network
+        route.add(new MCPos(-1, new BlockPos(1002, 11, -1000)));
+        Assert.assertEquals(route, RouteSerializer.readRoute(write(route, network), network));
+    }
+
+    @Test
+    public void testMissingNetwork(){
+        List<MCPos> route = createRoute();
+        List<MCPos> expanded = RouteSerializer.readRoute(write(route, createNetwork()), RailNetwork.<MCPos> empty().build());
+        Assert.assertEquals("Only the rails before the first edge can be expanded", route.subList(0, 2), expanded);
+    }
+}
@@ -26,7 +26,21 @@ public class Pos2D implements IPosition<Pos2D>{
 
     @Override
     public int hashCode(){
-        return x * 1000 + y;
+        return IPosition.hashCode(getPlane(), toLong());
+    }
+
+    @Override
+    public int getPlane(){
+        return 0;
+    }
+
+    @Override
+    public long toLong(){
+        return toLong(x, y);
+    }
+
+    public static long toLong(int x, int y){
+        return (long)x << 32 | y & 0xFFFFFFFFL;
     }
 
     @Override
@@ -1,6 +1,8 @@
 package com.minemaarten.signals.util;
 
 import java.util.Collections;
+import java.util.List;
+import java.util.Set;
 import java.util.function.Supplier;
 
 import com.google.common.collect.ImmutableSet;
@@ -16,6 +18,7 @@ public class TestTrain extends Train<Pos2D>{
 
     private final char trainID;
     private Supplier<RailRoute<Pos2D>> pathfinder;
+    private Set<Pos2D> routeGoals;
 
     public TestTrain(RailNetwork<Pos2D> network, NetworkState<Pos2D> state, ImmutableSet<Pos2D> positions, char trainID){
         setPositions(network, state, positions);
@@ -26,12 +29,20 @@ public class TestTrain extends Train<Pos2D>{
         this.pathfinder = pathfinder;
     }
 
+    /**
+     * Allows routing this train asynchronously, to the given goals.
+     * @param routeGoals
+     */
+    public void setRouteGoals(Set<Pos2D> routeGoals){
+        this.routeGoals = routeGoals;
+    }
+
     public void setPosition(RailNetwork<Pos2D> network, NetworkState<Pos2D> state, Pos2D pos){
         setPositions(network, state, ImmutableSet.of(pos));
     }
 
     public void setClaimingSection(RailSection<Pos2D> section){
-        claimedSections = Collections.singleton(section);
+        setClaimedSections(ImmutableSet.of(section));
     }
 
     @Override
@@ -49,6 +60,11 @@ public class TestTrain extends Train<Pos2D>{
         return pathfinder == null ? null : pathfinder.get();
     }
 
+    @Override
+    public List<Set<Pos2D>> getRouteGoals(RailNetwork<Pos2D> network, Pos2D start, EnumHeading dir){
+        return routeGoals == null ? null : Collections.singletonList(routeGoals);
+    }
+
     @Override
     protected void updateIntersection(RailRouteNode<Pos2D> rail){
 
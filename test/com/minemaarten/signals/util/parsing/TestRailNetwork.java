@@ -48,7 +48,12 @@ public class TestRailNetwork extends RailNetwork<Pos2D>{
         state.setTrains(trains);
     }
 
+    public NetworkState<Pos2D> getState(){
+        return state;
+    }
+
     public RailRoute<Pos2D> pathfind(){
+        buildLandmarks(); //Like the server does after building a network
         return pathfind(state, start, pathfindDir, destinations);
     }
 
@@ -104,6 +109,7 @@ public class TestRailNetwork extends RailNetwork<Pos2D>{
             state.update(this);
         }
         state.update(this);
+        state.validateTrainIndices();
         StreamUtils.ofInterface(IValidatingNode.class, railObjects).forEach(r -> r.validate(this, state));
     }
 }
@@ -0,0 +1,25 @@
+package com.minemaarten.signals.util.railnode;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import com.minemaarten.signals.rail.network.NetworkStation;
+import com.minemaarten.signals.rail.network.RailNetwork;
+import com.minemaarten.signals.util.Pos2D;
+
+public class TestStation extends NetworkStation<Pos2D>{
+
+    public TestStation(Pos2D pos, String stationName){
+        super(pos, stationName);
+    }
+
+    @Override
+    public List<Pos2D> getNetworkNeighbors(){
+        return getPos().allHorizontalNeighbors();
+    }
+
+    @Override
+    public List<Pos2D> getConnectedRailPositions(RailNetwork<Pos2D> network){
+        return getNetworkNeighbors().stream().filter(pos -> network.railObjects.getRail(pos) != null).collect(Collectors.toList());
+    }
+}